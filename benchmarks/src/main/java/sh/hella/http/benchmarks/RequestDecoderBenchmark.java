@@ -0,0 +1,160 @@
+package sh.hella.http.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import sh.hella.http.Request;
+import sh.hella.http.codec.RequestDecoder;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decodes requests from a direct buffer the way a connection does, reusing one decoder. Run with {@code -prof gc}
+ * to see allocation per request.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestDecoderBenchmark {
+    private static final String SMALL_GET = "GET /plaintext HTTP/1.1\r\n"
+        + "Host: localhost\r\n"
+        + "\r\n";
+
+    private static final String BROWSER_GET = "GET /articles/2023/io-uring-in-java HTTP/1.1\r\n"
+        + "Host: www.example.com\r\n"
+        + "Connection: keep-alive\r\n"
+        + "Cache-Control: max-age=0\r\n"
+        + "sec-ch-ua: \"Chromium\";v=\"118\", \"Google Chrome\";v=\"118\", \"Not=A?Brand\";v=\"99\"\r\n"
+        + "sec-ch-ua-mobile: ?0\r\n"
+        + "sec-ch-ua-platform: \"Linux\"\r\n"
+        + "Upgrade-Insecure-Requests: 1\r\n"
+        + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) "
+        + "Chrome/118.0.0.0 Safari/537.36\r\n"
+        + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,image/apng,*/*;"
+        + "q=0.8,application/signed-exchange;v=b3;q=0.7\r\n"
+        + "Sec-Fetch-Site: same-origin\r\n"
+        + "Sec-Fetch-Mode: navigate\r\n"
+        + "Sec-Fetch-User: ?1\r\n"
+        + "Sec-Fetch-Dest: document\r\n"
+        + "Referer: https://www.example.com/articles\r\n"
+        + "Accept-Encoding: gzip, deflate, br\r\n"
+        + "Accept-Language: en-US,en;q=0.9\r\n"
+        + "Cookie: session=3f9a1c0e7b2d4e6f8a0b1c2d3e4f5a6b; theme=dark; _ga=GA1.1.123456789.1690000000\r\n"
+        + "\r\n";
+
+    private static final String QUERY_GET = "GET /search?q=hella+http&lang=en&page=3&per_page=50&sort=relevance"
+        + "&order=desc&filter=type%3Arepo&filter=stars%3A%3E100&utm_source=newsletter&utm_medium=email"
+        + "&utm_campaign=launch HTTP/1.1\r\n"
+        + "Host: localhost\r\n"
+        + "\r\n";
+
+    private static final String CONTENT_LENGTH_POST = "POST /api/orders HTTP/1.1\r\n"
+        + "Host: localhost\r\n"
+        + "Content-Type: application/json\r\n"
+        + "Content-Length: 74\r\n"
+        + "\r\n"
+        + "{\"customer\":\"c-1024\",\"items\":[{\"sku\":\"a-1\",\"qty\":2},{\"sku\":\"b-7\",\"qty\":1}]}";
+
+    private static final String CHUNKED_POST = "POST /api/upload HTTP/1.1\r\n"
+        + "Host: localhost\r\n"
+        + "Transfer-Encoding: chunked\r\n"
+        + "\r\n"
+        + "1a\r\nabcdefghijklmnopqrstuvwxyz\r\n"
+        + "10\r\n0123456789abcdef\r\n"
+        + "0\r\n\r\n";
+
+    private final RequestDecoder decoder = new RequestDecoder();
+    private ByteBuffer smallGet;
+    private ByteBuffer browserGet;
+    private ByteBuffer queryGet;
+    private ByteBuffer contentLengthPost;
+    private ByteBuffer chunkedPost;
+    private int browserGetSplit;
+
+    @Setup
+    public void setUp() {
+        smallGet = direct(SMALL_GET);
+        browserGet = direct(BROWSER_GET);
+        queryGet = direct(QUERY_GET);
+        contentLengthPost = direct(CONTENT_LENGTH_POST);
+        chunkedPost = direct(CHUNKED_POST);
+        browserGetSplit = BROWSER_GET.indexOf("User-Agent") + 20;
+    }
+
+    @Benchmark
+    public Request smallGet() {
+        return decode(smallGet);
+    }
+
+    @Benchmark
+    public Request browserGet() {
+        return decode(browserGet);
+    }
+
+    @Benchmark
+    public void browserGetHeaderLookup(Blackhole blackhole) {
+        Request request = decode(browserGet);
+        blackhole.consume(request.getHeader("accept-encoding"));
+        blackhole.consume(request.hasHeader("If-None-Match"));
+    }
+
+    @Benchmark
+    public Request queryGet() {
+        return decode(queryGet);
+    }
+
+    @Benchmark
+    public void queryGetParameters(Blackhole blackhole) {
+        Request request = decode(queryGet);
+        blackhole.consume(request.getParameter("page"));
+        blackhole.consume(request.getParameter("utm_campaign"));
+    }
+
+    @Benchmark
+    public Request contentLengthPost() {
+        return decode(contentLengthPost);
+    }
+
+    @Benchmark
+    public Request chunkedPost() {
+        Request request = decode(chunkedPost);
+        // The first call hands out the request, the second consumes the chunks
+        decoder.decode(chunkedPost);
+        return request;
+    }
+
+    @Benchmark
+    public Request browserGetSplitAcrossReads() {
+        // The first read ends mid-header, the second brings the rest in behind it
+        int length = browserGet.capacity();
+        browserGet.position(0).limit(browserGetSplit);
+        if (decoder.decode(browserGet) != null) {
+            throw new IllegalStateException("Split request decoded early");
+        }
+        browserGet.limit(length);
+        return decoder.decode(browserGet);
+    }
+
+    private Request decode(ByteBuffer buffer) {
+        buffer.position(0).limit(buffer.capacity());
+        return decoder.decode(buffer);
+    }
+
+    private static ByteBuffer direct(String request) {
+        byte[] bytes = request.getBytes(StandardCharsets.US_ASCII);
+        return ByteBuffer.allocateDirect(bytes.length).put(bytes).flip();
+    }
+}
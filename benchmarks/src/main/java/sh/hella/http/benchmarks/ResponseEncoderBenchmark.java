@@ -0,0 +1,116 @@
+package sh.hella.http.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import sh.hella.http.Response;
+import sh.hella.http.codec.ResponseEncoder;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes responses into a direct buffer the way a connection does. Run with {@code -prof gc} to see allocation
+ * per response.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseEncoderBenchmark {
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+    private Response plaintext;
+    private Response prebuiltPlaintext;
+    private Response headerHeavy;
+    private Response json;
+    private Response largeBody;
+    private Response largeDirectBody;
+
+    @Setup
+    public void setUp() {
+        plaintext = Response.builder()
+            .status(200)
+            .header("Content-Type", "text/plain")
+            .body("Hello, world!".getBytes(StandardCharsets.UTF_8))
+            .build();
+        prebuiltPlaintext = Response.prebuilt(plaintext);
+        headerHeavy = Response.builder()
+            .status(200)
+            .header("Content-Type", "text/html; charset=utf-8")
+            .header("Cache-Control", "public, max-age=3600")
+            .header("ETag", "\"5f2b8c1e-3a7\"")
+            .header("Last-Modified", "Tue, 17 Oct 2023 08:12:44 GMT")
+            .header("Vary", "Accept-Encoding")
+            .header("X-Content-Type-Options", "nosniff")
+            .header("X-Frame-Options", "DENY")
+            .header("Strict-Transport-Security", "max-age=63072000; includeSubDomains; preload")
+            .header("Content-Security-Policy", "default-src 'self'; img-src 'self' data:")
+            .header("Set-Cookie", "session=3f9a1c0e7b2d4e6f8a0b1c2d3e4f5a6b; Path=/; HttpOnly; Secure")
+            .body("<!doctype html><title>ok</title>".getBytes(StandardCharsets.UTF_8))
+            .build();
+        json = Response.builder()
+            .status(201)
+            .header("Content-Type", "application/json")
+            .header("Location", "/api/orders/1024")
+            .body("{\"id\":1024,\"status\":\"created\"}".getBytes(StandardCharsets.UTF_8))
+            .build();
+        byte[] large = new byte[16 * 1024];
+        Arrays.fill(large, (byte) 'x');
+        largeBody = Response.builder()
+            .status(200)
+            .header("Content-Type", "application/octet-stream")
+            .body(large)
+            .build();
+        largeDirectBody = Response.builder()
+            .status(200)
+            .header("Content-Type", "application/octet-stream")
+            .bodyBuffer(ByteBuffer.allocateDirect(large.length).put(large).flip())
+            .build();
+    }
+
+    @Benchmark
+    public ByteBuffer plaintext() {
+        return encode(plaintext);
+    }
+
+    @Benchmark
+    public ByteBuffer prebuiltPlaintext() {
+        return encode(prebuiltPlaintext);
+    }
+
+    @Benchmark
+    public ByteBuffer headerHeavy() {
+        return encode(headerHeavy);
+    }
+
+    @Benchmark
+    public ByteBuffer json() {
+        return encode(json);
+    }
+
+    @Benchmark
+    public ByteBuffer largeBody() {
+        return encode(largeBody);
+    }
+
+    @Benchmark
+    public ByteBuffer largeDirectBody() {
+        return encode(largeDirectBody);
+    }
+
+    private ByteBuffer encode(Response response) {
+        ResponseEncoder.encode(response, buffer.clear());
+        return buffer;
+    }
+}
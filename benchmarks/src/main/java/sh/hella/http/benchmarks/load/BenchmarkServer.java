@@ -0,0 +1,27 @@
+package sh.hella.http.benchmarks.load;
+
+import sh.hella.http.HttpServer;
+import sh.hella.http.Options;
+import sh.hella.http.Response;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The server side of {@link LoadHarness}, run in its own JVM so its memory can be measured on its own.
+ */
+public class BenchmarkServer {
+    public static void main(String[] args) {
+        int port = Integer.parseInt(args[0]);
+        int threads = Integer.parseInt(args[1]);
+
+        Response plaintext = Response.prebuilt(Response.builder()
+            .status(200)
+            .header("Content-Type", "text/plain")
+            .body("Hello, world!".getBytes(StandardCharsets.UTF_8))
+            .build());
+
+        new HttpServer(Options.builder().host("127.0.0.1").port(port).threads(threads).build(), request -> plaintext)
+            .start()
+            .join();
+    }
+}
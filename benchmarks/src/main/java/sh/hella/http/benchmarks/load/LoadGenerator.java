@@ -0,0 +1,343 @@
+package sh.hella.http.benchmarks.load;
+
+import sh.blake.niouring.IoUring;
+import sh.blake.niouring.IoUringSocket;
+import sh.hella.http.metrics.Histogram;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives an HTTP/1.1 server over nio_uring, one ring per thread, with a fixed number of pipelined requests allowed
+ * on each connection.
+ * <p>
+ * In a closed loop each connection sends its next request as soon as one completes, which measures throughput. In
+ * an open loop requests are issued on a fixed schedule whether or not the server keeps up, and latency is measured
+ * from when a request was due to be sent rather than when it was, so a stalled server is charged for every request
+ * it held up (the coordinated omission correction). Requests still unanswered when the run ends are charged the
+ * time they waited until then, so a server that stops answering can't leave its slowest requests out of the results.
+ * Responses must be framed with Content-Length.
+ */
+public class LoadGenerator {
+    private static final int RECEIVE_BUFFER_SIZE = 64 * 1024;
+    private static final long OPEN_LOOP_PARK_NANOS = 10_000;
+    private static final byte[] CONTENT_LENGTH = "content-length:".getBytes(StandardCharsets.US_ASCII);
+
+    private final LoadOptions options;
+
+    public LoadGenerator(LoadOptions options) {
+        this.options = options;
+    }
+
+    public LoadResult run(int connections) throws InterruptedException {
+        long start = System.nanoTime();
+        long recordFrom = start + TimeUnit.MILLISECONDS.toNanos(options.getWarmupMillis());
+        long end = recordFrom + TimeUnit.MILLISECONDS.toNanos(options.getDurationMillis());
+        // Per connection, so the schedule is spread evenly over the connections
+        long interval = options.getRate() > 0 ? TimeUnit.SECONDS.toNanos(1) * connections / options.getRate() : 0;
+
+        int threadCount = Math.min(options.getThreads(), connections);
+        List<Client> clients = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < threadCount; i++) {
+            int count = connections / threadCount + (i < connections % threadCount ? 1 : 0);
+            Client client = new Client(count, i, threadCount, connections, start, recordFrom, end, interval);
+            Thread thread = new Thread(client, "load-" + i);
+            clients.add(client);
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        long requests = 0, errors = 0, bytesRead = 0;
+        Histogram.Snapshot latency = new Histogram.Snapshot();
+        for (Client client : clients) {
+            requests += client.completed;
+            errors += client.errors;
+            bytesRead += client.bytesRead;
+            latency.add(client.latency);
+        }
+        return new LoadResult(connections, requests, errors, bytesRead, (end - recordFrom) / 1e9, latency);
+    }
+
+    private class Client implements Runnable {
+        private final IoUring ring = new IoUring();
+        private final List<ClientConnection> connections = new ArrayList<>();
+        private final Histogram latency = new Histogram();
+        private final long recordFrom;
+        private final long end;
+        private final boolean openLoop;
+        private long completed;
+        private long errors;
+        private long bytesRead;
+        private int open;
+
+        Client(int count, int index, int stride, int total, long start, long recordFrom, long end, long interval) {
+            this.recordFrom = recordFrom;
+            this.end = end;
+            this.openLoop = interval > 0;
+            for (int i = 0; i < count; i++) {
+                // Stagger the first request of each connection so an open loop doesn't send in bursts
+                long first = start + (openLoop ? interval * (index + (long) i * stride) / total : 0);
+                connections.add(new ClientConnection(this, first, interval));
+            }
+        }
+
+        @Override
+        public void run() {
+            for (ClientConnection connection : connections) {
+                ring.queueConnect(connection.socket);
+            }
+            open = connections.size();
+            while (open > 0 && System.nanoTime() < end) {
+                if (openLoop) {
+                    ring.executeNow();
+                    long now = System.nanoTime();
+                    for (ClientConnection connection : connections) {
+                        connection.issueDue(now);
+                    }
+                    LockSupport.parkNanos(OPEN_LOOP_PARK_NANOS);
+                } else {
+                    ring.execute();
+                }
+            }
+            for (ClientConnection connection : connections) {
+                connection.abandon();
+                connection.socket.close();
+            }
+            ring.close();
+        }
+
+        void completed(long issuedAt, long now) {
+            if (issuedAt >= recordFrom && now < end) {
+                completed++;
+                latency.record(now - issuedAt);
+            }
+        }
+
+        void unanswered(long issuedAt) {
+            if (issuedAt >= recordFrom && issuedAt < end) {
+                latency.record(end - issuedAt);
+            }
+        }
+
+        void failed(ClientConnection connection) {
+            if (!connection.failed) {
+                connection.failed = true;
+                errors++;
+                open--;
+                connection.socket.close();
+            }
+        }
+    }
+
+    private class ClientConnection {
+        private final Client client;
+        private final IoUringSocket socket;
+        private final ByteBuffer out;
+        private final ByteBuffer in = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+        private final long interval;
+        // Issue times of requests not yet answered, oldest first, the first `written` of which are on the wire
+        private long[] issued = new long[16];
+        private int head;
+        private int size;
+        private int written;
+        private long nextIssue;
+        private long bodyRemaining;
+        private boolean connected;
+        private boolean writing;
+        private boolean failed;
+
+        ClientConnection(Client client, long firstIssue, long interval) {
+            this.client = client;
+            this.interval = interval;
+            this.nextIssue = firstIssue;
+            this.socket = new IoUringSocket(options.getHost(), options.getPort());
+            this.out = ByteBuffer.allocateDirect(options.getRequest().length * options.getPipelineDepth());
+            socket.onConnect(this::onConnect);
+            socket.onRead(this::onRead);
+            socket.onWrite(this::onWrite);
+            socket.onException(ex -> client.failed(this));
+        }
+
+        void onConnect(IoUring ring) {
+            connected = true;
+            ring.queueRead(socket, in);
+            if (interval == 0) {
+                long now = System.nanoTime();
+                for (int i = 0; i < options.getPipelineDepth(); i++) {
+                    issue(now);
+                }
+                flush();
+            }
+        }
+
+        void issueDue(long now) {
+            if (!connected || failed) {
+                return;
+            }
+            while (nextIssue <= now) {
+                issue(nextIssue);
+                nextIssue += interval;
+            }
+            flush();
+        }
+
+        private void issue(long at) {
+            if (size == issued.length) {
+                long[] grown = new long[issued.length * 2];
+                for (int i = 0; i < size; i++) {
+                    grown[i] = issued[(head + i) % issued.length];
+                }
+                issued = grown;
+                head = 0;
+            }
+            issued[(head + size++) % issued.length] = at;
+        }
+
+        /**
+         * Charges every request still waiting for a response with the time it has waited by the end of the run. A
+         * failed connection has already been counted as an error.
+         */
+        void abandon() {
+            if (failed) {
+                return;
+            }
+            for (int i = 0; i < size; i++) {
+                client.unanswered(issued[(head + i) % issued.length]);
+            }
+            size = 0;
+        }
+
+        private void flush() {
+            int count = Math.min(size, options.getPipelineDepth()) - written;
+            if (writing || failed || count <= 0) {
+                return;
+            }
+            out.clear();
+            for (int i = 0; i < count; i++) {
+                out.put(options.getRequest());
+            }
+            written += count;
+            writing = true;
+            client.ring.queueWrite(socket, out.flip());
+        }
+
+        void onWrite(ByteBuffer buffer) {
+            if (buffer.hasRemaining()) {
+                client.ring.queueWrite(socket, buffer);
+                return;
+            }
+            writing = false;
+            flush();
+        }
+
+        void onRead(ByteBuffer buffer) {
+            if (buffer.position() == 0) {
+                client.failed(this);
+                return;
+            }
+            client.bytesRead += buffer.position();
+            buffer.flip();
+            int responses = parseResponses(buffer);
+            if (responses < 0) {
+                client.failed(this);
+                return;
+            }
+            long now = System.nanoTime();
+            for (int i = 0; i < responses && size > 0; i++) {
+                client.completed(issued[head], now);
+                head = (head + 1) % issued.length;
+                size--;
+                written--;
+                if (interval == 0) {
+                    issue(now);
+                }
+            }
+            buffer.compact();
+            client.ring.queueRead(socket, buffer);
+            flush();
+        }
+
+        /**
+         * Counts the complete responses in the buffer, leaving it positioned after the last one, or returns -1 if
+         * they can't be framed.
+         */
+        private int parseResponses(ByteBuffer buffer) {
+            int responses = 0;
+            int position = buffer.position(), limit = buffer.limit();
+            while (true) {
+                if (bodyRemaining > 0) {
+                    int skipped = (int) Math.min(bodyRemaining, limit - position);
+                    position += skipped;
+                    bodyRemaining -= skipped;
+                    if (bodyRemaining > 0) {
+                        break;
+                    }
+                    responses++;
+                }
+                int headEnd = indexOfHeadEnd(buffer, position, limit);
+                if (headEnd < 0) {
+                    if (position == 0 && limit == buffer.capacity()) {
+                        return -1;
+                    }
+                    break;
+                }
+                bodyRemaining = contentLength(buffer, position, headEnd);
+                position = headEnd + 4;
+                if (bodyRemaining == 0) {
+                    responses++;
+                }
+            }
+            buffer.position(position);
+            return responses;
+        }
+
+        private int indexOfHeadEnd(ByteBuffer buffer, int from, int to) {
+            for (int i = from; i + 3 < to; i++) {
+                if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n'
+                    && buffer.get(i + 2) == '\r' && buffer.get(i + 3) == '\n') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private long contentLength(ByteBuffer buffer, int from, int to) {
+            int line = from;
+            while (line < to) {
+                int lineEnd = line;
+                while (lineEnd < to && buffer.get(lineEnd) != '\r') {
+                    lineEnd++;
+                }
+                if (lineEnd - line > CONTENT_LENGTH.length && matchesIgnoreCase(buffer, line, CONTENT_LENGTH)) {
+                    long value = 0;
+                    for (int i = line + CONTENT_LENGTH.length; i < lineEnd; i++) {
+                        byte b = buffer.get(i);
+                        if (b >= '0' && b <= '9') {
+                            value = value * 10 + (b - '0');
+                        }
+                    }
+                    return value;
+                }
+                line = lineEnd + 2;
+            }
+            return 0;
+        }
+
+        private boolean matchesIgnoreCase(ByteBuffer buffer, int from, byte[] lowercase) {
+            for (int i = 0; i < lowercase.length; i++) {
+                if ((buffer.get(from + i) | 0x20) != lowercase[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package sh.hella.http.benchmarks.load;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Starts a {@link BenchmarkServer} on loopback in a separate JVM and sweeps it with the {@link LoadGenerator}, one
+ * run per connection count, printing throughput, latency percentiles and the server's resident memory.
+ * <p>
+ * Arguments are {@code --name=value}: {@code connections} (a comma separated list), {@code duration} and
+ * {@code warmup} in seconds, {@code rate} in requests per second (0 for a closed loop), {@code depth} for pipelining,
+ * {@code client-threads}, {@code server-threads} and {@code port}.
+ */
+public class LoadHarness {
+    public static void main(String[] args) throws Exception {
+        Map<String, String> arguments = parse(args);
+        int[] connectionCounts = Arrays.stream(arguments.getOrDefault("connections", "16,64,256,1024").split(","))
+            .mapToInt(Integer::parseInt)
+            .toArray();
+        int cpus = Runtime.getRuntime().availableProcessors();
+        int port = Integer.parseInt(arguments.getOrDefault("port", "8089"));
+        int serverThreads = Integer.parseInt(arguments.getOrDefault("server-threads", String.valueOf(Math.max(1, cpus / 2))));
+        LoadOptions options = LoadOptions.builder()
+            .port(port)
+            .threads(Integer.parseInt(arguments.getOrDefault("client-threads", String.valueOf(Math.max(1, cpus / 2)))))
+            .pipelineDepth(Integer.parseInt(arguments.getOrDefault("depth", "1")))
+            .rate(Integer.parseInt(arguments.getOrDefault("rate", "0")))
+            .warmupMillis(Long.parseLong(arguments.getOrDefault("warmup", "2")) * 1000)
+            .durationMillis(Long.parseLong(arguments.getOrDefault("duration", "10")) * 1000)
+            .build();
+
+        Process server = startServer(port, serverThreads);
+        try {
+            awaitListening(port);
+            System.out.printf("%-12s %12s %10s %10s %10s %10s %8s %10s %10s%n",
+                "connections", "rps", "p50 us", "p99 us", "p999 us", "max us", "errors", "rss MiB", "peak MiB");
+            LoadGenerator generator = new LoadGenerator(options);
+            for (int connections : connectionCounts) {
+                LoadResult result = generator.run(connections);
+                System.out.printf("%-12d %12.0f %10.1f %10.1f %10.1f %10.1f %8d %10.1f %10.1f%n",
+                    connections,
+                    result.getRequestsPerSecond(),
+                    micros(result.getLatency().getValueAtPercentile(50)),
+                    micros(result.getLatency().getValueAtPercentile(99)),
+                    micros(result.getLatency().getValueAtPercentile(99.9)),
+                    micros(result.getLatency().getMax()),
+                    result.getErrors(),
+                    mebibytes(memory(server, "VmRSS")),
+                    mebibytes(memory(server, "VmHWM")));
+            }
+        } finally {
+            server.destroy();
+        }
+    }
+
+    private static Process startServer(int port, int threads) throws IOException {
+        String java = ProcessHandle.current().info().command().orElse("java");
+        return new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+            BenchmarkServer.class.getName(), String.valueOf(port), String.valueOf(threads))
+            .inheritIO()
+            .start();
+    }
+
+    private static void awaitListening(int port) throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("127.0.0.1", port), 100);
+                return;
+            } catch (IOException ex) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("Server did not start listening on port " + port);
+    }
+
+    private static long memory(Process process, String field) throws IOException {
+        // Values in /proc/<pid>/status are in kB
+        for (String line : Files.readAllLines(Path.of("/proc", String.valueOf(process.pid()), "status"))) {
+            if (line.startsWith(field + ":")) {
+                return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+            }
+        }
+        return 0;
+    }
+
+    private static Map<String, String> parse(String[] args) {
+        Map<String, String> arguments = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) {
+                throw new IllegalArgumentException("Expected --name=value but got " + arg);
+            }
+            arguments.put(arg.substring(2, equals), arg.substring(equals + 1));
+        }
+        return arguments;
+    }
+
+    private static double micros(long nanos) {
+        return nanos / 1e3;
+    }
+
+    private static double mebibytes(long bytes) {
+        return bytes / (1024.0 * 1024.0);
+    }
+}
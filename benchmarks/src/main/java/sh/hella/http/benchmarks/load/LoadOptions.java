@@ -0,0 +1,26 @@
+package sh.hella.http.benchmarks.load;
+
+import lombok.Builder;
+import lombok.Data;
+
+import java.nio.charset.StandardCharsets;
+
+@Data
+@Builder
+public class LoadOptions {
+    @Builder.Default private final String host = "127.0.0.1";
+    @Builder.Default private final int port = 8080;
+    @Builder.Default private final int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    @Builder.Default private final int pipelineDepth = 1;
+    @Builder.Default private final long warmupMillis = 2000;
+    @Builder.Default private final long durationMillis = 10000;
+
+    /**
+     * Requests per second across all connections for an open-loop run, or 0 for a closed loop where each connection
+     * sends its next request as soon as one completes.
+     */
+    @Builder.Default private final int rate = 0;
+
+    @Builder.Default private final byte[] request = "GET /plaintext HTTP/1.1\r\nHost: localhost\r\n\r\n"
+        .getBytes(StandardCharsets.US_ASCII);
+}
@@ -0,0 +1,18 @@
+package sh.hella.http.benchmarks.load;
+
+import lombok.Data;
+import sh.hella.http.metrics.Histogram;
+
+@Data
+public class LoadResult {
+    private final int connections;
+    private final long requests;
+    private final long errors;
+    private final long bytesRead;
+    private final double seconds;
+    private final Histogram.Snapshot latency;
+
+    public double getRequestsPerSecond() {
+        return requests / seconds;
+    }
+}
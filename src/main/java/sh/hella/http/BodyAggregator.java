@@ -0,0 +1,137 @@
+package sh.hella.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+
+/**
+ * Collects a whole request body. Bodies are kept on the heap up to a threshold, past which they are spilled to a
+ * temporary file that is memory-mapped once the body has ended, so a large upload costs page cache rather than heap.
+ * The file is deleted as soon as it is mapped, and its pages are freed once the mapping is garbage collected.
+ * <p>
+ * Spilling writes to the file from the ring thread, so it suits occasional uploads rather than a steady stream of
+ * them.
+ */
+public class BodyAggregator implements Flow.Subscriber<ByteBuffer> {
+    public static final int DEFAULT_SPILL_THRESHOLD = 1024 * 1024;
+
+    private final CompletableFuture<ByteBuffer> result = new CompletableFuture<>();
+    private final int spillThreshold;
+    private final long maxSize;
+    private Flow.Subscription subscription;
+    private ByteBuffer heap;
+    private FileChannel file;
+    private long size;
+
+    private BodyAggregator(int spillThreshold, long maxSize) {
+        this.spillThreshold = spillThreshold;
+        this.maxSize = maxSize;
+    }
+
+    public static CompletableFuture<ByteBuffer> aggregate(Request request) {
+        return aggregate(request, DEFAULT_SPILL_THRESHOLD, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param maxSize bodies larger than this fail the future, at most {@link Integer#MAX_VALUE} as that is as much
+     *                as one mapping can hold
+     */
+    public static CompletableFuture<ByteBuffer> aggregate(Request request, int spillThreshold, long maxSize) {
+        if (request.getBodyPublisher() == null) {
+            ByteBuffer body = request.getBody();
+            return CompletableFuture.completedFuture(body != null ? body : ByteBuffer.allocate(0));
+        }
+        var aggregator = new BodyAggregator(spillThreshold, Math.min(maxSize, Integer.MAX_VALUE));
+        request.getBodyPublisher().subscribe(aggregator);
+        return aggregator.result;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+        subscription.request(Long.MAX_VALUE);
+    }
+
+    @Override
+    public void onNext(ByteBuffer item) {
+        if (result.isDone()) {
+            return;
+        }
+        size += item.remaining();
+        try {
+            if (size > maxSize) {
+                throw new IllegalStateException("Request body larger than " + maxSize + " bytes");
+            }
+            if (file == null && size > spillThreshold) {
+                file = FileChannel.open(Files.createTempFile("hella-body", ".tmp"), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+                if (heap != null) {
+                    write(heap.flip());
+                    heap = null;
+                }
+            }
+            if (file != null) {
+                write(item);
+            } else {
+                append(item);
+            }
+        } catch (IOException | RuntimeException ex) {
+            subscription.cancel();
+            fail(ex);
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        fail(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        if (result.isDone()) {
+            return;
+        }
+        if (file == null) {
+            result.complete(heap != null ? heap.flip() : ByteBuffer.allocate(0));
+            return;
+        }
+        try (FileChannel channel = file) {
+            result.complete(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        } catch (IOException ex) {
+            result.completeExceptionally(ex);
+        }
+    }
+
+    private void append(ByteBuffer item) {
+        if (heap == null || heap.remaining() < item.remaining()) {
+            // Doubling, but never past the point where the body would spill anyway
+            int capacity = Math.max(heap != null ? heap.capacity() * 2 : 0, (int) size);
+            ByteBuffer grown = ByteBuffer.allocate(Math.min(Math.max(capacity, 1024), spillThreshold));
+            if (heap != null) {
+                grown.put(heap.flip());
+            }
+            heap = grown;
+        }
+        heap.put(item);
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            file.write(buffer);
+        }
+    }
+
+    private void fail(Throwable throwable) {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException ignored) {
+            }
+        }
+        result.completeExceptionally(throwable);
+    }
+}
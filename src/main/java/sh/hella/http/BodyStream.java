@@ -0,0 +1,18 @@
+package sh.hella.http;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A response body written a buffer at a time, as the socket drains, rather than encoded up front.
+ */
+interface BodyStream {
+
+    /**
+     * Copies as much of the body as is available and fits into the buffer. Returns true once the whole body has
+     * been copied.
+     */
+    boolean fill(ByteBuffer buffer);
+
+    default void cancel() {
+    }
+}
@@ -0,0 +1,23 @@
+package sh.hella.http;
+
+import java.nio.ByteBuffer;
+
+class BufferBodyStream implements BodyStream {
+    private final ByteBuffer body;
+    private int offset;
+
+    BufferBodyStream(ByteBuffer body) {
+        this.body = body;
+        this.offset = body.position();
+    }
+
+    @Override
+    public boolean fill(ByteBuffer buffer) {
+        // Absolute reads, the body may be shared with other connections
+        int length = Math.min(buffer.remaining(), body.limit() - offset);
+        buffer.put(buffer.position(), body, offset, length);
+        buffer.position(buffer.position() + length);
+        offset += length;
+        return offset == body.limit();
+    }
+}
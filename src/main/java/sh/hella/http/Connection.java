@@ -0,0 +1,689 @@
+package sh.hella.http;
+
+import sh.blake.niouring.IoUringSocket;
+import sh.hella.http.codec.RequestDecoder;
+import sh.hella.http.codec.ResponseEncoder;
+import sh.hella.http.metrics.RingMetrics;
+import sh.hella.http.util.TimerWheel;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+class Connection {
+    private static final int DIRECT_WRITE_THRESHOLD = 16 * 1024;
+    private static final Response INTERNAL_SERVER_ERROR = Response.builder()
+        .status(500)
+        .body(new byte[0])
+        .build();
+    private static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final HttpServer server;
+    private final Worker worker;
+    private final IoUringSocket socket;
+    private final RingMetrics metrics;
+    private ByteBuffer inBuffer;
+    private int readOffset;
+    private int writeOffset;
+    private long handlerStartNanos;
+    private long decodedNanos;
+    private long writeStartNanos;
+    private final RequestDecoder requestDecoder;
+    private final Queue<ByteBuffer> pendingWrites = new ArrayDeque<>();
+    private final TimerWheel.Timeout timeout = new TimerWheel.Timeout(this::onTimeout);
+    private Phase phase;
+    private ByteBuffer filling;
+    private ByteBuffer writing;
+    private BodyStream stream;
+    private RequestBodyStream body;
+    private Request current;
+    private String cacheKey;
+    private boolean reading = false;
+    private boolean resumeWhenWritten = false;
+    private boolean closeWhenWritten = false;
+    private boolean awaitingResponse = false;
+    private boolean admitted = false;
+    private boolean upgraded = false;
+    private boolean closed = false;
+
+    Connection(HttpServer server, Worker worker, IoUringSocket socket) {
+        this.server = server;
+        this.worker = worker;
+        this.socket = socket;
+        this.metrics = worker.getMetrics();
+        // Bodies that would not fit in a full size buffer are streamed rather than growing it further
+        this.requestDecoder = new RequestDecoder(server.getOptions().getRequestBufferSize());
+    }
+
+    void open() {
+        // Start every connection on a small buffer, and only move to a full size one when a request needs it
+        metrics.accepted();
+        inBuffer = worker.getSmallInBuffers().take();
+        if (inBuffer == null) {
+            metrics.closed();
+            socket.close();
+            return;
+        }
+        awaitHeader();
+        socket.onRead(this::onRead);
+        socket.onWrite(this::onWrite);
+        socket.onClose(this::onClose);
+        reading = true;
+        worker.getRing().queueRead(socket, inBuffer);
+    }
+
+    private void onRead(ByteBuffer received) {
+        reading = false;
+        // Reads go in after whatever is left of a partial request, so nothing new past that means the peer is gone
+        if (received.position() == readOffset) {
+            socket.close();
+            return;
+        }
+        metrics.read(received.position() - readOffset);
+        if (!inBuffer.hasRemaining() && inBuffer.capacity() < worker.getInBuffers().getBufferSize()) {
+            ByteBuffer larger = worker.getInBuffers().take();
+            if (larger == null) {
+                socket.close();
+                return;
+            }
+            larger.put(inBuffer.flip());
+            worker.getSmallInBuffers().give(inBuffer);
+            inBuffer = larger;
+        }
+        inBuffer.flip();
+        process();
+    }
+
+    private void process() {
+        if (reading) {
+            // Picked up again when the read completes
+            flush();
+            return;
+        }
+        if (body != null && !pumpBody()) {
+            flush();
+            return;
+        }
+        if (awaitingResponse) {
+            return;
+        }
+        long start = System.nanoTime();
+        while (stream == null) {
+            Request request;
+            try {
+                request = requestDecoder.decode(inBuffer);
+            } catch (RuntimeException ex) {
+                metrics.decodeError();
+                // Whatever follows can't be told apart from the bad request, so answer what came before it and close
+                queueFilling();
+                pendingWrites.add(server.getBadRequest().duplicate());
+                closeWhenWritten = true;
+                flush();
+                return;
+            }
+            if (request == null) {
+                break;
+            }
+            if (switchToHttp2(request)) {
+                return;
+            }
+            long decoded = System.nanoTime();
+            current = request;
+            decodedNanos = decoded;
+            metrics.request();
+            metrics.getDecodeTime().record(decoded - start);
+            if (requestDecoder.isStreamingBody()) {
+                body = new RequestBodyStream(worker, request, this::onBodyDemand);
+                request.setBodyPublisher(body);
+            }
+
+            String metricsPath = server.getOptions().getMetricsPath();
+            if (metricsPath != null && request.pathEquals(metricsPath)) {
+                encode(metricsResponse());
+                start = markEncoded(System.nanoTime());
+                if (!responded()) {
+                    return;
+                }
+                continue;
+            }
+            ResponseCache cache = server.getResponseCache();
+            cacheKey = cache != null ? cache.key(request) : null;
+            if (cacheKey != null) {
+                Response cached = cache.get(cacheKey);
+                if (cached != null) {
+                    metrics.cacheHit();
+                    cacheKey = null;
+                    encode(cached);
+                    start = markEncoded(System.nanoTime());
+                    if (!responded()) {
+                        return;
+                    }
+                    continue;
+                }
+                metrics.cacheMiss();
+                // A HEAD is answered from the GET's response, but left to a GET to fill
+                if ("HEAD".equals(request.getMethod())) {
+                    cacheKey = null;
+                } else {
+                    CompletableFuture<Response> fetching = cache.claim(cacheKey);
+                    if (fetching != null) {
+                        cacheKey = null;
+                        flush();
+                        awaitFetch(request, fetching);
+                        return;
+                    }
+                }
+            }
+            if (server.isDispatched()) {
+                if (!worker.admit()) {
+                    // Shed before the handler sees it, so a flood costs no more than a cache hit
+                    metrics.shedRequest();
+                    store(null);
+                    encode(server.getOverloaded());
+                    start = markEncoded(System.nanoTime());
+                    if (!responded()) {
+                        return;
+                    }
+                    continue;
+                }
+                admitted = true;
+                // The receive buffer backs the request, so leave it alone until the response comes back
+                flush();
+                handlerStartNanos = decoded;
+                dispatch(request);
+                if (body != null) {
+                    pumpBody();
+                }
+                return;
+            }
+            Response response;
+            try {
+                response = store(server.getHandler().apply(request));
+            } catch (RuntimeException ex) {
+                store(null);
+                throw ex;
+            }
+            start = markEncoded(System.nanoTime());
+            metrics.getHandlerTime().record(start - decoded);
+            encode(response);
+            if (upgraded || !responded()) {
+                return;
+            }
+        }
+        flush();
+        if (stream != null) {
+            // Pipelined requests wait behind a streamed body, picked up again once it has been written
+            awaitIdle();
+            return;
+        } else if (!pendingWrites.isEmpty()) {
+            // Pipelined requests are answered faster than the client reads the answers, so read no more until the
+            // answers have been written
+            resumeWhenWritten = true;
+            awaitIdle();
+            return;
+        }
+        inBuffer.compact();
+        if (inBuffer.position() == 0) {
+            shrinkInBuffer();
+        }
+        queueRead();
+    }
+
+    /**
+     * Hands the connection over to HTTP/2 if the request starts the prior knowledge preface or asks to upgrade. An
+     * upgrade is only taken while nothing else is being written and the request has no body, and is otherwise
+     * ignored, which the client has to allow for.
+     */
+    private boolean switchToHttp2(Request request) {
+        boolean preface = "PRI".equals(request.getMethod());
+        if (!preface && !Http2Connection.isUpgrade(request)) {
+            return false;
+        }
+        boolean idle = writing == null && filling == null && pendingWrites.isEmpty();
+        if (!preface && (!idle || requestDecoder.isStreamingBody()
+            || request.getBody() != null && request.getBody().hasRemaining())) {
+            return false;
+        }
+        worker.getTimers().cancel(timeout);
+        phase = null;
+        if (!preface) {
+            Http2Connection.upgrade(server, worker, socket, inBuffer, request);
+        } else if (idle && Http2Connection.PROTOCOL.equals(request.getProtocol())) {
+            Http2Connection.open(server, worker, socket, inBuffer);
+        } else {
+            metrics.decodeError();
+            socket.close();
+        }
+        return true;
+    }
+
+    /**
+     * Lets the body of the request just answered go, returning false if the rest of it still has to be read.
+     */
+    private boolean responded() {
+        if (body == null) {
+            return true;
+        }
+        body.responded();
+        if (pumpBody()) {
+            return true;
+        }
+        flush();
+        return false;
+    }
+
+    /**
+     * Delivers as much of a streamed body as has been read and asked for, reading more while there is demand.
+     * Returns true once the body has ended.
+     */
+    private boolean pumpBody() {
+        try {
+            ByteBuffer part;
+            while (body.wantsData() && (part = requestDecoder.decodeBodyPart(inBuffer)) != null) {
+                body.deliver(part);
+            }
+        } catch (RuntimeException ex) {
+            metrics.decodeError();
+            socket.close();
+            return false;
+        }
+        if (!requestDecoder.isStreamingBody()) {
+            body.complete();
+            body = null;
+            return true;
+        }
+        if (body.wantsData()) {
+            inBuffer.compact();
+            queueRead();
+        } else {
+            // Held back by the consumer rather than the client, so there is nothing to time out
+            worker.getTimers().cancel(timeout);
+            phase = null;
+        }
+        return false;
+    }
+
+    private void onBodyDemand() {
+        if (body != null && !closed) {
+            process();
+        }
+    }
+
+    private void queueRead() {
+        readOffset = inBuffer.position();
+        reading = true;
+        worker.getRing().queueRead(socket, inBuffer);
+        armReadTimeout();
+    }
+
+    private long markEncoded(long now) {
+        if (writeStartNanos == 0) {
+            writeStartNanos = now;
+        }
+        return now;
+    }
+
+    private Response metricsResponse() {
+        return Response.builder()
+            .status(200)
+            .header("Content-Type", PROMETHEUS_CONTENT_TYPE)
+            .body(server.getMetrics().toPrometheus())
+            .build();
+    }
+
+    private void shrinkInBuffer() {
+        if (inBuffer.capacity() > worker.getSmallInBuffers().getBufferSize()) {
+            ByteBuffer smaller = worker.getSmallInBuffers().take();
+            if (smaller != null) {
+                worker.getInBuffers().give(inBuffer);
+                inBuffer = smaller;
+            }
+        }
+    }
+
+    private void armReadTimeout() {
+        RequestDecoder.State state = requestDecoder.getState();
+        if (state == RequestDecoder.State.BODY || requestDecoder.isStreamingBody()) {
+            // A body only has to keep arriving
+            phase = Phase.BODY;
+            worker.getTimers().schedule(timeout, server.getOptions().getBodyTimeout());
+        } else if (state == RequestDecoder.State.HEADERS || inBuffer.position() > 0) {
+            if (phase != Phase.HEADER) {
+                awaitHeader();
+            }
+        } else {
+            awaitIdle();
+        }
+    }
+
+    private void awaitHeader() {
+        // Not pushed back by later reads, so the whole head has to arrive in time
+        phase = Phase.HEADER;
+        worker.getTimers().schedule(timeout, server.getOptions().getHeaderTimeout());
+    }
+
+    private void awaitIdle() {
+        phase = Phase.IDLE;
+        worker.getTimers().schedule(timeout, server.getOptions().getKeepAliveTimeout());
+    }
+
+    private void onTimeout() {
+        socket.close();
+    }
+
+    private void dispatch(Request request) {
+        awaitingResponse = true;
+        worker.getTimers().cancel(timeout);
+        phase = null;
+        Executor executor = server.getOptions().getHandlerExecutor();
+        if (executor == null) {
+            invoke(request);
+            return;
+        }
+        try {
+            executor.execute(() -> invoke(request));
+        } catch (Throwable ex) {
+            handoff(null, ex);
+        }
+    }
+
+    private void invoke(Request request) {
+        try {
+            if (server.getAsyncHandler() != null) {
+                server.getAsyncHandler().apply(request).whenComplete(this::handoff);
+            } else {
+                handoff(server.getHandler().apply(request), null);
+            }
+        } catch (Throwable ex) {
+            handoff(null, ex);
+        }
+    }
+
+    private void handoff(Response response, Throwable ex) {
+        worker.handoff(() -> complete(response, ex));
+    }
+
+    /**
+     * Waits for another request that is already fetching the same cache key, and only calls the handler if its
+     * response couldn't be shared.
+     */
+    private void awaitFetch(Request request, CompletableFuture<Response> fetching) {
+        awaitingResponse = true;
+        worker.getTimers().cancel(timeout);
+        phase = null;
+        handlerStartNanos = System.nanoTime();
+        fetching.whenComplete((response, ex) -> worker.handoff(() -> {
+            if (response != null || closed) {
+                complete(response, null);
+            } else if (server.isDispatched()) {
+                dispatch(request);
+            } else {
+                Response own;
+                try {
+                    own = server.getHandler().apply(request);
+                } catch (RuntimeException handlerException) {
+                    own = null;
+                }
+                complete(own, null);
+            }
+        }));
+    }
+
+    /**
+     * Hands the response to a claimed cache key to the cache, returning the response to send.
+     */
+    private Response store(Response response) {
+        if (cacheKey == null) {
+            return response;
+        }
+        String key = cacheKey;
+        cacheKey = null;
+        return server.getResponseCache().complete(key, response);
+    }
+
+    private void complete(Response response, Throwable ex) {
+        // Even for a closed connection, so requests waiting on the same key aren't left hanging
+        response = store(ex == null ? response : null);
+        awaitingResponse = false;
+        if (admitted) {
+            admitted = false;
+            worker.release(handlerStartNanos);
+        }
+        if (closed) {
+            release();
+            return;
+        }
+        metrics.getHandlerTime().record(markEncoded(System.nanoTime()) - handlerStartNanos);
+        encode(ex == null && response != null ? response : INTERNAL_SERVER_ERROR);
+        if (upgraded) {
+            return;
+        }
+        if (body != null) {
+            body.responded();
+        }
+        process();
+    }
+
+    private void encode(Response response) {
+        if (response instanceof WebSocketResponse) {
+            worker.log(current, response, decodedNanos);
+            switchToWebSocket((WebSocketResponse) response);
+            return;
+        }
+        if (server.getOptions().isCompression()) {
+            response = worker.getContentEncoder().encode(response, current);
+        }
+        worker.log(current, response, decodedNanos);
+        if (!ResponseEncoder.permitsBody(response.getStatus(), current.getMethod())) {
+            // The head alone, with the Content-Length the body would have had
+            encode(response, true);
+            return;
+        }
+        ByteBuffer directBody = directBody(response);
+        if (directBody != null && directBody.remaining() >= DIRECT_WRITE_THRESHOLD) {
+            // Large enough that writing the body from where it already lives beats copying it
+            encode(response, true);
+            queueFilling();
+            pendingWrites.add(directBody);
+        } else if (response.getBodyPublisher() != null) {
+            var publisherStream = new PublisherBodyStream(worker, ResponseEncoder.isChunked(response),
+                ResponseEncoder.contentLength(response), this::onStreamReady);
+            startStream(response, publisherStream);
+            response.getBodyPublisher().subscribe(publisherStream);
+        } else if (ResponseEncoder.bodyLength(response) > worker.getOutBuffers().getBufferSize() / 2) {
+            ByteBuffer body = response.getBody() != null
+                ? ByteBuffer.wrap(response.getBody())
+                : response.getBodyBuffer();
+            startStream(response, new BufferBodyStream(body));
+        } else {
+            encode(response, false);
+        }
+    }
+
+    private void switchToWebSocket(WebSocketResponse response) {
+        // The 101 goes out last of everything already queued, and the connection is the WebSocket's from then on
+        upgraded = true;
+        worker.getTimers().cancel(timeout);
+        phase = null;
+        encode(response, false);
+        queueFilling();
+        new WebSocketConnection(server, worker, socket, inBuffer, response.getListener()).open(writing, pendingWrites);
+    }
+
+    private static ByteBuffer directBody(Response response) {
+        // Read-only views, so they are never mistaken for pooled buffers
+        if (response instanceof StaticResponse) {
+            return ((StaticResponse) response).getEncodedBody();
+        } else if (response.getBodyBuffer() != null && response.getBodyBuffer().isDirect()) {
+            return response.getBodyBuffer().asReadOnlyBuffer();
+        }
+        return null;
+    }
+
+    private void startStream(Response response, BodyStream bodyStream) {
+        encode(response, true);
+        stream = bodyStream;
+        if (stream.fill(filling)) {
+            stream = null;
+        }
+    }
+
+    private void encode(Response response, boolean headOnly) {
+        if (filling == null) {
+            filling = nextOutBuffer();
+        }
+        int start = filling.position();
+        try {
+            encodeInto(response, headOnly);
+        } catch (BufferOverflowException ex) {
+            if (start == 0) {
+                throw ex;
+            }
+            // Spill into another buffer rather than splitting a response across two
+            filling.position(start);
+            queueFilling();
+            filling = nextOutBuffer();
+            encodeInto(response, headOnly);
+        }
+    }
+
+    private void encodeInto(Response response, boolean headOnly) {
+        if (headOnly) {
+            ResponseEncoder.encodeHead(response, filling);
+        } else {
+            ResponseEncoder.encode(response, filling);
+        }
+    }
+
+    private ByteBuffer nextOutBuffer() {
+        // Only borrowed while there is something to write, so idle connections hold no send buffers
+        return worker.getOutBuffers().take();
+    }
+
+    private void flush() {
+        queueFilling();
+        if (writing == null) {
+            writeNext();
+        }
+    }
+
+    private void queueFilling() {
+        if (filling != null && filling.position() > 0) {
+            pendingWrites.add(filling.flip());
+            filling = null;
+        }
+    }
+
+    private void writeNext() {
+        writing = pendingWrites.poll();
+        if (writing == null && stream != null) {
+            writing = pumpStream();
+        }
+        if (writing != null) {
+            writeOffset = writing.position();
+            worker.getRing().queueWrite(socket, writing);
+        } else if (closeWhenWritten) {
+            socket.close();
+        } else if (resumeWhenWritten && !closed) {
+            resumeWhenWritten = false;
+            process();
+        }
+    }
+
+    private ByteBuffer pumpStream() {
+        // Only one buffer of a stream is in flight at a time, which is what holds back the body's source
+        ByteBuffer buffer = nextOutBuffer();
+        try {
+            if (stream.fill(buffer)) {
+                stream = null;
+                resumeWhenWritten = true;
+            }
+        } catch (RuntimeException ex) {
+            // The head has already gone out, so there is no way to report this but to drop the connection
+            recycle(buffer);
+            stream = null;
+            socket.close();
+            return null;
+        }
+        if (buffer.position() == 0) {
+            recycle(buffer);
+            return null;
+        }
+        return buffer.flip();
+    }
+
+    private void onStreamReady() {
+        if (writing == null && !closed) {
+            writeNext();
+        }
+    }
+
+    private void onWrite(ByteBuffer buffer) {
+        metrics.wrote(buffer.position() - writeOffset);
+        if (buffer.hasRemaining()) {
+            // Short write, send the rest before anything else
+            writeOffset = buffer.position();
+            worker.getRing().queueWrite(socket, buffer);
+            return;
+        }
+        recycle(buffer);
+        writing = null;
+        if (phase == Phase.IDLE) {
+            awaitIdle();
+        }
+        writeNext();
+        if (writing == null && writeStartNanos != 0) {
+            metrics.getWriteTime().record(System.nanoTime() - writeStartNanos);
+            writeStartNanos = 0;
+        }
+    }
+
+    private void recycle(ByteBuffer buffer) {
+        if (buffer.isReadOnly()) {
+            return; // a view of a response body
+        }
+        worker.getOutBuffers().give(buffer);
+    }
+
+    private void onClose() {
+        closed = true;
+        metrics.closed();
+        if (stream != null) {
+            stream.cancel();
+            stream = null;
+        }
+        if (body != null) {
+            body.fail(new ClosedChannelException());
+            body = null;
+        }
+        worker.getTimers().cancel(timeout);
+        if (!awaitingResponse) {
+            release();
+        }
+    }
+
+    private void release() {
+        if (filling != null) {
+            recycle(filling);
+        }
+        if (writing != null) {
+            recycle(writing);
+        }
+        pendingWrites.forEach(this::recycle);
+        if (inBuffer.capacity() > worker.getSmallInBuffers().getBufferSize()) {
+            worker.getInBuffers().give(inBuffer);
+        } else {
+            worker.getSmallInBuffers().give(inBuffer);
+        }
+    }
+
+    private enum Phase {
+        HEADER,
+        BODY,
+        IDLE,
+    }
+}
@@ -0,0 +1,157 @@
+package sh.hella.http;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+
+/**
+ * Decodes an application/x-www-form-urlencoded body into the request's parameters, next to any from the query. The
+ * body is decoded as it streams in, so only the name or value in progress is ever copied. Unlike query parameters,
+ * names and values are percent-decoded, with {@code +} standing for a space, as forms always encode them.
+ */
+public class FormParser implements Flow.Subscriber<ByteBuffer> {
+    public static final long DEFAULT_MAX_SIZE = 1024 * 1024;
+
+    private final CompletableFuture<Request> result = new CompletableFuture<>();
+    private final Request request;
+    private final long maxSize;
+    private Flow.Subscription subscription;
+    private byte[] token = new byte[64];
+    private int tokenLength;
+    private String name;
+    private int escape;
+    private int escapeHigh;
+    private long size;
+
+    private FormParser(Request request, long maxSize) {
+        this.request = request;
+        this.maxSize = maxSize;
+    }
+
+    public static CompletableFuture<Request> parse(Request request) {
+        return parse(request, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param maxSize bodies larger than this fail the future
+     */
+    public static CompletableFuture<Request> parse(Request request, long maxSize) {
+        var parser = new FormParser(request, maxSize);
+        if (request.getBodyPublisher() == null) {
+            try {
+                if (request.getBody() != null) {
+                    parser.decode(request.getBody().duplicate());
+                }
+                parser.finish();
+            } catch (RuntimeException ex) {
+                parser.result.completeExceptionally(ex);
+            }
+            return parser.result;
+        }
+        request.getBodyPublisher().subscribe(parser);
+        return parser.result;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+        subscription.request(Long.MAX_VALUE);
+    }
+
+    @Override
+    public void onNext(ByteBuffer item) {
+        if (result.isDone()) {
+            return;
+        }
+        try {
+            decode(item);
+        } catch (RuntimeException ex) {
+            subscription.cancel();
+            result.completeExceptionally(ex);
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        result.completeExceptionally(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        if (result.isDone()) {
+            return;
+        }
+        try {
+            finish();
+        } catch (RuntimeException ex) {
+            result.completeExceptionally(ex);
+        }
+    }
+
+    private void decode(ByteBuffer buffer) {
+        size += buffer.remaining();
+        if (size > maxSize) {
+            throw new IllegalStateException("Form body larger than " + maxSize + " bytes");
+        }
+        for (int i = buffer.position(); i < buffer.limit(); i++) {
+            byte b = buffer.get(i);
+            if (escape > 0) {
+                int digit = Character.digit(b, 16);
+                if (digit < 0) {
+                    throw new IllegalArgumentException("Malformed percent-encoding in form body");
+                }
+                if (escape == 1) {
+                    escapeHigh = digit;
+                    escape = 2;
+                } else {
+                    append((byte) (escapeHigh << 4 | digit));
+                    escape = 0;
+                }
+            } else if (b == '%') {
+                escape = 1;
+            } else if (b == '+') {
+                append((byte) ' ');
+            } else if (b == '=' && name == null) {
+                name = token();
+            } else if (b == '&') {
+                endField();
+            } else {
+                append(b);
+            }
+        }
+        buffer.position(buffer.limit());
+    }
+
+    private void finish() {
+        if (escape > 0) {
+            throw new IllegalArgumentException("Malformed percent-encoding in form body");
+        }
+        endField();
+        result.complete(request);
+    }
+
+    private void endField() {
+        // Same as the query: a name without a value is empty, and empty fields are skipped
+        if (name != null) {
+            request.addParameter(name, token());
+        } else if (tokenLength > 0) {
+            request.addParameter(token(), "");
+        }
+        name = null;
+    }
+
+    private void append(byte b) {
+        if (tokenLength == token.length) {
+            token = Arrays.copyOf(token, token.length * 2);
+        }
+        token[tokenLength++] = b;
+    }
+
+    private String token() {
+        String value = new String(token, 0, tokenLength, StandardCharsets.UTF_8);
+        tokenLength = 0;
+        return value;
+    }
+}
@@ -0,0 +1,1279 @@
+package sh.hella.http;
+
+import sh.blake.niouring.IoUringSocket;
+import sh.hella.http.codec.HpackDecoder;
+import sh.hella.http.codec.HpackEncoder;
+import sh.hella.http.codec.ResponseEncoder;
+import sh.hella.http.metrics.RingMetrics;
+import sh.hella.http.util.TimerWheel;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+
+/**
+ * HTTP/2 over cleartext (RFC 9113), entered either with the prior knowledge preface or by upgrading an HTTP/1.1
+ * request with {@code Upgrade: h2c}. It takes over the socket and receive buffer from the {@link Connection} that
+ * spotted it, and multiplexes streams onto the same handler, each with its own request.
+ * <p>
+ * Request bodies are collected in memory, up to requestBufferSize. Response bodies are framed a send buffer at a
+ * time as the socket drains, round robin between streams and within the peer's flow control windows.
+ */
+class Http2Connection {
+    static final String PROTOCOL = "HTTP/2.0";
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final int PREFACE_REQUEST_LINE_LENGTH = 18; // what the HTTP/1.1 decoder has already consumed
+    private static final byte[] SWITCHING_PROTOCOLS = ("HTTP/1.1 101 Switching Protocols\r\n"
+        + "Connection: Upgrade\r\nUpgrade: h2c\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+    private static final Set<String> CONNECTION_HEADERS = Set.of(
+        "connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade", "http2-settings", "te");
+
+    private static final int FRAME_HEADER_SIZE = 9;
+    private static final int DEFAULT_FRAME_SIZE = 16384;
+    private static final int MAX_FRAME_SIZE = 16777215;
+    private static final int DEFAULT_WINDOW_SIZE = 65535;
+    private static final int HEADER_TABLE_SIZE = 4096;
+    private static final int MAX_CONCURRENT_STREAMS = 256;
+    // Resets of open streams a client may make beyond the streams it has seen through, before it is sent away
+    private static final int MAX_EXCESS_RESETS = 100;
+    // SETTINGS and PING acks that may wait on the socket before a client is taken to be flooding them
+    private static final int MAX_QUEUED_ACKS = 100;
+
+    private static final int DATA = 0;
+    private static final int HEADERS = 1;
+    private static final int PRIORITY = 2;
+    private static final int RST_STREAM = 3;
+    private static final int SETTINGS = 4;
+    private static final int PUSH_PROMISE = 5;
+    private static final int PING = 6;
+    private static final int GOAWAY = 7;
+    private static final int WINDOW_UPDATE = 8;
+    private static final int CONTINUATION = 9;
+
+    private static final int END_STREAM = 0x1;
+    private static final int ACK = 0x1;
+    private static final int END_HEADERS = 0x4;
+    private static final int PADDED = 0x8;
+    private static final int PRIORITY_FLAG = 0x20;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 1;
+    private static final int SETTINGS_ENABLE_PUSH = 2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 5;
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 6;
+
+    private static final int NO_ERROR = 0;
+    private static final int PROTOCOL_ERROR = 1;
+    private static final int INTERNAL_ERROR = 2;
+    private static final int FLOW_CONTROL_ERROR = 3;
+    private static final int STREAM_CLOSED = 5;
+    private static final int FRAME_SIZE_ERROR = 6;
+    private static final int REFUSED_STREAM = 7;
+    private static final int CANCEL = 8;
+    private static final int COMPRESSION_ERROR = 9;
+    private static final int ENHANCE_YOUR_CALM = 11;
+
+    private static final Response INTERNAL_SERVER_ERROR = Response.builder().status(500).body(new byte[0]).build();
+    private static final Response NOT_IMPLEMENTED = Response.builder().status(501).body(new byte[0]).build();
+    private static final Response CONTENT_TOO_LARGE = Response.builder().status(413).body(new byte[0]).build();
+
+    private final HttpServer server;
+    private final Worker worker;
+    private final IoUringSocket socket;
+    private final RingMetrics metrics;
+    private final HpackDecoder hpackDecoder = new HpackDecoder(HEADER_TABLE_SIZE);
+    private final HpackEncoder hpackEncoder = new HpackEncoder(HEADER_TABLE_SIZE);
+    private final Map<Integer, Stream> streams = new HashMap<>();
+    private final ArrayDeque<Stream> sendable = new ArrayDeque<>();
+    private final Queue<ByteBuffer> pendingWrites = new ArrayDeque<>();
+    private final TimerWheel.Timeout timeout = new TimerWheel.Timeout(this::onTimeout);
+    private final int maxBodySize;
+    private final ByteBuffer headerBlock;
+    private final ByteBuffer decodedHeaders;
+    private final ByteBuffer encodedHeaders;
+    private ByteBuffer inBuffer;
+    private ByteBuffer filling;
+    private ByteBuffer writing;
+    private int prefaceOffset;
+    private int readOffset;
+    private int writeOffset;
+    private int lastStreamId;
+    private int headerBlockStream;
+    private boolean headerBlockEndStream;
+    private int peerMaxFrameSize = DEFAULT_FRAME_SIZE;
+    private int peerInitialWindowSize = DEFAULT_WINDOW_SIZE;
+    private long sendWindow = DEFAULT_WINDOW_SIZE;
+    private long receiveWindow = DEFAULT_WINDOW_SIZE;
+    private int pendingResponses;
+    private int abandonedResponses;
+    private int completedStreams;
+    private int resetStreams;
+    private int queuedAcks;
+    private boolean goingAway = false;
+    private boolean closing = false;
+    private boolean closed = false;
+    private boolean readPaused = false;
+
+    // Pseudo-header fields of the header block being decoded
+    private String method;
+    private int pathStart = -1, pathEnd;
+    private int authorityStart = -1, authorityEnd;
+
+    private Http2Connection(HttpServer server, Worker worker, IoUringSocket socket, ByteBuffer inBuffer, int prefaceOffset) {
+        this.server = server;
+        this.worker = worker;
+        this.socket = socket;
+        this.metrics = worker.getMetrics();
+        this.inBuffer = inBuffer;
+        this.prefaceOffset = prefaceOffset;
+        this.maxBodySize = server.getOptions().getRequestBufferSize();
+        this.headerBlock = ByteBuffer.allocate(maxBodySize);
+        this.decodedHeaders = ByteBuffer.allocate(maxBodySize);
+        this.encodedHeaders = ByteBuffer.allocate(server.getOptions().getResponseBufferSize());
+    }
+
+    /**
+     * Takes over a connection whose first request line was the start of the prior knowledge preface.
+     */
+    static void open(HttpServer server, Worker worker, IoUringSocket socket, ByteBuffer inBuffer) {
+        var connection = new Http2Connection(server, worker, socket, inBuffer, PREFACE_REQUEST_LINE_LENGTH);
+        if (connection.start()) {
+            connection.process();
+        }
+    }
+
+    /**
+     * Takes over a connection that asked to upgrade with a request that has no body. The request is answered as
+     * stream 1 once the switch has been made.
+     */
+    static void upgrade(HttpServer server, Worker worker, IoUringSocket socket, ByteBuffer inBuffer, Request request) {
+        var connection = new Http2Connection(server, worker, socket, inBuffer, 0);
+        byte[] settings;
+        try {
+            settings = Base64.getUrlDecoder().decode(request.getHeader("HTTP2-Settings").trim());
+        } catch (IllegalArgumentException ex) {
+            settings = new byte[0];
+        }
+        Stream stream = connection.upgradedStream(request);
+        connection.putRaw(SWITCHING_PROTOCOLS);
+        if (!connection.start()) {
+            return;
+        }
+        try {
+            // Acknowledged by the 101 rather than a SETTINGS frame
+            connection.applySettings(ByteBuffer.wrap(settings));
+        } catch (Http2Exception ex) {
+            connection.goAway(ex.code);
+            return;
+        }
+        connection.streams.put(stream.id, stream);
+        connection.handle(stream);
+        connection.process();
+    }
+
+    static boolean isUpgrade(Request request) {
+        String upgrade = request.getHeader("Upgrade");
+        return upgrade != null && upgrade.trim().equalsIgnoreCase("h2c") && request.hasHeader("HTTP2-Settings");
+    }
+
+    private boolean start() {
+        socket.onRead(this::onRead);
+        socket.onWrite(this::onWrite);
+        socket.onClose(this::onClose);
+        // Frames up to the default maximum size have to fit
+        if (inBuffer.capacity() < worker.getInBuffers().getBufferSize()) {
+            ByteBuffer larger = worker.getInBuffers().take();
+            if (larger == null) {
+                socket.close();
+                return false;
+            }
+            larger.put(inBuffer);
+            worker.getSmallInBuffers().give(inBuffer);
+            inBuffer = larger.flip();
+        }
+        // The server preface
+        putSettings();
+        flush();
+        worker.getTimers().schedule(timeout, server.getOptions().getHeaderTimeout());
+        return true;
+    }
+
+    private void putSettings() {
+        ByteBuffer frame = frame(SETTINGS, 0, 0, 18);
+        putSetting(frame, SETTINGS_ENABLE_PUSH, 0);
+        putSetting(frame, SETTINGS_MAX_CONCURRENT_STREAMS, MAX_CONCURRENT_STREAMS);
+        putSetting(frame, SETTINGS_MAX_HEADER_LIST_SIZE, maxBodySize);
+    }
+
+    private static void putSetting(ByteBuffer frame, int id, int value) {
+        frame.putShort((short) id).putInt(value);
+    }
+
+    private void onRead(ByteBuffer received) {
+        if (received.position() == readOffset) {
+            socket.close();
+            return;
+        }
+        metrics.read(received.position() - readOffset);
+        inBuffer.flip();
+        process();
+    }
+
+    private void process() {
+        try {
+            while (!closing && readPreface() && inBuffer.remaining() >= FRAME_HEADER_SIZE) {
+                int position = inBuffer.position();
+                int length = (inBuffer.getShort(position) & 0xffff) << 8 | inBuffer.get(position + 2) & 0xff;
+                if (length > DEFAULT_FRAME_SIZE) {
+                    throw new Http2Exception(FRAME_SIZE_ERROR, "Frame larger than advertised");
+                }
+                if (inBuffer.remaining() < FRAME_HEADER_SIZE + length) {
+                    break;
+                }
+                int type = inBuffer.get(position + 3) & 0xff;
+                int flags = inBuffer.get(position + 4) & 0xff;
+                int streamId = inBuffer.getInt(position + 5) & 0x7fffffff;
+                ByteBuffer payload = inBuffer.slice(position + FRAME_HEADER_SIZE, length);
+                inBuffer.position(position + FRAME_HEADER_SIZE + length);
+                onFrame(type, flags, streamId, payload);
+            }
+        } catch (Http2Exception ex) {
+            metrics.decodeError();
+            goAway(ex.code);
+        }
+        flush();
+        if (closing || closed) {
+            return;
+        } else if (!pendingWrites.isEmpty()) {
+            // Frames are answered faster than the client reads the answers (CVE-2019-9512), resumed by onWrite
+            readPaused = true;
+            return;
+        }
+        inBuffer.compact();
+        readOffset = inBuffer.position();
+        worker.getRing().queueRead(socket, inBuffer);
+    }
+
+    private boolean readPreface() {
+        while (prefaceOffset < PREFACE.length) {
+            if (!inBuffer.hasRemaining()) {
+                return false;
+            } else if (inBuffer.get() != PREFACE[prefaceOffset++]) {
+                throw new Http2Exception(PROTOCOL_ERROR, "Invalid connection preface");
+            }
+        }
+        return true;
+    }
+
+    private void onFrame(int type, int flags, int streamId, ByteBuffer payload) {
+        if (headerBlockStream != 0 && (type != CONTINUATION || streamId != headerBlockStream)) {
+            throw new Http2Exception(PROTOCOL_ERROR, "Expected CONTINUATION");
+        }
+        switch (type) {
+            case DATA -> onData(flags, streamId, payload);
+            case HEADERS -> onHeaders(flags, streamId, payload);
+            case PRIORITY -> {
+                // Priorities aren't supported, so a well-formed one is simply ignored
+                if (streamId == 0) {
+                    throw new Http2Exception(PROTOCOL_ERROR, "PRIORITY on stream 0");
+                } else if (payload.remaining() != 5) {
+                    throw new Http2Exception(FRAME_SIZE_ERROR, "PRIORITY of the wrong length");
+                }
+            }
+            case RST_STREAM -> onResetStream(streamId, payload);
+            case SETTINGS -> onSettings(flags, streamId, payload);
+            case PUSH_PROMISE -> throw new Http2Exception(PROTOCOL_ERROR, "Clients cannot push");
+            case PING -> onPing(flags, streamId, payload);
+            case GOAWAY -> {
+                goingAway = true;
+                closeIfDone();
+            }
+            case WINDOW_UPDATE -> onWindowUpdate(streamId, payload);
+            case CONTINUATION -> onContinuation(flags, streamId, payload);
+            default -> {
+                // Unknown frame types are ignored
+            }
+        }
+    }
+
+    private void onData(int flags, int streamId, ByteBuffer payload) {
+        if (streamId == 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "DATA on stream 0");
+        }
+        int length = payload.remaining();
+        receiveWindow -= length;
+        if (receiveWindow < 0) {
+            throw new Http2Exception(FLOW_CONTROL_ERROR, "Connection window exceeded");
+        }
+        if (receiveWindow < DEFAULT_WINDOW_SIZE / 2) {
+            sendWindowUpdate(0, DEFAULT_WINDOW_SIZE - receiveWindow);
+            receiveWindow = DEFAULT_WINDOW_SIZE;
+        }
+        Stream stream = streams.get(streamId);
+        if (stream == null || stream.remoteClosed) {
+            if (streamId > lastStreamId) {
+                throw new Http2Exception(PROTOCOL_ERROR, "DATA on idle stream");
+            } else if (stream != null) {
+                resetStream(streamId, STREAM_CLOSED);
+            }
+            // Otherwise a stream already reset, whose frames may still be in flight
+            return;
+        }
+        stream.receiveWindow -= length;
+        if (stream.receiveWindow < 0) {
+            resetStream(streamId, FLOW_CONTROL_ERROR);
+            return;
+        }
+        unpad(flags, payload);
+        if (!stream.tooLarge) {
+            if (stream.body == null) {
+                stream.body = ByteBuffer.allocate(Math.min(maxBodySize, Math.max(payload.remaining(), 1024)));
+            }
+            if (stream.body.position() + payload.remaining() > maxBodySize) {
+                stream.tooLarge = true;
+                stream.body = null;
+            } else {
+                if (stream.body.remaining() < payload.remaining()) {
+                    int capacity = Math.min(maxBodySize, Math.max(stream.body.capacity() * 2,
+                        stream.body.position() + payload.remaining()));
+                    stream.body = ByteBuffer.allocate(capacity).put(stream.body.flip());
+                }
+                stream.body.put(payload);
+            }
+        }
+        if ((flags & END_STREAM) != 0) {
+            stream.remoteClosed = true;
+            handle(stream);
+        } else if (stream.tooLarge) {
+            // Answered now rather than reading an upload that won't fit, which resets the rest of it
+            handle(stream);
+        } else if (stream.receiveWindow < DEFAULT_WINDOW_SIZE / 2) {
+            sendWindowUpdate(streamId, DEFAULT_WINDOW_SIZE - stream.receiveWindow);
+            stream.receiveWindow = DEFAULT_WINDOW_SIZE;
+        }
+    }
+
+    private void onHeaders(int flags, int streamId, ByteBuffer payload) {
+        if (streamId == 0 || (streamId & 1) == 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "HEADERS on invalid stream");
+        }
+        unpad(flags, payload);
+        if ((flags & PRIORITY_FLAG) != 0) {
+            if (payload.remaining() < 5) {
+                throw new Http2Exception(FRAME_SIZE_ERROR, "HEADERS too short for priority");
+            }
+            payload.position(payload.position() + 5);
+        }
+        headerBlock.clear();
+        appendHeaderBlock(payload);
+        if ((flags & END_HEADERS) != 0) {
+            onHeaderBlock(streamId, (flags & END_STREAM) != 0);
+        } else {
+            headerBlockStream = streamId;
+            headerBlockEndStream = (flags & END_STREAM) != 0;
+        }
+    }
+
+    private void onContinuation(int flags, int streamId, ByteBuffer payload) {
+        if (headerBlockStream == 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "Unexpected CONTINUATION");
+        }
+        appendHeaderBlock(payload);
+        if ((flags & END_HEADERS) != 0) {
+            headerBlockStream = 0;
+            onHeaderBlock(streamId, headerBlockEndStream);
+        }
+    }
+
+    private void appendHeaderBlock(ByteBuffer payload) {
+        if (headerBlock.remaining() < payload.remaining()) {
+            throw new Http2Exception(PROTOCOL_ERROR, "Header block too large");
+        }
+        headerBlock.put(payload);
+    }
+
+    private void onHeaderBlock(int streamId, boolean endStream) {
+        Stream stream = streams.get(streamId);
+        if (stream != null || streamId <= lastStreamId) {
+            // Trailers, which are decoded to keep the table in step but otherwise ignored
+            decodeHeaderBlock(null);
+            if (stream == null || stream.remoteClosed || !endStream) {
+                resetStream(streamId, stream == null || stream.remoteClosed ? STREAM_CLOSED : PROTOCOL_ERROR);
+            } else {
+                stream.remoteClosed = true;
+                handle(stream);
+            }
+            return;
+        }
+        lastStreamId = streamId;
+        stream = new Stream(streamId, peerInitialWindowSize);
+        decodeHeaderBlock(stream.request);
+        // Streams the client reset still count while their handlers run, or resetting them would be free
+        if (goingAway || streams.size() + abandonedResponses >= MAX_CONCURRENT_STREAMS) {
+            resetStream(streamId, REFUSED_STREAM);
+            return;
+        } else if (method == null || pathStart < 0) {
+            resetStream(streamId, PROTOCOL_ERROR);
+            return;
+        }
+        metrics.request();
+        streams.put(streamId, stream);
+        worker.getTimers().cancel(timeout);
+        if (endStream) {
+            stream.remoteClosed = true;
+            handle(stream);
+        }
+    }
+
+    private void decodeHeaderBlock(Request request) {
+        method = null;
+        pathStart = authorityStart = -1;
+        decodedHeaders.clear();
+        if (request != null) {
+            request.reset(decodedHeaders, 0);
+            request.setProtocol(PROTOCOL);
+        }
+        try {
+            hpackDecoder.decode(headerBlock.flip(), decodedHeaders, (buffer, nameStart, nameEnd, valueStart, valueEnd) -> {
+                if (request != null) {
+                    onHeaderField(request, buffer, nameStart, nameEnd, valueStart, valueEnd);
+                }
+            });
+            if (request == null) {
+                return;
+            }
+            if (authorityStart >= 0) {
+                int hostStart = decodedHeaders.position();
+                decodedHeaders.put("host".getBytes(StandardCharsets.US_ASCII));
+                request.addHeader(hostStart, decodedHeaders.position(), authorityStart, authorityEnd);
+            }
+        } catch (BufferOverflowException ex) {
+            throw new Http2Exception(COMPRESSION_ERROR, "Header list too large");
+        } catch (RuntimeException ex) {
+            throw new Http2Exception(COMPRESSION_ERROR, ex.getMessage());
+        }
+        if (request != null) {
+            // Copied out, as the stream outlives the next header block
+            byte[] fields = new byte[decodedHeaders.position()];
+            decodedHeaders.get(0, fields);
+            request.rebase(ByteBuffer.wrap(fields), 0);
+            if (pathStart >= 0) {
+                int query = indexOf(fields, pathStart, pathEnd, (byte) '?');
+                if (query < 0) {
+                    request.setPath(pathStart, pathEnd);
+                } else {
+                    request.setPath(pathStart, query);
+                    request.setQuery(query + 1, pathEnd);
+                }
+            }
+            request.setMethod(method);
+        }
+    }
+
+    private void onHeaderField(Request request, ByteBuffer buffer, int nameStart, int nameEnd, int valueStart, int valueEnd) {
+        if (buffer.get(nameStart) != ':') {
+            request.addHeader(nameStart, nameEnd, valueStart, valueEnd);
+            return;
+        }
+        String name = new String(bytes(buffer, nameStart, nameEnd), StandardCharsets.US_ASCII);
+        switch (name) {
+            case ":method" -> method = new String(bytes(buffer, valueStart, valueEnd), StandardCharsets.US_ASCII);
+            case ":path" -> {
+                pathStart = valueStart;
+                pathEnd = valueEnd;
+            }
+            case ":authority" -> {
+                authorityStart = valueStart;
+                authorityEnd = valueEnd;
+            }
+            default -> {
+                // :scheme, and anything unknown
+            }
+        }
+    }
+
+    private static byte[] bytes(ByteBuffer buffer, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        buffer.get(start, bytes);
+        return bytes;
+    }
+
+    private static int indexOf(byte[] bytes, int from, int to, byte value) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void unpad(int flags, ByteBuffer payload) {
+        if ((flags & PADDED) != 0) {
+            if (!payload.hasRemaining()) {
+                throw new Http2Exception(FRAME_SIZE_ERROR, "Missing pad length");
+            }
+            int padding = payload.get() & 0xff;
+            if (padding > payload.remaining()) {
+                throw new Http2Exception(PROTOCOL_ERROR, "Padding longer than the frame");
+            }
+            payload.limit(payload.limit() - padding);
+        }
+    }
+
+    private void onResetStream(int streamId, ByteBuffer payload) {
+        if (payload.remaining() != 4) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "Invalid RST_STREAM");
+        } else if (streamId == 0 || streamId > lastStreamId) {
+            throw new Http2Exception(PROTOCOL_ERROR, "RST_STREAM on idle stream");
+        }
+        Stream stream = streams.get(streamId);
+        if (stream != null) {
+            // Rapid reset (CVE-2023-44487): opening and cancelling streams costs the client far less than the server
+            if (++resetStreams > completedStreams + MAX_EXCESS_RESETS) {
+                throw new Http2Exception(ENHANCE_YOUR_CALM, "Too many streams reset");
+            }
+            closeStream(stream);
+        }
+    }
+
+    private void onSettings(int flags, int streamId, ByteBuffer payload) {
+        if (streamId != 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "SETTINGS on a stream");
+        }
+        if ((flags & ACK) != 0) {
+            if (payload.hasRemaining()) {
+                throw new Http2Exception(FRAME_SIZE_ERROR, "SETTINGS ack with a payload");
+            }
+            return;
+        }
+        applySettings(payload);
+        queueAck();
+        frame(SETTINGS, ACK, 0, 0);
+    }
+
+    private void applySettings(ByteBuffer payload) {
+        if (payload.remaining() % 6 != 0) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "Invalid SETTINGS length");
+        }
+        while (payload.hasRemaining()) {
+            int id = payload.getShort() & 0xffff;
+            int value = payload.getInt();
+            switch (id) {
+                case SETTINGS_HEADER_TABLE_SIZE -> hpackEncoder.setMaxTableSize(
+                    (int) Math.min(Integer.toUnsignedLong(value), HEADER_TABLE_SIZE));
+                case SETTINGS_ENABLE_PUSH -> {
+                    if (value != 0 && value != 1) {
+                        throw new Http2Exception(PROTOCOL_ERROR, "Invalid SETTINGS_ENABLE_PUSH");
+                    }
+                }
+                case SETTINGS_INITIAL_WINDOW_SIZE -> {
+                    if (value < 0) {
+                        throw new Http2Exception(FLOW_CONTROL_ERROR, "Invalid SETTINGS_INITIAL_WINDOW_SIZE");
+                    }
+                    int delta = value - peerInitialWindowSize;
+                    peerInitialWindowSize = value;
+                    for (Stream stream : streams.values()) {
+                        stream.sendWindow += delta;
+                        if (stream.sendWindow > Integer.MAX_VALUE) {
+                            throw new Http2Exception(FLOW_CONTROL_ERROR, "Stream window overflow");
+                        }
+                        makeSendable(stream);
+                    }
+                }
+                case SETTINGS_MAX_FRAME_SIZE -> {
+                    if (value < DEFAULT_FRAME_SIZE || value > MAX_FRAME_SIZE) {
+                        throw new Http2Exception(PROTOCOL_ERROR, "Invalid SETTINGS_MAX_FRAME_SIZE");
+                    }
+                    peerMaxFrameSize = value;
+                }
+                default -> {
+                    // Concurrency and header list limits apply to pushes and requests, which this server never sends
+                }
+            }
+        }
+    }
+
+    private void onPing(int flags, int streamId, ByteBuffer payload) {
+        if (streamId != 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "PING on a stream");
+        } else if (payload.remaining() != 8) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "Invalid PING length");
+        }
+        if ((flags & ACK) == 0) {
+            queueAck();
+            frame(PING, ACK, 0, 8).put(payload);
+        }
+    }
+
+    private void queueAck() {
+        if (++queuedAcks > MAX_QUEUED_ACKS) {
+            throw new Http2Exception(ENHANCE_YOUR_CALM, "Too many frames to acknowledge");
+        }
+    }
+
+    private void onWindowUpdate(int streamId, ByteBuffer payload) {
+        if (payload.remaining() != 4) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "Invalid WINDOW_UPDATE length");
+        }
+        int increment = payload.getInt() & 0x7fffffff;
+        if (streamId == 0) {
+            if (increment == 0) {
+                throw new Http2Exception(PROTOCOL_ERROR, "Zero window increment");
+            }
+            sendWindow += increment;
+            if (sendWindow > Integer.MAX_VALUE) {
+                throw new Http2Exception(FLOW_CONTROL_ERROR, "Connection window overflow");
+            }
+            streams.values().forEach(this::makeSendable);
+            return;
+        }
+        Stream stream = streams.get(streamId);
+        if (stream == null) {
+            if (streamId > lastStreamId) {
+                throw new Http2Exception(PROTOCOL_ERROR, "WINDOW_UPDATE on idle stream");
+            }
+            return;
+        }
+        if (increment == 0) {
+            resetStream(streamId, PROTOCOL_ERROR);
+            return;
+        }
+        stream.sendWindow += increment;
+        if (stream.sendWindow > Integer.MAX_VALUE) {
+            resetStream(streamId, FLOW_CONTROL_ERROR);
+            return;
+        }
+        makeSendable(stream);
+    }
+
+    private Stream upgradedStream(Request request) {
+        // The request was decoded by the HTTP/1.1 decoder, so is rebuilt in the same form as a decoded header block
+        lastStreamId = 1;
+        Stream stream = new Stream(1, peerInitialWindowSize);
+        stream.remoteClosed = true;
+        decodedHeaders.clear();
+        int pathStart = decodedHeaders.position();
+        decodedHeaders.put(request.getPath().getBytes(StandardCharsets.UTF_8));
+        int pathEnd = decodedHeaders.position();
+        String query = request.getQuery();
+        int queryStart = pathEnd + 1;
+        if (query != null) {
+            decodedHeaders.put((byte) '?').put(query.getBytes(StandardCharsets.UTF_8));
+        }
+        int queryEnd = decodedHeaders.position();
+        var offsets = new ArrayList<int[]>();
+        for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            String name = header.getKey().toLowerCase();
+            if (!CONNECTION_HEADERS.contains(name)) {
+                int nameStart = decodedHeaders.position();
+                decodedHeaders.put(name.getBytes(StandardCharsets.UTF_8));
+                int valueStart = decodedHeaders.position();
+                decodedHeaders.put(header.getValue().getBytes(StandardCharsets.UTF_8));
+                offsets.add(new int[] {nameStart, valueStart, valueStart, decodedHeaders.position()});
+            }
+        }
+        byte[] fields = new byte[decodedHeaders.position()];
+        decodedHeaders.get(0, fields);
+        stream.request.reset(ByteBuffer.wrap(fields), 0);
+        stream.request.setMethod(request.getMethod());
+        stream.request.setProtocol(PROTOCOL);
+        stream.request.setPath(pathStart, pathEnd);
+        if (query != null) {
+            stream.request.setQuery(queryStart, queryEnd);
+        }
+        offsets.forEach(o -> stream.request.addHeader(o[0], o[1], o[2], o[3]));
+        metrics.request();
+        return stream;
+    }
+
+    private void handle(Stream stream) {
+        if (stream.handled) {
+            return;
+        }
+        stream.handled = true;
+        stream.handledAt = System.nanoTime();
+        Request request = stream.request;
+        if (stream.tooLarge) {
+            respond(stream, CONTENT_TOO_LARGE, null);
+            return;
+        }
+        if (stream.body != null) {
+            request.setBody(stream.body.flip());
+        }
+        ResponseCache cache = server.getResponseCache();
+        String key = cache != null ? cache.key(request) : null;
+        if (key != null) {
+            Response cached = cache.get(key);
+            if (cached != null) {
+                metrics.cacheHit();
+                respond(stream, cached, null);
+                return;
+            }
+            metrics.cacheMiss();
+            // A HEAD is answered from the GET's response, but left to a GET to fill
+            if (!"HEAD".equals(request.getMethod())) {
+                CompletableFuture<Response> fetching = cache.claim(key);
+                if (fetching != null) {
+                    awaitFetch(stream, fetching);
+                    return;
+                }
+                stream.cacheKey = key;
+            }
+        }
+        call(stream);
+    }
+
+    private void call(Stream stream) {
+        if (!server.isDispatched()) {
+            Response response;
+            try {
+                response = store(stream, server.getHandler().apply(stream.request));
+            } catch (RuntimeException ex) {
+                response = store(stream, null);
+            }
+            respond(stream, response, null);
+            return;
+        }
+        if (!worker.admit()) {
+            metrics.shedRequest();
+            store(stream, null);
+            respond(stream, server.getOverloaded(), null);
+            return;
+        }
+        stream.admittedAt = System.nanoTime();
+        beginResponse(stream);
+        Executor executor = server.getOptions().getHandlerExecutor();
+        if (executor == null) {
+            invoke(stream);
+            return;
+        }
+        try {
+            executor.execute(() -> invoke(stream));
+        } catch (Throwable ex) {
+            handoff(stream, null, ex);
+        }
+    }
+
+    private void invoke(Stream stream) {
+        try {
+            if (server.getAsyncHandler() != null) {
+                server.getAsyncHandler().apply(stream.request).whenComplete((r, ex) -> handoff(stream, r, ex));
+            } else {
+                handoff(stream, server.getHandler().apply(stream.request), null);
+            }
+        } catch (Throwable ex) {
+            handoff(stream, null, ex);
+        }
+    }
+
+    /**
+     * Waits for another request that is already fetching the same cache key, and only calls the handler if its
+     * response couldn't be shared.
+     */
+    private void awaitFetch(Stream stream, CompletableFuture<Response> fetching) {
+        beginResponse(stream);
+        fetching.whenComplete((response, ex) -> {
+            if (response != null) {
+                handoff(stream, response, null);
+                return;
+            }
+            worker.handoff(() -> {
+                endResponse(stream);
+                if (closed) {
+                    if (pendingResponses == 0) {
+                        release();
+                    }
+                    return;
+                } else if (stream.closed) {
+                    return;
+                }
+                call(stream);
+                flush();
+            });
+        });
+    }
+
+    private void beginResponse(Stream stream) {
+        pendingResponses++;
+        stream.responding = true;
+    }
+
+    private void endResponse(Stream stream) {
+        pendingResponses--;
+        stream.responding = false;
+        if (stream.closed) {
+            abandonedResponses--;
+        }
+    }
+
+    private Response store(Stream stream, Response response) {
+        if (stream.cacheKey == null) {
+            return response;
+        }
+        String key = stream.cacheKey;
+        stream.cacheKey = null;
+        return server.getResponseCache().complete(key, response);
+    }
+
+    private void handoff(Stream stream, Response response, Throwable ex) {
+        worker.handoff(() -> {
+            endResponse(stream);
+            if (stream.admittedAt != 0) {
+                worker.release(stream.admittedAt);
+                stream.admittedAt = 0;
+            }
+            // Even for a closed connection, so requests waiting on the same key aren't left hanging
+            Response stored = store(stream, ex == null ? response : null);
+            if (closed) {
+                if (pendingResponses == 0) {
+                    release();
+                }
+                return;
+            }
+            respond(stream, stored, ex);
+            flush();
+        });
+    }
+
+    private void respond(Stream stream, Response response, Throwable ex) {
+        if (streams.get(stream.id) != stream) {
+            return; // reset while the handler was running
+        }
+        if (ex != null || response == null) {
+            response = INTERNAL_SERVER_ERROR;
+        } else if (response instanceof WebSocketResponse) {
+            response = NOT_IMPLEMENTED; // WebSockets over HTTP/2 (RFC 8441) aren't supported
+        }
+        if (server.getOptions().isCompression()) {
+            response = worker.getContentEncoder().encode(response, stream.request);
+        }
+        worker.log(stream.request, response, stream.handledAt);
+        boolean head = "HEAD".equals(stream.request.getMethod());
+        ByteBuffer body = head ? null : body(response);
+        boolean hasBody = body != null && body.hasRemaining() || !head && response.getBodyPublisher() != null;
+        putHeaders(stream.id, response, !hasBody);
+        if (!hasBody) {
+            finishStream(stream);
+            return;
+        }
+        if (body != null) {
+            stream.data = body;
+            stream.dataEnd = true;
+            makeSendable(stream);
+        } else {
+            stream.subscriber = new ResponseSubscriber(stream);
+            response.getBodyPublisher().subscribe(stream.subscriber);
+        }
+    }
+
+    private static ByteBuffer body(Response response) {
+        if (response instanceof StaticResponse) {
+            return ((StaticResponse) response).getEncodedBody();
+        } else if (response.getBody() != null) {
+            return ByteBuffer.wrap(response.getBody());
+        } else if (response.getBodyBuffer() != null) {
+            return response.getBodyBuffer().duplicate();
+        }
+        return null;
+    }
+
+    private void putHeaders(int streamId, Response response, boolean endStream) {
+        encodedHeaders.clear();
+        hpackEncoder.header(encodedHeaders, ":status", Integer.toString(response.getStatus()));
+        boolean hasContentLength = false, hasDate = false;
+        for (Map.Entry<String, String> header : response.getHeaders().entrySet()) {
+            String name = header.getKey();
+            if (CONNECTION_HEADERS.contains(name.toLowerCase())) {
+                continue;
+            }
+            hasContentLength |= name.equalsIgnoreCase("Content-Length");
+            hasDate |= name.equalsIgnoreCase("Date");
+            hpackEncoder.header(encodedHeaders, name, header.getValue());
+        }
+        for (String cookie : response.getCookies()) {
+            hpackEncoder.header(encodedHeaders, "set-cookie", cookie);
+        }
+        int status = response.getStatus();
+        if (!hasContentLength && response.getBodyPublisher() == null && status >= 200 && status != 204 && status != 304) {
+            int length = response instanceof StaticResponse
+                ? ((StaticResponse) response).getBodyLength()
+                : ResponseEncoder.bodyLength(response);
+            hpackEncoder.header(encodedHeaders, "content-length", Integer.toString(length));
+        }
+        if (!hasDate) {
+            hpackEncoder.header(encodedHeaders, "date", ResponseEncoder.getDate());
+        }
+        hpackEncoder.header(encodedHeaders, "server", "hella-http");
+        encodedHeaders.flip();
+
+        // Split into CONTINUATION frames if the block is larger than a frame
+        int type = HEADERS;
+        do {
+            int length = Math.min(encodedHeaders.remaining(), Math.min(peerMaxFrameSize, outFrameSize()));
+            boolean last = length == encodedHeaders.remaining();
+            int flags = (last ? END_HEADERS : 0) | (type == HEADERS && endStream ? END_STREAM : 0);
+            frame(type, flags, streamId, length).put(encodedHeaders.slice(encodedHeaders.position(), length));
+            encodedHeaders.position(encodedHeaders.position() + length);
+            type = CONTINUATION;
+        } while (encodedHeaders.hasRemaining());
+    }
+
+    private int outFrameSize() {
+        return worker.getOutBuffers().getBufferSize() - FRAME_HEADER_SIZE;
+    }
+
+    private void makeSendable(Stream stream) {
+        if (!stream.sendable && stream.data != null && (stream.sendWindow > 0 || !stream.data.hasRemaining())) {
+            stream.sendable = true;
+            sendable.add(stream);
+        }
+    }
+
+    /**
+     * Frames response bodies into a send buffer, a frame per stream in turn, as far as flow control allows.
+     */
+    private ByteBuffer fillData() {
+        if (sendable.isEmpty() || sendWindow <= 0 && sendable.stream().allMatch(s -> s.data.hasRemaining())) {
+            return null;
+        }
+        ByteBuffer buffer = worker.getOutBuffers().take();
+        while (!sendable.isEmpty() && buffer.remaining() > FRAME_HEADER_SIZE) {
+            Stream stream = sendable.poll();
+            stream.sendable = false;
+            ByteBuffer data = stream.data;
+            int length = (int) Math.min(Math.min(data.remaining(), Math.min(stream.sendWindow, sendWindow)),
+                Math.min(peerMaxFrameSize, buffer.remaining() - FRAME_HEADER_SIZE));
+            if (length <= 0 && data.hasRemaining()) {
+                if (stream.sendWindow > 0) {
+                    // Held back by the connection window, so nothing else can go either
+                    stream.sendable = true;
+                    sendable.addFirst(stream);
+                    break;
+                }
+                continue; // until the stream's window opens
+            }
+            boolean end = stream.dataEnd && length == data.remaining();
+            putFrameHeader(buffer, DATA, end ? END_STREAM : 0, stream.id, length);
+            buffer.put(buffer.position(), data, data.position(), length);
+            buffer.position(buffer.position() + length);
+            data.position(data.position() + length);
+            stream.sendWindow -= length;
+            sendWindow -= length;
+            if (end) {
+                stream.data = null;
+                finishStream(stream);
+            } else if (!data.hasRemaining()) {
+                stream.data = null;
+                stream.subscriber.next();
+            } else {
+                makeSendable(stream);
+            }
+        }
+        if (buffer.position() == 0) {
+            worker.getOutBuffers().give(buffer);
+            return null;
+        }
+        return buffer.flip();
+    }
+
+    private void finishStream(Stream stream) {
+        if (!stream.remoteClosed) {
+            // Answered before the request finished, so the rest of it isn't wanted
+            putRstStream(stream.id, NO_ERROR);
+        }
+        completedStreams++;
+        closeStream(stream);
+    }
+
+    private void closeStream(Stream stream) {
+        streams.remove(stream.id);
+        stream.closed = true;
+        if (stream.responding) {
+            abandonedResponses++;
+        }
+        if (stream.sendable) {
+            sendable.remove(stream);
+            stream.sendable = false;
+        }
+        if (stream.subscriber != null) {
+            stream.subscriber.cancel();
+        }
+        if (streams.isEmpty()) {
+            closeIfDone();
+            if (!closing) {
+                worker.getTimers().schedule(timeout, server.getOptions().getKeepAliveTimeout());
+            }
+        }
+    }
+
+    private void resetStream(int streamId, int code) {
+        putRstStream(streamId, code);
+        Stream stream = streams.get(streamId);
+        if (stream != null) {
+            closeStream(stream);
+        }
+    }
+
+    private void putRstStream(int streamId, int code) {
+        frame(RST_STREAM, 0, streamId, 4).putInt(code);
+    }
+
+    private void sendWindowUpdate(int streamId, long increment) {
+        if (increment > 0) {
+            frame(WINDOW_UPDATE, 0, streamId, 4).putInt((int) increment);
+        }
+    }
+
+    private void goAway(int code) {
+        if (!closing) {
+            frame(GOAWAY, 0, 0, 8).putInt(lastStreamId).putInt(code);
+            closing = true;
+            worker.getTimers().cancel(timeout);
+            flush();
+        }
+    }
+
+    private void closeIfDone() {
+        if (goingAway && streams.isEmpty()) {
+            goAway(NO_ERROR);
+        }
+    }
+
+    private void onTimeout() {
+        if (streams.isEmpty()) {
+            goAway(NO_ERROR);
+        }
+    }
+
+    /**
+     * Reserves a frame in the send buffer and returns it positioned after the frame header, for the payload.
+     */
+    private ByteBuffer frame(int type, int flags, int streamId, int length) {
+        if (filling != null && filling.remaining() < FRAME_HEADER_SIZE + length) {
+            queueFilling();
+        }
+        if (filling == null) {
+            filling = worker.getOutBuffers().take();
+        }
+        putFrameHeader(filling, type, flags, streamId, length);
+        return filling;
+    }
+
+    private void putRaw(byte[] bytes) {
+        if (filling == null) {
+            filling = worker.getOutBuffers().take();
+        }
+        filling.put(bytes);
+    }
+
+    private static void putFrameHeader(ByteBuffer buffer, int type, int flags, int streamId, int length) {
+        buffer.put((byte) (length >>> 16)).putShort((short) length).put((byte) type).put((byte) flags).putInt(streamId);
+    }
+
+    private void flush() {
+        if (writing == null && !closed) {
+            writeNext();
+        }
+    }
+
+    private void queueFilling() {
+        if (filling != null && filling.position() > 0) {
+            pendingWrites.add(filling.flip());
+            filling = null;
+        }
+    }
+
+    private void writeNext() {
+        queueFilling();
+        writing = pendingWrites.poll();
+        if (writing == null && !closing) {
+            writing = fillData();
+        }
+        if (writing != null) {
+            writeOffset = writing.position();
+            worker.getRing().queueWrite(socket, writing);
+        } else if (closing) {
+            socket.close();
+        }
+    }
+
+    private void onWrite(ByteBuffer buffer) {
+        metrics.wrote(buffer.position() - writeOffset);
+        if (buffer.hasRemaining()) {
+            writeOffset = buffer.position();
+            worker.getRing().queueWrite(socket, buffer);
+            return;
+        }
+        worker.getOutBuffers().give(buffer);
+        writing = null;
+        if (pendingWrites.isEmpty() && filling == null) {
+            queuedAcks = 0;
+        }
+        writeNext();
+        if (readPaused && pendingWrites.isEmpty() && !closing) {
+            readPaused = false;
+            process();
+        }
+    }
+
+    private void onClose() {
+        closed = true;
+        metrics.closed();
+        worker.getTimers().cancel(timeout);
+        for (Stream stream : streams.values()) {
+            if (stream.subscriber != null) {
+                stream.subscriber.cancel();
+            }
+        }
+        streams.clear();
+        sendable.clear();
+        if (pendingResponses == 0) {
+            release();
+        }
+    }
+
+    private void release() {
+        if (filling != null) {
+            worker.getOutBuffers().give(filling);
+            filling = null;
+        }
+        if (writing != null) {
+            worker.getOutBuffers().give(writing);
+            writing = null;
+        }
+        pendingWrites.forEach(worker.getOutBuffers()::give);
+        pendingWrites.clear();
+        if (inBuffer.capacity() > worker.getSmallInBuffers().getBufferSize()) {
+            worker.getInBuffers().give(inBuffer);
+        } else {
+            worker.getSmallInBuffers().give(inBuffer);
+        }
+    }
+
+    private static final class Stream {
+        private final int id;
+        private final Request request = new Request();
+        private long sendWindow;
+        private long receiveWindow = DEFAULT_WINDOW_SIZE;
+        private ByteBuffer body;
+        private String cacheKey;
+        private long admittedAt;
+        private long handledAt;
+        private ByteBuffer data;
+        private ResponseSubscriber subscriber;
+        private boolean dataEnd = false;
+        private boolean sendable = false;
+        private boolean remoteClosed = false;
+        private boolean handled = false;
+        private boolean tooLarge = false;
+        private boolean responding = false;
+        private boolean closed = false;
+
+        Stream(int id, int initialWindowSize) {
+            this.id = id;
+            this.sendWindow = initialWindowSize;
+        }
+    }
+
+    /**
+     * Feeds a response body publisher into its stream one item at a time, each requested once the last has been
+     * framed, the same way {@link PublisherBodyStream} does for HTTP/1.1.
+     */
+    private final class ResponseSubscriber implements Flow.Subscriber<ByteBuffer> {
+        private final Stream stream;
+        private Flow.Subscription subscription;
+        private boolean ended = false;
+
+        ResponseSubscriber(Stream stream) {
+            this.stream = stream;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            worker.handoff(() -> {
+                this.subscription = subscription;
+                if (ended) {
+                    subscription.cancel();
+                } else {
+                    subscription.request(1);
+                }
+            });
+        }
+
+        @Override
+        public void onNext(ByteBuffer item) {
+            worker.handoff(() -> {
+                if (!ended) {
+                    stream.data = item;
+                    makeSendable(stream);
+                    flush();
+                }
+            });
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            worker.handoff(() -> {
+                if (!ended) {
+                    end();
+                    resetStream(stream.id, INTERNAL_ERROR);
+                    flush();
+                }
+            });
+        }
+
+        @Override
+        public void onComplete() {
+            worker.handoff(() -> {
+                if (!ended) {
+                    end();
+                    stream.data = ByteBuffer.allocate(0);
+                    stream.dataEnd = true;
+                    makeSendable(stream);
+                    flush();
+                }
+            });
+        }
+
+        void next() {
+            if (!ended && subscription != null) {
+                subscription.request(1);
+            }
+        }
+
+        void cancel() {
+            if (!ended) {
+                end();
+                if (subscription != null) {
+                    subscription.cancel();
+                }
+            }
+        }
+
+        private void end() {
+            ended = true;
+        }
+    }
+
+    private static final class Http2Exception extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final int code;
+
+        Http2Exception(int code, String message) {
+            super(message, null, false, false);
+            this.code = code;
+        }
+    }
+}
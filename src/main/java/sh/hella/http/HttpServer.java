@@ -1,83 +1,172 @@
 package sh.hella.http;
 
-import lombok.AllArgsConstructor;
-import lombok.RequiredArgsConstructor;
+import lombok.AccessLevel;
+import lombok.Getter;
 import lombok.SneakyThrows;
 import sh.blake.niouring.IoUring;
 import sh.blake.niouring.IoUringServerSocket;
-import sh.hella.http.codec.RequestDecoder;
+import sh.blake.niouring.IoUringSocket;
+import sh.hella.http.codec.ContentEncoder;
 import sh.hella.http.codec.ResponseEncoder;
-import sh.hella.http.util.ConnectionReaper;
-import sh.hella.http.util.ObjectPool;
+import sh.hella.http.log.AccessLog;
+import sh.hella.http.metrics.Metrics;
+import sh.hella.http.metrics.RingMetrics;
 
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Paths;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 
-@AllArgsConstructor
-@RequiredArgsConstructor
+@Getter(AccessLevel.PACKAGE)
 public class HttpServer {
-    private Options options = Options.builder().build();
+    private final Options options;
     private final Function<Request, Response> handler;
-    private final ExecutorService pool = Executors.newFixedThreadPool(options.getThreads());
+    private final Function<Request, CompletionStage<Response>> asyncHandler;
+    private final ExecutorService pool;
     private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
-    private final ConnectionReaper connectionReaper = new ConnectionReaper();
-    private final ObjectPool<ByteBuffer> inBufferPool = new ObjectPool<>(
-        () -> ByteBuffer.allocateDirect(options.getRequestBufferSize()));
-    private final ObjectPool<ByteBuffer> outBufferPool = new ObjectPool<>(
-        () -> ByteBuffer.allocateDirect(options.getResponseBufferSize()));
+    private final Map<IoUring, Worker> workers = new IdentityHashMap<>();
+    private final List<RingMetrics> ringMetrics = new CopyOnWriteArrayList<>();
+    private final Metrics metrics = new Metrics(ringMetrics);
+    private final ContentEncoder.Cache compressedVariants;
+    private final ResponseCache responseCache;
+    private final Response overloaded;
+    private final ByteBuffer rejection;
+    private final ByteBuffer badRequest;
+    private final AccessLog accessLog;
 
-    public HttpServer start() {
-        scheduler.scheduleAtFixedRate(connectionReaper, 1, 1, TimeUnit.SECONDS);
-        var serverSocket = new IoUringServerSocket(options.getHost(), options.getPort());
-        serverSocket.onAccept((ring, socket) -> {
-            ring.queueAccept(serverSocket);
+    public HttpServer(Function<Request, Response> handler) {
+        this(Options.builder().build(), handler);
+    }
 
-            connectionReaper.seen(socket, options.getTtl());
-            var inBuffer = inBufferPool.take();
-            var outBuffer = outBufferPool.take();
-            var requestDecoder = new RequestDecoder();
+    public HttpServer(Options options, Function<Request, Response> handler) {
+        this(options, handler, null);
+    }
 
-            socket.onRead(received -> {
-                if (received.position() == 0) {
-                    socket.close();
-                    return;
-                }
-                connectionReaper.seen(socket, options.getTtl());
-                received.flip();
-                var request = requestDecoder.decode(received);
-                if (request != null) {
-                    var response = handler.apply(request);
-                    ResponseEncoder.encode(response, outBuffer);
-                    ring.queueWrite(socket, outBuffer);
-                }
-                received.compact();
-                ring.queueRead(socket, received);
-            });
+    private HttpServer(Options options,
+                       Function<Request, Response> handler,
+                       Function<Request, CompletionStage<Response>> asyncHandler) {
+        this.options = options;
+        this.handler = handler;
+        this.asyncHandler = asyncHandler;
+        this.pool = Executors.newFixedThreadPool(options.getThreads());
+        this.compressedVariants = new ContentEncoder.Cache(options.getCompressionCacheBytes());
+        this.responseCache = options.getResponseCacheBytes() > 0
+            ? new ResponseCache(
+                options.getResponseCacheBytes(), options.getResponseCacheTtl(), options.getResponseCacheVary())
+            : null;
+        // Encoded once, so turning work away costs no more than a copy or a write
+        String retryAfter = Integer.toString(options.getRetryAfter());
+        this.overloaded = Response.prebuilt(Response.builder().status(503).header("Retry-After", retryAfter).build());
+        this.rejection = Response.prebuilt(Response.builder()
+            .status(503)
+            .header("Retry-After", retryAfter)
+            .header("Connection", "close")
+            .build()).getEncoded();
+        this.badRequest = Response.prebuilt(Response.builder()
+            .status(400)
+            .header("Connection", "close")
+            .build()).getEncoded();
+        this.accessLog = options.getAccessLogPath() != null
+            ? new AccessLog(Paths.get(options.getAccessLogPath()), options.getAccessLogFileSize(),
+                options.getAccessLogFiles())
+            : null;
+    }
 
-            socket.onWrite(ByteBuffer::compact);
+    public static HttpServer async(Function<Request, CompletionStage<Response>> handler) {
+        return async(Options.builder().build(), handler);
+    }
 
-            socket.onClose(() -> {
-                inBufferPool.give(inBuffer.clear());
-                outBufferPool.give(outBuffer.clear());
-                connectionReaper.remove(socket);
-            });
+    public static HttpServer async(Options options, Function<Request, CompletionStage<Response>> handler) {
+        return new HttpServer(options, null, handler);
+    }
 
-            ring.queueRead(socket, inBuffer);
-        });
+    @SneakyThrows
+    public HttpServer start() {
+        scheduler.scheduleAtFixedRate(ResponseEncoder::updateDate, 1, 1, TimeUnit.SECONDS);
+        IoUringServerSocket serverSocket = listen();
 
-        for (int i = 0; i < options.getThreads(); i++) {
-            pool.execute(new IoUring().queueAccept(serverSocket)::loop);
+        try (var listener = ServerSocketChannel.open()) {
+            listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            for (int i = 0; i < options.getThreads(); i++) {
+                var worker = new Worker(options, compressedVariants, ringCpus(i));
+                worker.connectWakeup(listener);
+                worker.getRing().queueAccept(serverSocket);
+                workers.put(worker.getRing(), worker);
+                ringMetrics.add(worker.getMetrics());
+                if (accessLog != null) {
+                    accessLog.register(worker.getAccessLog());
+                }
+            }
+        }
+        if (accessLog != null) {
+            accessLog.start();
         }
+        workers.values().forEach(pool::execute);
+        for (Worker worker : workers.values()) {
+            worker.getStarted().join();
+        }
+        scheduler.scheduleAtFixedRate(() -> workers.values().forEach(Worker::tick),
+            Worker.TICK_MILLIS, Worker.TICK_MILLIS, TimeUnit.MILLISECONDS);
 
         return this;
     }
 
+    private IoUringServerSocket listen() {
+        var serverSocket = new IoUringServerSocket(options.getHost(), options.getPort());
+        serverSocket.onAccept((ring, socket) -> {
+            ring.queueAccept(serverSocket);
+            Worker worker = workers.get(ring);
+            int maxConnections = options.getMaxConnectionsPerRing();
+            if (maxConnections > 0 && worker.getMetrics().getActiveConnections() >= maxConnections) {
+                reject(ring, worker, socket);
+                return;
+            }
+            new Connection(this, worker, socket).open();
+        });
+        return serverSocket;
+    }
+
+    /**
+     * Turns away a connection the ring has no room for, with a 503 written straight from the shared encoding and
+     * without reading anything or taking any buffers.
+     */
+    private void reject(IoUring ring, Worker worker, IoUringSocket socket) {
+        worker.getMetrics().shedConnection();
+        socket.onWrite(buffer -> socket.close());
+        socket.onException(ex -> socket.close());
+        ring.queueWrite(socket, rejection.duplicate());
+    }
+
+    private String ringCpus(int ring) {
+        List<String> cpus = options.getRingCpus();
+        return cpus == null || cpus.isEmpty() ? null : cpus.get(ring % cpus.size());
+    }
+
     @SneakyThrows
     public boolean join() {
         return pool.awaitTermination(365 * 1000, TimeUnit.DAYS);
     }
+
+    /**
+     * Counters and latency histograms merged across all rings. These are also served in the Prometheus text format
+     * at {@link Options#getMetricsPath()} when it is set.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    boolean isDispatched() {
+        return asyncHandler != null || options.getHandlerExecutor() != null;
+    }
 }
@@ -0,0 +1,23 @@
+package sh.hella.http;
+
+import lombok.Builder;
+import lombok.Data;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+@Data
+@Builder
+public class MultipartOptions {
+    /**
+     * Where uploads are written, each to a new file.
+     */
+    @Builder.Default private final Path directory = Paths.get(System.getProperty("java.io.tmpdir"));
+    @Builder.Default private final int maxFieldSize = 64 * 1024;
+    @Builder.Default private final long maxFileSize = 16L * 1024 * 1024;
+    /**
+     * The most that the bodies of all the parts together may add up to.
+     */
+    @Builder.Default private final long maxTotalSize = 64L * 1024 * 1024;
+    @Builder.Default private final int maxParts = 128;
+}
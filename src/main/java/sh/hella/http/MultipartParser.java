@@ -0,0 +1,224 @@
+package sh.hella.http;
+
+import sh.hella.http.codec.MultipartDecoder;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+
+/**
+ * Parses a multipart/form-data request body as it streams in. {@link #stream} hands each part's body to a listener
+ * piece by piece, as views of the receive buffer. {@link #parse} collects the parts instead, keeping fields on the
+ * heap and writing uploads through a memory mapping into files of their own, so a large upload never sits on the
+ * heap.
+ * <p>
+ * Uploads are written from the ring thread. The mapping turns that into copies to the page cache, but it still
+ * suits occasional uploads rather than a steady stream of them.
+ */
+public class MultipartParser implements Flow.Subscriber<ByteBuffer> {
+    private static final int MAP_WINDOW = 1024 * 1024;
+
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+    private final MultipartDecoder decoder;
+    private Flow.Subscription subscription;
+
+    private MultipartParser(MultipartDecoder decoder) {
+        this.decoder = decoder;
+    }
+
+    /**
+     * Decodes the body, calling the listener on the ring as parts arrive. The future fails if the request isn't
+     * multipart or the body is malformed.
+     */
+    public static CompletableFuture<Void> stream(Request request, MultipartDecoder.Listener listener) {
+        String boundary = MultipartDecoder.boundary(request.getHeader("Content-Type"));
+        if (boundary == null) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Not a multipart request"));
+        }
+        var decoder = new MultipartDecoder(boundary, listener);
+        if (request.getBodyPublisher() == null) {
+            try {
+                if (request.getBody() != null) {
+                    decoder.decode(request.getBody().duplicate());
+                }
+                decoder.finish();
+                return CompletableFuture.completedFuture(null);
+            } catch (RuntimeException ex) {
+                return CompletableFuture.failedFuture(ex);
+            }
+        }
+        var parser = new MultipartParser(decoder);
+        request.getBodyPublisher().subscribe(parser);
+        return parser.done;
+    }
+
+    public static CompletableFuture<List<Part>> parse(Request request) {
+        return parse(request, MultipartOptions.builder().build());
+    }
+
+    /**
+     * Collects every part. Uploads go to new files in the options' directory. The files belong to the caller once
+     * the future completes, to move elsewhere or delete by closing their parts, and are deleted here if parsing fails.
+     * A body past any of the options' limits fails the future.
+     */
+    public static CompletableFuture<List<Part>> parse(Request request, MultipartOptions options) {
+        var collector = new Collector(options);
+        return stream(request, collector)
+            .whenComplete((ignored, ex) -> {
+                if (ex != null) {
+                    collector.discard();
+                }
+            })
+            .thenApply(ignored -> collector.parts);
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+        subscription.request(Long.MAX_VALUE);
+    }
+
+    @Override
+    public void onNext(ByteBuffer item) {
+        if (done.isDone()) {
+            return;
+        }
+        try {
+            decoder.decode(item);
+        } catch (RuntimeException ex) {
+            subscription.cancel();
+            done.completeExceptionally(ex);
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        done.completeExceptionally(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        if (done.isDone()) {
+            return;
+        }
+        try {
+            decoder.finish();
+            done.complete(null);
+        } catch (RuntimeException ex) {
+            done.completeExceptionally(ex);
+        }
+    }
+
+    private static class Collector implements MultipartDecoder.Listener {
+        private final List<Part> parts = new ArrayList<>();
+        private final MultipartOptions options;
+        private ByteBuffer field;
+        private FileChannel file;
+        private MappedByteBuffer window;
+        private long mapped;
+        private long size;
+        private long totalSize;
+
+        Collector(MultipartOptions options) {
+            this.options = options;
+        }
+
+        @Override
+        public void onPart(Part part) {
+            if (parts.size() >= options.getMaxParts()) {
+                throw new IllegalStateException("More than " + options.getMaxParts() + " parts");
+            }
+            parts.add(part);
+            size = 0;
+            if (!part.isFile()) {
+                field = ByteBuffer.allocate(0);
+                return;
+            }
+            try {
+                part.setFile(Files.createTempFile(options.getDirectory(), "hella-upload", ".tmp"));
+                file = FileChannel.open(part.getFile(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                window = null;
+                mapped = 0;
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        @Override
+        public void onData(Part part, ByteBuffer data) {
+            int maxFieldSize = options.getMaxFieldSize();
+            long maxSize = part.isFile() ? options.getMaxFileSize() : maxFieldSize;
+            size += data.remaining();
+            totalSize += data.remaining();
+            if (size > maxSize) {
+                throw new IllegalStateException("Part " + part.getName() + " larger than " + maxSize + " bytes");
+            } else if (totalSize > options.getMaxTotalSize()) {
+                throw new IllegalStateException("Parts larger than " + options.getMaxTotalSize() + " bytes in all");
+            }
+            if (!part.isFile()) {
+                if (field.remaining() < data.remaining()) {
+                    int capacity = (int) Math.min(Math.max(field.capacity() * 2L, Math.max(size, 256)), maxFieldSize);
+                    field = ByteBuffer.allocate(capacity).put(field.flip());
+                }
+                field.put(data);
+                return;
+            }
+            try {
+                while (data.hasRemaining()) {
+                    if (window == null || !window.hasRemaining()) {
+                        window = file.map(FileChannel.MapMode.READ_WRITE, mapped, MAP_WINDOW);
+                        mapped += MAP_WINDOW;
+                    }
+                    int length = Math.min(data.remaining(), window.remaining());
+                    window.put(data.slice(data.position(), length));
+                    data.position(data.position() + length);
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        @Override
+        public void onPartEnd(Part part) {
+            if (!part.isFile()) {
+                part.setBody(field.flip());
+                field = null;
+                return;
+            }
+            // Mapping grows the file a window at a time, so it is cut back to what was written
+            try (FileChannel channel = file) {
+                window = null;
+                file = null;
+                channel.truncate(size);
+                part.setBody(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        void discard() {
+            // Each on its own, so one file that can't be closed or deleted doesn't leave the rest behind
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException ignored) {
+                }
+                file = null;
+            }
+            for (Part part : parts) {
+                try {
+                    part.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
@@ -3,13 +3,61 @@ package sh.hella.http;
 import lombok.Builder;
 import lombok.Data;
 
+import java.util.List;
+import java.util.concurrent.Executor;
+
 @Data
 @Builder
 public class Options {
     @Builder.Default private final String host = "0.0.0.0";
     @Builder.Default private final int port = 8080;
+    @Builder.Default private final int initialRequestBufferSize = 2 * 1024;
     @Builder.Default private final int requestBufferSize = 64 * 1024;
     @Builder.Default private final int responseBufferSize = 64 * 1024;
     @Builder.Default private final int threads = Runtime.getRuntime().availableProcessors();
-    @Builder.Default private final int ttl = 60000;
+    @Builder.Default private final int headerTimeout = 10000;
+    @Builder.Default private final int bodyTimeout = 30000;
+    @Builder.Default private final int keepAliveTimeout = 60000;
+    @Builder.Default private final long maxBufferMemory = Long.MAX_VALUE;
+    @Builder.Default private final boolean compression = false;
+    @Builder.Default private final int compressionLevel = 6;
+    @Builder.Default private final int compressionMinSize = 1024;
+    @Builder.Default private final long compressionCacheBytes = 32L * 1024 * 1024;
+    @Builder.Default private final int webSocketMaxMessageSize = 1024 * 1024;
+    @Builder.Default private final long webSocketMaxQueuedBytes = 4L * 1024 * 1024;
+    @Builder.Default private final long responseCacheBytes = 0;
+    @Builder.Default private final long responseCacheTtl = 0;
+    @Builder.Default private final List<String> responseCacheVary = List.of();
+    @Builder.Default private final int maxConnectionsPerRing = 0;
+    @Builder.Default private final int maxHandlerConcurrency = 0;
+    @Builder.Default private final int minHandlerConcurrency = 4;
+    @Builder.Default private final int handlerLatencyTarget = 100;
+    @Builder.Default private final int retryAfter = 1;
+    @Builder.Default private final long accessLogFileSize = 64L * 1024 * 1024;
+    @Builder.Default private final int accessLogFiles = 4;
+    @Builder.Default private final int accessLogBufferRecords = 8192;
+    private final Executor handlerExecutor;
+    private final List<String> ringCpus;
+    private final String metricsPath;
+    private final String accessLogPath;
+
+    /**
+     * @deprecated the idle timeout between requests is now {@link #getKeepAliveTimeout}, and this alias for it will
+     * be removed in the next release
+     */
+    @Deprecated
+    public int getTtl() {
+        return keepAliveTimeout;
+    }
+
+    public static class OptionsBuilder {
+        /**
+         * @deprecated use {@link #keepAliveTimeout}, which this sets, along with {@link #headerTimeout} and
+         * {@link #bodyTimeout} for the request itself. It will be removed in the next release.
+         */
+        @Deprecated
+        public OptionsBuilder ttl(int ttl) {
+            return keepAliveTimeout(ttl);
+        }
+    }
 }
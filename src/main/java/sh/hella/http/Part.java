@@ -0,0 +1,70 @@
+package sh.hella.http;
+
+import lombok.Getter;
+import lombok.Setter;
+import sh.hella.http.codec.MultipartDecoder;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+/**
+ * One part of a multipart/form-data body. Its headers are there as soon as the part starts. Parts collected by
+ * {@link MultipartParser#parse} also hold their body, on the heap for fields and mapped from a file for uploads.
+ * Closing an upload deletes its file.
+ */
+public class Part implements Closeable {
+    @Getter private final Map<String, String> headers;
+    @Getter private final String name;
+    /**
+     * The file name the client gave, or null if the part is a plain field.
+     */
+    @Getter private final String filename;
+    @Getter @Setter private ByteBuffer body;
+    /**
+     * The file an upload was written to, which is left for the caller to move, or delete by closing the part.
+     */
+    @Getter @Setter private Path file;
+
+    public Part(Map<String, String> headers) {
+        this.headers = headers;
+        String disposition = headers.get("Content-Disposition");
+        name = MultipartDecoder.parameter(disposition, "name");
+        filename = MultipartDecoder.parameter(disposition, "filename");
+    }
+
+    public String getHeader(String name) {
+        return headers.get(name);
+    }
+
+    public String getContentType() {
+        return headers.get("Content-Type");
+    }
+
+    public boolean isFile() {
+        return filename != null;
+    }
+
+    /**
+     * The body decoded as UTF-8, or null if it wasn't collected.
+     */
+    public String getValue() {
+        return body == null ? null : StandardCharsets.UTF_8.decode(body.duplicate()).toString();
+    }
+
+    /**
+     * Deletes the file an upload was written to, unless it has been moved away. The mapped body stays readable until
+     * it is garbage collected.
+     */
+    @Override
+    public void close() throws IOException {
+        if (file != null) {
+            Files.deleteIfExists(file);
+            file = null;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package sh.hella.http;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Forwards requests to a set of upstream servers. Each ring keeps its own pools of keep-alive connections to them on
+ * its own io_uring, and sends each request to the healthy upstream with the fewest of its requests outstanding,
+ * taking turns between those that are level.
+ * <p>
+ * Has to be run on the rings, as an async handler without a handler executor:
+ * <pre>{@code
+ * HttpServer.async(new ProxyHandler(ProxyOptions.builder().upstream("10.0.0.1:8080").build())).start();
+ * }</pre>
+ */
+public class ProxyHandler implements Function<Request, CompletionStage<Response>>, AutoCloseable {
+    static final Response BAD_GATEWAY = Response.prebuilt(Response.builder().status(502).build());
+    static final Response SERVICE_UNAVAILABLE = Response.prebuilt(Response.builder().status(503).build());
+    static final Response GATEWAY_TIMEOUT = Response.prebuilt(Response.builder().status(504).build());
+
+    private final ProxyOptions options;
+    private final List<Upstream> upstreams;
+    private final ThreadLocal<Ring> rings = new ThreadLocal<>();
+    private final ScheduledExecutorService healthChecks;
+
+    public ProxyHandler(ProxyOptions options) {
+        if (options.getUpstreams().isEmpty()) {
+            throw new IllegalArgumentException("At least one upstream is required");
+        }
+        this.options = options;
+        this.upstreams = options.getUpstreams().stream()
+            .map(address -> new Upstream(address, options.getFailureThreshold(), options.getHealthCheckInterval()))
+            .collect(Collectors.toList());
+        if (options.getHealthCheckPath() != null) {
+            healthChecks = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "hella-proxy-health");
+                thread.setDaemon(true);
+                return thread;
+            });
+            healthChecks.scheduleWithFixedDelay(this::checkHealth,
+                0, options.getHealthCheckInterval(), TimeUnit.MILLISECONDS);
+        } else {
+            healthChecks = null;
+        }
+    }
+
+    @Override
+    public CompletionStage<Response> apply(Request request) {
+        Ring ring = rings.get();
+        if (ring == null) {
+            Worker worker = Worker.current();
+            if (worker == null) {
+                throw new IllegalStateException("The proxy handler has to run on the rings, without a handler executor");
+            }
+            ring = new Ring(upstreams.stream()
+                .map(upstream -> new UpstreamPool(worker, upstream, options))
+                .toArray(UpstreamPool[]::new));
+            rings.set(ring);
+        }
+        int index = pick(ring.pools, ring.next);
+        ring.next = (index + 1) % ring.pools.length;
+        CompletableFuture<Response> response = new CompletableFuture<>();
+        ring.pools[index].forward(request, response);
+        return response;
+    }
+
+    /**
+     * The pool with the fewest requests outstanding, looking from the given index on so ties go round in turn.
+     * Unhealthy upstreams are only picked when every upstream is unhealthy, in which case they are all tried rather
+     * than failing every request.
+     */
+    static int pick(UpstreamPool[] pools, int start) {
+        int best = -1;
+        boolean bestHealthy = false;
+        for (int i = 0; i < pools.length; i++) {
+            int index = (start + i) % pools.length;
+            boolean healthy = pools[index].getUpstream().isHealthy();
+            if (best < 0 || healthy && !bestHealthy
+                || healthy == bestHealthy && pools[index].getOutstanding() < pools[best].getOutstanding()) {
+                best = index;
+                bestHealthy = healthy;
+            }
+        }
+        return best;
+    }
+
+    private void checkHealth() {
+        for (Upstream upstream : upstreams) {
+            upstream.probe(options.getHealthCheckPath(), options.getConnectTimeout());
+        }
+    }
+
+    /**
+     * Stops the health checks. Idle upstream connections are closed by their idle timeout.
+     */
+    @Override
+    public void close() {
+        if (healthChecks != null) {
+            healthChecks.shutdownNow();
+        }
+    }
+
+    private static final class Ring {
+        private final UpstreamPool[] pools;
+        private int next;
+
+        Ring(UpstreamPool[] pools) {
+            this.pools = pools;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package sh.hella.http;
+
+import lombok.Builder;
+import lombok.Data;
+import lombok.Singular;
+
+import java.util.List;
+
+@Data
+@Builder
+public class ProxyOptions {
+    /**
+     * Servers to forward to, as {@code host:port}.
+     */
+    @Singular private final List<String> upstreams;
+    @Builder.Default private final int connectTimeout = 2000;
+    @Builder.Default private final int responseTimeout = 30000;
+    @Builder.Default private final int maxIdleConnections = 32;
+    @Builder.Default private final int idleTimeout = 60000;
+    /**
+     * Path each upstream is polled on, null to only take upstreams out when connecting to them fails.
+     */
+    @Builder.Default private final String healthCheckPath = "/health";
+    @Builder.Default private final int healthCheckInterval = 5000;
+    @Builder.Default private final int failureThreshold = 3;
+}
@@ -0,0 +1,165 @@
+package sh.hella.http;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Flow;
+
+/**
+ * Streams a response body from a publisher, optionally with chunked transfer-coding. Signals may arrive on any
+ * thread and are handed back to the ring, and only one item is requested at a time, so the publisher can never get
+ * more than a buffer ahead of the socket.
+ * <p>
+ * Without chunking the body is only delimited by the Content-Length the handler declared, so a publisher that
+ * produces more or less than that fails the stream rather than leaving the client waiting or reading the excess as
+ * the next response.
+ */
+class PublisherBodyStream implements BodyStream, Flow.Subscriber<ByteBuffer> {
+    private static final int CHUNK_OVERHEAD = 12; // hex size, two CRLFs, with room to spare
+    private static final byte[] CARRIAGE_RETURN = "\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private final Worker worker;
+    private final boolean chunked;
+    private final long contentLength;
+    private final Runnable onReady;
+    private final Queue<ByteBuffer> items = new ArrayDeque<>();
+    private Flow.Subscription subscription;
+    private ByteBuffer current;
+    private long taken;
+    private boolean complete = false;
+    private boolean ended = false;
+    private Throwable error;
+
+    /**
+     * @param contentLength the length the head declared, or -1 if it declared none to check against
+     */
+    PublisherBodyStream(Worker worker, boolean chunked, long contentLength, Runnable onReady) {
+        this.worker = worker;
+        this.chunked = chunked;
+        this.contentLength = chunked ? -1 : contentLength;
+        this.onReady = onReady;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        worker.handoff(() -> {
+            this.subscription = subscription;
+            if (ended) {
+                subscription.cancel();
+            } else {
+                subscription.request(1);
+            }
+        });
+    }
+
+    @Override
+    public void onNext(ByteBuffer item) {
+        worker.handoff(() -> {
+            if (!ended) {
+                items.add(item);
+                onReady.run();
+            }
+        });
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        worker.handoff(() -> {
+            if (!ended) {
+                error = throwable;
+                end();
+                onReady.run();
+            }
+        });
+    }
+
+    @Override
+    public void onComplete() {
+        worker.handoff(() -> {
+            if (!ended) {
+                complete = true;
+                end();
+                onReady.run();
+            }
+        });
+    }
+
+    @Override
+    public boolean fill(ByteBuffer buffer) {
+        if (error != null) {
+            throw new IllegalStateException("Response body publisher failed", error);
+        }
+        while (true) {
+            if (current == null || !current.hasRemaining()) {
+                if (current != null && !complete) {
+                    subscription.request(1);
+                }
+                current = items.poll();
+                if (current == null) {
+                    return complete && finish(buffer);
+                } else if (!current.hasRemaining()) {
+                    // An empty chunk would read as the last one, so it is never framed
+                    continue;
+                }
+                taken += current.remaining();
+                if (contentLength >= 0 && taken > contentLength) {
+                    throw new IllegalStateException("Response body publisher produced more than its Content-Length");
+                }
+            }
+            int room = buffer.remaining() - (chunked ? CHUNK_OVERHEAD : 0);
+            if (room <= 0) {
+                return false;
+            }
+            int length = Math.min(room, current.remaining());
+            if (chunked) {
+                putHex(buffer, length);
+                buffer.put(CARRIAGE_RETURN);
+            }
+            buffer.put(buffer.position(), current, current.position(), length);
+            buffer.position(buffer.position() + length);
+            current.position(current.position() + length);
+            if (chunked) {
+                buffer.put(CARRIAGE_RETURN);
+            }
+        }
+    }
+
+    @Override
+    public void cancel() {
+        if (!ended) {
+            end();
+            if (subscription != null) {
+                subscription.cancel();
+            }
+        }
+    }
+
+    private boolean finish(ByteBuffer buffer) {
+        if (contentLength >= 0 && taken < contentLength) {
+            throw new IllegalStateException("Response body publisher ended short of its Content-Length");
+        } else if (!chunked) {
+            return true;
+        } else if (buffer.remaining() < LAST_CHUNK.length) {
+            return false;
+        }
+        buffer.put(LAST_CHUNK);
+        return true;
+    }
+
+    private void end() {
+        ended = true;
+    }
+
+    private static void putHex(ByteBuffer buffer, int value) {
+        int shift = 28;
+        while (shift > 0 && (value >>> shift) == 0) {
+            shift -= 4;
+        }
+        for (; shift >= 0; shift -= 4) {
+            buffer.put(HEX_DIGITS[(value >>> shift) & 0xf]);
+        }
+    }
+}
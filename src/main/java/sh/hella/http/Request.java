@@ -1,21 +1,398 @@
 package sh.hella.http;
 
 import lombok.Builder;
-import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
+import sh.hella.http.util.ByteScanner;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Flow;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
-@Data
-@Builder
+/**
+ * A view over a request sitting in a connection's receive buffer. The decoder only records offsets, strings are
+ * created when they are asked for. The same instance is reused for every request on a connection, so it is only
+ * valid until the handler's response has been produced.
+ * <p>
+ * Requests made with {@link #builder()}, for tests or to call a handler directly, hold their fields as given instead,
+ * like a request that has been {@link #detach() detached}.
+ */
 public class Request {
-    private final String method;
-    private final String path;
-    private final Map<String, List<String>> parameters;
-    private final String protocol;
-    private final Map<String, String> headers;
-    private final ByteBuffer body;
-    private Consumer<ByteBuffer> chunkHandler;
+    private static final int INITIAL_HEADER_CAPACITY = 16;
+    private static final int INITIAL_PATH_PARAMETER_CAPACITY = 8;
+
+    @Getter private String method;
+    @Getter private String protocol;
+    @Getter private ByteBuffer body;
+    @Getter @Setter private Consumer<ByteBuffer> chunkHandler;
+    /**
+     * Set when the body is too large for the receive buffer or chunked, in which case {@link #getBody()} is null and
+     * the body is streamed to whoever subscribes. Items are views of the receive buffer that are only valid until
+     * {@code onNext} returns.
+     */
+    @Getter @Setter private Flow.Publisher<ByteBuffer> bodyPublisher;
+
+    private ByteBuffer buffer;
+    private int base;
+    private int pathStart, pathEnd;
+    private int queryStart, queryEnd;
+    private int[] headerOffsets = new int[INITIAL_HEADER_CAPACITY * 4];
+    private int headerCount;
+    private int[] pathParameterOffsets = new int[INITIAL_PATH_PARAMETER_CAPACITY * 2];
+    private int pathParameterCount;
+    private String[] pathParameterNames;
+
+    private String path;
+    private String query;
+    private Map<String, String> headers;
+    private Map<String, List<String>> parameters;
+
+    @Builder
+    private static Request of(String method, String path, String query, Map<String, List<String>> parameters,
+                              String protocol, Map<String, String> headers, ByteBuffer body,
+                              Consumer<ByteBuffer> chunkHandler) {
+        Request request = new Request();
+        request.method = method;
+        request.path = path;
+        request.pathEnd = path != null ? path.length() : 0;
+        request.query = query;
+        request.parameters = parameters != null ? parameters : Collections.emptyMap();
+        request.protocol = protocol;
+        request.headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        if (headers != null) {
+            request.headers.putAll(headers);
+        }
+        request.body = body;
+        request.chunkHandler = chunkHandler;
+        return request;
+    }
+
+    public String getPath() {
+        if (path == null) {
+            path = string(pathStart, pathEnd);
+        }
+        return path;
+    }
+
+    /**
+     * The raw query string, without the leading question mark, or null if there wasn't one.
+     */
+    public String getQuery() {
+        if (query == null && queryStart != queryEnd) {
+            query = string(queryStart, queryEnd);
+        }
+        return query;
+    }
+
+    public Map<String, String> getHeaders() {
+        if (headers == null) {
+            headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            for (int i = 0; i < headerCount * 4; i += 4) {
+                headers.put(
+                    string(headerOffsets[i], headerOffsets[i + 1]),
+                    string(headerOffsets[i + 2], headerOffsets[i + 3]));
+            }
+        }
+        return headers;
+    }
+
+    public Map<String, List<String>> getParameters() {
+        if (parameters == null) {
+            if (queryStart == queryEnd) {
+                parameters = Collections.emptyMap();
+            } else {
+                parameters = new HashMap<>();
+                forEachParameter((ks, ke, vs, ve) -> parameters
+                    .computeIfAbsent(string(ks, ke), k -> new ArrayList<>())
+                    .add(string(vs, ve)));
+            }
+        }
+        return parameters;
+    }
+
+    /**
+     * Looks up a header without building the header map. Names are compared case-insensitively.
+     */
+    public String getHeader(String name) {
+        if (buffer == null) {
+            return headers.get(name);
+        }
+        int index = headerIndex(name);
+        return index < 0 ? null : string(headerOffsets[index + 2], headerOffsets[index + 3]);
+    }
+
+    /**
+     * Returns a view of a header's value for parsing in place, or null if there is no such header. Names are compared
+     * case-insensitively.
+     */
+    public ByteBuffer getHeaderBytes(String name) {
+        if (buffer == null) {
+            String value = headers.get(name);
+            return value == null ? null : ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8));
+        }
+        int index = headerIndex(name);
+        return index < 0 ? null
+            : buffer.slice(base + headerOffsets[index + 2], headerOffsets[index + 3] - headerOffsets[index + 2]);
+    }
+
+    public boolean hasHeader(String name) {
+        if (buffer == null) {
+            return headers.containsKey(name);
+        }
+        return headerIndex(name) >= 0;
+    }
+
+    /**
+     * Adds a parameter from somewhere other than the query, such as a form body.
+     */
+    public void addParameter(String name, String value) {
+        if (!(getParameters() instanceof HashMap)) {
+            parameters = new HashMap<>(parameters);
+        }
+        parameters.computeIfAbsent(name, k -> new ArrayList<>()).add(value);
+    }
+
+    /**
+     * Returns the first value of a parameter, without building the parameter map if it hasn't been already.
+     */
+    public String getParameter(String name) {
+        if (buffer == null || parameters != null) {
+            List<String> values = parameters.get(name);
+            return values == null ? null : values.get(0);
+        }
+        int[] found = {-1, -1};
+        forEachParameter((ks, ke, vs, ve) -> {
+            if (found[0] < 0 && equalsBytes(ks, ke, name, false)) {
+                found[0] = vs;
+                found[1] = ve;
+            }
+        });
+        return found[0] < 0 ? null : string(found[0], found[1]);
+    }
+
+    public boolean pathEquals(String value) {
+        if (buffer == null) {
+            return path.equals(value);
+        }
+        return equalsBytes(pathStart, pathEnd, value, false);
+    }
+
+    public int getPathLength() {
+        return pathEnd - pathStart;
+    }
+
+    public byte getPathByte(int index) {
+        if (buffer == null) {
+            return (byte) path.charAt(index);
+        }
+        return buffer.get(base + pathStart + index);
+    }
+
+    /**
+     * Copies up to {@code length} bytes of the path into the buffer at {@code index} without creating the path
+     * string, returning how many were copied.
+     */
+    public int copyPath(ByteBuffer target, int index, int length) {
+        int count = Math.min(length, getPathLength());
+        if (buffer == null) {
+            for (int i = 0; i < count; i++) {
+                target.put(index + i, (byte) path.charAt(i));
+            }
+        } else {
+            target.put(index, buffer, base + pathStart, count);
+        }
+        return count;
+    }
+
+    /**
+     * Returns a parameter captured from the path by a router, or null if there is none with that name.
+     */
+    public String getPathParameter(String name) {
+        if (pathParameterNames != null) {
+            for (int i = 0; i < pathParameterCount && i < pathParameterNames.length; i++) {
+                if (pathParameterNames[i].equals(name)) {
+                    return getPathParameter(i);
+                }
+            }
+        }
+        return null;
+    }
+
+    public String getPathParameter(int index) {
+        int start = pathParameterOffsets[index * 2], end = pathParameterOffsets[index * 2 + 1];
+        if (buffer == null) {
+            return path.substring(start, end);
+        }
+        return string(pathStart + start, pathStart + end);
+    }
+
+    public int getPathParameterCount() {
+        return pathParameterCount;
+    }
+
+    public void addPathParameter(int start, int end) {
+        int i = pathParameterCount * 2;
+        if (i == pathParameterOffsets.length) {
+            pathParameterOffsets = Arrays.copyOf(pathParameterOffsets, pathParameterOffsets.length * 2);
+        }
+        pathParameterOffsets[i] = start;
+        pathParameterOffsets[i + 1] = end;
+        pathParameterCount++;
+    }
+
+    public void truncatePathParameters(int count) {
+        pathParameterCount = count;
+    }
+
+    public void setPathParameterNames(String[] names) {
+        pathParameterNames = names;
+    }
+
+    public int getHeaderCount() {
+        return headerCount;
+    }
+
+    /**
+     * Passes every header field to the consumer in the order they arrived, without folding repeated fields together
+     * the way {@link #getHeaders()} does.
+     */
+    public void forEachHeader(BiConsumer<String, String> consumer) {
+        if (buffer == null) {
+            headers.forEach(consumer);
+            return;
+        }
+        for (int i = 0; i < headerCount * 4; i += 4) {
+            consumer.accept(
+                string(headerOffsets[i], headerOffsets[i + 1]),
+                string(headerOffsets[i + 2], headerOffsets[i + 3]));
+        }
+    }
+
+    /**
+     * Copies everything out of the receive buffer, for requests that outlive the bytes they were decoded from.
+     */
+    public void detach() {
+        getPath();
+        getQuery();
+        getHeaders();
+        getParameters();
+        buffer = null;
+    }
+
+    public void reset(ByteBuffer buffer, int base) {
+        this.buffer = buffer;
+        this.base = base;
+        method = null;
+        protocol = null;
+        body = null;
+        chunkHandler = null;
+        bodyPublisher = null;
+        pathStart = pathEnd = queryStart = queryEnd = 0;
+        headerCount = 0;
+        pathParameterCount = 0;
+        pathParameterNames = null;
+        path = null;
+        query = null;
+        headers = null;
+        parameters = null;
+    }
+
+    public void rebase(ByteBuffer buffer, int base) {
+        this.buffer = buffer;
+        this.base = base;
+    }
+
+    public void setMethod(String method) {
+        this.method = method;
+    }
+
+    public void setProtocol(String protocol) {
+        this.protocol = protocol;
+    }
+
+    public void setBody(ByteBuffer body) {
+        this.body = body;
+    }
+
+    public void setPath(int start, int end) {
+        pathStart = start;
+        pathEnd = end;
+    }
+
+    public void setQuery(int start, int end) {
+        queryStart = start;
+        queryEnd = end;
+    }
+
+    public void addHeader(int keyStart, int keyEnd, int valStart, int valEnd) {
+        int i = headerCount * 4;
+        if (i == headerOffsets.length) {
+            headerOffsets = Arrays.copyOf(headerOffsets, headerOffsets.length * 2);
+        }
+        headerOffsets[i] = keyStart;
+        headerOffsets[i + 1] = keyEnd;
+        headerOffsets[i + 2] = valStart;
+        headerOffsets[i + 3] = valEnd;
+        headerCount++;
+    }
+
+    private int headerIndex(String name) {
+        for (int i = 0; i < headerCount * 4; i += 4) {
+            if (equalsBytes(headerOffsets[i], headerOffsets[i + 1], name, true)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void forEachParameter(ParameterConsumer consumer) {
+        int keyStart = queryStart;
+        while (keyStart <= queryEnd) {
+            int amp = ByteScanner.indexOf(buffer, base + keyStart, base + queryEnd, (byte) '&');
+            int end = amp < 0 ? queryEnd : amp - base;
+            if (end > keyStart) {
+                int eq = ByteScanner.indexOf(buffer, base + keyStart, base + end, (byte) '=');
+                if (eq < 0) {
+                    consumer.accept(keyStart, end, end, end);
+                } else {
+                    consumer.accept(keyStart, eq - base, eq - base + 1, end);
+                }
+            }
+            keyStart = end + 1;
+        }
+    }
+
+    private boolean equalsBytes(int start, int end, String value, boolean ignoreCase) {
+        if (end - start != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            int a = buffer.get(base + start + i);
+            int b = value.charAt(i);
+            if (a != b && !(ignoreCase && (a | 0x20) == (b | 0x20) && (a | 0x20) >= 'a' && (a | 0x20) <= 'z')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String string(int start, int end) {
+        byte[] bytes = new byte[end - start];
+        buffer.get(base + start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @FunctionalInterface
+    private interface ParameterConsumer {
+        void accept(int keyStart, int keyEnd, int valStart, int valEnd);
+    }
 }
@@ -0,0 +1,149 @@
+package sh.hella.http;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Flow;
+
+/**
+ * Publishes a request body that is read from the socket as it is consumed. The connection only reads more while
+ * the subscriber has outstanding demand, so a slow consumer holds back the client rather than filling memory.
+ * <p>
+ * Signals may arrive on any thread and are handed back to the ring, where {@code onNext} is called with views of the
+ * receive buffer. Without a subscriber the body goes to the request's chunk handler, or is discarded once the
+ * response has been produced so the next request on the connection can be read.
+ */
+class RequestBodyStream implements Flow.Publisher<ByteBuffer>, Flow.Subscription {
+    // Handed to a subscriber that is turned away, so it can't ask for or cancel the body someone else is reading
+    private static final Flow.Subscription REJECTED = new Flow.Subscription() {
+        @Override
+        public void request(long n) {
+        }
+
+        @Override
+        public void cancel() {
+        }
+    };
+
+    private final Worker worker;
+    private final Request request;
+    private final Runnable onDemand;
+    private Flow.Subscriber<? super ByteBuffer> subscriber;
+    private long demand;
+    private boolean responded = false;
+    private boolean cancelled = false;
+    private boolean ended = false;
+    private Throwable error;
+
+    RequestBodyStream(Worker worker, Request request, Runnable onDemand) {
+        this.worker = worker;
+        this.request = request;
+        this.onDemand = onDemand;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        // Taken immediately when subscribing from a handler on the ring, before the response lets the body go
+        Runnable task = () -> {
+            if (this.subscriber != null || responded) {
+                subscriber.onSubscribe(REJECTED);
+                subscriber.onError(new IllegalStateException("Request body already consumed"));
+                return;
+            }
+            this.subscriber = subscriber;
+            subscriber.onSubscribe(this);
+            if (ended) {
+                signalEnd();
+            }
+        };
+        if (worker.isRingThread()) {
+            task.run();
+        } else {
+            worker.handoff(task);
+        }
+    }
+
+    @Override
+    public void request(long n) {
+        worker.handoff(() -> {
+            if (ended || cancelled) {
+                return;
+            } else if (n <= 0) {
+                cancelled = true;
+                subscriber.onError(new IllegalArgumentException("Demand must be positive"));
+            } else {
+                demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+            }
+            onDemand.run();
+        });
+    }
+
+    @Override
+    public void cancel() {
+        worker.handoff(() -> {
+            if (!cancelled) {
+                cancelled = true;
+                onDemand.run();
+            }
+        });
+    }
+
+    /**
+     * Whether the connection should read and deliver more of the body.
+     */
+    boolean wantsData() {
+        if (cancelled) {
+            return true; // discarding
+        }
+        return subscriber != null ? demand > 0 : responded;
+    }
+
+    /**
+     * Called once the response to this request has been produced. Whatever nobody has asked for by then goes to the
+     * chunk handler or is discarded.
+     */
+    void responded() {
+        responded = true;
+    }
+
+    void deliver(ByteBuffer part) {
+        if (cancelled) {
+            return;
+        }
+        try {
+            if (subscriber != null) {
+                demand--;
+                subscriber.onNext(part);
+            } else if (request.getChunkHandler() != null) {
+                request.getChunkHandler().accept(part);
+            }
+        } catch (RuntimeException ex) {
+            cancelled = true;
+        }
+    }
+
+    void complete() {
+        end(null);
+    }
+
+    void fail(Throwable throwable) {
+        end(throwable);
+    }
+
+    private void end(Throwable throwable) {
+        if (!ended) {
+            ended = true;
+            error = throwable;
+            signalEnd();
+        }
+    }
+
+    private void signalEnd() {
+        if (subscriber == null || cancelled) {
+            return;
+        }
+        if (error != null) {
+            subscriber.onError(error);
+        } else {
+            subscriber.onComplete();
+        }
+    }
+}
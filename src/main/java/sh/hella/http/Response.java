@@ -4,12 +4,25 @@ import lombok.Builder;
 import lombok.Data;
 import lombok.Singular;
 
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Flow;
 
 @Data
 @Builder
 public class Response {
     private final int status;
     @Singular private final Map<String, String> headers;
+    /**
+     * Set-Cookie fields, each sent on a line of its own since, unlike other headers, they can't be combined into one.
+     */
+    @Singular private final List<String> cookies;
     private final byte[] body;
+    private final ByteBuffer bodyBuffer;
+    private final Flow.Publisher<ByteBuffer> bodyPublisher;
+
+    public static StaticResponse prebuilt(Response response) {
+        return new StaticResponse(response);
+    }
 }
@@ -0,0 +1,213 @@
+package sh.hella.http;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import sh.hella.http.util.LruCache;
+
+/**
+ * A shared cache of handler responses, kept prebuilt so a hit is written straight from its encoded direct buffer
+ * without calling the handler. Entries are bounded by their encoded size in an {@link LruCache}, and expire after
+ * the {@code max-age} or {@code s-maxage} the handler gave them, or a default lifetime if it gave none.
+ * <p>
+ * Only GET and HEAD requests without credentials are looked up, and only responses that are heuristically cacheable,
+ * have no body publisher, set no cookies and vary on nothing beyond the configured request headers are stored. A HEAD
+ * request is answered from the GET response, and only a GET fills the cache. While one request for a key is with the
+ * handler, any others for it wait for its response instead of calling the handler themselves.
+ */
+public class ResponseCache {
+    private static final int[] CACHEABLE_STATUSES = {200, 203, 204, 300, 301, 308, 404, 405, 410, 414, 501};
+
+    private final long defaultTtlMillis;
+    private final List<String> varyHeaders;
+    private final LruCache<String, Entry> entries;
+    private final ConcurrentHashMap<String, CompletableFuture<Response>> pending = new ConcurrentHashMap<>();
+
+    /**
+     * @param defaultTtlMillis how long to keep responses that don't say, 0 to only keep those that do
+     * @param varyHeaders      request headers that are part of the key, and so can be named in a response's Vary
+     */
+    public ResponseCache(long maxBytes, long defaultTtlMillis, List<String> varyHeaders) {
+        this.entries = new LruCache<>(maxBytes, entry -> entry.size);
+        this.defaultTtlMillis = defaultTtlMillis;
+        this.varyHeaders = varyHeaders;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getBytes() {
+        return entries.getWeight();
+    }
+
+    /**
+     * The key to cache the request's response under, or null if it shouldn't go near the cache. HEAD requests share
+     * the key of the GET, but should only be looked up.
+     */
+    String key(Request request) {
+        String method = request.getMethod();
+        if (!"GET".equals(method) && !"HEAD".equals(method) || request.hasHeader("Authorization")) {
+            return null;
+        }
+        String cacheControl = request.getHeader("Cache-Control");
+        if (cacheControl != null && (hasDirective(cacheControl, "no-cache") || hasDirective(cacheControl, "no-store"))) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder(64).append("GET ").append(request.getPath());
+        String query = request.getQuery();
+        if (query != null) {
+            key.append('?').append(query);
+        }
+        for (String header : varyHeaders) {
+            String value = request.getHeader(header);
+            key.append('\n').append(value != null ? value : "");
+        }
+        return key.toString();
+    }
+
+    /**
+     * Returns the fresh response cached under the key, or null.
+     */
+    Response get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        } else if (entry.expiresAt - System.nanoTime() <= 0) {
+            entries.remove(key, entry); // unless another ring has already replaced it with a fresh one
+            return null;
+        }
+        return entry.response;
+    }
+
+    /**
+     * Claims a missed key for the caller to fetch, returning null, or returns the response of the request that
+     * already has it. That completes with null if the response couldn't be shared, leaving each waiting request to
+     * fetch its own.
+     */
+    CompletableFuture<Response> claim(String key) {
+        Response cached = get(key);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        return pending.putIfAbsent(key, new CompletableFuture<>());
+    }
+
+    /**
+     * Releases a claimed key with the handler's response, which is stored if it can be. Returns the response to send,
+     * which is the prebuilt copy if there is one. A null response, for a handler that failed, just releases the key.
+     */
+    Response complete(String key, Response response) {
+        long ttl = response != null ? ttlMillis(response) : 0;
+        Response shared = null;
+        if (ttl > 0) {
+            shared = response instanceof StaticResponse ? response : Response.prebuilt(response);
+        }
+        if (shared != null) {
+            entries.put(key, new Entry(shared, System.nanoTime() + ttl * 1_000_000));
+        }
+        // Only once it's stored, so a request that misses from now on finds it rather than fetching it again
+        CompletableFuture<Response> waiting = pending.remove(key);
+        if (waiting != null) {
+            waiting.complete(shared);
+        }
+        return shared != null ? shared : response;
+    }
+
+    private long ttlMillis(Response response) {
+        if (response.getBodyPublisher() != null || !isCacheableStatus(response.getStatus())) {
+            return 0;
+        }
+        if (!response.getCookies().isEmpty()) {
+            return 0;
+        }
+        long ttl = defaultTtlMillis;
+        for (Map.Entry<String, String> header : response.getHeaders().entrySet()) {
+            String name = header.getKey();
+            if (name.equalsIgnoreCase("Set-Cookie")) {
+                return 0;
+            } else if (name.equalsIgnoreCase("Vary") && !isVaryCovered(header.getValue())) {
+                return 0;
+            } else if (name.equalsIgnoreCase("Cache-Control")) {
+                String value = header.getValue();
+                if (hasDirective(value, "no-store") || hasDirective(value, "no-cache")
+                    || hasDirective(value, "private")) {
+                    return 0;
+                }
+                long maxAge = seconds(value, "s-maxage");
+                if (maxAge < 0) {
+                    maxAge = seconds(value, "max-age");
+                }
+                if (maxAge >= 0) {
+                    ttl = maxAge * 1000;
+                }
+            }
+        }
+        return ttl;
+    }
+
+    private static boolean isCacheableStatus(int status) {
+        for (int cacheable : CACHEABLE_STATUSES) {
+            if (status == cacheable) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isVaryCovered(String vary) {
+        for (String name : vary.split(",")) {
+            name = name.trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            boolean covered = false;
+            for (String header : varyHeaders) {
+                covered |= header.equalsIgnoreCase(name);
+            }
+            if (!covered) {
+                return false; // including "*"
+            }
+        }
+        return true;
+    }
+
+    static boolean hasDirective(String cacheControl, String directive) {
+        for (String part : cacheControl.split(",")) {
+            String name = part.trim();
+            int equals = name.indexOf('=');
+            if ((equals < 0 ? name : name.substring(0, equals).trim()).equalsIgnoreCase(directive)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static long seconds(String cacheControl, String directive) {
+        for (String part : cacheControl.split(",")) {
+            int equals = part.indexOf('=');
+            if (equals > 0 && part.substring(0, equals).trim().toLowerCase(Locale.ROOT).equals(directive)) {
+                try {
+                    return Long.parseLong(part.substring(equals + 1).trim().replace("\"", ""));
+                } catch (NumberFormatException ex) {
+                    return 0; // an invalid lifetime is treated as already stale
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static final class Entry {
+        private final Response response;
+        private final long expiresAt;
+        private final long size;
+
+        Entry(Response response, long expiresAt) {
+            this.response = response;
+            this.expiresAt = expiresAt;
+            this.size = ((StaticResponse) response).getEncoded().capacity();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package sh.hella.http;
+
+import lombok.Getter;
+import sh.hella.http.codec.ResponseEncoder;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * A response that is encoded once, up front, into a read-only direct buffer. Sending it is a bulk copy, or for
+ * large payloads a write straight out of the shared buffer. The Date header is left out of the encoding and is
+ * spliced in at {@code dateOffset} when sent.
+ */
+@Getter
+public class StaticResponse extends Response {
+    private static final int ENCODING_OVERHEAD = 256;
+
+    private final ByteBuffer encoded;
+    private final int dateOffset;
+    private final int bodyOffset;
+    private final int bodyLength;
+
+    StaticResponse(Response response) {
+        this(response, encode(response), ResponseEncoder.bodyLength(response));
+    }
+
+    private StaticResponse(Response response, ByteBuffer encoded, int bodyLength) {
+        super(response.getStatus(), response.getHeaders(), response.getCookies(), response.getBody(),
+            bodyBuffer(response, encoded, bodyLength), null);
+        this.encoded = encoded;
+        this.bodyLength = bodyLength;
+        this.bodyOffset = encoded.limit() - bodyLength;
+        this.dateOffset = hasDateHeader(response) ? -1 : bodyOffset - 2; // before the blank line
+    }
+
+    /**
+     * A body given as a buffer is handed back as a read-only view of the encoded copy, so it reads the same as the
+     * response it was built from.
+     */
+    private static ByteBuffer bodyBuffer(Response response, ByteBuffer encoded, int bodyLength) {
+        if (response.getBodyBuffer() == null) {
+            return null;
+        }
+        return encoded.duplicate().position(encoded.limit() - bodyLength);
+    }
+
+    private static ByteBuffer encode(Response response) {
+        if (response.getBodyPublisher() != null) {
+            throw new IllegalArgumentException("Streamed responses cannot be prebuilt");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(estimateSize(response));
+        ResponseEncoder.encode(response, buffer, false);
+        return ByteBuffer.allocateDirect(buffer.flip().remaining())
+            .put(buffer)
+            .flip()
+            .asReadOnlyBuffer();
+    }
+
+    /**
+     * A view of just the encoded body, for writing without a copy after the head has been encoded.
+     */
+    public ByteBuffer getEncodedBody() {
+        return encoded.duplicate().position(bodyOffset);
+    }
+
+    private static boolean hasDateHeader(Response response) {
+        return response.getHeaders().keySet().stream().anyMatch("Date"::equalsIgnoreCase);
+    }
+
+    private static int estimateSize(Response response) {
+        int size = ENCODING_OVERHEAD + ResponseEncoder.bodyLength(response);
+        for (Map.Entry<String, String> entry : response.getHeaders().entrySet()) {
+            size += entry.getKey().getBytes(StandardCharsets.UTF_8).length
+                + entry.getValue().getBytes(StandardCharsets.UTF_8).length
+                + 4;
+        }
+        for (String cookie : response.getCookies()) {
+            size += cookie.getBytes(StandardCharsets.UTF_8).length + 14;
+        }
+        return size;
+    }
+}
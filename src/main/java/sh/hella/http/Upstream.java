@@ -0,0 +1,88 @@
+package sh.hella.http;
+
+import lombok.Getter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A server the proxy forwards to, and what is known of its health. Shared between rings, each of which keeps its own
+ * {@link UpstreamPool} of connections to it.
+ * <p>
+ * An upstream is taken out of rotation when its last health check failed, or for a health check interval once enough
+ * connections to it have failed in a row.
+ */
+class Upstream {
+    @Getter private final String host;
+    @Getter private final int port;
+    private final int failureThreshold;
+    private final long ejectNanos;
+    private final AtomicInteger failures = new AtomicInteger();
+    private volatile boolean probeHealthy = true;
+    private volatile long ejectedUntil = System.nanoTime();
+
+    Upstream(String address, int failureThreshold, long ejectMillis) {
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Upstream must be host:port, was " + address);
+        }
+        this.host = address.substring(0, colon);
+        this.port = Integer.parseInt(address.substring(colon + 1));
+        this.failureThreshold = failureThreshold;
+        this.ejectNanos = ejectMillis * 1_000_000;
+    }
+
+    boolean isHealthy() {
+        return probeHealthy && System.nanoTime() - ejectedUntil >= 0;
+    }
+
+    void succeeded() {
+        if (failures.get() != 0) {
+            failures.set(0);
+        }
+    }
+
+    void failed() {
+        if (failures.incrementAndGet() >= failureThreshold) {
+            failures.set(0);
+            ejectedUntil = System.nanoTime() + ejectNanos;
+        }
+    }
+
+    /**
+     * Checks the upstream with a blocking GET of the path, which is healthy if it answers with a 2xx or 3xx. Run off
+     * the rings, from the proxy's health check thread.
+     */
+    void probe(String path, int timeoutMillis) {
+        boolean healthy;
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+            socket.setSoTimeout(timeoutMillis);
+            String request = "GET " + path + " HTTP/1.1\r\nHost: " + host + ":" + port + "\r\nConnection: close\r\n\r\n";
+            socket.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+            healthy = isHealthyStatus(socket.getInputStream());
+        } catch (IOException ex) {
+            healthy = false;
+        }
+        probeHealthy = healthy;
+        if (healthy) {
+            succeeded();
+            ejectedUntil = System.nanoTime();
+        }
+    }
+
+    private static boolean isHealthyStatus(InputStream in) throws IOException {
+        // "HTTP/1.1 200", only the first digit of the status matters
+        byte[] line = in.readNBytes(12);
+        return line.length == 12 && line[0] == 'H' && (line[9] == '2' || line[9] == '3');
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port;
+    }
+}
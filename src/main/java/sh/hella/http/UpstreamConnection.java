@@ -0,0 +1,570 @@
+package sh.hella.http;
+
+import sh.blake.niouring.IoUringSocket;
+import sh.hella.http.codec.RequestEncoder;
+import sh.hella.http.codec.ResponseDecoder;
+import sh.hella.http.util.TimerWheel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+
+/**
+ * A client connection to an upstream, on the same ring as the downstream connections it forwards for, that carries
+ * one exchange at a time and goes back to its {@link UpstreamPool} between them.
+ * <p>
+ * Request bodies are written from where they already are, the downstream receive buffer. A response body that has
+ * all arrived with its head is copied out so it can be compressed or cached like any other, and anything larger is
+ * published straight from the receive buffer, each piece only valid until the next is requested. That is what
+ * downstream connections do, so the body is copied once, into the buffer it is sent from.
+ */
+class UpstreamConnection implements Flow.Publisher<ByteBuffer>, Flow.Subscription {
+    private static final int DIRECT_WRITE_THRESHOLD = 16 * 1024;
+    private static final ByteBuffer CARRIAGE_RETURN = directView("\r\n");
+    private static final ByteBuffer LAST_CHUNK = directView("0\r\n\r\n");
+
+    private final Worker worker;
+    private final UpstreamPool pool;
+    private final ProxyOptions options;
+    private final IoUringSocket socket;
+    private final ResponseDecoder decoder = new ResponseDecoder();
+    private final Queue<ByteBuffer> pendingWrites = new ArrayDeque<>();
+    private final TimerWheel.Timeout timeout = new TimerWheel.Timeout(this::onTimeout);
+    private final ByteBuffer chunkHeader = ByteBuffer.allocateDirect(16);
+    private ByteBuffer inBuffer;
+    private int readOffset;
+    private ByteBuffer writing;
+
+    // The exchange in progress
+    private Request request;
+    private CompletableFuture<Response> future;
+    private Response response;
+    private RequestBody requestBody;
+    private Flow.Subscriber<? super ByteBuffer> subscriber;
+    private long demand;
+    private boolean headRequest;
+    private boolean retryable;
+    private boolean received;
+    private boolean requestWritten;
+    private boolean exchanging = false;
+
+    private boolean connected = false;
+    private boolean reading = false;
+    private boolean closed = false;
+
+    UpstreamConnection(Worker worker, UpstreamPool pool, ProxyOptions options) {
+        this.worker = worker;
+        this.pool = pool;
+        this.options = options;
+        this.socket = new IoUringSocket(pool.getUpstream().getHost(), pool.getUpstream().getPort());
+    }
+
+    void connect(Request request, CompletableFuture<Response> future) {
+        inBuffer = worker.getInBuffers().take();
+        if (inBuffer == null) {
+            pool.end();
+            future.complete(ProxyHandler.SERVICE_UNAVAILABLE);
+            return;
+        }
+        begin(request, future, false);
+        socket.onConnect(ring -> onConnect());
+        socket.onRead(this::onRead);
+        socket.onWrite(this::onWrite);
+        socket.onClose(this::onClose);
+        socket.onException(ex -> onException());
+        worker.getTimers().schedule(timeout, options.getConnectTimeout());
+        worker.getRing().queueConnect(socket);
+    }
+
+    /**
+     * Starts an exchange on a connection taken from the pool, or one that has just connected.
+     */
+    void send(Request request, CompletableFuture<Response> future, boolean reused) {
+        begin(request, future, reused);
+        send();
+    }
+
+    private void begin(Request request, CompletableFuture<Response> future, boolean reused) {
+        this.request = request;
+        this.future = future;
+        String method = request.getMethod();
+        headRequest = "HEAD".equals(method);
+        // Only idempotent requests are sent again, and only if there is no streamed body that has gone already
+        retryable = reused && request.getBodyPublisher() == null && (headRequest || "GET".equals(method)
+            || "OPTIONS".equals(method) || "PUT".equals(method) || "DELETE".equals(method));
+        received = false;
+        requestWritten = false;
+        response = null;
+        exchanging = true;
+        decoder.reset();
+    }
+
+    private void onConnect() {
+        connected = true;
+        pool.getUpstream().succeeded();
+        send();
+    }
+
+    private void send() {
+        boolean streamed = request.getBodyPublisher() != null;
+        boolean chunked = streamed && !request.hasHeader("Content-Length");
+        ByteBuffer head = worker.getOutBuffers().take();
+        try {
+            RequestEncoder.encodeHead(request, head, chunked);
+        } catch (RuntimeException ex) {
+            worker.getOutBuffers().give(head);
+            fail(ProxyHandler.BAD_GATEWAY);
+            close();
+            return;
+        }
+        ByteBuffer body = request.getBody();
+        if (body != null && (body.remaining() >= DIRECT_WRITE_THRESHOLD || body.remaining() > head.remaining())) {
+            // Straight from the downstream receive buffer, which stays put until the response is handed over
+            pendingWrites.add(head.flip());
+            pendingWrites.add(body.asReadOnlyBuffer());
+        } else {
+            if (body != null) {
+                head.put(body.duplicate());
+            }
+            pendingWrites.add(head.flip());
+        }
+        if (streamed) {
+            requestBody = new RequestBody(chunked);
+            request.getBodyPublisher().subscribe(requestBody);
+        }
+        worker.getTimers().schedule(timeout, options.getResponseTimeout());
+        if (writing == null) {
+            writeNext();
+        }
+        if (!reading) {
+            queueRead();
+        }
+    }
+
+    private void writeNext() {
+        writing = pendingWrites.poll();
+        if (writing != null) {
+            worker.getRing().queueWrite(socket, writing);
+        } else if (requestBody != null) {
+            requestBody.written();
+        } else if (exchanging && !requestWritten) {
+            requestWritten = true;
+            if (response != null) {
+                respond(response);
+            }
+        }
+    }
+
+    private void onWrite(ByteBuffer buffer) {
+        if (buffer.hasRemaining()) {
+            worker.getRing().queueWrite(socket, buffer);
+            return;
+        }
+        if (!buffer.isReadOnly()) {
+            worker.getOutBuffers().give(buffer);
+        }
+        writing = null;
+        if (exchanging && !received) {
+            // A slow upload isn't a slow upstream
+            worker.getTimers().schedule(timeout, options.getResponseTimeout());
+        }
+        writeNext();
+    }
+
+    private void queueRead() {
+        readOffset = inBuffer.position();
+        reading = true;
+        worker.getRing().queueRead(socket, inBuffer);
+    }
+
+    private void onRead(ByteBuffer buffer) {
+        reading = false;
+        if (buffer.position() == readOffset) {
+            onEndOfInput();
+            return;
+        } else if (!exchanging) {
+            // Nothing should arrive between responses
+            close();
+            return;
+        }
+        received = true;
+        worker.getTimers().schedule(timeout, options.getResponseTimeout());
+        inBuffer.flip();
+        if (decoder.getState() == ResponseDecoder.State.HEAD) {
+            decodeHead();
+        } else {
+            pumpResponse();
+        }
+    }
+
+    private void decodeHead() {
+        boolean decoded;
+        try {
+            decoded = decoder.decodeHead(inBuffer, headRequest);
+        } catch (RuntimeException ex) {
+            fail(ProxyHandler.BAD_GATEWAY);
+            close();
+            return;
+        }
+        if (!decoded) {
+            inBuffer.compact();
+            queueRead();
+            return;
+        } else if (decoder.getStatus() == 101) {
+            // Upgrade headers aren't forwarded, so the upstream had no business switching
+            fail(ProxyHandler.BAD_GATEWAY);
+            close();
+            return;
+        }
+        var builder = Response.builder().status(decoder.getStatus());
+        Map<String, String> headers = decoder.getHeaders();
+        String connection = header(headers, "Connection");
+        boolean buffered = decoder.getContentLength() >= 0 && inBuffer.remaining() >= decoder.getContentLength();
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            String name = header.getKey();
+            // The encoder adds its own Server header, and Content-Length for bodies it has in full
+            if (RequestEncoder.isHopByHop(name, connection) || name.equalsIgnoreCase("Server")
+                || buffered && !headRequest && name.equalsIgnoreCase("Content-Length")) {
+                continue;
+            }
+            builder.header(name, header.getValue());
+        }
+        builder.cookies(decoder.getCookies());
+        if (buffered) {
+            byte[] body = new byte[(int) decoder.getContentLength()];
+            ByteBuffer part = decoder.decodeBodyPart(inBuffer);
+            if (part != null) {
+                part.get(body);
+            }
+            builder.body(body);
+        } else {
+            builder.bodyPublisher(this);
+        }
+        if (requestWritten || requestBody != null) {
+            respond(builder.build());
+        } else {
+            // Held back until the request body has been written from the downstream receive buffer
+            response = builder.build();
+        }
+    }
+
+    private void respond(Response decoded) {
+        response = null;
+        CompletableFuture<Response> responseFuture = future;
+        future = null;
+        responseFuture.complete(decoded);
+        if (decoded.getBodyPublisher() == null) {
+            finish();
+        }
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        if (this.subscriber != null || !exchanging) {
+            subscriber.onSubscribe(this);
+            subscriber.onError(new IllegalStateException("Response body already consumed"));
+            return;
+        }
+        this.subscriber = subscriber;
+        demand = 0;
+        subscriber.onSubscribe(this);
+    }
+
+    @Override
+    public void request(long n) {
+        if (subscriber == null) {
+            return;
+        } else if (n <= 0) {
+            abort(new IllegalArgumentException("Demand must be positive"));
+            return;
+        }
+        demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+        pumpResponse();
+    }
+
+    @Override
+    public void cancel() {
+        if (subscriber != null) {
+            subscriber = null;
+            end();
+            close();
+        }
+    }
+
+    private void pumpResponse() {
+        if (subscriber == null || reading) {
+            return;
+        }
+        try {
+            ByteBuffer part;
+            while (demand > 0 && (part = decoder.decodeBodyPart(inBuffer)) != null) {
+                demand--;
+                subscriber.onNext(part);
+                if (subscriber == null) {
+                    return;
+                }
+            }
+        } catch (RuntimeException ex) {
+            abort(ex);
+            return;
+        }
+        if (decoder.isDone()) {
+            Flow.Subscriber<? super ByteBuffer> done = subscriber;
+            subscriber = null;
+            done.onComplete();
+            finish();
+        } else if (demand > 0) {
+            // Everything delivered so far has been consumed, or it wouldn't have asked for more
+            inBuffer.compact();
+            queueRead();
+            worker.getTimers().schedule(timeout, options.getResponseTimeout());
+        } else {
+            // Held back by the downstream client rather than the upstream
+            worker.getTimers().cancel(timeout);
+        }
+    }
+
+    private void onEndOfInput() {
+        if (subscriber != null && decoder.endOfInput()) {
+            // A body that ran until the connection closed
+            inBuffer.flip();
+            pumpResponse();
+            if (subscriber == null) {
+                close();
+                return;
+            }
+        }
+        if (exchanging && future != null && retryable && !received) {
+            // The upstream closed an idle connection just as it was reused, so try again on a fresh one
+            retry();
+        } else {
+            fail(ProxyHandler.BAD_GATEWAY);
+        }
+        close();
+    }
+
+    private void onException() {
+        if (!connected) {
+            pool.getUpstream().failed();
+        }
+        fail(ProxyHandler.BAD_GATEWAY);
+        close();
+    }
+
+    private void onTimeout() {
+        if (!connected) {
+            pool.getUpstream().failed();
+        }
+        fail(ProxyHandler.GATEWAY_TIMEOUT);
+        close();
+    }
+
+    private void retry() {
+        Request retried = request;
+        CompletableFuture<Response> retriedFuture = future;
+        exchanging = false;
+        request = null;
+        future = null;
+        pool.connect(retried, retriedFuture);
+    }
+
+    /**
+     * Ends the exchange in progress, if there is one, answering the downstream request with the given response if it
+     * hasn't been already, or cutting its response body short if it has.
+     */
+    private void fail(Response error) {
+        if (!exchanging) {
+            return;
+        }
+        if (future != null) {
+            future.complete(error);
+            future = null;
+        } else if (subscriber != null) {
+            Flow.Subscriber<? super ByteBuffer> failed = subscriber;
+            subscriber = null;
+            failed.onError(new IOException("Upstream response ended early"));
+        }
+        end();
+    }
+
+    private void abort(Throwable ex) {
+        Flow.Subscriber<? super ByteBuffer> failed = subscriber;
+        subscriber = null;
+        if (failed != null) {
+            failed.onError(ex);
+        }
+        end();
+        close();
+    }
+
+    /**
+     * Called once the response has been handed over in full. The connection goes back to the pool if both sides of
+     * the exchange ended cleanly and the upstream is keeping it open.
+     */
+    private void finish() {
+        boolean reusable = decoder.isKeepAlive() && requestWritten && requestBody == null && !inBuffer.hasRemaining();
+        end();
+        if (!reusable) {
+            close();
+            return;
+        }
+        inBuffer.clear();
+        pool.release(this);
+    }
+
+    private void end() {
+        if (!exchanging) {
+            return;
+        }
+        exchanging = false;
+        request = null;
+        future = null;
+        response = null;
+        if (requestBody != null) {
+            requestBody.cancel();
+            requestBody = null;
+        }
+        pool.end();
+    }
+
+    /**
+     * Called when the connection goes back into the pool. A read is kept queued so an upstream that closes it is
+     * noticed straight away.
+     */
+    void idle() {
+        worker.getTimers().schedule(timeout, options.getIdleTimeout());
+        if (!reading) {
+            queueRead();
+        }
+    }
+
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        worker.getTimers().cancel(timeout);
+        pool.remove(this);
+        socket.close();
+    }
+
+    private void onClose() {
+        close();
+        fail(ProxyHandler.BAD_GATEWAY);
+        if (writing != null && !writing.isReadOnly()) {
+            worker.getOutBuffers().give(writing);
+        }
+        writing = null;
+        for (ByteBuffer pending : pendingWrites) {
+            if (!pending.isReadOnly()) {
+                worker.getOutBuffers().give(pending);
+            }
+        }
+        pendingWrites.clear();
+        if (inBuffer != null) {
+            worker.getInBuffers().give(inBuffer);
+            inBuffer = null;
+        }
+    }
+
+    private static String header(Map<String, String> headers, String name) {
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (header.getKey().equalsIgnoreCase(name)) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static ByteBuffer directView(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+        return ByteBuffer.allocateDirect(bytes.length).put(bytes).flip().asReadOnlyBuffer();
+    }
+
+    /**
+     * Writes a streamed request body upstream as it is read from the downstream client, one piece at a time. Each
+     * piece is a view of the downstream receive buffer, which isn't read into again until the next is requested.
+     */
+    private class RequestBody implements Flow.Subscriber<ByteBuffer> {
+        private final boolean chunked;
+        private Flow.Subscription subscription;
+        private boolean complete = false;
+
+        RequestBody(boolean chunked) {
+            this.chunked = chunked;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(ByteBuffer part) {
+            if (requestBody != this || !part.hasRemaining()) {
+                written();
+                return;
+            }
+            if (chunked) {
+                chunkHeader.clear().put(Integer.toHexString(part.remaining()).getBytes(StandardCharsets.US_ASCII))
+                    .put(CARRIAGE_RETURN.duplicate());
+                pendingWrites.add(chunkHeader.flip().asReadOnlyBuffer());
+                pendingWrites.add(part.asReadOnlyBuffer());
+                pendingWrites.add(CARRIAGE_RETURN.duplicate());
+            } else {
+                pendingWrites.add(part.asReadOnlyBuffer());
+            }
+            if (writing == null) {
+                writeNext();
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            if (requestBody == this) {
+                // The downstream client went away mid-upload
+                fail(ProxyHandler.BAD_GATEWAY);
+                close();
+            }
+        }
+
+        @Override
+        public void onComplete() {
+            if (requestBody != this) {
+                return;
+            }
+            complete = true;
+            if (chunked) {
+                pendingWrites.add(LAST_CHUNK.duplicate());
+            }
+            if (writing == null) {
+                writeNext();
+            }
+        }
+
+        /**
+         * Called when everything queued so far has been written.
+         */
+        void written() {
+            if (requestBody != this) {
+                return;
+            } else if (complete) {
+                requestBody = null;
+                requestWritten = true;
+            } else if (subscription != null) {
+                subscription.request(1);
+            }
+        }
+
+        void cancel() {
+            if (!complete && subscription != null) {
+                subscription.cancel();
+            }
+        }
+    }
+}
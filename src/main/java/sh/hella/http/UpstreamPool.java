@@ -0,0 +1,71 @@
+package sh.hella.http;
+
+import lombok.Getter;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * One ring's keep-alive connections to an upstream, and the number of its requests the upstream is working on. Only
+ * touched from the ring's thread.
+ */
+class UpstreamPool {
+    private final Worker worker;
+    @Getter private final Upstream upstream;
+    private final ProxyOptions options;
+    private final ArrayDeque<UpstreamConnection> idle = new ArrayDeque<>();
+    @Getter private int outstanding;
+
+    UpstreamPool(Worker worker, Upstream upstream, ProxyOptions options) {
+        this.worker = worker;
+        this.upstream = upstream;
+        this.options = options;
+    }
+
+    /**
+     * Forwards a request on the most recently used idle connection, or a new one if there are none.
+     */
+    void forward(Request request, CompletableFuture<Response> response) {
+        begin();
+        UpstreamConnection connection = idle.pollLast();
+        if (connection != null) {
+            connection.send(request, response, true);
+        } else {
+            connect(request, response);
+        }
+    }
+
+    /**
+     * Forwards a request on a new connection, for a request that is already counted as outstanding.
+     */
+    void connect(Request request, CompletableFuture<Response> response) {
+        new UpstreamConnection(worker, this, options).connect(request, response);
+    }
+
+    void begin() {
+        outstanding++;
+    }
+
+    /**
+     * Called once a request's exchange with the upstream is over, response body and all.
+     */
+    void end() {
+        outstanding--;
+    }
+
+    /**
+     * Takes back a connection whose exchange is over, closing it if there are already enough idle ones.
+     */
+    void release(UpstreamConnection connection) {
+        if (idle.size() >= options.getMaxIdleConnections()) {
+            connection.close();
+            return;
+        }
+        idle.addLast(connection);
+        connection.idle();
+    }
+
+    void remove(UpstreamConnection connection) {
+        idle.remove(connection);
+    }
+}
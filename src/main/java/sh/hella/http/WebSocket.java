@@ -0,0 +1,148 @@
+package sh.hella.http;
+
+import sh.hella.http.codec.WebSocketDecoder;
+import sh.hella.http.codec.WebSocketEncoder;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * A WebSocket connection (RFC 6455). A handler accepts a handshake by returning {@link #upgrade}, after which the
+ * connection belongs to its listener, which is always called on the ring that owns the connection.
+ * <p>
+ * Messages can be sent from any thread. Sends from the ring are encoded straight into its send buffers, and sends
+ * from anywhere else are copied and handed to the ring. A {@link Frame} is encoded once and written as is to every
+ * connection it is sent to, for broadcasting.
+ */
+public class WebSocket {
+    public static final int NORMAL_CLOSURE = 1000;
+    public static final int GOING_AWAY = 1001;
+    public static final int NO_STATUS = 1005;
+    public static final int ABNORMAL_CLOSURE = 1006;
+    public static final int POLICY_VIOLATION = 1008;
+    public static final int INTERNAL_ERROR = 1011;
+
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final Response BAD_REQUEST = Response.builder().status(400).body(new byte[0]).build();
+    private static final Response UPGRADE_REQUIRED = Response.builder()
+        .status(426)
+        .header("Sec-WebSocket-Version", "13")
+        .body(new byte[0])
+        .build();
+
+    private final WebSocketConnection connection;
+
+    WebSocket(WebSocketConnection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * Accepts a WebSocket handshake, or returns an error response if the request isn't a valid one.
+     */
+    public static Response upgrade(Request request, Listener listener) {
+        String key = request.getHeader("Sec-WebSocket-Key");
+        if (!"GET".equals(request.getMethod()) || !isUpgrade(request) || key == null
+            || request.getBodyPublisher() != null) {
+            return BAD_REQUEST;
+        } else if (!"13".equals(request.getHeader("Sec-WebSocket-Version"))) {
+            return UPGRADE_REQUIRED;
+        }
+        return new WebSocketResponse(accept(key.trim()), listener);
+    }
+
+    public static boolean isUpgrade(Request request) {
+        String upgrade = request.getHeader("Upgrade");
+        String connection = request.getHeader("Connection");
+        return upgrade != null && upgrade.trim().equalsIgnoreCase("websocket")
+            && connection != null && connection.toLowerCase().contains("upgrade");
+    }
+
+    static String accept(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((key + ACCEPT_GUID).getBytes(StandardCharsets.US_ASCII));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    public void send(String text) {
+        connection.send(WebSocketDecoder.TEXT, ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)), false);
+    }
+
+    /**
+     * Sends the remaining bytes of {@code data} as a binary message. The buffer isn't modified, and can be reused
+     * once this returns.
+     */
+    public void send(ByteBuffer data) {
+        connection.send(WebSocketDecoder.BINARY, data, true);
+    }
+
+    public void send(Frame frame) {
+        connection.send(frame.encoded.duplicate());
+    }
+
+    public void ping() {
+        connection.send(WebSocketDecoder.PING, ByteBuffer.allocate(0), false);
+    }
+
+    public void close() {
+        close(NORMAL_CLOSURE, null);
+    }
+
+    /**
+     * Starts the closing handshake. The connection is dropped once the client answers, or after the header timeout.
+     */
+    public void close(int status, String reason) {
+        connection.close(status, reason);
+    }
+
+    /**
+     * Whether messages can still be sent, which stops being true as soon as either side starts closing.
+     */
+    public boolean isOpen() {
+        return connection.isOpen();
+    }
+
+    /**
+     * A message encoded once, up front, into a read-only direct buffer that any number of connections can write.
+     */
+    public static final class Frame {
+        private final ByteBuffer encoded;
+
+        private Frame(ByteBuffer encoded) {
+            this.encoded = encoded;
+        }
+
+        public static Frame text(String text) {
+            return new Frame(WebSocketEncoder.encode(WebSocketDecoder.TEXT,
+                ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8))));
+        }
+
+        public static Frame binary(ByteBuffer data) {
+            return new Frame(WebSocketEncoder.encode(WebSocketDecoder.BINARY, data));
+        }
+    }
+
+    public interface Listener {
+        default void onOpen(WebSocket socket) {
+        }
+
+        /**
+         * Called with each complete message. The buffer is only valid for the duration of the call, as an unfragmented
+         * message is a view of the receive buffer. Text messages are UTF-8, and aren't validated.
+         */
+        void onMessage(WebSocket socket, ByteBuffer message, boolean text);
+
+        /**
+         * Called once, with the status the client closed with, or {@link #ABNORMAL_CLOSURE} if the connection was lost
+         * without one.
+         */
+        default void onClose(WebSocket socket, int status) {
+        }
+    }
+}
@@ -0,0 +1,394 @@
+package sh.hella.http;
+
+import sh.blake.niouring.IoUringSocket;
+import sh.hella.http.codec.WebSocketDecoder;
+import sh.hella.http.codec.WebSocketEncoder;
+import sh.hella.http.metrics.RingMetrics;
+import sh.hella.http.util.TimerWheel;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * The ring side of a {@link WebSocket}, which takes over the socket and receive buffer from the {@link Connection}
+ * that answered the handshake. Frames are unmasked and delivered in place, and only fragmented messages are copied
+ * out to be put back together.
+ */
+class WebSocketConnection {
+    private static final int MAX_CLOSE_REASON = 123;
+
+    private final HttpServer server;
+    private final Worker worker;
+    private final IoUringSocket socket;
+    private final RingMetrics metrics;
+    private final WebSocket.Listener listener;
+    private final WebSocket webSocket = new WebSocket(this);
+    private final WebSocketDecoder decoder;
+    private final Queue<ByteBuffer> pendingWrites = new ArrayDeque<>();
+    private final TimerWheel.Timeout timeout = new TimerWheel.Timeout(this::onTimeout);
+    private final int maxMessageSize;
+    private final long maxQueuedBytes;
+    private ByteBuffer inBuffer;
+    private ByteBuffer filling;
+    private ByteBuffer writing;
+    private ByteBuffer message;
+    private int messageOpcode;
+    private long queuedBytes;
+    private int readOffset;
+    private int writeOffset;
+    private volatile boolean open = true;
+    private boolean closeSent = false;
+    private boolean closeReceived = false;
+    private boolean notified = false;
+    private boolean closed = false;
+
+    WebSocketConnection(HttpServer server, Worker worker, IoUringSocket socket, ByteBuffer inBuffer,
+                        WebSocket.Listener listener) {
+        this.server = server;
+        this.worker = worker;
+        this.socket = socket;
+        this.metrics = worker.getMetrics();
+        this.inBuffer = inBuffer;
+        this.listener = listener;
+        this.maxMessageSize = server.getOptions().getWebSocketMaxMessageSize();
+        this.decoder = new WebSocketDecoder(maxMessageSize);
+        this.maxQueuedBytes = server.getOptions().getWebSocketMaxQueuedBytes();
+    }
+
+    /**
+     * Takes over the socket along with whatever the HTTP/1.1 connection still had to write, which ends with the 101.
+     */
+    void open(ByteBuffer writing, Queue<ByteBuffer> pendingWrites) {
+        socket.onRead(this::onRead);
+        socket.onWrite(this::onWrite);
+        socket.onClose(this::onClose);
+        this.writing = writing;
+        pendingWrites.forEach(this::queue);
+        pendingWrites.clear();
+        try {
+            listener.onOpen(webSocket);
+        } catch (RuntimeException ex) {
+            fail(WebSocket.INTERNAL_ERROR);
+        }
+        process();
+    }
+
+    boolean isOpen() {
+        return open;
+    }
+
+    void send(int opcode, ByteBuffer payload, boolean copy) {
+        if (worker.isRingThread()) {
+            write(opcode, payload);
+            flush();
+            return;
+        }
+        ByteBuffer owned = copy ? ByteBuffer.allocate(payload.remaining()).put(payload.duplicate()).flip() : payload;
+        worker.handoff(() -> {
+            write(opcode, owned);
+            flush();
+        });
+    }
+
+    void send(ByteBuffer frame) {
+        if (worker.isRingThread()) {
+            writeFrame(frame);
+            flush();
+        } else {
+            worker.handoff(() -> {
+                writeFrame(frame);
+                flush();
+            });
+        }
+    }
+
+    void close(int status, String reason) {
+        if (worker.isRingThread()) {
+            sendClose(status, reason);
+            flush();
+        } else {
+            worker.handoff(() -> {
+                sendClose(status, reason);
+                flush();
+            });
+        }
+    }
+
+    private void onRead(ByteBuffer received) {
+        if (received.position() == readOffset) {
+            socket.close();
+            return;
+        }
+        metrics.read(received.position() - readOffset);
+        if (!inBuffer.hasRemaining() && inBuffer.capacity() < worker.getInBuffers().getBufferSize()) {
+            // Busy enough to fill the small buffer, so read the rest of the message a full buffer at a time. Frames
+            // larger than the buffer are decoded in pieces, so if none is free the small one still does.
+            ByteBuffer larger = worker.getInBuffers().take();
+            if (larger != null) {
+                larger.put(inBuffer.flip());
+                worker.getSmallInBuffers().give(inBuffer);
+                inBuffer = larger;
+            }
+        }
+        inBuffer.flip();
+        process();
+    }
+
+    private void process() {
+        try {
+            while (!closeReceived && !closed && decoder.decode(inBuffer)) {
+                onFrame(decoder.getOpcode(), decoder.isFin(), decoder.getPayload());
+            }
+        } catch (WebSocketDecoder.ProtocolException ex) {
+            metrics.decodeError();
+            fail(ex.getStatus());
+        }
+        if (closed) {
+            return;
+        }
+        flush();
+        if (!closeReceived) {
+            inBuffer.compact();
+            if (inBuffer.position() == 0 && message == null) {
+                shrinkInBuffer();
+            }
+            readOffset = inBuffer.position();
+            worker.getRing().queueRead(socket, inBuffer);
+        }
+    }
+
+    /**
+     * Goes back to a small buffer once a message has been read, so idle sockets hold no more than a new connection.
+     */
+    private void shrinkInBuffer() {
+        if (inBuffer.capacity() > worker.getSmallInBuffers().getBufferSize()) {
+            ByteBuffer small = worker.getSmallInBuffers().take();
+            if (small != null) {
+                worker.getInBuffers().give(inBuffer);
+                inBuffer = small;
+            }
+        }
+    }
+
+    private void onFrame(int opcode, boolean fin, ByteBuffer payload) {
+        switch (opcode) {
+            case WebSocketDecoder.PING -> write(WebSocketDecoder.PONG, payload);
+            case WebSocketDecoder.PONG -> {
+                // Unsolicited, or an answer to ping(), and either way there is nothing to do
+            }
+            case WebSocketDecoder.CLOSE -> onCloseFrame(payload);
+            case WebSocketDecoder.CONTINUATION -> {
+                if (message == null) {
+                    throw new WebSocketDecoder.ProtocolException(WebSocketDecoder.PROTOCOL_ERROR,
+                        "Continuation without a message");
+                }
+                append(payload);
+                if (fin) {
+                    ByteBuffer complete = message.flip();
+                    message = null;
+                    deliver(complete, messageOpcode);
+                }
+            }
+            default -> {
+                if (message != null) {
+                    throw new WebSocketDecoder.ProtocolException(WebSocketDecoder.PROTOCOL_ERROR,
+                        "New message before the last one ended");
+                }
+                if (fin) {
+                    deliver(payload, opcode);
+                } else {
+                    messageOpcode = opcode;
+                    message = ByteBuffer.allocate(Math.min(Math.max(payload.remaining() * 2, 4096), maxMessageSize));
+                    append(payload);
+                }
+            }
+        }
+    }
+
+    private void append(ByteBuffer payload) {
+        int size = message.position() + payload.remaining();
+        if (size > maxMessageSize) {
+            throw new WebSocketDecoder.ProtocolException(WebSocketDecoder.MESSAGE_TOO_BIG, "Message too large");
+        }
+        if (message.remaining() < payload.remaining()) {
+            int capacity = Math.min(Math.max(message.capacity() * 2, size), maxMessageSize);
+            message = ByteBuffer.allocate(capacity).put(message.flip());
+        }
+        message.put(payload);
+    }
+
+    private void deliver(ByteBuffer payload, int opcode) {
+        metrics.request();
+        try {
+            listener.onMessage(webSocket, payload, opcode == WebSocketDecoder.TEXT);
+        } catch (RuntimeException ex) {
+            fail(WebSocket.INTERNAL_ERROR);
+        }
+    }
+
+    private void onCloseFrame(ByteBuffer payload) {
+        if (payload.remaining() == 1) {
+            throw new WebSocketDecoder.ProtocolException(WebSocketDecoder.PROTOCOL_ERROR, "Truncated close status");
+        }
+        int status = payload.remaining() >= 2 ? payload.getShort(payload.position()) & 0xffff : WebSocket.NO_STATUS;
+        closeReceived = true;
+        // Echo the status, as the close handshake expects
+        sendClose(status == WebSocket.NO_STATUS ? WebSocket.NORMAL_CLOSURE : status, null);
+        notifyClose(status);
+    }
+
+    private void fail(int status) {
+        closeReceived = true;
+        sendClose(status, null);
+    }
+
+    private void sendClose(int status, String reason) {
+        if (closeSent || closed) {
+            return;
+        }
+        byte[] reasonBytes = reason == null ? new byte[0] : reason.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(2 + Math.min(reasonBytes.length, MAX_CLOSE_REASON))
+            .putShort((short) status)
+            .put(reasonBytes, 0, Math.min(reasonBytes.length, MAX_CLOSE_REASON))
+            .flip();
+        write(WebSocketDecoder.CLOSE, payload);
+        closeSent = true;
+        open = false;
+        if (!closeReceived) {
+            // Not left waiting forever for a client that never answers
+            worker.getTimers().schedule(timeout, server.getOptions().getHeaderTimeout());
+        }
+    }
+
+    private void notifyClose(int status) {
+        if (!notified) {
+            notified = true;
+            try {
+                listener.onClose(webSocket, status);
+            } catch (RuntimeException ignored) {
+            }
+        }
+    }
+
+    private void write(int opcode, ByteBuffer payload) {
+        if (closeSent || closed) {
+            return;
+        }
+        int length = payload.remaining();
+        if (filling == null || filling.remaining() < WebSocketEncoder.headerLength(length)) {
+            queueFilling();
+            filling = worker.getOutBuffers().take();
+        }
+        WebSocketEncoder.encodeHeader(filling, opcode, true, length);
+        // Larger payloads run on over as many send buffers as they need
+        int offset = payload.position();
+        while (offset < payload.limit()) {
+            if (!filling.hasRemaining()) {
+                queueFilling();
+                filling = worker.getOutBuffers().take();
+            }
+            int chunk = Math.min(filling.remaining(), payload.limit() - offset);
+            filling.put(filling.position(), payload, offset, chunk);
+            filling.position(filling.position() + chunk);
+            offset += chunk;
+        }
+        checkQueued();
+    }
+
+    private void writeFrame(ByteBuffer frame) {
+        if (closeSent || closed) {
+            return;
+        }
+        queueFilling();
+        queue(frame);
+        checkQueued();
+    }
+
+    private void checkQueued() {
+        long queued = queuedBytes + (filling != null ? filling.position() : 0);
+        if (queued > maxQueuedBytes) {
+            // A client this far behind isn't going to read a close frame either
+            open = false;
+            socket.close();
+        }
+    }
+
+    private void queue(ByteBuffer buffer) {
+        queuedBytes += buffer.remaining();
+        pendingWrites.add(buffer);
+    }
+
+    private void queueFilling() {
+        if (filling != null && filling.position() > 0) {
+            queue(filling.flip());
+            filling = null;
+        }
+    }
+
+    private void flush() {
+        if (writing == null && !closed) {
+            writeNext();
+        }
+    }
+
+    private void writeNext() {
+        // Small messages sent while a write is in flight share a buffer, which only goes out once the socket drains
+        queueFilling();
+        writing = pendingWrites.poll();
+        if (writing != null) {
+            queuedBytes -= writing.remaining();
+            writeOffset = writing.position();
+            worker.getRing().queueWrite(socket, writing);
+        } else if (closeSent && closeReceived) {
+            socket.close();
+        }
+    }
+
+    private void onWrite(ByteBuffer buffer) {
+        metrics.wrote(buffer.position() - writeOffset);
+        if (buffer.hasRemaining()) {
+            writeOffset = buffer.position();
+            worker.getRing().queueWrite(socket, buffer);
+            return;
+        }
+        recycle(buffer);
+        writing = null;
+        writeNext();
+    }
+
+    private void onTimeout() {
+        socket.close();
+    }
+
+    private void onClose() {
+        closed = true;
+        open = false;
+        metrics.closed();
+        worker.getTimers().cancel(timeout);
+        notifyClose(WebSocket.ABNORMAL_CLOSURE);
+        if (filling != null) {
+            recycle(filling);
+            filling = null;
+        }
+        if (writing != null) {
+            recycle(writing);
+            writing = null;
+        }
+        pendingWrites.forEach(this::recycle);
+        pendingWrites.clear();
+        if (inBuffer.capacity() > worker.getSmallInBuffers().getBufferSize()) {
+            worker.getInBuffers().give(inBuffer);
+        } else {
+            worker.getSmallInBuffers().give(inBuffer);
+        }
+    }
+
+    private void recycle(ByteBuffer buffer) {
+        if (buffer.isReadOnly()) {
+            return; // a shared frame or a view of a response body
+        }
+        worker.getOutBuffers().give(buffer);
+    }
+}
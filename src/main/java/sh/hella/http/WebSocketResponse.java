@@ -0,0 +1,20 @@
+package sh.hella.http;
+
+import lombok.Getter;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The 101 answer to a WebSocket handshake, which tells the connection to hand itself over once it is sent.
+ */
+@Getter
+class WebSocketResponse extends Response {
+    private final WebSocket.Listener listener;
+
+    WebSocketResponse(String accept, WebSocket.Listener listener) {
+        super(101, Map.of("Upgrade", "websocket", "Connection", "Upgrade", "Sec-WebSocket-Accept", accept),
+            List.of(), null, null, null);
+        this.listener = listener;
+    }
+}
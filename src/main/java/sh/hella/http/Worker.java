@@ -0,0 +1,244 @@
+package sh.hella.http;
+
+import lombok.Getter;
+import sh.blake.niouring.IoUring;
+import sh.blake.niouring.IoUringSocket;
+import sh.hella.http.codec.ContentEncoder;
+import sh.hella.http.codec.ResponseEncoder;
+import sh.hella.http.log.AccessLogBuffer;
+import sh.hella.http.metrics.RingMetrics;
+import sh.hella.http.util.Affinity;
+import sh.hella.http.util.BufferArena;
+import sh.hella.http.util.ConcurrencyLimit;
+import sh.hella.http.util.TimerWheel;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+class Worker implements Runnable {
+    static final long TICK_MILLIS = 100;
+    private static final int WHEEL_SLOTS = 1024;
+    private static final int SLAB_SIZE = 4 * 1024 * 1024;
+    private static final double CONCURRENCY_BACKOFF = 0.9;
+    private static final ThreadLocal<Worker> CURRENT = new ThreadLocal<>();
+
+    @Getter
+    private final IoUring ring;
+    @Getter
+    private final TimerWheel timers = new TimerWheel(TICK_MILLIS, WHEEL_SLOTS, clock());
+    @Getter
+    private final BufferArena smallInBuffers;
+    @Getter
+    private final BufferArena inBuffers;
+    @Getter
+    private final BufferArena outBuffers;
+    @Getter
+    private final RingMetrics metrics = new RingMetrics();
+    @Getter
+    private final ContentEncoder contentEncoder;
+    @Getter
+    private final CompletableFuture<Void> started = new CompletableFuture<>();
+    @Getter
+    private final ConcurrencyLimit concurrencyLimit;
+    @Getter
+    private final AccessLogBuffer accessLog;
+    private final String cpus;
+    private final Queue<Runnable> handoffs = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer wakeupBuffer = ByteBuffer.allocateDirect(64);
+    private final ByteBuffer wakeupSignal = ByteBuffer.allocateDirect(1);
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private SocketChannel wakeupChannel;
+    private volatile Thread thread;
+    private volatile long advancedAt = clock();
+    private volatile boolean hasTimers = false;
+    private volatile boolean blocking = false;
+
+    Worker(Options options, ContentEncoder.Cache compressedVariants, String cpus) {
+        this(options, compressedVariants, cpus, new IoUring());
+    }
+
+    Worker(Options options, ContentEncoder.Cache compressedVariants, String cpus, IoUring ring) {
+        this.ring = ring;
+        this.cpus = cpus;
+        // Receive buffers are what idle connections hold on to, so they are what the memory limit applies to
+        var budget = new BufferArena.Budget(options.getMaxBufferMemory() / options.getThreads());
+        int smallSize = Math.min(options.getInitialRequestBufferSize(), options.getRequestBufferSize());
+        this.smallInBuffers = new BufferArena(smallSize, SLAB_SIZE, budget);
+        this.inBuffers = new BufferArena(options.getRequestBufferSize(), SLAB_SIZE, budget);
+        this.outBuffers = new BufferArena(options.getResponseBufferSize(), SLAB_SIZE);
+        this.contentEncoder = new ContentEncoder(
+            options.getCompressionLevel(), options.getCompressionMinSize(), compressedVariants);
+        int maxConcurrency = options.getMaxHandlerConcurrency();
+        this.concurrencyLimit = maxConcurrency > 0
+            ? new ConcurrencyLimit(Math.min(options.getMinHandlerConcurrency(), maxConcurrency), maxConcurrency,
+                options.getHandlerLatencyTarget() * 1_000_000L, CONCURRENCY_BACKOFF)
+            : null;
+        this.accessLog = options.getAccessLogPath() != null
+            ? new AccessLogBuffer(options.getAccessLogBufferRecords())
+            : null;
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        CURRENT.set(this);
+        try {
+            if (cpus != null) {
+                // Before any buffer is touched, so the first touch puts them on this CPU's NUMA node
+                Affinity.pin(cpus);
+            }
+            started.complete(null);
+        } catch (RuntimeException ex) {
+            started.completeExceptionally(ex);
+            return;
+        }
+        while (!Thread.currentThread().isInterrupted()) {
+            // Tasks handed off from here on either see the flag and wake the ring, or are seen here first
+            blocking = true;
+            if (handoffs.isEmpty()) {
+                ring.execute();
+            } else {
+                ring.executeNow();
+            }
+            blocking = false;
+            // Cleared before draining, so a task handed off from here on wakes the ring again if it has to
+            if (wakeupPending.get()) {
+                wakeupPending.set(false);
+            }
+            drainHandoffs();
+            advanceTimers();
+        }
+    }
+
+    /**
+     * Connects the ring to a loopback socket that {@link #tick()} can write to, so a ring blocked with nothing to do
+     * still wakes up to expire its timers. Called before the worker starts running.
+     */
+    void connectWakeup(ServerSocketChannel listener) throws IOException {
+        var address = (InetSocketAddress) listener.getLocalAddress();
+        var socket = new IoUringSocket(address.getAddress().getHostAddress(), address.getPort());
+        socket.onConnect(r -> r.queueRead(socket, wakeupBuffer.clear()));
+        socket.onRead(buffer -> {
+            if (buffer.position() > 0) {
+                ring.queueRead(socket, wakeupBuffer.clear());
+            }
+        });
+        ring.queueConnect(socket);
+        ring.execute();
+        wakeupChannel = listener.accept();
+        wakeupChannel.configureBlocking(false);
+    }
+
+    /**
+     * Called from the scheduler every tick. Busy rings advance their own timers, so this only wakes a ring that has
+     * timers pending but hasn't come round in a while.
+     */
+    void tick() {
+        if (hasTimers && clock() - advancedAt >= TICK_MILLIS) {
+            wakeup();
+        }
+    }
+
+    /**
+     * Writes a byte for the ring to wake up on, unless one has been written since the ring last woke. A burst of
+     * handoffs from handler threads then costs one write rather than one each.
+     */
+    private void wakeup() {
+        if (wakeupPending.get() || !wakeupPending.compareAndSet(false, true)) {
+            return;
+        }
+        // Only contended if the ring wakes and clears the flag while the last byte is still being written
+        synchronized (wakeupSignal) {
+            try {
+                // A full socket buffer just means a wakeup is already on its way
+                wakeupChannel.write(wakeupSignal.clear());
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void advanceTimers() {
+        long now = clock();
+        timers.advance(now);
+        if (now - advancedAt >= TICK_MILLIS) {
+            advancedAt = now;
+        }
+        boolean pending = timers.size() > 0;
+        if (pending != hasTimers) {
+            hasTimers = pending;
+        }
+    }
+
+    private static long clock() {
+        return System.nanoTime() / 1_000_000;
+    }
+
+    /**
+     * The worker whose ring the calling thread runs, or null if it isn't a ring thread.
+     */
+    static Worker current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Takes a slot for a dispatched handler call, or returns false if the ring is at its concurrency limit and the
+     * request should be turned away. Always succeeds when there is no limit.
+     */
+    boolean admit() {
+        return concurrencyLimit == null || concurrencyLimit.tryAcquire();
+    }
+
+    /**
+     * Gives back the slot of a handler call started at the given time, which is what the limit adapts to.
+     */
+    void release(long startNanos) {
+        if (concurrencyLimit != null) {
+            concurrencyLimit.release(System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Records a response in the access log, if there is one. Called on the ring thread as the response is encoded.
+     */
+    void log(Request request, Response response, long startNanos) {
+        if (accessLog != null && !accessLog.append(request, response.getStatus(),
+            response.getBodyPublisher() != null ? -1 : ResponseEncoder.bodyLength(response), startNanos)) {
+            metrics.accessLogDrop();
+        }
+    }
+
+    boolean isRingThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Called from any thread to run a task on the ring thread. Wakes the ring if it is blocked, which it can't be
+     * when the task comes from one of its own completions.
+     */
+    void handoff(Runnable task) {
+        handoffs.add(task);
+        if (blocking && !isRingThread()) {
+            wakeup();
+        }
+    }
+
+    /**
+     * Runs the tasks handed back to the ring, returning how many there were.
+     */
+    int drainHandoffs() {
+        int drained = 0;
+        Runnable task;
+        while ((task = handoffs.poll()) != null) {
+            drained++;
+            task.run();
+        }
+        return drained;
+    }
+}
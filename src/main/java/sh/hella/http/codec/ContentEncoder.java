@@ -0,0 +1,369 @@
+package sh.hella.http.codec;
+
+import sh.hella.http.Request;
+import sh.hella.http.Response;
+import sh.hella.http.StaticResponse;
+import sh.hella.http.util.LruCache;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses response bodies with gzip or deflate. Each ring has its own encoder, and with it its own deflaters,
+ * which are reset rather than recreated between responses. Only reasonably large bodies of types that compress well
+ * are touched, and responses that set their own Content-Encoding or Content-Length are left alone.
+ * <p>
+ * Prebuilt responses and bodies in a shared read-only buffer, such as mapped files, are assumed to be sent again and
+ * again, so their compressed variants are kept in a {@link Cache} shared between rings.
+ */
+public class ContentEncoder {
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final int GZIP_TRAILER_SIZE = 8;
+    private static final String CONTENT_TYPE = "Content-Type";
+    private static final String[] SKIPPED_HEADERS = {"Content-Encoding", "Content-Length", "Content-Range"};
+    private static final byte[] GZIP = "gzip".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] X_GZIP = "x-gzip".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] DEFLATE = "deflate".getBytes(StandardCharsets.US_ASCII);
+
+    private final int minSize;
+    private final Cache cache;
+    private final Deflater gzip;
+    private final Deflater deflate;
+    private final CRC32 crc = new CRC32();
+    private byte[] output = new byte[64 * 1024];
+
+    public ContentEncoder(int level, int minSize, Cache cache) {
+        this.minSize = minSize;
+        this.cache = cache;
+        this.gzip = new Deflater(level, true);
+        this.deflate = new Deflater(level);
+    }
+
+    /**
+     * Picks the coding to use from an Accept-Encoding header, preferring gzip when both are equally acceptable.
+     */
+    public static Coding negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return Coding.IDENTITY;
+        }
+        return negotiate(ByteBuffer.wrap(acceptEncoding.getBytes(StandardCharsets.ISO_8859_1)));
+    }
+
+    /**
+     * Picks the coding to use from the remaining bytes of an Accept-Encoding header, reading them where they are.
+     */
+    public static Coding negotiate(ByteBuffer acceptEncoding) {
+        if (acceptEncoding == null) {
+            return Coding.IDENTITY;
+        }
+        // Qualities in thousandths, the most precision a qvalue has (RFC 9110 section 12.4.2)
+        int gzip = -1, deflate = -1, any = -1;
+        int i = acceptEncoding.position(), end = acceptEncoding.limit();
+        while (i < end) {
+            while (i < end && RequestDecoder.isWhitespace(acceptEncoding.get(i))) {
+                i++;
+            }
+            int nameStart = i;
+            while (i < end && !isDelimiter(acceptEncoding.get(i))) {
+                i++;
+            }
+            int nameEnd = i;
+            int quality = 1000;
+            while (i < end && acceptEncoding.get(i) != ',') {
+                if (acceptEncoding.get(i++) != ';') {
+                    continue;
+                }
+                while (i < end && RequestDecoder.isWhitespace(acceptEncoding.get(i))) {
+                    i++;
+                }
+                if (i + 1 < end && (acceptEncoding.get(i) | 0x20) == 'q' && acceptEncoding.get(i + 1) == '=') {
+                    quality = quality(acceptEncoding, i + 2, end);
+                }
+            }
+            i++;
+            if (RequestDecoder.equalsIgnoreCase(acceptEncoding, nameStart, nameEnd, GZIP)
+                || RequestDecoder.equalsIgnoreCase(acceptEncoding, nameStart, nameEnd, X_GZIP)) {
+                gzip = quality;
+            } else if (RequestDecoder.equalsIgnoreCase(acceptEncoding, nameStart, nameEnd, DEFLATE)) {
+                deflate = quality;
+            } else if (nameEnd - nameStart == 1 && acceptEncoding.get(nameStart) == '*') {
+                any = quality;
+            }
+        }
+        gzip = gzip < 0 ? any : gzip;
+        deflate = deflate < 0 ? any : deflate;
+        if (gzip > 0 && gzip >= deflate) {
+            return Coding.GZIP;
+        }
+        return deflate > 0 ? Coding.DEFLATE : Coding.IDENTITY;
+    }
+
+    private static boolean isDelimiter(byte value) {
+        return value == ',' || value == ';' || RequestDecoder.isWhitespace(value);
+    }
+
+    /**
+     * Reads a qvalue, "0" or "1" followed by up to three decimals. Anything else counts as not acceptable.
+     */
+    private static int quality(ByteBuffer buffer, int i, int end) {
+        int whole = i < end ? buffer.get(i++) - '0' : -1;
+        if (whole != 0 && whole != 1) {
+            return 0;
+        }
+        int quality = whole * 1000;
+        if (i < end && buffer.get(i) == '.') {
+            i++;
+            for (int scale = 100; scale > 0 && i < end; scale /= 10, i++) {
+                int digit = buffer.get(i) - '0';
+                if (digit < 0 || digit > 9) {
+                    break;
+                }
+                quality += digit * scale;
+            }
+        }
+        return Math.min(quality, 1000);
+    }
+
+    /**
+     * Returns the response compressed with a coding the request accepts, or the response itself if it shouldn't be.
+     * The request's Accept-Encoding header is only looked at once the response is known to be worth compressing.
+     */
+    public Response encode(Response response, Request request) {
+        if (!isCompressible(response)) {
+            return response;
+        }
+        Coding coding = negotiate(request.getHeaderBytes("Accept-Encoding"));
+        return coding == Coding.IDENTITY ? response : variant(response, coding);
+    }
+
+    /**
+     * Returns the response compressed with the given coding, or the response itself if it shouldn't be.
+     */
+    public Response encode(Response response, Coding coding) {
+        if (coding == Coding.IDENTITY || !isCompressible(response)) {
+            return response;
+        }
+        return variant(response, coding);
+    }
+
+    /**
+     * Compresses the response, or for a shared one, takes its compressed variant from the cache. A prebuilt response
+     * is sent as it is, so its variant is too. A shared body may be sent in a new response with different headers
+     * each time, so only its compressed body is reused, under the headers of the response at hand.
+     */
+    private Response variant(Response response, Coding coding) {
+        Object source = response instanceof StaticResponse ? response : sharedBody(response);
+        if (source == null) {
+            return compress(response, coding);
+        }
+        Key key = new Key(source, coding);
+        Response compressed = cache.variants.get(key);
+        if (compressed == null) {
+            if (bodyLength(response) > cache.variants.getMaxEntryWeight()) {
+                // Would never stay cached, and recompressing it on every request costs more than it saves
+                return response;
+            }
+            int length = compressBody(response, coding);
+            if (source == response) {
+                compressed = Response.prebuilt(headers(response, coding).body(Arrays.copyOf(output, length)).build());
+            } else {
+                ByteBuffer body = ByteBuffer.allocateDirect(length).put(output, 0, length).flip().asReadOnlyBuffer();
+                compressed = headers(response, coding).bodyBuffer(body).build();
+            }
+            cache.variants.put(key, compressed);
+            return compressed;
+        }
+        if (source == response) {
+            return compressed;
+        }
+        return headers(response, coding).bodyBuffer(compressed.getBodyBuffer()).build();
+    }
+
+    private static ByteBuffer sharedBody(Response response) {
+        ByteBuffer body = response.getBodyBuffer();
+        return body != null && body.isReadOnly() ? body : null;
+    }
+
+    private boolean isCompressible(Response response) {
+        int status = response.getStatus();
+        if (status < 200 || status >= 300 || status == 204 || status == 206) {
+            return false;
+        }
+        if (response.getBodyPublisher() != null || bodyLength(response) < minSize) {
+            return false;
+        }
+        String contentType = null;
+        for (Map.Entry<String, String> entry : response.getHeaders().entrySet()) {
+            for (String skipped : SKIPPED_HEADERS) {
+                if (skipped.equalsIgnoreCase(entry.getKey())) {
+                    return false;
+                }
+            }
+            if (CONTENT_TYPE.equalsIgnoreCase(entry.getKey())) {
+                contentType = entry.getValue();
+            }
+        }
+        return contentType != null && isCompressibleType(contentType);
+    }
+
+    static boolean isCompressibleType(String contentType) {
+        // Images, video, archives and fonts other than the old uncompressed formats are compressed already
+        String type = contentType.toLowerCase();
+        return type.startsWith("text/")
+            || type.contains("json")
+            || type.contains("javascript")
+            || type.contains("xml")
+            || type.startsWith("application/wasm")
+            || type.startsWith("font/ttf")
+            || type.startsWith("font/otf")
+            || type.startsWith("image/x-icon");
+    }
+
+    private static ByteBuffer body(Response response) {
+        if (response instanceof StaticResponse) {
+            return ((StaticResponse) response).getEncodedBody();
+        } else if (response.getBody() != null) {
+            return ByteBuffer.wrap(response.getBody());
+        }
+        return response.getBodyBuffer() != null ? response.getBodyBuffer().duplicate() : ByteBuffer.allocate(0);
+    }
+
+    private static int bodyLength(Response response) {
+        return response instanceof StaticResponse
+            ? ((StaticResponse) response).getBodyLength()
+            : ResponseEncoder.bodyLength(response);
+    }
+
+    private Response compress(Response response, Coding coding) {
+        int length = compressBody(response, coding);
+        return headers(response, coding).body(Arrays.copyOf(output, length)).build();
+    }
+
+    /**
+     * Compresses the body into {@link #output}, returning how much of it the compressed body takes up.
+     */
+    private int compressBody(Response response, Coding coding) {
+        ByteBuffer body = body(response);
+        int bodyLength = body.remaining();
+        int length;
+        if (coding == Coding.GZIP) {
+            crc.reset();
+            crc.update(body.duplicate());
+            System.arraycopy(GZIP_HEADER, 0, output, 0, GZIP_HEADER.length);
+            length = deflate(gzip, body, GZIP_HEADER.length);
+            ensureCapacity(length + GZIP_TRAILER_SIZE);
+            putIntLittleEndian(length, (int) crc.getValue());
+            putIntLittleEndian(length + 4, bodyLength);
+            length += GZIP_TRAILER_SIZE;
+        } else {
+            length = deflate(deflate, body, 0);
+        }
+        return length;
+    }
+
+    /**
+     * Starts a response with the original's status, cookies and headers, marked as compressed with the coding.
+     */
+    private static Response.ResponseBuilder headers(Response response, Coding coding) {
+        var builder = Response.builder().status(response.getStatus());
+        String vary = null;
+        for (Map.Entry<String, String> entry : response.getHeaders().entrySet()) {
+            if ("ETag".equalsIgnoreCase(entry.getKey())) {
+                // The compressed body is a different representation, so it can only weakly match the original
+                String etag = entry.getValue();
+                builder.header(entry.getKey(), etag.startsWith("W/") ? etag : "W/" + etag);
+            } else if ("Vary".equalsIgnoreCase(entry.getKey())) {
+                vary = entry.getValue();
+            } else {
+                builder.header(entry.getKey(), entry.getValue());
+            }
+        }
+        return builder
+            .cookies(response.getCookies())
+            .header("Content-Encoding", coding.token)
+            .header("Vary", vary == null ? "Accept-Encoding" : vary + ", Accept-Encoding");
+    }
+
+    private int deflate(Deflater deflater, ByteBuffer input, int offset) {
+        deflater.reset();
+        deflater.setInput(input);
+        deflater.finish();
+        int length = offset;
+        while (!deflater.finished()) {
+            ensureCapacity(length + 1);
+            length += deflater.deflate(output, length, output.length - length);
+        }
+        return length;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (output.length < capacity) {
+            output = Arrays.copyOf(output, Math.max(capacity, output.length * 2));
+        }
+    }
+
+    private void putIntLittleEndian(int offset, int value) {
+        output[offset] = (byte) value;
+        output[offset + 1] = (byte) (value >>> 8);
+        output[offset + 2] = (byte) (value >>> 16);
+        output[offset + 3] = (byte) (value >>> 24);
+    }
+
+    public enum Coding {
+        IDENTITY("identity"),
+        GZIP("gzip"),
+        DEFLATE("deflate");
+
+        private final String token;
+
+        Coding(String token) {
+            this.token = token;
+        }
+    }
+
+    /**
+     * A least recently used set of compressed variants, bounded by the size of their bodies. Keyed by the identity
+     * of the prebuilt response or shared body they were compressed from, so a replaced file or rebuilt response simply
+     * ages out.
+     */
+    public static class Cache {
+        private final LruCache<Key, Response> variants;
+
+        public Cache(long maxBytes) {
+            this.variants = new LruCache<>(maxBytes, ContentEncoder::bodyLength);
+        }
+
+        public int size() {
+            return variants.size();
+        }
+
+        public long getBytes() {
+            return variants.getWeight();
+        }
+    }
+
+    private static final class Key {
+        private final Object source;
+        private final Coding coding;
+
+        Key(Object source, Coding coding) {
+            this.source = source;
+            this.coding = coding;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && ((Key) other).source == source && ((Key) other).coding == coding;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(source), coding);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package sh.hella.http.codec;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Decodes HPACK header blocks. Names and values are written one after the other into an output buffer and handed
+ * out as offsets into it, in the same way the HTTP/1.1 decoder describes a request, so no strings are created here.
+ * Any malformed block throws IllegalStateException, after which the decoder's state is unusable and the connection
+ * has to be dropped.
+ */
+public class HpackDecoder {
+    private final ArrayDeque<byte[][]> dynamicTable = new ArrayDeque<>();
+    private int maxTableSize;
+    private int tableSizeLimit;
+    private int tableSize;
+
+    /**
+     * @param maxTableSize the SETTINGS_HEADER_TABLE_SIZE advertised to the peer
+     */
+    public HpackDecoder(int maxTableSize) {
+        this.maxTableSize = maxTableSize;
+        this.tableSizeLimit = maxTableSize;
+    }
+
+    public int getTableSize() {
+        return tableSize;
+    }
+
+    /**
+     * Decodes a complete header block, appending each field to {@code out}. Overflowing {@code out} throws
+     * BufferOverflowException.
+     */
+    public void decode(ByteBuffer in, ByteBuffer out, Listener listener) {
+        boolean first = true;
+        while (in.hasRemaining()) {
+            int b = in.get(in.position()) & 0xff;
+            if ((b & 0x80) != 0) {
+                int index = Hpack.getInteger(in, 7);
+                if (index == 0) {
+                    throw new IllegalStateException("Invalid HPACK index 0");
+                }
+                emit(out, name(index), value(index), listener);
+            } else if ((b & 0xe0) == 0x20) {
+                if (!first) {
+                    throw new IllegalStateException("Table size update after the first field");
+                }
+                int size = Hpack.getInteger(in, 5);
+                if (size > tableSizeLimit) {
+                    throw new IllegalStateException("Table size update above the advertised limit");
+                }
+                maxTableSize = size;
+                evict(0);
+                continue;
+            } else {
+                // Literal with incremental indexing (01), without indexing (0000) or never indexed (0001)
+                boolean indexed = (b & 0xc0) == 0x40;
+                int index = Hpack.getInteger(in, indexed ? 6 : 4);
+                int nameStart = out.position();
+                if (index == 0) {
+                    getString(in, out);
+                } else {
+                    out.put(name(index));
+                }
+                int nameEnd = out.position();
+                getString(in, out);
+                int valueEnd = out.position();
+                listener.header(out, nameStart, nameEnd, nameEnd, valueEnd);
+                if (indexed) {
+                    add(copy(out, nameStart, nameEnd), copy(out, nameEnd, valueEnd));
+                }
+            }
+            first = false;
+        }
+    }
+
+    private void emit(ByteBuffer out, byte[] name, byte[] value, Listener listener) {
+        int nameStart = out.position();
+        out.put(name);
+        int nameEnd = out.position();
+        out.put(value);
+        listener.header(out, nameStart, nameEnd, nameEnd, out.position());
+    }
+
+    private static void getString(ByteBuffer in, ByteBuffer out) {
+        boolean huffman = (in.get(in.position()) & 0x80) != 0;
+        int length = Hpack.getInteger(in, 7);
+        if (length > in.remaining()) {
+            throw new IllegalStateException("HPACK string longer than the header block");
+        }
+        if (huffman) {
+            Hpack.getHuffman(in, length, out);
+        } else {
+            out.put(out.position(), in, in.position(), length);
+            out.position(out.position() + length);
+            in.position(in.position() + length);
+        }
+    }
+
+    private static byte[] copy(ByteBuffer out, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        out.get(start, bytes);
+        return bytes;
+    }
+
+    private byte[] name(int index) {
+        return entry(index, 0);
+    }
+
+    private byte[] value(int index) {
+        return entry(index, 1);
+    }
+
+    private byte[] entry(int index, int part) {
+        if (index <= Hpack.STATIC_TABLE_SIZE) {
+            return part == 0 ? Hpack.STATIC_NAMES[index] : Hpack.STATIC_VALUES[index];
+        }
+        int dynamicIndex = index - Hpack.STATIC_TABLE_SIZE - 1;
+        if (dynamicIndex >= dynamicTable.size()) {
+            throw new IllegalStateException("Invalid HPACK index " + index);
+        }
+        // Newest first, and small enough that walking it beats keeping a ring buffer
+        var iterator = dynamicTable.iterator();
+        for (int i = 0; i < dynamicIndex; i++) {
+            iterator.next();
+        }
+        return iterator.next()[part];
+    }
+
+    private void add(byte[] name, byte[] value) {
+        int size = name.length + value.length + Hpack.ENTRY_OVERHEAD;
+        evict(size);
+        if (size <= maxTableSize) {
+            dynamicTable.addFirst(new byte[][] {name, value});
+            tableSize += size;
+        }
+    }
+
+    private void evict(int room) {
+        while (tableSize + room > maxTableSize && !dynamicTable.isEmpty()) {
+            byte[][] entry = dynamicTable.removeLast();
+            tableSize -= entry[0].length + entry[1].length + Hpack.ENTRY_OVERHEAD;
+        }
+    }
+
+    @FunctionalInterface
+    public interface Listener {
+        void header(ByteBuffer buffer, int nameStart, int nameEnd, int valueStart, int valueEnd);
+    }
+}
@@ -0,0 +1,138 @@
+package sh.hella.http.codec;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Encodes HPACK header blocks. Fields are sent indexed when the static or dynamic table has them, and otherwise
+ * added to the dynamic table, apart from ones that change with every response or shouldn't be kept around. Strings
+ * are Huffman coded whenever that is shorter.
+ */
+public class HpackEncoder {
+    // Only ever the names in the static table, so it can't grow with whatever names handlers make up. Filled from the
+    // end, so each name maps to its first entry
+    private static final Map<String, Integer> STATIC_NAME_INDEXES = new HashMap<>();
+
+    static {
+        for (int i = Hpack.STATIC_TABLE_SIZE; i > 0; i--) {
+            STATIC_NAME_INDEXES.put(new String(Hpack.STATIC_NAMES[i], StandardCharsets.US_ASCII), i);
+        }
+    }
+
+    private final ArrayDeque<byte[][]> dynamicTable = new ArrayDeque<>();
+    private int maxTableSize;
+    private int tableSize;
+    private int pendingSizeUpdate = -1;
+
+    public HpackEncoder(int maxTableSize) {
+        this.maxTableSize = maxTableSize;
+    }
+
+    /**
+     * Applies the peer's SETTINGS_HEADER_TABLE_SIZE, announced at the start of the next header block.
+     */
+    public void setMaxTableSize(int size) {
+        if (size != maxTableSize) {
+            maxTableSize = size;
+            pendingSizeUpdate = pendingSizeUpdate < 0 ? size : Math.min(pendingSizeUpdate, size);
+            evict(0);
+        }
+    }
+
+    /**
+     * Writes one field. The first field of every block has to go through here so a pending table size update is
+     * sent ahead of it.
+     */
+    public void header(ByteBuffer out, String name, String value) {
+        if (pendingSizeUpdate >= 0) {
+            Hpack.putInteger(out, 0x20, 5, pendingSizeUpdate);
+            if (pendingSizeUpdate != maxTableSize) {
+                Hpack.putInteger(out, 0x20, 5, maxTableSize);
+            }
+            pendingSizeUpdate = -1;
+        }
+        String lowerName = name.toLowerCase(Locale.ROOT);
+        Integer staticIndex = STATIC_NAME_INDEXES.get(lowerName);
+        int nameIndex = staticIndex != null ? staticIndex : 0;
+        byte[] nameBytes = nameIndex > 0 ? Hpack.STATIC_NAMES[nameIndex] : lowerName.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+
+        for (int i = nameIndex; i > 0 && i <= Hpack.STATIC_TABLE_SIZE; i++) {
+            if (!Arrays.equals(Hpack.STATIC_NAMES[i], nameBytes)) {
+                break;
+            } else if (Arrays.equals(Hpack.STATIC_VALUES[i], valueBytes)) {
+                Hpack.putInteger(out, 0x80, 7, i);
+                return;
+            }
+        }
+        int index = Hpack.STATIC_TABLE_SIZE + 1;
+        for (byte[][] entry : dynamicTable) {
+            if (Arrays.equals(entry[0], nameBytes)) {
+                if (Arrays.equals(entry[1], valueBytes)) {
+                    Hpack.putInteger(out, 0x80, 7, index);
+                    return;
+                }
+                if (nameIndex == 0) {
+                    nameIndex = index;
+                }
+            }
+            index++;
+        }
+
+        if (isSensitive(nameBytes)) {
+            Hpack.putInteger(out, 0x10, 4, nameIndex);
+        } else if (isVolatile(nameBytes)) {
+            Hpack.putInteger(out, 0x00, 4, nameIndex);
+        } else {
+            Hpack.putInteger(out, 0x40, 6, nameIndex);
+            add(nameBytes, valueBytes);
+        }
+        if (nameIndex == 0) {
+            putString(out, nameBytes);
+        }
+        putString(out, valueBytes);
+    }
+
+    private static boolean isSensitive(byte[] name) {
+        return Arrays.equals(name, Hpack.STATIC_NAMES[55]) // set-cookie
+            || Arrays.equals(name, Hpack.STATIC_NAMES[23]); // authorization
+    }
+
+    private static boolean isVolatile(byte[] name) {
+        return Arrays.equals(name, Hpack.STATIC_NAMES[28]) // content-length
+            || Arrays.equals(name, Hpack.STATIC_NAMES[34]) // etag
+            || Arrays.equals(name, Hpack.STATIC_NAMES[30]); // content-range
+    }
+
+    private static void putString(ByteBuffer out, byte[] value) {
+        int huffmanLength = Hpack.huffmanLength(value);
+        if (huffmanLength < value.length) {
+            Hpack.putInteger(out, 0x80, 7, huffmanLength);
+            Hpack.putHuffman(out, value);
+        } else {
+            Hpack.putInteger(out, 0x00, 7, value.length);
+            out.put(value);
+        }
+    }
+
+    private void add(byte[] name, byte[] value) {
+        int size = name.length + value.length + Hpack.ENTRY_OVERHEAD;
+        evict(size);
+        if (size <= maxTableSize) {
+            dynamicTable.addFirst(new byte[][] {name, value});
+            tableSize += size;
+        }
+    }
+
+    private void evict(int room) {
+        while (tableSize + room > maxTableSize && !dynamicTable.isEmpty()) {
+            byte[][] entry = dynamicTable.removeLast();
+            tableSize -= entry[0].length + entry[1].length + Hpack.ENTRY_OVERHEAD;
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package sh.hella.http.codec;
+
+import sh.hella.http.Part;
+import sh.hella.http.util.ByteScanner;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Decodes a multipart/form-data body as it streams in. Delimiters are found with Boyer-Moore-Horspool straight over
+ * the buffers handed in, and part bodies are passed on as views of them. The only bytes copied are part headers and
+ * the start of a delimiter that straddles two buffers.
+ */
+public class MultipartDecoder {
+    private static final int MAX_HEADER_SIZE = 16 * 1024;
+
+    private final Listener listener;
+    private final byte[] delimiter;
+    private final int[] shift = new int[256];
+    private final byte[] held;
+    private int heldLength;
+    private byte[] head = new byte[256];
+    private int headLength;
+    private int lineStart;
+    private Part part;
+    private State state = State.PREAMBLE;
+
+    public MultipartDecoder(String boundary, Listener listener) {
+        this.listener = listener;
+        delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.US_ASCII);
+        Arrays.fill(shift, delimiter.length);
+        for (int i = 0; i < delimiter.length - 1; i++) {
+            shift[delimiter[i] & 0xFF] = delimiter.length - 1 - i;
+        }
+        held = new byte[delimiter.length];
+        // The first delimiter may open the body without a line break in front of it
+        held[0] = '\r';
+        held[1] = '\n';
+        heldLength = 2;
+    }
+
+    /**
+     * Returns the boundary of a multipart Content-Type, or null if it isn't one.
+     */
+    public static String boundary(String contentType) {
+        if (contentType == null || !contentType.regionMatches(true, 0, "multipart/", 0, 10)) {
+            return null;
+        }
+        String boundary = parameter(contentType, "boundary");
+        return boundary == null || boundary.isEmpty() ? null : boundary;
+    }
+
+    /**
+     * Returns a parameter of a header value such as {@code form-data; name="file"; filename="a.txt"}, unquoted, or
+     * null if it isn't there. Names are compared case-insensitively.
+     */
+    public static String parameter(String value, String name) {
+        if (value == null) {
+            return null;
+        }
+        int i = value.indexOf(';');
+        while (i >= 0) {
+            int eq = value.indexOf('=', i);
+            if (eq < 0) {
+                return null;
+            }
+            String key = value.substring(i + 1, eq).trim();
+            String result;
+            i = eq + 1;
+            while (i < value.length() && value.charAt(i) == ' ') {
+                i++;
+            }
+            if (i < value.length() && value.charAt(i) == '"') {
+                StringBuilder quoted = new StringBuilder();
+                for (i++; i < value.length() && value.charAt(i) != '"'; i++) {
+                    if (value.charAt(i) == '\\' && i + 1 < value.length()) {
+                        i++;
+                    }
+                    quoted.append(value.charAt(i));
+                }
+                result = quoted.toString();
+                i = value.indexOf(';', i);
+            } else {
+                int semicolon = value.indexOf(';', i);
+                result = value.substring(i, semicolon < 0 ? value.length() : semicolon).trim();
+                i = semicolon;
+            }
+            if (key.equalsIgnoreCase(name)) {
+                return result;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Decodes everything between the buffer's position and limit, and leaves it at the limit. Part bodies are handed
+     * to the listener as views of the buffer, only good until the listener returns.
+     */
+    public void decode(ByteBuffer buffer) {
+        int i = buffer.position(), end = buffer.limit();
+        while (i < end) {
+            switch (state) {
+                case PREAMBLE, BODY -> i = scan(buffer, i, end);
+                case DELIMITER_END -> {
+                    // Either the closing "--" or transport padding and a line break
+                    byte b = buffer.get(i++);
+                    if (b == '-') {
+                        state = State.CLOSE;
+                    } else if (b == '\n') {
+                        headLength = lineStart = 0;
+                        state = State.HEADERS;
+                    } else if (b != '\r' && b != ' ' && b != '\t') {
+                        throw new IllegalStateException("Malformed multipart delimiter");
+                    }
+                }
+                case CLOSE -> {
+                    if (buffer.get(i++) != '-') {
+                        throw new IllegalStateException("Malformed multipart delimiter");
+                    }
+                    state = State.EPILOGUE;
+                }
+                case HEADERS -> i = readHeaders(buffer, i, end);
+                case EPILOGUE -> i = end;
+            }
+        }
+        buffer.position(end);
+    }
+
+    /**
+     * Checks that the body ended with its closing delimiter.
+     */
+    public void finish() {
+        if (state != State.EPILOGUE) {
+            throw new IllegalStateException("Multipart body ended before its closing delimiter");
+        }
+    }
+
+    private int scan(ByteBuffer buffer, int from, int end) {
+        if (heldLength > 0) {
+            // The last buffer ended in what may be the start of a delimiter, see whether this one finishes it
+            int needed = Math.min(delimiter.length - heldLength, end - from);
+            int matched = 0;
+            while (matched < needed && buffer.get(from + matched) == delimiter[heldLength + matched]) {
+                matched++;
+            }
+            if (matched < needed) {
+                // Boundaries can't hold a CR, so no other delimiter can start among the held bytes
+                data(ByteBuffer.wrap(held, 0, heldLength).slice());
+                heldLength = 0;
+                return from;
+            }
+            buffer.get(from, held, heldLength, matched);
+            heldLength += matched;
+            if (heldLength < delimiter.length) {
+                return end;
+            }
+            heldLength = 0;
+            delimited();
+            return from + matched;
+        }
+        int found = indexOf(buffer, from, end);
+        if (found >= 0) {
+            data(buffer.slice(from, found - from));
+            delimited();
+            return found + delimiter.length;
+        }
+        int tail = partialDelimiter(buffer, Math.max(from, end - delimiter.length + 1), end);
+        data(buffer.slice(from, tail - from));
+        buffer.get(tail, held, 0, end - tail);
+        heldLength = end - tail;
+        return end;
+    }
+
+    /**
+     * Boyer-Moore-Horspool: the window skips ahead by how far its last byte is from the end of the delimiter.
+     */
+    private int indexOf(ByteBuffer buffer, int from, int to) {
+        int last = delimiter.length - 1;
+        for (int i = from + last; i < to; i += shift[buffer.get(i) & 0xFF]) {
+            int j = last;
+            while (j >= 0 && buffer.get(i - last + j) == delimiter[j]) {
+                j--;
+            }
+            if (j < 0) {
+                return i - last;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns where a delimiter cut short by the end of the buffer starts, or the end if there is none.
+     */
+    private int partialDelimiter(ByteBuffer buffer, int from, int end) {
+        for (int i = ByteScanner.indexOf(buffer, from, end, (byte) '\r'); i >= 0;
+             i = ByteScanner.indexOf(buffer, i + 1, end, (byte) '\r')) {
+            int j = 1;
+            while (i + j < end && buffer.get(i + j) == delimiter[j]) {
+                j++;
+            }
+            if (i + j == end) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private void data(ByteBuffer data) {
+        if (state == State.BODY && data.hasRemaining()) {
+            listener.onData(part, data);
+        }
+    }
+
+    private void delimited() {
+        if (state == State.BODY) {
+            listener.onPartEnd(part);
+            part = null;
+        }
+        state = State.DELIMITER_END;
+    }
+
+    private int readHeaders(ByteBuffer buffer, int from, int end) {
+        int newline = ByteScanner.indexOf(buffer, from, end, (byte) '\n');
+        int to = newline < 0 ? end : newline + 1;
+        if (headLength + to - from > head.length) {
+            if (headLength + to - from > MAX_HEADER_SIZE) {
+                throw new IllegalStateException("Multipart headers larger than " + MAX_HEADER_SIZE + " bytes");
+            }
+            head = Arrays.copyOf(head, Math.min(Math.max(head.length * 2, headLength + to - from), MAX_HEADER_SIZE));
+        }
+        buffer.get(from, head, headLength, to - from);
+        headLength += to - from;
+        if (newline >= 0) {
+            int line = headLength - lineStart;
+            if (line == 1 || line == 2 && head[lineStart] == '\r') {
+                part = new Part(headers());
+                state = State.BODY;
+                listener.onPart(part);
+            }
+            lineStart = headLength;
+        }
+        return to;
+    }
+
+    private Map<String, String> headers() {
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        int start = 0;
+        for (int i = 0; i < headLength; i++) {
+            if (head[i] == '\n') {
+                String line = new String(head, start, i - start, StandardCharsets.UTF_8);
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.put(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+                }
+                start = i + 1;
+            }
+        }
+        return headers;
+    }
+
+    /**
+     * Receives parts as they are decoded.
+     */
+    public interface Listener {
+        /**
+         * Called once a part's headers have arrived, before any of its body.
+         */
+        default void onPart(Part part) {
+        }
+
+        /**
+         * Called with the next piece of a part's body, a view that is only good until this returns.
+         */
+        void onData(Part part, ByteBuffer data);
+
+        default void onPartEnd(Part part) {
+        }
+    }
+
+    private enum State {
+        PREAMBLE, DELIMITER_END, CLOSE, HEADERS, BODY, EPILOGUE
+    }
+}
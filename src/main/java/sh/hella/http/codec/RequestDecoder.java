@@ -1,259 +1,398 @@
 package sh.hella.http.codec;
 
 import lombok.Getter;
-import lombok.RequiredArgsConstructor;
 import sh.hella.http.Request;
+import sh.hella.http.util.ByteScanner;
 
-import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.nio.charset.StandardCharsets;
 
-@RequiredArgsConstructor
 public class RequestDecoder {
-    private static final int AVERAGE_PATH_LENGTH_HINT = 256;
-    private static final String CONTENT_LENGTH = "Content-Length";
-    private static final String TRANSFER_ENCODING = "Transfer-Encoding";
-    private static final String CHUNKED = "chunked";
+    private static final byte[] CONTENT_LENGTH = "content-length".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRANSFER_ENCODING = "transfer-encoding".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CHUNKED = "chunked".getBytes(StandardCharsets.US_ASCII);
+    private static final String HTTP_1_0 = "HTTP/1.0";
+    private static final String HTTP_1_1 = "HTTP/1.1";
+    private static final String HTTP_2_0 = "HTTP/2.0";
 
-    private Request.RequestBuilder requestBuilder = Request.builder();
-    private int contentLength = 0;
-    private Request request;
+    private final Request request = new Request();
+    private final int maxRequestSize;
+    private int start;
+    private int cursor;
+    private long contentLength;
+    private boolean hasContentLength;
+    private boolean chunked;
+    private boolean hasTransferEncoding;
+    private long bodyRemaining;
+    private ChunkPhase chunkPhase;
 
     @Getter
     private State state = State.REQUEST_LINE;
 
+    public RequestDecoder() {
+        this(0);
+    }
+
+    /**
+     * @param maxRequestSize the most a request can take up in the buffer, head and body together, before its body is
+     *                       streamed instead. Zero means the capacity of whichever buffer is being decoded.
+     */
+    public RequestDecoder(int maxRequestSize) {
+        this.maxRequestSize = maxRequestSize;
+    }
+
+    /**
+     * Decodes the next request in the buffer, or returns null if more data is needed. When null is returned the
+     * buffer is left positioned at the start of the partial request so it can be compacted and read into again.
+     * The returned request is reused by the next call.
+     */
     public Request decode(ByteBuffer buffer) {
+        if (isStreamingBody()) {
+            // The request was already handed out, pass whatever has arrived of its body to the chunk handler
+            ByteBuffer part;
+            while ((part = decodeBodyPart(buffer)) != null) {
+                if (request.getChunkHandler() != null) {
+                    request.getChunkHandler().accept(part);
+                }
+            }
+            if (isStreamingBody()) {
+                return null;
+            }
+        }
         if (state == State.DONE) {
-            requestBuilder = Request.builder();
-            contentLength = 0;
             state = State.REQUEST_LINE;
+            cursor = 0;
         }
-        try {
-            loop: while (buffer.hasRemaining()) {
-                buffer.mark();
-                switch (state) {
-                    case REQUEST_LINE -> {
-                        decodeMethod(buffer);
-                        decodePathAndParameters(buffer);
-                        decodeProtocol(buffer);
-                        state = State.HEADERS;
-                    }
-                    case HEADERS -> {
-                        Map<String, String> headers = decodeHeaders(buffer);
-                        determineBodyType(headers);
-                        requestBuilder.headers(headers);
-                        if (state == State.CHUNKED_BODY) {
-                            requestBuilder.body(ByteBuffer.allocateDirect(buffer.capacity()));
-                            request = requestBuilder.build();
-                            break loop;
-                        }
-                    }
-                    case BODY -> {
-                        ByteBuffer body = decodeBody(buffer);
-                        if (body == null) {
-                            buffer.reset();
-                            return null;
-                        }
-                        requestBuilder.body(body);
-                        state = State.DONE;
-                        break loop;
-                    }
-                    case CHUNKED_BODY -> {
-                        ByteBuffer chunk = decodeChunkedBody(buffer);
-                        if (chunk == null) {
-                            buffer.reset();
-                            return null;
-                        }
-                        if (request.getChunkHandler() != null) {
-                            request.getChunkHandler().accept(chunk);
-                        }
-                    }
-                }
+        if (state == State.REQUEST_LINE && cursor == 0) {
+            if (!skipEmptyLines(buffer)) {
+                return null;
             }
-        } catch (BufferUnderflowException ex) {
-            buffer.reset();
-            return null;
-        }
-        if (state == State.CHUNKED_BODY) {
-            return request;
-        } else if (state == State.DONE) {
-            request = requestBuilder.build();
+            start = buffer.position();
             contentLength = 0;
-            return request;
+            hasContentLength = false;
+            chunked = false;
+            hasTransferEncoding = false;
+            request.reset(buffer, start);
         } else {
-            return null;
+            start = buffer.position();
+            request.rebase(buffer, start);
         }
+        return decodeMessage(buffer) ? request : null;
     }
 
-    private void decodeMethod(ByteBuffer buffer) {
-        String method = switch (buffer.get(buffer.position())) {
-            case 'G' -> "GET";
-            case 'H' -> "HEAD";
-            case 'P' -> switch (buffer.get(buffer.position() + 1)) {
-                case 'O' -> "POST";
-                case 'U' -> "PUT";
-                case 'A' -> "PATCH";
-                default -> throw new RuntimeException("Unable to decode method");
-            };
-            case 'D' -> "DELETE";
-            case 'O' -> "OPTIONS";
-            case 'T' -> "TRACE";
-            default -> throw new RuntimeException("Unable to decode method");
-        };
-        skip(buffer, method.length() + 1);
-        requestBuilder.method(method);
+    private boolean decodeMessage(ByteBuffer buffer) {
+        int limit = buffer.limit();
+        if (state == State.REQUEST_LINE) {
+            int lf = indexOf(buffer, start + cursor, limit, (byte) '\n');
+            if (lf < 0) {
+                return incomplete(buffer);
+            }
+            decodeRequestLine(buffer, start + cursor, trimCarriageReturn(buffer, start + cursor, lf));
+            cursor = lf + 1 - start;
+            state = State.HEADERS;
+        }
+        if (state == State.HEADERS) {
+            while (true) {
+                int lineStart = start + cursor;
+                int lf = indexOf(buffer, lineStart, limit, (byte) '\n');
+                if (lf < 0) {
+                    return incomplete(buffer);
+                }
+                int lineEnd = trimCarriageReturn(buffer, lineStart, lf);
+                cursor = lf + 1 - start;
+                if (lineEnd == lineStart) {
+                    break;
+                }
+                decodeHeader(buffer, lineStart, lineEnd);
+            }
+            if (hasTransferEncoding && !chunked) {
+                // The body would run until the connection closes, which a request cannot do (RFC 9112 section 6.3)
+                throw new RuntimeException("Transfer-Encoding must end with chunked");
+            }
+            int maxSize = maxRequestSize > 0 ? maxRequestSize : buffer.capacity();
+            if (chunked || cursor + contentLength > maxSize) {
+                // The body is consumed from the buffer while the request is still in use
+                request.detach();
+                buffer.position(start + cursor);
+                if (chunked) {
+                    chunkPhase = ChunkPhase.SIZE;
+                    state = State.CHUNKED_BODY;
+                } else {
+                    bodyRemaining = contentLength;
+                    state = State.STREAMED_BODY;
+                }
+                return true;
+            }
+            state = State.BODY;
+        }
+        int bodyStart = start + cursor;
+        if (limit - bodyStart < contentLength) {
+            return incomplete(buffer);
+        }
+        if (hasContentLength) {
+            request.setBody(buffer.slice(bodyStart, (int) contentLength));
+        }
+        buffer.position(bodyStart + (int) contentLength);
+        state = State.DONE;
+        return true;
     }
 
-    private void decodePathAndParameters(ByteBuffer buffer) {
-        StringBuilder pathBuilder = new StringBuilder(AVERAGE_PATH_LENGTH_HINT);
-        StringBuilder paramKeyBuilder = null, paramValBuilder = null;
-        Map<String, List<String>> parameters = new HashMap<>();
-        PathState pathState = PathState.PATH;
-        loop: while (true) {
-            int val = buffer.get();
-            switch (pathState) {
-                case PATH -> {
-                    if (val == ' ') {
-                        requestBuilder.path(pathBuilder.toString());
-                        break loop;
-                    } else if (val == '?') {
-                        requestBuilder.path(pathBuilder.toString());
-                        paramKeyBuilder = new StringBuilder();
-                        pathState = PathState.PARAM_KEY;
-                    } else {
-                        pathBuilder.append((char) val);
-                    }
+    /**
+     * Whether the last request handed out has a body that is still being streamed, either because it is chunked or
+     * because it is too large to fit in the buffer.
+     */
+    public boolean isStreamingBody() {
+        return state == State.STREAMED_BODY || state == State.CHUNKED_BODY;
+    }
+
+    /**
+     * Returns the next piece of a streamed body already in the buffer, or null if more needs to be read or the body
+     * has ended, which {@link #isStreamingBody()} tells apart. A piece is a view of the buffer, so it is only good
+     * until the buffer is compacted or read into.
+     */
+    public ByteBuffer decodeBodyPart(ByteBuffer buffer) {
+        if (state == State.STREAMED_BODY) {
+            int length = (int) Math.min(bodyRemaining, buffer.remaining());
+            if (length == 0) {
+                return null;
+            }
+            ByteBuffer part = slice(buffer, length);
+            if ((bodyRemaining -= length) == 0) {
+                state = State.DONE;
+            }
+            return part;
+        }
+        while (state == State.CHUNKED_BODY) {
+            if (chunkPhase == ChunkPhase.DATA) {
+                int length = (int) Math.min(bodyRemaining, buffer.remaining());
+                if (length == 0) {
+                    return null;
+                }
+                ByteBuffer part = slice(buffer, length);
+                if ((bodyRemaining -= length) == 0) {
+                    chunkPhase = ChunkPhase.DATA_END;
                 }
-                case PARAM_KEY -> {
-                    if (val == ' ') {
-                        break loop;
-                    } else if (val == '=') {
-                        paramValBuilder = new StringBuilder();
-                        pathState = PathState.PARAM_VAL;
-                    } else {
-                        paramKeyBuilder.append((char) val);
+                return part;
+            }
+
+            // Everything else is line based
+            int from = buffer.position();
+            int lf = indexOf(buffer, from, buffer.limit(), (byte) '\n');
+            if (lf < 0) {
+                if (from == 0 && buffer.limit() == buffer.capacity()) {
+                    throw new IllegalStateException("Chunk line cannot be greater than requestBufferSize");
+                }
+                return null;
+            }
+            int to = trimCarriageReturn(buffer, from, lf);
+            buffer.position(lf + 1);
+            switch (chunkPhase) {
+                case SIZE -> {
+                    bodyRemaining = parseChunkSize(buffer, from, to);
+                    chunkPhase = bodyRemaining == 0 ? ChunkPhase.TRAILERS : ChunkPhase.DATA;
+                }
+                case DATA_END -> {
+                    if (to != from) {
+                        throw new IllegalStateException("Missing CRLF after chunk data");
                     }
+                    chunkPhase = ChunkPhase.SIZE;
                 }
-                case PARAM_VAL -> {
-                    if (val == '&' || val == ' ') {
-                        parameters
-                            .computeIfAbsent(paramKeyBuilder.toString(), k -> new ArrayList<>())
-                            .add(paramValBuilder.toString());
-                        if (val == ' ') {
-                            break loop;
-                        }
-                        pathState = PathState.PARAM_KEY;
-                        paramKeyBuilder = new StringBuilder();
-                    } else {
-                        paramValBuilder.append((char) val);
+                case TRAILERS -> {
+                    // Trailer fields are not exposed
+                    if (to == from) {
+                        state = State.DONE;
                     }
                 }
+                default -> throw new IllegalStateException("Unexpected chunk phase " + chunkPhase);
             }
         }
-        requestBuilder.parameters(parameters);
+        return null;
     }
 
-    private void decodeProtocol(ByteBuffer buffer) {
-        String protocol = switch (buffer.get(buffer.position() + 5)) {
-            case '1' -> "HTTP/1." + (char) (buffer.get(buffer.position() + 7));
-            case '2' -> "HTTP/2.0";
-            default -> throw new RuntimeException("Unable to decode protocol");
-        };
-        skip(buffer, protocol.length());
-        requestBuilder.protocol(protocol);
-        int val = buffer.get();
-        while (val != '\n') {
-            val = buffer.get();
+    private static ByteBuffer slice(ByteBuffer buffer, int length) {
+        ByteBuffer part = buffer.slice(buffer.position(), length);
+        buffer.position(buffer.position() + length);
+        return part;
+    }
+
+    static long parseChunkSize(ByteBuffer buffer, int from, int to) {
+        long value = 0;
+        int i = from;
+        for (; i < to; i++) {
+            int digit = Character.digit(buffer.get(i), 16);
+            if (digit < 0) {
+                break;
+            }
+            if (value > (Long.MAX_VALUE >>> 4)) {
+                throw new NumberFormatException("Chunk size too large");
+            }
+            value = (value << 4) | digit;
+        }
+        // Anything after the size has to be whitespace or chunk extensions, which are ignored
+        if (i == from || (i < to && buffer.get(i) != ';' && !isWhitespace(buffer.get(i)))) {
+            throw new NumberFormatException("Invalid chunk size");
         }
+        return value;
     }
 
-    private Map<String, String> decodeHeaders(ByteBuffer buffer) {
-        StringBuilder headerKeyBuilder = new StringBuilder(), headerValBuilder = null;
-        Map<String, String> headers = new HashMap<>();
-        HeaderState headerState = HeaderState.HEADER_KEY;
-        for (int val = buffer.get(); !(val == '\n' && headerState == HeaderState.HEADER_KEY); val = buffer.get()) {
-            switch (headerState) {
-                case HEADER_KEY -> {
-                    if (val == ':') {
-                        headerValBuilder = new StringBuilder();
-                        headerState = HeaderState.HEADER_VAL;
-                    } else {
-                        headerKeyBuilder.append((char) val);
-                    }
-                }
-                case HEADER_VAL -> {
-                    if (val == '\n') {
-                        headers.put(headerKeyBuilder.toString(), headerValBuilder.toString());
-                        headerKeyBuilder = new StringBuilder();
-                        headerState = HeaderState.HEADER_KEY;
-                    } else if (val != '\r') {
-                        if (val == ' ' && headerValBuilder.length() == 0) {
-                            continue; // skip first whitespace
-                        }
-                        headerValBuilder.append((char) val);
-                    }
+    private boolean incomplete(ByteBuffer buffer) {
+        if (start == 0 && buffer.limit() == buffer.capacity()) {
+            throw new IllegalStateException("Request cannot be greater than requestBufferSize");
+        }
+        buffer.position(start);
+        return false;
+    }
+
+    private boolean skipEmptyLines(ByteBuffer buffer) {
+        // RFC 9112 section 2.2: ignore empty lines received before the request-line
+        while (buffer.hasRemaining()) {
+            int val = buffer.get(buffer.position());
+            if (val == '\n') {
+                skip(buffer, 1);
+            } else if (val == '\r') {
+                if (buffer.remaining() < 2) {
+                    return false;
                 }
+                skip(buffer, 1);
+            } else {
+                return true;
             }
         }
-        return headers;
+        return false;
     }
 
-    private void determineBodyType(Map<String, String> headers) {
-        if (headers.containsKey(CONTENT_LENGTH)) {
-            contentLength = Integer.parseInt(headers.get(CONTENT_LENGTH));
-            state = State.BODY;
-        } else if (headers.containsKey(TRANSFER_ENCODING)
-                   && headers.get(TRANSFER_ENCODING).equals(CHUNKED)) {
-            state = State.CHUNKED_BODY;
+    private void decodeRequestLine(ByteBuffer buffer, int from, int to) {
+        int methodEnd = indexOf(buffer, from, to, (byte) ' ');
+        if (methodEnd < 0) {
+            throw new RuntimeException("Unable to decode method");
+        }
+        request.setMethod(decodeMethod(buffer, from, methodEnd));
+
+        int targetStart = methodEnd + 1;
+        int targetEnd = indexOf(buffer, targetStart, to, (byte) ' ');
+        if (targetEnd < 0) {
+            throw new RuntimeException("Unable to decode path");
+        }
+        int queryStart = indexOf(buffer, targetStart, targetEnd, (byte) '?');
+        if (queryStart < 0) {
+            request.setPath(targetStart - start, targetEnd - start);
         } else {
-            state = State.DONE;
+            request.setPath(targetStart - start, queryStart - start);
+            request.setQuery(queryStart + 1 - start, targetEnd - start);
         }
+
+        request.setProtocol(decodeProtocol(buffer, targetEnd + 1, to));
     }
 
-    private ByteBuffer decodeBody(ByteBuffer buffer) {
-        if (contentLength != 0 && !hasRemainingExcludingNewline(buffer, contentLength)) {
-            return null;
+    private String decodeMethod(ByteBuffer buffer, int from, int to) {
+        return switch (buffer.get(from)) {
+            case 'G' -> "GET";
+            case 'H' -> "HEAD";
+            case 'P' -> switch (to - from) {
+                case 4 -> "POST";
+                case 3 -> buffer.get(from + 1) == 'R' ? "PRI" : "PUT"; // PRI opens the HTTP/2 preface
+                case 5 -> "PATCH";
+                default -> throw new RuntimeException("Unable to decode method");
+            };
+            case 'D' -> "DELETE";
+            case 'O' -> "OPTIONS";
+            case 'T' -> "TRACE";
+            case 'C' -> "CONNECT";
+            default -> throw new RuntimeException("Unable to decode method");
+        };
+    }
+
+    private String decodeProtocol(ByteBuffer buffer, int from, int to) {
+        if (to - from < 8) {
+            throw new RuntimeException("Unable to decode protocol");
         }
-        ByteBuffer body = buffer.slice().limit(contentLength);
-        skip(buffer, contentLength);
-        return body;
+        return switch (buffer.get(from + 5)) {
+            case '1' -> buffer.get(from + 7) == '0' ? HTTP_1_0 : HTTP_1_1;
+            case '2' -> HTTP_2_0;
+            default -> throw new RuntimeException("Unable to decode protocol");
+        };
     }
 
-    private ByteBuffer decodeChunkedBody(ByteBuffer buffer) {
-        int chunkSize = Integer.parseInt(readLine(buffer));
-        if (chunkSize == 0) {
-            state = State.DONE;
-            return null;
+    private void decodeHeader(ByteBuffer buffer, int from, int to) {
+        int colon = indexOf(buffer, from, to, (byte) ':');
+        if (colon < 0) {
+            throw new RuntimeException("Unable to decode header");
         }
-        if (chunkSize > buffer.capacity()) {
-            throw new IllegalArgumentException("Chunk size cannot be greater than requestBufferSize");
+        int valStart = colon + 1;
+        while (valStart < to && isWhitespace(buffer.get(valStart))) {
+            valStart++;
         }
-        if (!hasRemainingExcludingNewline(buffer, chunkSize)) {
-            return null;
+        int valEnd = to;
+        while (valEnd > valStart && isWhitespace(buffer.get(valEnd - 1))) {
+            valEnd--;
+        }
+        request.addHeader(from - start, colon - start, valStart - start, valEnd - start);
+
+        if (equalsIgnoreCase(buffer, from, colon, CONTENT_LENGTH)) {
+            long value = parseContentLength(buffer, valStart, valEnd);
+            if (hasContentLength && value != contentLength) {
+                throw new RuntimeException("Conflicting Content-Length headers");
+            }
+            contentLength = value;
+            hasContentLength = true;
+        } else if (equalsIgnoreCase(buffer, from, colon, TRANSFER_ENCODING)) {
+            // chunked must be the final transfer coding, and a later header carries on the same list
+            int codingStart = valEnd;
+            while (codingStart > valStart && buffer.get(codingStart - 1) != ',') {
+                codingStart--;
+            }
+            while (codingStart < valEnd && isWhitespace(buffer.get(codingStart))) {
+                codingStart++;
+            }
+            chunked = equalsIgnoreCase(buffer, codingStart, valEnd, CHUNKED);
+            hasTransferEncoding = true;
         }
-        ByteBuffer chunk = buffer.slice().limit(chunkSize);
-        skip(buffer, chunkSize + 2);
-        return chunk;
     }
 
-    private String readLine(ByteBuffer buffer) {
-        StringBuilder builder = new StringBuilder();
-        for (int val = buffer.get(); val != '\n'; val = buffer.get()) {
-            if (val != '\r') {
-                builder.append((char) val);
+    static long parseContentLength(ByteBuffer buffer, int from, int to) {
+        if (from == to) {
+            throw new NumberFormatException("Empty Content-Length");
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10) {
+                throw new NumberFormatException("Invalid Content-Length");
             }
+            value = value * 10 + digit;
         }
-        return builder.toString();
+        return value;
     }
 
-    private boolean hasRemainingExcludingNewline(ByteBuffer buffer, int amount) {
-        return buffer.remaining() >= amount + 2; // + 2 for \r\n
+    static int indexOf(ByteBuffer buffer, int from, int to, byte value) {
+        return ByteScanner.indexOf(buffer, from, to, value);
     }
 
-    private void skip(ByteBuffer buffer, int amount) {
+    static int trimCarriageReturn(ByteBuffer buffer, int from, int lf) {
+        return lf > from && buffer.get(lf - 1) == '\r' ? lf - 1 : lf;
+    }
+
+    static boolean isWhitespace(byte val) {
+        return val == ' ' || val == '\t';
+    }
+
+    static boolean equalsIgnoreCase(ByteBuffer buffer, int from, int to, byte[] lowercase) {
+        if (to - from != lowercase.length) {
+            return false;
+        }
+        for (int i = 0; i < lowercase.length; i++) {
+            int val = buffer.get(from + i);
+            if (val >= 'A' && val <= 'Z') {
+                val |= 0x20;
+            }
+            if (val != lowercase[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void skip(ByteBuffer buffer, int amount) {
         buffer.position(buffer.position() + amount);
     }
 
@@ -261,18 +400,15 @@ public class RequestDecoder {
         REQUEST_LINE,
         HEADERS,
         BODY,
+        STREAMED_BODY,
         CHUNKED_BODY,
         DONE,
     }
 
-    private enum PathState {
-        PATH,
-        PARAM_KEY,
-        PARAM_VAL,
-    }
-
-    private enum HeaderState {
-        HEADER_KEY,
-        HEADER_VAL,
+    private enum ChunkPhase {
+        SIZE,
+        DATA,
+        DATA_END,
+        TRAILERS,
     }
 }
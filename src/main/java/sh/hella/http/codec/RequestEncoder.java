@@ -0,0 +1,99 @@
+package sh.hella.http.codec;
+
+import sh.hella.http.Request;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Encodes requests for forwarding to an upstream server, the client side counterpart of {@link ResponseEncoder}.
+ * Hop-by-hop headers are dropped, since they only apply to the connection the request arrived on.
+ */
+public class RequestEncoder {
+    private static final Set<String> HOP_BY_HOP_HEADERS = Set.of(
+        "connection", "keep-alive", "proxy-connection", "proxy-authenticate", "proxy-authorization", "te", "trailer",
+        "transfer-encoding", "upgrade", "http2-settings");
+    private static final byte[] CARRIAGE_RETURN = "\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEADER_SEPARATOR = ": ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PROTOCOL = " HTTP/1.1\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CHUNKED_HEADER = "Transfer-Encoding: chunked\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Encodes the request line and headers. A body without a Content-Length, one that arrived chunked, is sent on
+     * with chunked transfer-coding.
+     */
+    public static void encodeHead(Request request, ByteBuffer buffer, boolean chunked) {
+        putString(buffer, request.getMethod());
+        buffer.put((byte) ' ');
+        putString(buffer, request.getPath());
+        if (request.getQuery() != null) {
+            buffer.put((byte) '?');
+            putString(buffer, request.getQuery());
+        }
+        buffer.put(PROTOCOL);
+
+        // Every field goes upstream as it arrived, repeated ones included, which folding them could change the
+        // meaning of
+        StringBuilder connection = new StringBuilder();
+        if (request.hasHeader("Connection")) {
+            request.forEachHeader((name, value) -> {
+                if (name.equalsIgnoreCase("Connection")) {
+                    connection.append(value).append(',');
+                }
+            });
+        }
+        String connectionTokens = connection.length() == 0 ? null : connection.toString();
+        request.forEachHeader((name, value) -> {
+            if (isHopByHop(name, connectionTokens) || chunked && name.equalsIgnoreCase("Content-Length")) {
+                return;
+            }
+            putString(buffer, name);
+            buffer.put(HEADER_SEPARATOR);
+            putString(buffer, value);
+            buffer.put(CARRIAGE_RETURN);
+        });
+        if (chunked) {
+            buffer.put(CHUNKED_HEADER);
+        }
+        buffer.put(CARRIAGE_RETURN);
+    }
+
+    /**
+     * Whether a header only applies to a single connection, either always or because the Connection header names it.
+     */
+    public static boolean isHopByHop(String name, String connection) {
+        String lowercase = name.toLowerCase(Locale.ROOT);
+        if (HOP_BY_HOP_HEADERS.contains(lowercase)) {
+            return true;
+        } else if (connection == null) {
+            return false;
+        }
+        for (String token : connection.split(",")) {
+            if (token.trim().equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void putString(ByteBuffer buffer, String value) {
+        int length = value.length();
+        if (buffer.remaining() < length) {
+            throw new BufferOverflowException();
+        }
+        int position = buffer.position();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x80) {
+                // The request was decoded as UTF-8, so this puts back the bytes it arrived as
+                buffer.put(value.getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            buffer.put(position + i, (byte) c);
+        }
+        buffer.position(position + length);
+    }
+}
@@ -0,0 +1,267 @@
+package sh.hella.http.codec;
+
+import lombok.Getter;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes responses from an upstream server, the client side counterpart of {@link RequestDecoder}. The head is
+ * decoded into a status and headers once it has all arrived, and the body is then handed out as views of the buffer,
+ * framed by Content-Length, chunked transfer-coding or the end of the connection.
+ */
+public class ResponseDecoder {
+    private static final byte[] CONTENT_LENGTH = "content-length".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRANSFER_ENCODING = "transfer-encoding".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONNECTION = "connection".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CHUNKED = "chunked".getBytes(StandardCharsets.US_ASCII);
+
+    @Getter private int status;
+    @Getter private Map<String, String> headers;
+    /**
+     * The values of the Set-Cookie fields, which are kept apart from the other headers since they can't be folded.
+     */
+    @Getter private List<String> cookies;
+    /**
+     * The length of the body, or -1 if it is chunked or runs until the connection closes.
+     */
+    @Getter private long contentLength;
+    @Getter private boolean keepAlive;
+    private boolean chunked;
+    private long bodyRemaining;
+    private ChunkPhase chunkPhase;
+    @Getter private State state = State.HEAD;
+
+    /**
+     * Decodes the head of the next response, skipping any interim 1xx responses, or returns false if more data is
+     * needed. The buffer is left at the start of the body.
+     *
+     * @param headRequest whether the request was a HEAD, whose response never has a body
+     */
+    public boolean decodeHead(ByteBuffer buffer, boolean headRequest) {
+        while (true) {
+            int start = buffer.position();
+            int end = indexOfHeadEnd(buffer, start);
+            if (end < 0) {
+                if (start == 0 && buffer.limit() == buffer.capacity()) {
+                    throw new IllegalStateException("Response head larger than the buffer");
+                }
+                return false;
+            }
+            decodeHead(buffer, start, end);
+            buffer.position(end);
+            if (status >= 200 || status == 101) {
+                break;
+            }
+        }
+        if (headRequest || status == 204 || status == 304 || status == 101) {
+            contentLength = 0;
+            chunked = false;
+        }
+        if (chunked) {
+            contentLength = -1;
+            chunkPhase = ChunkPhase.SIZE;
+            state = State.CHUNKED_BODY;
+        } else if (contentLength >= 0) {
+            bodyRemaining = contentLength;
+            state = contentLength == 0 ? State.DONE : State.BODY;
+        } else {
+            keepAlive = false;
+            state = State.UNTIL_CLOSE;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the next piece of the body already in the buffer, or null if more needs to be read or the body has
+     * ended, which {@link #isDone()} tells apart. A piece is only good until the buffer is compacted or read into.
+     */
+    public ByteBuffer decodeBodyPart(ByteBuffer buffer) {
+        if (state == State.BODY || state == State.UNTIL_CLOSE) {
+            int length = (int) Math.min(state == State.BODY ? bodyRemaining : Long.MAX_VALUE, buffer.remaining());
+            if (length == 0) {
+                return null;
+            }
+            ByteBuffer part = slice(buffer, length);
+            if (state == State.BODY && (bodyRemaining -= length) == 0) {
+                state = State.DONE;
+            }
+            return part;
+        }
+        while (state == State.CHUNKED_BODY) {
+            if (chunkPhase == ChunkPhase.DATA) {
+                int length = (int) Math.min(bodyRemaining, buffer.remaining());
+                if (length == 0) {
+                    return null;
+                }
+                ByteBuffer part = slice(buffer, length);
+                if ((bodyRemaining -= length) == 0) {
+                    chunkPhase = ChunkPhase.DATA_END;
+                }
+                return part;
+            }
+            int from = buffer.position();
+            int lf = RequestDecoder.indexOf(buffer, from, buffer.limit(), (byte) '\n');
+            if (lf < 0) {
+                if (from == 0 && buffer.limit() == buffer.capacity()) {
+                    throw new IllegalStateException("Chunk line larger than the buffer");
+                }
+                return null;
+            }
+            int to = RequestDecoder.trimCarriageReturn(buffer, from, lf);
+            buffer.position(lf + 1);
+            switch (chunkPhase) {
+                case SIZE -> {
+                    bodyRemaining = RequestDecoder.parseChunkSize(buffer, from, to);
+                    chunkPhase = bodyRemaining == 0 ? ChunkPhase.TRAILERS : ChunkPhase.DATA;
+                }
+                case DATA_END -> {
+                    if (to != from) {
+                        throw new IllegalStateException("Missing CRLF after chunk data");
+                    }
+                    chunkPhase = ChunkPhase.SIZE;
+                }
+                case TRAILERS -> {
+                    if (to == from) {
+                        state = State.DONE;
+                    }
+                }
+                default -> throw new IllegalStateException("Unexpected chunk phase " + chunkPhase);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Called when the connection has closed, which ends a body that runs until then. Returns false if the body was
+     * cut short.
+     */
+    public boolean endOfInput() {
+        if (state == State.UNTIL_CLOSE) {
+            state = State.DONE;
+        }
+        return state == State.DONE;
+    }
+
+    public boolean isDone() {
+        return state == State.DONE;
+    }
+
+    /**
+     * Readies the decoder for the next response on the same connection.
+     */
+    public void reset() {
+        state = State.HEAD;
+        headers = null;
+        cookies = null;
+    }
+
+    private void decodeHead(ByteBuffer buffer, int from, int to) {
+        int lf = RequestDecoder.indexOf(buffer, from, to, (byte) '\n');
+        int lineEnd = RequestDecoder.trimCarriageReturn(buffer, from, lf);
+        // HTTP/1.x SP 3DIGIT [SP reason]
+        if (lineEnd - from < 12 || buffer.get(from + 5) != '1' || buffer.get(from + 8) != ' ') {
+            throw new IllegalStateException("Unable to decode status line");
+        }
+        keepAlive = buffer.get(from + 7) != '0';
+        status = 0;
+        for (int i = from + 9; i < from + 12; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new IllegalStateException("Unable to decode status");
+            }
+            status = status * 10 + digit;
+        }
+        headers = new LinkedHashMap<>();
+        cookies = new ArrayList<>();
+        contentLength = -1;
+        chunked = false;
+        int lineStart = lf + 1;
+        while (lineStart < to) {
+            lf = RequestDecoder.indexOf(buffer, lineStart, to, (byte) '\n');
+            lineEnd = RequestDecoder.trimCarriageReturn(buffer, lineStart, lf);
+            if (lineEnd > lineStart) {
+                decodeHeader(buffer, lineStart, lineEnd);
+            }
+            lineStart = lf + 1;
+        }
+    }
+
+    private void decodeHeader(ByteBuffer buffer, int from, int to) {
+        int colon = RequestDecoder.indexOf(buffer, from, to, (byte) ':');
+        if (colon < 0) {
+            throw new IllegalStateException("Unable to decode header");
+        }
+        int valStart = colon + 1;
+        while (valStart < to && RequestDecoder.isWhitespace(buffer.get(valStart))) {
+            valStart++;
+        }
+        int valEnd = to;
+        while (valEnd > valStart && RequestDecoder.isWhitespace(buffer.get(valEnd - 1))) {
+            valEnd--;
+        }
+        String name = string(buffer, from, colon);
+        String value = string(buffer, valStart, valEnd);
+        if (name.equalsIgnoreCase("Set-Cookie")) {
+            cookies.add(value);
+        } else {
+            // Repeated fields are folded into one, which every field but Set-Cookie allows (RFC 9110 section 5.3)
+            headers.merge(name, value, (a, b) -> a + ", " + b);
+        }
+
+        if (RequestDecoder.equalsIgnoreCase(buffer, from, colon, CONTENT_LENGTH)) {
+            contentLength = RequestDecoder.parseContentLength(buffer, valStart, valEnd);
+        } else if (RequestDecoder.equalsIgnoreCase(buffer, from, colon, TRANSFER_ENCODING)) {
+            chunked = valEnd - valStart >= CHUNKED.length
+                && RequestDecoder.equalsIgnoreCase(buffer, valEnd - CHUNKED.length, valEnd, CHUNKED);
+        } else if (RequestDecoder.equalsIgnoreCase(buffer, from, colon, CONNECTION)) {
+            String connection = value.toLowerCase();
+            keepAlive = connection.contains("keep-alive") || keepAlive && !connection.contains("close");
+        }
+    }
+
+    private static int indexOfHeadEnd(ByteBuffer buffer, int from) {
+        // The blank line that ends the head, returning the position just past it
+        int limit = buffer.limit();
+        for (int i = RequestDecoder.indexOf(buffer, from, limit, (byte) '\n'); i >= 0 && i < limit;
+             i = RequestDecoder.indexOf(buffer, i + 1, limit, (byte) '\n')) {
+            if (i + 1 < limit && buffer.get(i + 1) == '\n') {
+                return i + 2;
+            } else if (i + 2 < limit && buffer.get(i + 1) == '\r' && buffer.get(i + 2) == '\n') {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int length) {
+        ByteBuffer part = buffer.slice(buffer.position(), length);
+        buffer.position(buffer.position() + length);
+        return part;
+    }
+
+    private static String string(ByteBuffer buffer, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        buffer.get(from, bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    public enum State {
+        HEAD,
+        BODY,
+        CHUNKED_BODY,
+        UNTIL_CLOSE,
+        DONE,
+    }
+
+    private enum ChunkPhase {
+        SIZE,
+        DATA,
+        DATA_END,
+        TRAILERS,
+    }
+}
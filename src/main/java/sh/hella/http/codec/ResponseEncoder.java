@@ -1,52 +1,294 @@
 package sh.hella.http.codec;
 
 import sh.hella.http.Response;
+import sh.hella.http.StaticResponse;
 
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class ResponseEncoder {
-    private static final Map<Integer, byte[]> ENCODED_STATUSES = new ConcurrentHashMap<>();
     private static final Map<String, byte[]> ENCODED_HEADER_KEYS = new ConcurrentHashMap<>();
-    private static final byte[] HTTP_VERSION = "HTTP/1.1 ".getBytes(StandardCharsets.UTF_8);
+    private static final byte[][] ENCODED_STATUS_LINES = new byte[1000][];
     private static final byte[] CARRIAGE_RETURN = "\r\n".getBytes(StandardCharsets.UTF_8);
     private static final byte[] SERVER_HEADER = "Server: hella-http\r\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] CONTENT_LENGTH_HEADER = "Content-Length: ".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] CHUNKED_HEADER = "Transfer-Encoding: chunked\r\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SET_COOKIE_HEADER = "Set-Cookie: ".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] EMPTY_BODY = new byte[0];
+    private static final String CONTENT_LENGTH = "Content-Length";
+    private static final String DATE = "Date";
+    private static final DateTimeFormatter IMF_FIXDATE = DateTimeFormatter
+        .ofPattern("'Date: 'EEE, dd MMM yyyy HH:mm:ss 'GMT\r\n'", Locale.US)
+        .withZone(ZoneOffset.UTC);
+    private static final byte[] DIGIT_TENS = new byte[100];
+    private static final byte[] DIGIT_ONES = new byte[100];
+
+    private static volatile byte[] dateHeader;
+    private static volatile String date;
+
+    static {
+        for (int status = 100; status < ENCODED_STATUS_LINES.length; status++) {
+            String line = "HTTP/1.1 " + status + " " + reasonPhrase(status) + "\r\n";
+            ENCODED_STATUS_LINES[status] = line.getBytes(StandardCharsets.UTF_8);
+        }
+        for (int i = 0; i < 100; i++) {
+            DIGIT_TENS[i] = (byte) ('0' + i / 10);
+            DIGIT_ONES[i] = (byte) ('0' + i % 10);
+        }
+        updateDate();
+    }
+
+    /**
+     * Refreshes the cached Date header. The server calls this once a second.
+     */
+    public static void updateDate() {
+        String header = IMF_FIXDATE.format(ZonedDateTime.now(ZoneOffset.UTC));
+        date = header.substring("Date: ".length(), header.length() - 2);
+        dateHeader = header.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * The current value of the Date header, for protocols that encode it themselves.
+     */
+    public static String getDate() {
+        return date;
+    }
 
     public static void encode(Response response, ByteBuffer buffer) {
-        if (!ENCODED_STATUSES.containsKey(response.getStatus())) {
-            byte[] statusBytes = (response.getStatus() + "\r\n").getBytes(StandardCharsets.UTF_8);
-            ENCODED_STATUSES.put(response.getStatus(), statusBytes);
+        if (response instanceof StaticResponse) {
+            encodeStatic((StaticResponse) response, buffer, false);
+        } else {
+            encode(response, buffer, true);
+        }
+    }
+
+    /**
+     * Encodes only the status line and headers, for when the body is written separately. A response with a body
+     * publisher and no Content-Length is framed with chunked transfer-coding.
+     */
+    public static void encodeHead(Response response, ByteBuffer buffer) {
+        if (response instanceof StaticResponse) {
+            encodeStatic((StaticResponse) response, buffer, true);
+        } else {
+            encode(response, buffer, true, false);
         }
+    }
+
+    public static boolean isChunked(Response response) {
+        return response.getBodyPublisher() != null
+            && response.getHeaders().keySet().stream().noneMatch(CONTENT_LENGTH::equalsIgnoreCase);
+    }
+
+    /**
+     * The Content-Length the response declares itself, or -1 if it doesn't or it isn't a number.
+     */
+    public static long contentLength(Response response) {
+        for (Map.Entry<String, String> entry : response.getHeaders().entrySet()) {
+            if (CONTENT_LENGTH.equalsIgnoreCase(entry.getKey())) {
+                try {
+                    return Long.parseLong(entry.getValue().trim());
+                } catch (NumberFormatException ex) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Whether the response to a request with the given method carries a body. Responses to HEAD, and 1xx, 204 and
+     * 304 responses, end with their head whatever body they were given (RFC 9110 section 6.4.1).
+     */
+    public static boolean permitsBody(int status, String method) {
+        return permitsContentLength(status) && !"HEAD".equals(method);
+    }
+
+    public static int bodyLength(Response response) {
+        if (response.getBody() != null) {
+            return response.getBody().length;
+        } else if (response.getBodyBuffer() != null) {
+            return response.getBodyBuffer().remaining();
+        }
+        return 0;
+    }
+
+    public static void encode(Response response, ByteBuffer buffer, boolean includeDate) {
+        encode(response, buffer, includeDate, true);
+    }
+
+    private static void encode(Response response, ByteBuffer buffer, boolean includeDate, boolean includeBody) {
+        int status = response.getStatus();
 
         // Encode the response status line
         buffer
-            .put(HTTP_VERSION)
-            .put(ENCODED_STATUSES.get(response.getStatus()));
+            .put(statusLine(status))
+            .put(SERVER_HEADER);
 
         // Encode any response headers
-        if (!response.getHeaders().isEmpty()) {
-            buffer.put(SERVER_HEADER);
-            for (Map.Entry<String, String> entry : response.getHeaders().entrySet()) {
-                if (!ENCODED_HEADER_KEYS.containsKey(entry.getKey())) {
-                    byte[] encodedKey = (entry.getKey() + ": ").getBytes(StandardCharsets.UTF_8);
-                    ENCODED_HEADER_KEYS.put(entry.getKey(), encodedKey);
-                }
-                buffer
-                    .put(ENCODED_HEADER_KEYS.get(entry.getKey()))
-                    .put(entry.getValue().getBytes(StandardCharsets.UTF_8))
-                    .put(CARRIAGE_RETURN);
+        boolean hasContentLength = false, hasDate = false;
+        for (Map.Entry<String, String> entry : response.getHeaders().entrySet()) {
+            String key = entry.getKey();
+            hasContentLength |= CONTENT_LENGTH.equalsIgnoreCase(key);
+            hasDate |= DATE.equalsIgnoreCase(key);
+            buffer.put(ENCODED_HEADER_KEYS.computeIfAbsent(key, k -> (k + ": ").getBytes(StandardCharsets.UTF_8)));
+            putValue(buffer, entry.getValue());
+            buffer.put(CARRIAGE_RETURN);
+        }
+        for (String cookie : response.getCookies()) {
+            buffer.put(SET_COOKIE_HEADER);
+            putValue(buffer, cookie);
+            buffer.put(CARRIAGE_RETURN);
+        }
+        if (!permitsContentLength(status)) {
+            // Nor Transfer-Encoding, RFC 9112 section 6.1
+        } else if (response.getBodyPublisher() != null) {
+            if (!hasContentLength) {
+                buffer.put(CHUNKED_HEADER);
             }
-        } else {
+        } else if (!hasContentLength) {
+            buffer.put(CONTENT_LENGTH_HEADER);
+            putDecimal(buffer, bodyLength(response));
             buffer.put(CARRIAGE_RETURN);
         }
+        if (includeDate && !hasDate) {
+            buffer.put(dateHeader);
+        }
 
         // And finally encode the body
-        buffer
-            .put(CARRIAGE_RETURN)
-            .put(response.getBody())
-            .put(CARRIAGE_RETURN)
-            .flip();
+        buffer.put(CARRIAGE_RETURN);
+        if (includeBody) {
+            putBody(response, buffer);
+        }
+    }
+
+    private static void putBody(Response response, ByteBuffer buffer) {
+        if (response.getBody() != null) {
+            buffer.put(response.getBody());
+        } else if (response.getBodyBuffer() != null) {
+            // Absolute bulk put, so a body shared between responses is never mutated
+            ByteBuffer body = response.getBodyBuffer();
+            if (buffer.remaining() < body.remaining()) {
+                throw new BufferOverflowException();
+            }
+            buffer.put(buffer.position(), body, body.position(), body.remaining());
+            buffer.position(buffer.position() + body.remaining());
+        }
+    }
+
+    private static void encodeStatic(StaticResponse response, ByteBuffer buffer, boolean headOnly) {
+        // Absolute bulk puts, so the shared buffer is never mutated by concurrent rings
+        ByteBuffer encoded = response.getEncoded();
+        int end = headOnly ? response.getBodyOffset() : encoded.limit();
+        int dateOffset = response.getDateOffset();
+        byte[] date = dateOffset < 0 ? EMPTY_BODY : dateHeader;
+        if (buffer.remaining() < end + date.length) {
+            throw new BufferOverflowException();
+        }
+        int position = buffer.position();
+        if (dateOffset < 0) {
+            buffer.put(position, encoded, 0, end);
+        } else {
+            buffer.put(position, encoded, 0, dateOffset);
+            buffer.put(position + dateOffset, date);
+            buffer.put(position + dateOffset + date.length, encoded, dateOffset, end - dateOffset);
+        }
+        buffer.position(position + end + date.length);
+    }
+
+    private static byte[] statusLine(int status) {
+        if (status < 100 || status >= ENCODED_STATUS_LINES.length) {
+            throw new IllegalArgumentException("Invalid status code: " + status);
+        }
+        return ENCODED_STATUS_LINES[status];
+    }
+
+    private static boolean permitsContentLength(int status) {
+        // RFC 9110 section 8.6
+        return status >= 200 && status != 204 && status != 304;
+    }
+
+    private static void putValue(ByteBuffer buffer, String value) {
+        int length = value.length();
+        if (buffer.remaining() < length) {
+            throw new BufferOverflowException();
+        }
+        int position = buffer.position();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x80) {
+                buffer.put(value.getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            buffer.put(position + i, (byte) c);
+        }
+        buffer.position(position + length);
+    }
+
+    static void putDecimal(ByteBuffer buffer, int value) {
+        int length = 1;
+        for (int n = value; n >= 10; n /= 10) {
+            length++;
+        }
+        if (buffer.remaining() < length) {
+            throw new BufferOverflowException();
+        }
+        int position = buffer.position() + length;
+        while (value >= 100) {
+            int pair = value % 100;
+            value /= 100;
+            buffer.put(--position, DIGIT_ONES[pair]);
+            buffer.put(--position, DIGIT_TENS[pair]);
+        }
+        buffer.put(--position, DIGIT_ONES[value]);
+        if (value >= 10) {
+            buffer.put(--position, DIGIT_TENS[value]);
+        }
+        buffer.position(buffer.position() + length);
+    }
+
+    private static String reasonPhrase(int status) {
+        return switch (status) {
+            case 100 -> "Continue";
+            case 101 -> "Switching Protocols";
+            case 200 -> "OK";
+            case 201 -> "Created";
+            case 202 -> "Accepted";
+            case 204 -> "No Content";
+            case 206 -> "Partial Content";
+            case 301 -> "Moved Permanently";
+            case 302 -> "Found";
+            case 303 -> "See Other";
+            case 304 -> "Not Modified";
+            case 307 -> "Temporary Redirect";
+            case 308 -> "Permanent Redirect";
+            case 400 -> "Bad Request";
+            case 401 -> "Unauthorized";
+            case 403 -> "Forbidden";
+            case 404 -> "Not Found";
+            case 405 -> "Method Not Allowed";
+            case 408 -> "Request Timeout";
+            case 409 -> "Conflict";
+            case 411 -> "Length Required";
+            case 412 -> "Precondition Failed";
+            case 413 -> "Content Too Large";
+            case 414 -> "URI Too Long";
+            case 415 -> "Unsupported Media Type";
+            case 416 -> "Range Not Satisfiable";
+            case 429 -> "Too Many Requests";
+            case 431 -> "Request Header Fields Too Large";
+            case 500 -> "Internal Server Error";
+            case 501 -> "Not Implemented";
+            case 502 -> "Bad Gateway";
+            case 503 -> "Service Unavailable";
+            case 504 -> "Gateway Timeout";
+            default -> "";
+        };
     }
 }
@@ -0,0 +1,186 @@
+package sh.hella.http.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes WebSocket frames sent by a client (RFC 6455). A frame is only decoded once all of it is in the buffer, at
+ * which point its payload is unmasked in place and handed out as a slice of the buffer, so reading a message copies
+ * nothing. The slice is only valid until the buffer is next compacted or read into.
+ * <p>
+ * A data frame too large to ever fit in the buffer is handed out a piece at a time as it arrives instead, each piece
+ * looking like a fragment of a message: the first with the frame's opcode, the rest as continuations, and only the
+ * last carrying the frame's FIN bit. Whoever reassembles fragmented messages reassembles these the same way.
+ */
+public class WebSocketDecoder {
+    public static final int CONTINUATION = 0x0;
+    public static final int TEXT = 0x1;
+    public static final int BINARY = 0x2;
+    public static final int CLOSE = 0x8;
+    public static final int PING = 0x9;
+    public static final int PONG = 0xa;
+
+    public static final int PROTOCOL_ERROR = 1002;
+    public static final int MESSAGE_TOO_BIG = 1009;
+
+    private static final int MAX_CONTROL_PAYLOAD = 125;
+
+    private final long maxFrameSize;
+    private boolean fin;
+    private int opcode;
+    private ByteBuffer payload;
+    // The rest of a frame too large for the buffer, handed out as it arrives
+    private long pieceRemaining;
+    private long pieceOffset;
+    private int pieceMask;
+    private boolean pieceFin;
+
+    public WebSocketDecoder() {
+        this(Long.MAX_VALUE);
+    }
+
+    /**
+     * @param maxFrameSize the largest payload a frame may declare, beyond which it is refused with 1009
+     */
+    public WebSocketDecoder(long maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    public boolean isFin() {
+        return fin;
+    }
+
+    public int getOpcode() {
+        return opcode;
+    }
+
+    public ByteBuffer getPayload() {
+        return payload;
+    }
+
+    /**
+     * Decodes the next frame if the buffer holds all of it, or the next piece of a frame too large for the buffer,
+     * moving past it and returning true. Frames over the size limit, and anything else a client must not send, throw
+     * {@link ProtocolException}.
+     */
+    public boolean decode(ByteBuffer buffer) {
+        if (pieceRemaining > 0) {
+            return decodePiece(buffer);
+        }
+        int start = buffer.position();
+        int available = buffer.remaining();
+        if (available < 2) {
+            return false;
+        }
+        int b0 = buffer.get(start) & 0xff;
+        int b1 = buffer.get(start + 1) & 0xff;
+        if ((b0 & 0x70) != 0) {
+            throw new ProtocolException(PROTOCOL_ERROR, "Reserved bits set without an extension");
+        } else if ((b1 & 0x80) == 0) {
+            throw new ProtocolException(PROTOCOL_ERROR, "Client frames must be masked");
+        }
+        int frameOpcode = b0 & 0x0f;
+        boolean frameFin = (b0 & 0x80) != 0;
+        long length = b1 & 0x7f;
+        int headerLength = 2;
+        if (length == 126) {
+            if (available < 4) {
+                return false;
+            }
+            length = buffer.getShort(start + 2) & 0xffff;
+            headerLength = 4;
+        } else if (length == 127) {
+            if (available < 10) {
+                return false;
+            }
+            length = buffer.getLong(start + 2);
+            headerLength = 10;
+        }
+        if (frameOpcode >= CLOSE) {
+            if (frameOpcode > PONG) {
+                throw new ProtocolException(PROTOCOL_ERROR, "Unknown control opcode " + frameOpcode);
+            } else if (!frameFin || length > MAX_CONTROL_PAYLOAD) {
+                throw new ProtocolException(PROTOCOL_ERROR, "Fragmented or oversized control frame");
+            }
+        } else if (frameOpcode > BINARY) {
+            throw new ProtocolException(PROTOCOL_ERROR, "Unknown data opcode " + frameOpcode);
+        }
+        if (length < 0 || length > maxFrameSize) {
+            throw new ProtocolException(MESSAGE_TOO_BIG, "Frame larger than the maximum message size");
+        }
+        int payloadStart = start + headerLength + 4;
+        if (length > buffer.capacity() - headerLength - 4) {
+            if (available < headerLength + 4) {
+                return false;
+            }
+            pieceRemaining = length;
+            pieceOffset = 0;
+            pieceMask = buffer.getInt(start + headerLength);
+            pieceFin = frameFin;
+            buffer.position(payloadStart);
+            opcode = frameOpcode;
+            return decodePiece(buffer);
+        }
+        if (available < payloadStart - start + length) {
+            return false;
+        }
+        int mask = buffer.getInt(start + headerLength);
+        unmask(buffer, payloadStart, payloadStart + (int) length, mask);
+        fin = frameFin;
+        opcode = frameOpcode;
+        payload = buffer.slice(payloadStart, (int) length);
+        buffer.position(payloadStart + (int) length);
+        return true;
+    }
+
+    private boolean decodePiece(ByteBuffer buffer) {
+        int length = (int) Math.min(buffer.remaining(), pieceRemaining);
+        if (length == 0) {
+            return false;
+        }
+        int start = buffer.position();
+        // The key carries on from wherever the last piece left off
+        unmask(buffer, start, start + length, Integer.rotateLeft(pieceMask, (int) (pieceOffset & 3) * 8));
+        if (pieceOffset > 0) {
+            opcode = CONTINUATION;
+        }
+        pieceOffset += length;
+        pieceRemaining -= length;
+        fin = pieceRemaining == 0 && pieceFin;
+        payload = buffer.slice(start, length);
+        buffer.position(start + length);
+        return true;
+    }
+
+    /**
+     * XORs the payload with its masking key a long at a time. The key repeats every four bytes from the start of the
+     * payload, so a big-endian long of it twice over lines up with every eight bytes read the same way.
+     */
+    static void unmask(ByteBuffer buffer, int from, int to, int mask) {
+        long wideMask = (mask & 0xffffffffL) << 32 | (mask & 0xffffffffL);
+        int i = from;
+        for (; i + 8 <= to; i += 8) {
+            buffer.putLong(i, buffer.getLong(i) ^ wideMask);
+        }
+        for (int shift = 24; i < to; i++, shift -= 8) {
+            buffer.put(i, (byte) (buffer.get(i) ^ mask >>> shift));
+        }
+    }
+
+    /**
+     * Reports a frame the connection has to be closed over, with the status code to close it with.
+     */
+    public static class ProtocolException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        public ProtocolException(int status, String message) {
+            super(message, null, false, false);
+            this.status = status;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package sh.hella.http.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes WebSocket frames sent by the server, which are never masked, so a frame encoded once can be written to any
+ * number of connections as is.
+ */
+public class WebSocketEncoder {
+    private static final int MAX_HEADER_LENGTH = 10;
+
+    public static int headerLength(long payloadLength) {
+        return payloadLength < 126 ? 2 : payloadLength <= 0xffff ? 4 : MAX_HEADER_LENGTH;
+    }
+
+    public static void encodeHeader(ByteBuffer out, int opcode, boolean fin, long payloadLength) {
+        out.put((byte) ((fin ? 0x80 : 0) | opcode));
+        if (payloadLength < 126) {
+            out.put((byte) payloadLength);
+        } else if (payloadLength <= 0xffff) {
+            out.put((byte) 126).putShort((short) payloadLength);
+        } else {
+            out.put((byte) 127).putLong(payloadLength);
+        }
+    }
+
+    /**
+     * Encodes a whole frame into a read-only direct buffer, for sending the same frame to many connections.
+     */
+    public static ByteBuffer encode(int opcode, ByteBuffer payload) {
+        int length = payload.remaining();
+        ByteBuffer frame = ByteBuffer.allocateDirect(headerLength(length) + length);
+        encodeHeader(frame, opcode, true, length);
+        frame.put(frame.position(), payload, payload.position(), length);
+        return frame.position(frame.capacity()).flip().asReadOnlyBuffer();
+    }
+}
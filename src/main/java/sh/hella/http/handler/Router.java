@@ -0,0 +1,282 @@
+package sh.hella.http.handler;
+
+import sh.hella.http.Request;
+import sh.hella.http.Response;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.StringJoiner;
+import java.util.function.Function;
+
+/**
+ * Dispatches requests by method and path template, e.g. {@code /users/{id}/orders} or {@code /files/{path*}}.
+ * Templates are compiled into a radix trie that is walked directly over the path bytes in the receive buffer, and
+ * captured parameters are recorded as offsets on the request. Routes must be registered before the server starts.
+ */
+public class Router implements Function<Request, Response> {
+    private static final String[] METHODS = {"GET", "HEAD", "POST", "PUT", "PATCH", "DELETE", "OPTIONS", "TRACE", "CONNECT"};
+    private static final int GET = 0, HEAD = 1;
+    private static final Response NOT_FOUND = Response.prebuilt(Response.builder().status(404).build());
+
+    private final Node root = new Node(new byte[0]);
+    private Function<Request, Response> notFound = request -> NOT_FOUND;
+
+    public Router get(String template, Function<Request, Response> handler) {
+        return route("GET", template, handler);
+    }
+
+    public Router post(String template, Function<Request, Response> handler) {
+        return route("POST", template, handler);
+    }
+
+    public Router put(String template, Function<Request, Response> handler) {
+        return route("PUT", template, handler);
+    }
+
+    public Router patch(String template, Function<Request, Response> handler) {
+        return route("PATCH", template, handler);
+    }
+
+    public Router delete(String template, Function<Request, Response> handler) {
+        return route("DELETE", template, handler);
+    }
+
+    public Router notFound(Function<Request, Response> handler) {
+        this.notFound = handler;
+        return this;
+    }
+
+    public Router route(String method, String template, Function<Request, Response> handler) {
+        int methodIndex = methodIndex(method);
+        if (methodIndex < 0) {
+            throw new IllegalArgumentException("Unsupported method: " + method);
+        } else if (!template.startsWith("/")) {
+            throw new IllegalArgumentException("Template must start with '/': " + template);
+        }
+        List<String> names = new ArrayList<>();
+        Node node = root;
+        int i = 0;
+        while (i < template.length()) {
+            int open = template.indexOf('{', i);
+            if (open != i) {
+                int end = open < 0 ? template.length() : open;
+                node = node.insertStatic(template.substring(i, end).getBytes(StandardCharsets.UTF_8));
+                i = end;
+                continue;
+            }
+            int close = template.indexOf('}', open);
+            if (close < 0) {
+                throw new IllegalArgumentException("Unclosed parameter in template: " + template);
+            }
+            String name = template.substring(open + 1, close);
+            if (name.endsWith("*")) {
+                if (close != template.length() - 1) {
+                    throw new IllegalArgumentException("Catch-all parameter must be last: " + template);
+                }
+                node = node.catchAll == null ? (node.catchAll = new Node(new byte[0])) : node.catchAll;
+                name = name.substring(0, name.length() - 1);
+            } else {
+                if (close + 1 < template.length() && template.charAt(close + 1) != '/') {
+                    throw new IllegalArgumentException("Parameter must end a segment: " + template);
+                }
+                node = node.param == null ? (node.param = new Node(new byte[0])) : node.param;
+            }
+            names.add(name);
+            i = close + 1;
+        }
+        if (node.routes[methodIndex] != null) {
+            throw new IllegalArgumentException("Duplicate route: " + method + " " + template);
+        }
+        node.routes[methodIndex] = new Route(handler, names.toArray(new String[0]));
+        node.methodNotAllowed = null;
+        return this;
+    }
+
+    @Override
+    public Response apply(Request request) {
+        request.truncatePathParameters(0);
+        Node node = match(root, request, 0, request.getPathLength());
+        if (node == null) {
+            return notFound.apply(request);
+        }
+        int methodIndex = methodIndex(request.getMethod());
+        Route route = methodIndex < 0 ? null : node.routes[methodIndex];
+        if (route == null && methodIndex == HEAD) {
+            // The server sends only the head of the GET response, with the Content-Length of its body
+            route = node.routes[GET];
+        }
+        if (route == null) {
+            return node.methodNotAllowed();
+        }
+        request.setPathParameterNames(route.names);
+        return route.handler.apply(request);
+    }
+
+    private static Node match(Node node, Request request, int position, int length) {
+        if (position == length) {
+            return node.hasRoutes() ? node : null;
+        }
+
+        Node child = node.child(request.getPathByte(position));
+        if (child != null && child.matchesLabel(request, position, length)) {
+            Node found = match(child, request, position + child.label.length, length);
+            if (found != null) {
+                return found;
+            }
+        }
+
+        if (node.param != null) {
+            int end = position;
+            while (end < length && request.getPathByte(end) != '/') {
+                end++;
+            }
+            if (end > position) {
+                int captured = request.getPathParameterCount();
+                request.addPathParameter(position, end);
+                Node found = match(node.param, request, end, length);
+                if (found != null) {
+                    return found;
+                }
+                request.truncatePathParameters(captured);
+            }
+        }
+
+        if (node.catchAll != null && node.catchAll.hasRoutes()) {
+            request.addPathParameter(position, length);
+            return node.catchAll;
+        }
+        return null;
+    }
+
+    private static int methodIndex(String method) {
+        // The decoder hands out interned method names, so this is normally an identity hit
+        for (int i = 0; i < METHODS.length; i++) {
+            if (METHODS[i] == method || METHODS[i].equals(method)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static class Route {
+        private final Function<Request, Response> handler;
+        private final String[] names;
+
+        Route(Function<Request, Response> handler, String[] names) {
+            this.handler = handler;
+            this.names = names;
+        }
+    }
+
+    private static class Node {
+        private byte[] label;
+        private byte[] childKeys = new byte[0];
+        private Node[] children = new Node[0];
+        private Node param;
+        private Node catchAll;
+        private Route[] routes = new Route[METHODS.length];
+        private volatile Response methodNotAllowed;
+
+        Node(byte[] label) {
+            this.label = label;
+        }
+
+        Node child(byte first) {
+            for (int i = 0; i < childKeys.length; i++) {
+                if (childKeys[i] == first) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        boolean matchesLabel(Request request, int position, int length) {
+            if (length - position < label.length) {
+                return false;
+            }
+            for (int i = 1; i < label.length; i++) { // the first byte was matched by child()
+                if (request.getPathByte(position + i) != label[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean hasRoutes() {
+            for (Route route : routes) {
+                if (route != null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        Node insertStatic(byte[] text) {
+            Node node = this;
+            int offset = 0;
+            while (offset < text.length) {
+                Node child = node.child(text[offset]);
+                if (child == null) {
+                    Node leaf = new Node(Arrays.copyOfRange(text, offset, text.length));
+                    node.addChild(leaf);
+                    return leaf;
+                }
+                int common = 0;
+                while (common < child.label.length
+                    && offset + common < text.length
+                    && child.label[common] == text[offset + common]) {
+                    common++;
+                }
+                if (common < child.label.length) {
+                    child.split(common);
+                }
+                node = child;
+                offset += common;
+            }
+            return node;
+        }
+
+        private void split(int at) {
+            // Move everything below this node into a new child holding the rest of the label
+            Node rest = new Node(Arrays.copyOfRange(label, at, label.length));
+            rest.childKeys = childKeys;
+            rest.children = children;
+            rest.param = param;
+            rest.catchAll = catchAll;
+            rest.routes = routes;
+            label = Arrays.copyOf(label, at);
+            childKeys = new byte[] {rest.label[0]};
+            children = new Node[] {rest};
+            param = null;
+            catchAll = null;
+            routes = new Route[METHODS.length];
+            methodNotAllowed = null;
+        }
+
+        private void addChild(Node child) {
+            childKeys = Arrays.copyOf(childKeys, childKeys.length + 1);
+            children = Arrays.copyOf(children, children.length + 1);
+            childKeys[childKeys.length - 1] = child.label[0];
+            children[children.length - 1] = child;
+        }
+
+        Response methodNotAllowed() {
+            Response response = methodNotAllowed;
+            if (response == null) {
+                StringJoiner allow = new StringJoiner(", ");
+                for (int i = 0; i < METHODS.length; i++) {
+                    if (routes[i] != null || (i == HEAD && routes[GET] != null)) {
+                        allow.add(METHODS[i]);
+                    }
+                }
+                response = methodNotAllowed = Response.prebuilt(Response.builder()
+                    .status(405)
+                    .header("Allow", allow.toString())
+                    .build());
+            }
+            return response;
+        }
+    }
+}
@@ -0,0 +1,440 @@
+package sh.hella.http.handler;
+
+import sh.hella.http.Request;
+import sh.hella.http.Response;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Serves files from a directory. Small files are held as prebuilt responses, larger ones are memory-mapped and
+ * written straight from the mapping. Supports ETag/Last-Modified validation and single byte ranges. Requests that
+ * don't match a file are passed to the fallback handler.
+ */
+public class StaticFileHandler implements Function<Request, Response> {
+    private static final Response NOT_FOUND = Response.prebuilt(Response.builder().status(404).build());
+    private static final long MAX_MAPPED_SIZE = Integer.MAX_VALUE;
+    private static final int WINDOW_SIZE = 8 * 1024 * 1024;
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter
+        .ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US)
+        .withZone(ZoneOffset.UTC);
+    private static final Map<String, String> CONTENT_TYPES = Map.ofEntries(
+        Map.entry("html", "text/html; charset=utf-8"),
+        Map.entry("htm", "text/html; charset=utf-8"),
+        Map.entry("css", "text/css; charset=utf-8"),
+        Map.entry("js", "text/javascript; charset=utf-8"),
+        Map.entry("mjs", "text/javascript; charset=utf-8"),
+        Map.entry("json", "application/json"),
+        Map.entry("txt", "text/plain; charset=utf-8"),
+        Map.entry("xml", "application/xml"),
+        Map.entry("svg", "image/svg+xml"),
+        Map.entry("png", "image/png"),
+        Map.entry("jpg", "image/jpeg"),
+        Map.entry("jpeg", "image/jpeg"),
+        Map.entry("gif", "image/gif"),
+        Map.entry("webp", "image/webp"),
+        Map.entry("ico", "image/x-icon"),
+        Map.entry("wasm", "application/wasm"),
+        Map.entry("pdf", "application/pdf"),
+        Map.entry("woff", "font/woff"),
+        Map.entry("woff2", "font/woff2"),
+        Map.entry("mp4", "video/mp4"),
+        Map.entry("webm", "video/webm"));
+
+    private final Path root;
+    private final StaticFileOptions options;
+    private final Function<Request, Response> fallback;
+    private final Map<String, CachedFile> cache = new ConcurrentHashMap<>();
+    private final AtomicLong cachedBytes = new AtomicLong();
+
+    public StaticFileHandler(Path root) {
+        this(root, StaticFileOptions.builder().build(), request -> NOT_FOUND);
+    }
+
+    public StaticFileHandler(Path root, StaticFileOptions options, Function<Request, Response> fallback) {
+        this.root = root.toAbsolutePath().normalize();
+        this.options = options;
+        this.fallback = fallback;
+    }
+
+    @Override
+    public Response apply(Request request) {
+        String method = request.getMethod();
+        boolean head = "HEAD".equals(method);
+        if (!head && !"GET".equals(method)) {
+            return fallback.apply(request);
+        }
+        String path = request.getPath();
+        if (!hasPrefix(path, options.getPrefix())) {
+            return fallback.apply(request);
+        }
+        CachedFile file = lookup(path);
+        if (file == null) {
+            return fallback.apply(request);
+        }
+
+        if (isNotModified(request, file)) {
+            return file.notModified;
+        }
+        String range = request.getHeader("Range");
+        if (range != null && !head && ifRangeMatches(request, file)) {
+            return rangeResponse(file, range);
+        }
+        return head ? file.head : file.full;
+    }
+
+    /**
+     * Whether the path is under the prefix, taken as whole segments, so a prefix of /static takes /static/app.js but
+     * not /staticky.
+     */
+    private static boolean hasPrefix(String path, String prefix) {
+        if (!path.startsWith(prefix)) {
+            return false;
+        }
+        return prefix.endsWith("/") || path.length() == prefix.length() || path.charAt(prefix.length()) == '/';
+    }
+
+    private CachedFile lookup(String path) {
+        long now = System.currentTimeMillis();
+        CachedFile file = cache.get(path);
+        if (file != null) {
+            if (now - file.checkedAt > options.getRevalidateMillis()) {
+                if (!file.isCurrent()) {
+                    evict(path, file);
+                    return load(path, now);
+                }
+                file.checkedAt = now;
+            }
+            file.lastAccess = now;
+            return file;
+        }
+        return load(path, now);
+    }
+
+    private CachedFile load(String path, long now) {
+        Path resolved = resolve(path.substring(options.getPrefix().length()));
+        if (resolved == null) {
+            return null;
+        }
+        try {
+            if (Files.isDirectory(resolved)) {
+                resolved = resolved.resolve(options.getIndexFile());
+            }
+            BasicFileAttributes attributes = Files.readAttributes(resolved, BasicFileAttributes.class);
+            if (!attributes.isRegularFile()) {
+                return null;
+            }
+            CachedFile file = new CachedFile(resolved, attributes, options.getPrebuiltFileSize(), now);
+            if (file.size <= MAX_MAPPED_SIZE) {
+                CachedFile existing = cache.putIfAbsent(path, file);
+                if (existing != null) {
+                    return existing;
+                }
+                if (cachedBytes.addAndGet(file.size) > options.getMaxCacheBytes()
+                    || cache.size() > options.getMaxCacheEntries()) {
+                    trim();
+                }
+            }
+            return file;
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    private Path resolve(String relative) {
+        String decoded = percentDecode(relative);
+        if (decoded == null || decoded.indexOf('\0') >= 0) {
+            return null;
+        }
+        while (decoded.startsWith("/")) {
+            decoded = decoded.substring(1);
+        }
+        Path resolved = root.resolve(decoded).normalize();
+        return resolved.startsWith(root) ? resolved : null;
+    }
+
+    private void evict(String path, CachedFile file) {
+        if (cache.remove(path, file)) {
+            cachedBytes.addAndGet(-file.size);
+        }
+    }
+
+    private synchronized void trim() {
+        // Evictions are rare, so an occasional sort beats keeping an ordered structure up to date on every hit
+        List<Map.Entry<String, CachedFile>> entries = new ArrayList<>(cache.entrySet());
+        entries.sort(Comparator.comparingLong(entry -> entry.getValue().lastAccess));
+        for (Map.Entry<String, CachedFile> entry : entries) {
+            if (cachedBytes.get() <= options.getMaxCacheBytes() && cache.size() <= options.getMaxCacheEntries()) {
+                break;
+            }
+            evict(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private static boolean isNotModified(Request request, CachedFile file) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            return ifNoneMatch.equals("*") || ifNoneMatch.contains(file.etag);
+        }
+        String ifModifiedSince = request.getHeader("If-Modified-Since");
+        if (ifModifiedSince != null) {
+            try {
+                long since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME)
+                    .toEpochSecond();
+                return file.lastModifiedMillis / 1000 <= since;
+            } catch (DateTimeParseException ex) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private static boolean ifRangeMatches(Request request, CachedFile file) {
+        String ifRange = request.getHeader("If-Range");
+        return ifRange == null || ifRange.equals(file.etag) || ifRange.equals(file.lastModified);
+    }
+
+    private static Response rangeResponse(CachedFile file, String range) {
+        long[] bounds = parseRange(range, file.size);
+        if (bounds == null) {
+            // Multiple or unparseable ranges, which are allowed to be ignored
+            return file.full;
+        } else if (bounds.length == 0) {
+            return Response.builder()
+                .status(416)
+                .header("Content-Range", "bytes */" + file.size)
+                .build();
+        }
+        long start = bounds[0], end = bounds[1];
+        Response.ResponseBuilder builder = Response.builder()
+            .status(206)
+            .header("Content-Type", file.contentType)
+            .header("ETag", file.etag)
+            .header("Last-Modified", file.lastModified)
+            .header("Content-Range", "bytes " + start + "-" + end + "/" + file.size);
+        if (file.content != null) {
+            return builder.bodyBuffer(file.content.slice((int) start, (int) (end - start + 1))).build();
+        }
+        return builder
+            .header("Content-Length", Long.toString(end - start + 1))
+            .bodyPublisher(new MappedFilePublisher(file.path, start, end + 1))
+            .build();
+    }
+
+    /**
+     * Returns {start, end} inclusive, an empty array if the range can't be satisfied, or null if the header
+     * should be ignored.
+     */
+    private static long[] parseRange(String range, long size) {
+        if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+            return null;
+        }
+        String spec = range.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            long start, end;
+            if (dash == 0) {
+                long suffix = Long.parseLong(spec.substring(1));
+                if (suffix == 0) {
+                    return new long[0];
+                }
+                start = Math.max(0, size - suffix);
+                end = size - 1;
+            } else {
+                start = Long.parseLong(spec.substring(0, dash));
+                end = dash == spec.length() - 1 ? size - 1 : Math.min(Long.parseLong(spec.substring(dash + 1)), size - 1);
+            }
+            if (start > end || start >= size) {
+                return new long[0];
+            }
+            return new long[] {start, end};
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    private static String percentDecode(String value) {
+        if (value.indexOf('%') < 0) {
+            return value;
+        }
+        byte[] out = new byte[value.length()];
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '%') {
+                if (i + 2 >= value.length()) {
+                    return null;
+                }
+                int hi = Character.digit(value.charAt(i + 1), 16), lo = Character.digit(value.charAt(i + 2), 16);
+                if (hi < 0 || lo < 0) {
+                    return null;
+                }
+                out[length++] = (byte) (hi << 4 | lo);
+                i += 2;
+            } else {
+                out[length++] = (byte) c;
+            }
+        }
+        return new String(out, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private static String contentType(Path path) {
+        String name = path.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String type = dot < 0 ? null : CONTENT_TYPES.get(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+        if (type == null) {
+            try {
+                type = Files.probeContentType(path);
+            } catch (IOException ignored) {
+                // Fall through to the default
+            }
+        }
+        return type == null ? "application/octet-stream" : type;
+    }
+
+    private static class CachedFile {
+        private final Path path;
+        private final long size;
+        private final long lastModifiedMillis;
+        private final String etag;
+        private final String lastModified;
+        private final String contentType;
+        private final ByteBuffer content;
+        private final Response full;
+        private final Response head;
+        private final Response notModified;
+        private volatile long checkedAt;
+        private volatile long lastAccess;
+
+        CachedFile(Path path, BasicFileAttributes attributes, int prebuiltFileSize, long now) throws IOException {
+            this.path = path;
+            this.size = attributes.size();
+            this.lastModifiedMillis = attributes.lastModifiedTime().toMillis();
+            this.etag = "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModifiedMillis) + "\"";
+            this.lastModified = HTTP_DATE.format(Instant.ofEpochMilli(lastModifiedMillis));
+            this.contentType = contentType(path);
+            this.checkedAt = now;
+            this.lastAccess = now;
+
+            this.notModified = Response.prebuilt(Response.builder()
+                .status(304)
+                .header("ETag", etag)
+                .header("Last-Modified", lastModified)
+                .build());
+            this.head = Response.prebuilt(headers(Response.builder())
+                .header("Content-Length", Long.toString(size))
+                .build());
+
+            if (size <= prebuiltFileSize) {
+                var prebuilt = Response.prebuilt(headers(Response.builder()).body(Files.readAllBytes(path)).build());
+                this.full = prebuilt;
+                this.content = prebuilt.getEncodedBody().slice();
+            } else if (size <= MAX_MAPPED_SIZE) {
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    // The mapping outlives the channel, and is unmapped once the last write referencing it is gone
+                    this.content = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                }
+                this.full = headers(Response.builder()).bodyBuffer(content).build();
+            } else {
+                this.content = null;
+                this.full = headers(Response.builder())
+                    .header("Content-Length", Long.toString(size))
+                    .bodyPublisher(new MappedFilePublisher(path, 0, size))
+                    .build();
+            }
+        }
+
+        private Response.ResponseBuilder headers(Response.ResponseBuilder builder) {
+            return builder
+                .status(200)
+                .header("Content-Type", contentType)
+                .header("ETag", etag)
+                .header("Last-Modified", lastModified)
+                .header("Accept-Ranges", "bytes");
+        }
+
+        private boolean isCurrent() {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                return attributes.size() == size && attributes.lastModifiedTime().toMillis() == lastModifiedMillis;
+            } catch (IOException ex) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Publishes a file too large to map in one piece as a series of mapped windows, one per request.
+     */
+    private static class MappedFilePublisher implements Flow.Publisher<ByteBuffer> {
+        private final Path path;
+        private final long start;
+        private final long end;
+
+        MappedFilePublisher(Path path, long start, long end) {
+            this.path = path;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                private long position = start;
+                private boolean done = false;
+
+                @Override
+                public synchronized void request(long n) {
+                    for (; n > 0 && !done; n--) {
+                        if (position >= end) {
+                            done = true;
+                            subscriber.onComplete();
+                            return;
+                        }
+                        long length = Math.min(WINDOW_SIZE, end - position);
+                        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                            subscriber.onNext(channel.map(FileChannel.MapMode.READ_ONLY, position, length));
+                        } catch (IOException ex) {
+                            done = true;
+                            subscriber.onError(ex);
+                            return;
+                        }
+                        position += length;
+                    }
+                    if (position >= end && !done) {
+                        done = true;
+                        subscriber.onComplete();
+                    }
+                }
+
+                @Override
+                public synchronized void cancel() {
+                    done = true;
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package sh.hella.http.handler;
+
+import lombok.Builder;
+import lombok.Data;
+
+@Data
+@Builder
+public class StaticFileOptions {
+    @Builder.Default private final String prefix = "/";
+    @Builder.Default private final String indexFile = "index.html";
+    @Builder.Default private final long maxCacheBytes = 256L * 1024 * 1024;
+    @Builder.Default private final int maxCacheEntries = 4096;
+    @Builder.Default private final int prebuiltFileSize = 16 * 1024;
+    @Builder.Default private final long revalidateMillis = 1000;
+}
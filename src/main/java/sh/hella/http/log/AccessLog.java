@@ -0,0 +1,149 @@
+package sh.hella.http.log;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes the rings' access log records to a file from a background thread. Records are copied as they are into a
+ * memory-mapped file, and only turned into text when {@link AccessLogReader} reads them. Once a file is full it is
+ * rolled over to {@code <file>.1}, older ones move up a number, and the oldest past {@code files} is deleted. A file
+ * left over from an earlier run is rolled over the same way on start.
+ */
+public class AccessLog {
+    static final long MAGIC = 0x48454C4C414C4F47L; // HELLALOG
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = AccessLogBuffer.RECORD_SIZE;
+    private static final long IDLE_PARK_NANOS = 10_000_000;
+
+    private final Path path;
+    private final long fileSize;
+    private final int files;
+    private final List<AccessLogBuffer> buffers = new CopyOnWriteArrayList<>();
+    private final AccessLogBuffer.RecordSink sink = this::write;
+    private FileChannel channel;
+    private MappedByteBuffer mapping;
+    private Thread drainer;
+    private volatile boolean running;
+
+    /**
+     * @param fileSize the size at which a file is rolled over
+     * @param files    how many rolled over files to keep
+     */
+    public AccessLog(Path path, long fileSize, int files) {
+        this.path = path;
+        // Whole records only, so a file never ends in part of one
+        this.fileSize = HEADER_SIZE + Math.max(1, (fileSize - HEADER_SIZE) / AccessLogBuffer.RECORD_SIZE)
+            * AccessLogBuffer.RECORD_SIZE;
+        this.files = files;
+    }
+
+    public void register(AccessLogBuffer buffer) {
+        buffers.add(buffer);
+    }
+
+    public synchronized void start() throws IOException {
+        if (Files.exists(path)) {
+            roll();
+        }
+        open();
+        running = true;
+        drainer = new Thread(this::run, "hella-access-log");
+        drainer.setDaemon(true);
+        drainer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+    }
+
+    /**
+     * Writes out whatever is left in the buffers and cuts the file back to what was written.
+     */
+    public synchronized void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(drainer);
+        try {
+            drainer.join();
+            drain();
+            finish();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private void run() {
+        while (running) {
+            if (drain() == 0) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    private int drain() {
+        int drained = 0;
+        for (AccessLogBuffer buffer : buffers) {
+            drained += buffer.drain(sink);
+        }
+        return drained;
+    }
+
+    private void write(ByteBuffer records, int offset) {
+        try {
+            if (!mapping.hasRemaining()) {
+                finish();
+                roll();
+                open();
+            }
+            mapping.put(mapping.position(), records, offset, AccessLogBuffer.RECORD_SIZE);
+            mapping.position(mapping.position() + AccessLogBuffer.RECORD_SIZE);
+        } catch (IOException ex) {
+            // Dropped, the same as when the buffers overflow, rather than stopping the drainer for good
+            mapping.position(mapping.limit());
+        }
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+        mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+        mapping.putLong(MAGIC).putInt(VERSION).putInt(AccessLogBuffer.RECORD_SIZE);
+        mapping.position(HEADER_SIZE);
+    }
+
+    private void finish() throws IOException {
+        try (FileChannel file = channel) {
+            // What was never written reads as zeros, which the reader takes as the end, but it needn't take space
+            file.truncate(mapping.position());
+        }
+    }
+
+    private void roll() throws IOException {
+        Files.deleteIfExists(rolled(files));
+        for (int i = files - 1; i >= 1; i--) {
+            if (Files.exists(rolled(i))) {
+                Files.move(rolled(i), rolled(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (files > 0) {
+            Files.move(path, rolled(1), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(path);
+        }
+    }
+
+    private Path rolled(int index) {
+        return path.resolveSibling(path.getFileName() + "." + index);
+    }
+}
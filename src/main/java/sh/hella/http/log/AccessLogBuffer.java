@@ -0,0 +1,128 @@
+package sh.hella.http.log;
+
+import sh.hella.http.Request;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+
+/**
+ * One ring's access log records, waiting for {@link AccessLog} to write them out. It is a single producer, single
+ * consumer queue of fixed-size records in a direct buffer: the ring fills in a slot and publishes it with a release
+ * store, and the drainer hands the slots back the same way. When the drainer falls behind, records are dropped
+ * rather than making the ring wait.
+ */
+public class AccessLogBuffer {
+    static final int RECORD_SIZE = 128;
+    static final int TIMESTAMP = 0;
+    static final int LATENCY = 8;
+    static final int BYTES = 16;
+    static final int STATUS = 24;
+    static final int METHOD = 26;
+    static final int PROTOCOL = 27;
+    static final int PATH_LENGTH = 28;
+    static final int PATH = 32;
+    static final int PATH_CAPACITY = RECORD_SIZE - PATH;
+    static final String[] METHODS = {null, "GET", "HEAD", "POST", "PUT", "DELETE", "CONNECT", "OPTIONS", "TRACE",
+        "PATCH"};
+    static final String[] PROTOCOLS = {null, "HTTP/1.0", "HTTP/1.1", "HTTP/2.0"};
+
+    private static final VarHandle LONGS = MethodHandles.arrayElementVarHandle(long[].class);
+    // Far enough apart that the ring and the drainer don't share a cache line
+    private static final int HEAD = 0;
+    private static final int TAIL = 8;
+
+    private final ByteBuffer records;
+    private final int mask;
+    private final long[] positions = new long[16];
+    // Wall clock time at nanoTime zero, so a record costs one clock read
+    private final long epochOffset = System.currentTimeMillis() * 1_000_000 - System.nanoTime();
+    private long cachedHead;
+
+    /**
+     * @param capacity records held before new ones are dropped, rounded up to a power of two
+     */
+    public AccessLogBuffer(int capacity) {
+        int slots = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        records = ByteBuffer.allocateDirect(slots * RECORD_SIZE);
+        mask = slots - 1;
+    }
+
+    /**
+     * Records a response on the ring thread, returning false if it had to be dropped.
+     *
+     * @param bytes     the length of the response body, or -1 if it is streamed
+     * @param startNanos when the request was decoded
+     */
+    public boolean append(Request request, int status, long bytes, long startNanos) {
+        long tail = positions[TAIL];
+        if (tail - cachedHead > mask) {
+            cachedHead = (long) LONGS.getAcquire(positions, HEAD);
+            if (tail - cachedHead > mask) {
+                return false;
+            }
+        }
+        long now = System.nanoTime();
+        int at = (int) (tail & mask) * RECORD_SIZE;
+        records.putLong(at + TIMESTAMP, epochOffset + now);
+        records.putLong(at + LATENCY, now - startNanos);
+        records.putLong(at + BYTES, bytes);
+        records.putShort(at + STATUS, (short) status);
+        records.put(at + METHOD, method(request.getMethod()));
+        records.put(at + PROTOCOL, protocol(request.getProtocol()));
+        records.putInt(at + PATH_LENGTH, request.getPathLength());
+        request.copyPath(records, at + PATH, PATH_CAPACITY);
+        LONGS.setRelease(positions, TAIL, tail + 1);
+        return true;
+    }
+
+    /**
+     * Passes every published record to the sink on the drainer thread, then frees their slots. Returns how many
+     * there were.
+     */
+    int drain(RecordSink sink) {
+        long head = positions[HEAD];
+        long tail = (long) LONGS.getAcquire(positions, TAIL);
+        for (long i = head; i < tail; i++) {
+            sink.accept(records, (int) (i & mask) * RECORD_SIZE);
+        }
+        LONGS.setRelease(positions, HEAD, tail);
+        return (int) (tail - head);
+    }
+
+    private static byte method(String method) {
+        if (method == null) {
+            return 0;
+        }
+        // The decoder's methods are constants, so this is a hash that is already cached and one comparison
+        return switch (method) {
+            case "GET" -> 1;
+            case "HEAD" -> 2;
+            case "POST" -> 3;
+            case "PUT" -> 4;
+            case "DELETE" -> 5;
+            case "CONNECT" -> 6;
+            case "OPTIONS" -> 7;
+            case "TRACE" -> 8;
+            case "PATCH" -> 9;
+            default -> 0;
+        };
+    }
+
+    private static byte protocol(String protocol) {
+        if (protocol == null) {
+            return 0;
+        }
+        return switch (protocol) {
+            case "HTTP/1.0" -> 1;
+            case "HTTP/1.1" -> 2;
+            case "HTTP/2.0" -> 3;
+            default -> 0;
+        };
+    }
+
+    @FunctionalInterface
+    interface RecordSink {
+        void accept(ByteBuffer records, int offset);
+    }
+}
@@ -0,0 +1,98 @@
+package sh.hella.http.log;
+
+import lombok.Getter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.function.Consumer;
+
+/**
+ * Reads access log files back, including the one still being written. Run it with the files to print as arguments,
+ * oldest first, for one line per request:
+ * <pre>
+ * java -cp hella-http.jar sh.hella.http.log.AccessLogReader access.log.1 access.log
+ * </pre>
+ */
+public class AccessLogReader {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: AccessLogReader <file>...");
+            System.exit(1);
+        }
+        for (String file : args) {
+            read(Paths.get(file), System.out::println);
+        }
+    }
+
+    public static void read(Path path, Consumer<Entry> consumer) throws IOException {
+        ByteBuffer file;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (file.remaining() < AccessLog.HEADER_SIZE || file.getLong(0) != AccessLog.MAGIC) {
+            throw new IOException(path + " is not an access log");
+        }
+        if (file.getInt(8) != AccessLog.VERSION || file.getInt(12) != AccessLogBuffer.RECORD_SIZE) {
+            throw new IOException(path + " has an unsupported version");
+        }
+        for (int at = AccessLog.HEADER_SIZE; at + AccessLogBuffer.RECORD_SIZE <= file.limit();
+             at += AccessLogBuffer.RECORD_SIZE) {
+            long timestamp = file.getLong(at + AccessLogBuffer.TIMESTAMP);
+            if (timestamp == 0) {
+                break; // the unwritten end of a live file
+            }
+            consumer.accept(new Entry(file, at, timestamp));
+        }
+    }
+
+    @Getter
+    public static class Entry {
+        private final Instant timestamp;
+        private final String method;
+        private final String protocol;
+        /**
+         * The path, cut short if it was longer than a record has room for.
+         */
+        private final String path;
+        private final boolean pathTruncated;
+        private final int status;
+        /**
+         * The length of the response body, or -1 if it was streamed.
+         */
+        private final long bytes;
+        private final long latencyNanos;
+
+        Entry(ByteBuffer file, int at, long timestamp) {
+            this.timestamp = Instant.ofEpochSecond(0, timestamp);
+            method = name(AccessLogBuffer.METHODS, file.get(at + AccessLogBuffer.METHOD));
+            protocol = name(AccessLogBuffer.PROTOCOLS, file.get(at + AccessLogBuffer.PROTOCOL));
+            int pathLength = file.getInt(at + AccessLogBuffer.PATH_LENGTH);
+            byte[] pathBytes = new byte[Math.min(pathLength, AccessLogBuffer.PATH_CAPACITY)];
+            file.get(at + AccessLogBuffer.PATH, pathBytes);
+            path = new String(pathBytes, StandardCharsets.UTF_8);
+            pathTruncated = pathLength > pathBytes.length;
+            status = file.getShort(at + AccessLogBuffer.STATUS);
+            bytes = file.getLong(at + AccessLogBuffer.BYTES);
+            latencyNanos = file.getLong(at + AccessLogBuffer.LATENCY);
+        }
+
+        private static String name(String[] names, byte code) {
+            return code > 0 && code < names.length ? names[code] : "-";
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%s %s %s%s %s %d %s %.3fms", timestamp, method, path,
+                pathTruncated ? "..." : "", protocol, status, bytes < 0 ? "-" : Long.toString(bytes),
+                latencyNanos / 1e6);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package sh.hella.http.metrics;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * A log-linear latency histogram in the style of HdrHistogram, with 32 sub-buckets per power of two for a relative
+ * error of about 3%. It has a single writer, the ring that owns it, and recording is a few shifts and an opaque store.
+ * Any thread may take a {@link Snapshot}, which sees each bucket as it was at some recent point.
+ */
+public class Histogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+    private static final VarHandle LONGS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private final long[] counts = new long[BUCKETS];
+    // count, sum, max
+    private final long[] totals = new long[3];
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        increment(counts, index(value), 1);
+        increment(totals, 0, 1);
+        increment(totals, 1, value);
+        if (value > (long) LONGS.getOpaque(totals, 2)) {
+            LONGS.setOpaque(totals, 2, value);
+        }
+    }
+
+    public Snapshot snapshot() {
+        Snapshot snapshot = new Snapshot();
+        snapshot.add(this);
+        return snapshot;
+    }
+
+    static void increment(long[] array, int index, long delta) {
+        LONGS.setOpaque(array, index, (long) LONGS.getOpaque(array, index) + delta);
+    }
+
+    static long read(long[] array, int index) {
+        return (long) LONGS.getOpaque(array, index);
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    static long lowerBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int group = index / SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (group - 1);
+    }
+
+    static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        return lowerBound(index) + (1L << (index / SUB_BUCKETS - 1)) - 1;
+    }
+
+    /**
+     * A point-in-time copy, which histograms from several rings can be merged into.
+     */
+    public static class Snapshot {
+        private final long[] counts = new long[BUCKETS];
+        private long count;
+        private long sum;
+        private long max;
+
+        public void add(Histogram histogram) {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] += read(histogram.counts, i);
+            }
+            count += read(histogram.totals, 0);
+            sum += read(histogram.totals, 1);
+            max = Math.max(max, read(histogram.totals, 2));
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * Returns the highest value in the bucket holding the given percentile, clamped to the largest value seen.
+         */
+        public long getValueAtPercentile(double percentile) {
+            long total = 0;
+            for (long c : counts) {
+                total += c;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max);
+                }
+            }
+            return max;
+        }
+    }
+}
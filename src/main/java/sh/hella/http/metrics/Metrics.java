@@ -0,0 +1,174 @@
+package sh.hella.http.metrics;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.function.Function;
+
+/**
+ * Server-wide metrics, merged from every ring each time they are read.
+ */
+public class Metrics {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final Collection<RingMetrics> rings;
+
+    public Metrics(Collection<RingMetrics> rings) {
+        this.rings = rings;
+    }
+
+    public long getAccepts() {
+        return sum(RingMetrics.ACCEPTS);
+    }
+
+    public long getActiveConnections() {
+        return sum(RingMetrics.ACCEPTS) - sum(RingMetrics.CLOSES);
+    }
+
+    public long getReads() {
+        return sum(RingMetrics.READS);
+    }
+
+    public long getBytesRead() {
+        return sum(RingMetrics.BYTES_READ);
+    }
+
+    public long getWrites() {
+        return sum(RingMetrics.WRITES);
+    }
+
+    public long getBytesWritten() {
+        return sum(RingMetrics.BYTES_WRITTEN);
+    }
+
+    public long getRequests() {
+        return sum(RingMetrics.REQUESTS);
+    }
+
+    public long getDecodeErrors() {
+        return sum(RingMetrics.DECODE_ERRORS);
+    }
+
+    public long getCacheHits() {
+        return sum(RingMetrics.CACHE_HITS);
+    }
+
+    public long getCacheMisses() {
+        return sum(RingMetrics.CACHE_MISSES);
+    }
+
+    /**
+     * Connections turned away because their ring was at {@code maxConnectionsPerRing}.
+     */
+    public long getShedConnections() {
+        return sum(RingMetrics.SHED_CONNECTIONS);
+    }
+
+    /**
+     * Requests answered with 503 because their ring was at its handler concurrency limit.
+     */
+    public long getShedRequests() {
+        return sum(RingMetrics.SHED_REQUESTS);
+    }
+
+    /**
+     * Access log records dropped because the log's writer had fallen behind.
+     */
+    public long getAccessLogDrops() {
+        return sum(RingMetrics.ACCESS_LOG_DROPS);
+    }
+
+    /**
+     * Time spent decoding each request, in nanoseconds.
+     */
+    public Histogram.Snapshot getDecodeTime() {
+        return merge(RingMetrics::getDecodeTime);
+    }
+
+    /**
+     * Time spent in the handler for each request, in nanoseconds. For dispatched handlers this runs until the
+     * response is back on the ring.
+     */
+    public Histogram.Snapshot getHandlerTime() {
+        return merge(RingMetrics::getHandlerTime);
+    }
+
+    /**
+     * Time from a response being encoded until the last of it has been written to the socket, in nanoseconds.
+     */
+    public Histogram.Snapshot getWriteTime() {
+        return merge(RingMetrics::getWriteTime);
+    }
+
+    /**
+     * Renders the metrics in the Prometheus text exposition format.
+     */
+    public byte[] toPrometheus() {
+        StringBuilder out = new StringBuilder(2048);
+        counter(out, "hella_http_accepts_total", "Connections accepted.", getAccepts());
+        gauge(out, "hella_http_active_connections", "Connections currently open.", getActiveConnections());
+        counter(out, "hella_http_reads_total", "Socket reads completed.", getReads());
+        counter(out, "hella_http_read_bytes_total", "Bytes read from sockets.", getBytesRead());
+        counter(out, "hella_http_writes_total", "Socket writes completed.", getWrites());
+        counter(out, "hella_http_written_bytes_total", "Bytes written to sockets.", getBytesWritten());
+        counter(out, "hella_http_requests_total", "Requests decoded.", getRequests());
+        counter(out, "hella_http_decode_errors_total", "Requests that could not be decoded.", getDecodeErrors());
+        counter(out, "hella_http_cache_hits_total", "Requests answered from the response cache.", getCacheHits());
+        counter(out, "hella_http_cache_misses_total", "Cacheable requests not in the response cache.", getCacheMisses());
+        counter(out, "hella_http_shed_connections_total", "Connections turned away by the per-ring limit.",
+            getShedConnections());
+        counter(out, "hella_http_shed_requests_total", "Requests shed by the handler concurrency limit.",
+            getShedRequests());
+        counter(out, "hella_http_access_log_drops_total", "Access log records dropped by a full buffer.",
+            getAccessLogDrops());
+        summary(out, "hella_http_decode_seconds", "Time spent decoding requests.", getDecodeTime());
+        summary(out, "hella_http_handler_seconds", "Time spent in request handlers.", getHandlerTime());
+        summary(out, "hella_http_write_seconds", "Time from encoding a response to writing it.", getWriteTime());
+        return out.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private long sum(int counter) {
+        long total = 0;
+        for (RingMetrics ring : rings) {
+            total += ring.get(counter);
+        }
+        return total;
+    }
+
+    private Histogram.Snapshot merge(Function<RingMetrics, Histogram> histogram) {
+        var snapshot = new Histogram.Snapshot();
+        for (RingMetrics ring : rings) {
+            snapshot.add(histogram.apply(ring));
+        }
+        return snapshot;
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        header(out, name, help, "counter");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        header(out, name, help, "gauge");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void summary(StringBuilder out, String name, String help, Histogram.Snapshot snapshot) {
+        header(out, name, help, "summary");
+        for (double quantile : QUANTILES) {
+            out.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                .append(seconds(snapshot.getValueAtPercentile(quantile * 100))).append('\n');
+        }
+        out.append(name).append("_sum ").append(seconds(snapshot.getSum())).append('\n');
+        out.append(name).append("_count ").append(snapshot.getCount()).append('\n');
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+}
@@ -0,0 +1,86 @@
+package sh.hella.http.metrics;
+
+import lombok.Getter;
+
+/**
+ * Counters and histograms for one ring. Only the ring's own thread records into them, so recording needs no atomic
+ * read-modify-write, just opaque stores that other threads can read without tearing.
+ */
+public class RingMetrics {
+    static final int ACCEPTS = 0;
+    static final int CLOSES = 1;
+    static final int READS = 2;
+    static final int BYTES_READ = 3;
+    static final int WRITES = 4;
+    static final int BYTES_WRITTEN = 5;
+    static final int REQUESTS = 6;
+    static final int DECODE_ERRORS = 7;
+    static final int CACHE_HITS = 8;
+    static final int CACHE_MISSES = 9;
+    static final int SHED_CONNECTIONS = 10;
+    static final int SHED_REQUESTS = 11;
+    static final int ACCESS_LOG_DROPS = 12;
+    static final int COUNTERS = 13;
+
+    private final long[] counters = new long[COUNTERS];
+    @Getter private final Histogram decodeTime = new Histogram();
+    @Getter private final Histogram handlerTime = new Histogram();
+    @Getter private final Histogram writeTime = new Histogram();
+
+    public void accepted() {
+        Histogram.increment(counters, ACCEPTS, 1);
+    }
+
+    public void closed() {
+        Histogram.increment(counters, CLOSES, 1);
+    }
+
+    public void read(int bytes) {
+        Histogram.increment(counters, READS, 1);
+        Histogram.increment(counters, BYTES_READ, bytes);
+    }
+
+    public void wrote(int bytes) {
+        Histogram.increment(counters, WRITES, 1);
+        Histogram.increment(counters, BYTES_WRITTEN, bytes);
+    }
+
+    public void request() {
+        Histogram.increment(counters, REQUESTS, 1);
+    }
+
+    public void decodeError() {
+        Histogram.increment(counters, DECODE_ERRORS, 1);
+    }
+
+    public void cacheHit() {
+        Histogram.increment(counters, CACHE_HITS, 1);
+    }
+
+    public void cacheMiss() {
+        Histogram.increment(counters, CACHE_MISSES, 1);
+    }
+
+    public void shedConnection() {
+        Histogram.increment(counters, SHED_CONNECTIONS, 1);
+    }
+
+    public void shedRequest() {
+        Histogram.increment(counters, SHED_REQUESTS, 1);
+    }
+
+    public void accessLogDrop() {
+        Histogram.increment(counters, ACCESS_LOG_DROPS, 1);
+    }
+
+    /**
+     * Connections open on this ring, read on its own thread to decide whether to take another.
+     */
+    public long getActiveConnections() {
+        return get(ACCEPTS) - get(CLOSES);
+    }
+
+    long get(int counter) {
+        return Histogram.read(counters, counter);
+    }
+}
@@ -0,0 +1,70 @@
+package sh.hella.http.util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pins threads to CPUs on Linux. CPU sets are written the way taskset and sysfs write them, such as {@code "0-3,8"}.
+ * The JDK has no way to set affinity, so the thread's kernel id is read from procfs and handed to taskset, which is
+ * only done once per ring at startup.
+ */
+public final class Affinity {
+    private Affinity() {
+    }
+
+    /**
+     * Restricts the calling thread to the given CPUs.
+     */
+    public static void pin(String cpus) {
+        try {
+            String tid = Files.readSymbolicLink(Path.of("/proc/thread-self")).getFileName().toString();
+            Process process = new ProcessBuilder("taskset", "-p", "-c", cpus, tid)
+                .redirectErrorStream(true)
+                .start();
+            String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+            if (process.waitFor() != 0) {
+                throw new IllegalStateException("Unable to pin thread to CPUs " + cpus + ": " + output.trim());
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException("Unable to pin thread to CPUs " + cpus, ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted pinning thread to CPUs " + cpus, ex);
+        }
+    }
+
+    /**
+     * The CPUs of a NUMA node, as listed by sysfs.
+     */
+    public static String nodeCpus(int node) {
+        try {
+            return Files.readString(Path.of("/sys/devices/system/node/node" + node + "/cpulist")).trim();
+        } catch (IOException ex) {
+            throw new IllegalStateException("Unable to read the CPUs of NUMA node " + node, ex);
+        }
+    }
+
+    /**
+     * Splits a CPU set into one set per CPU, for giving each ring a core of its own.
+     */
+    public static List<String> eachCpu(String cpus) {
+        List<String> each = new ArrayList<>();
+        for (String range : cpus.split(",")) {
+            range = range.trim();
+            if (range.isEmpty()) {
+                continue;
+            }
+            int dash = range.indexOf('-');
+            int first = Integer.parseInt(dash < 0 ? range : range.substring(0, dash));
+            int last = dash < 0 ? first : Integer.parseInt(range.substring(dash + 1));
+            for (int cpu = first; cpu <= last; cpu++) {
+                each.add(Integer.toString(cpu));
+            }
+        }
+        return each;
+    }
+}
@@ -0,0 +1,159 @@
+package sh.hella.http.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Hands out fixed-size direct buffers carved from large page-aligned slabs. An arena belongs to a single ring and is
+ * only ever touched from its thread, so there is no synchronization. Buffers are taken from partly used slabs first,
+ * and once a slab is entirely free it is dropped unless it is the one empty slab kept back, so memory follows the
+ * current load rather than the peak.
+ */
+public class BufferArena {
+    private static final int PAGE_SIZE = 4096;
+
+    private final int bufferSize;
+    private final int buffersPerSlab;
+    private final Budget budget;
+    private final Map<ByteBuffer, Slab> owners = new IdentityHashMap<>();
+    private final ArrayDeque<Slab> available = new ArrayDeque<>();
+    private Slab spare;
+    private int slabs;
+
+    public BufferArena(int bufferSize, int slabSize) {
+        this(bufferSize, slabSize, new Budget(Long.MAX_VALUE));
+    }
+
+    public BufferArena(int bufferSize, int slabSize, Budget budget) {
+        this.bufferSize = bufferSize;
+        this.buffersPerSlab = Math.max(1, slabSize / bufferSize);
+        this.budget = budget;
+    }
+
+    /**
+     * Returns a cleared buffer, or null if another slab is needed and the budget doesn't allow it.
+     */
+    public ByteBuffer take() {
+        Slab slab = available.peekFirst();
+        if (slab == null) {
+            if (spare != null) {
+                slab = spare;
+                spare = null;
+            } else if ((slab = allocateSlab()) == null) {
+                return null;
+            }
+            available.addFirst(slab);
+        }
+        ByteBuffer buffer = slab.free[--slab.freeCount];
+        if (slab.freeCount == 0) {
+            available.pollFirst();
+        }
+        return buffer;
+    }
+
+    public void give(ByteBuffer buffer) {
+        Slab slab = owners.get(buffer);
+        if (slab == null) {
+            throw new IllegalArgumentException("Buffer does not belong to this arena");
+        }
+        slab.free[slab.freeCount++] = buffer.clear();
+        if (slab.freeCount == buffersPerSlab) {
+            available.remove(slab);
+            if (spare == null) {
+                spare = slab;
+            } else {
+                releaseSlab(slab);
+            }
+        } else if (slab.freeCount == 1) {
+            available.addLast(slab);
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getSlabCount() {
+        return slabs;
+    }
+
+    public int getFreeCount() {
+        int free = spare == null ? 0 : spare.freeCount;
+        for (Slab slab : available) {
+            free += slab.freeCount;
+        }
+        return free;
+    }
+
+    private Slab allocateSlab() {
+        // Round buffers of a page or more up to whole pages so none of them straddles a page it doesn't own. Smaller
+        // ones are packed back to back, as a page each would waste most of it.
+        int stride = bufferSize < PAGE_SIZE ? bufferSize : (bufferSize + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+        int size = stride * buffersPerSlab + PAGE_SIZE;
+        if (!budget.reserve(size)) {
+            return null;
+        }
+        // Not alignedSlice, which would also trim the end down to a whole page
+        ByteBuffer memory = ByteBuffer.allocateDirect(size);
+        int start = (PAGE_SIZE - memory.alignmentOffset(0, PAGE_SIZE)) % PAGE_SIZE;
+        Slab slab = new Slab(size, new ByteBuffer[buffersPerSlab]);
+        for (int i = 0; i < buffersPerSlab; i++) {
+            ByteBuffer buffer = memory.slice(start + i * stride, bufferSize);
+            slab.free[buffersPerSlab - 1 - i] = buffer;
+            owners.put(buffer, slab);
+        }
+        slab.freeCount = buffersPerSlab;
+        slabs++;
+        return slab;
+    }
+
+    private void releaseSlab(Slab slab) {
+        // The memory goes back once the slices are unreachable
+        for (ByteBuffer buffer : slab.free) {
+            owners.remove(buffer);
+        }
+        budget.release(slab.size);
+        slabs--;
+    }
+
+    private static class Slab {
+        private final int size;
+        private final ByteBuffer[] free;
+        private int freeCount;
+
+        Slab(int size, ByteBuffer[] free) {
+            this.size = size;
+            this.free = free;
+        }
+    }
+
+    /**
+     * A memory limit shared by the arenas of one ring.
+     */
+    public static class Budget {
+        private final long limit;
+        private long used;
+
+        public Budget(long limit) {
+            this.limit = limit;
+        }
+
+        public long getUsed() {
+            return used;
+        }
+
+        boolean reserve(long bytes) {
+            if (used + bytes > limit) {
+                return false;
+            }
+            used += bytes;
+            return true;
+        }
+
+        void release(long bytes) {
+            used -= bytes;
+        }
+    }
+}
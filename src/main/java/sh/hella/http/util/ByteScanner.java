@@ -0,0 +1,62 @@
+package sh.hella.http.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Finds delimiters in buffers a long at a time, SWAR style: the word is XORed with the delimiter repeated in every
+ * byte, which leaves a zero byte wherever it matched, and the zero bytes are found with a few arithmetic operations
+ * for all eight at once. The variant used never carries from one byte into the next, so it is exact in either byte
+ * order and the first match is just a count of leading or trailing zeros away.
+ * <p>
+ * Setting the {@code sh.hella.http.swar} system property to {@code false} falls back to one byte at a time, which is
+ * what the results are tested against.
+ */
+public final class ByteScanner {
+    private static final boolean SWAR = !"false".equals(System.getProperty("sh.hella.http.swar"));
+    private static final long LOW_SEVEN_BITS = 0x7F7F7F7F7F7F7F7FL;
+    private static final long EVERY_BYTE = 0x0101010101010101L;
+
+    private ByteScanner() {
+    }
+
+    /**
+     * The absolute index of the first occurrence of the byte between {@code from} and {@code to}, or -1.
+     */
+    public static int indexOf(ByteBuffer buffer, int from, int to, byte value) {
+        return SWAR ? indexOfSwar(buffer, from, to, value) : indexOfScalar(buffer, from, to, value);
+    }
+
+    public static int indexOfSwar(ByteBuffer buffer, int from, int to, byte value) {
+        int i = from;
+        if (to - from >= Long.BYTES) {
+            long pattern = (value & 0xFFL) * EVERY_BYTE;
+            boolean bigEndian = buffer.order() == ByteOrder.BIG_ENDIAN;
+            for (; i <= to - Long.BYTES; i += Long.BYTES) {
+                long found = zeroBytes(buffer.getLong(i) ^ pattern);
+                if (found != 0) {
+                    return i + (bigEndian ? Long.numberOfLeadingZeros(found) : Long.numberOfTrailingZeros(found)) / 8;
+                }
+            }
+        }
+        return indexOfScalar(buffer, i, to, value);
+    }
+
+    public static int indexOfScalar(ByteBuffer buffer, int from, int to, byte value) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Sets the high bit of every byte of the word that is zero, and clears everything else.
+     */
+    private static long zeroBytes(long word) {
+        // The low seven bits plus 0x7f carry into the high bit unless they are all clear, and never past it
+        long low = (word & LOW_SEVEN_BITS) + LOW_SEVEN_BITS;
+        return ~(low | word | LOW_SEVEN_BITS);
+    }
+}
@@ -0,0 +1,70 @@
+package sh.hella.http.util;
+
+/**
+ * An adaptive limit on concurrent requests, adjusted by additive increase and multiplicative decrease on their
+ * latency. Every request that finishes within the target raises the limit by a fraction, so a whole limit's worth of
+ * them raises it by one, and one that doesn't cuts it by the backoff ratio. The requests still in flight at a cut
+ * were let in under the old limit, so it is cut at most once until they have all finished: a burst of slow requests
+ * counts as one sign of overload rather than one per request. The limit only grows while it is actually being used,
+ * so a quiet spell can't leave it far above what was last shown to work.
+ * <p>
+ * Only used from a single thread, so there is no synchronization.
+ */
+public class ConcurrencyLimit {
+    private final int minLimit;
+    private final int maxLimit;
+    private final long targetNanos;
+    private final double backoffRatio;
+    private double limit;
+    private int inFlight;
+    private long released;
+    // The count of releases at which the requests in flight at the last cut have all finished
+    private long backoffUntil;
+
+    public ConcurrencyLimit(int minLimit, int maxLimit, long targetNanos, double backoffRatio) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Limits must satisfy 1 <= min <= max: " + minLimit + ", " + maxLimit);
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.targetNanos = targetNanos;
+        this.backoffRatio = backoffRatio;
+        this.limit = maxLimit;
+    }
+
+    /**
+     * Takes a slot for a request, or returns false if the limit has been reached and it should be turned away.
+     */
+    public boolean tryAcquire() {
+        if (inFlight >= (int) limit) {
+            return false;
+        }
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * Gives back the slot of a request that took the given time.
+     */
+    public void release(long latencyNanos) {
+        boolean busy = inFlight * 2 >= limit;
+        inFlight--;
+        released++;
+        if (latencyNanos > targetNanos) {
+            if (released > backoffUntil) {
+                limit = Math.max(minLimit, limit * backoffRatio);
+                backoffUntil = released + inFlight;
+            }
+        } else if (busy) {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+    }
+
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    public int getInFlight() {
+        return inFlight;
+    }
+}
@@ -0,0 +1,116 @@
+package sh.hella.http.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.function.ToLongFunction;
+
+/**
+ * A cache bounded by the total weight of its values, shared between rings and evicting least recently used first. It
+ * is split by key hash into segments, each an access-ordered map under a lock of its own with an equal share of the
+ * weight. Rings looking up different keys rarely wait on each other, and evicting takes constant time however many
+ * entries there are. Segments are never made smaller than {@link #MIN_SEGMENT_WEIGHT}, so a small cache is a single
+ * segment and exactly least recently used.
+ */
+public class LruCache<K, V> {
+    public static final long MIN_SEGMENT_WEIGHT = 4L * 1024 * 1024;
+    private static final int MAX_SEGMENTS = 16;
+
+    private final Segment<K, V>[] segments;
+    private final ToLongFunction<V> weigher;
+    private final long segmentWeight;
+
+    @SuppressWarnings("unchecked")
+    public LruCache(long maxWeight, ToLongFunction<V> weigher) {
+        int count = (int) Math.max(1, Math.min(MAX_SEGMENTS, maxWeight / MIN_SEGMENT_WEIGHT));
+        count = Integer.highestOneBit(count);
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment<>();
+        }
+        this.weigher = weigher;
+        this.segmentWeight = maxWeight / count;
+    }
+
+    public V get(K key) {
+        Segment<K, V> segment = segment(key);
+        synchronized (segment) {
+            return segment.entries.get(key);
+        }
+    }
+
+    /**
+     * Stores the value, evicting the least recently used values in its segment to make room. A value heavier than
+     * {@link #getMaxEntryWeight()} is not stored, though any old value under the key is still removed.
+     */
+    public void put(K key, V value) {
+        long weight = weigher.applyAsLong(value);
+        Segment<K, V> segment = segment(key);
+        synchronized (segment) {
+            V previous = weight <= segmentWeight ? segment.entries.put(key, value) : segment.entries.remove(key);
+            if (previous != null) {
+                segment.weight -= weigher.applyAsLong(previous);
+            }
+            if (weight > segmentWeight) {
+                return;
+            }
+            segment.weight += weight;
+            // The new value is the most recently used, so it fits by the time the others ahead of it are gone
+            Iterator<V> eldest = segment.entries.values().iterator();
+            while (segment.weight > segmentWeight) {
+                segment.weight -= weigher.applyAsLong(eldest.next());
+                eldest.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes the value stored under the key, unless it has already been replaced by another.
+     */
+    public boolean remove(K key, V value) {
+        Segment<K, V> segment = segment(key);
+        synchronized (segment) {
+            if (!segment.entries.remove(key, value)) {
+                return false;
+            }
+            segment.weight -= weigher.applyAsLong(value);
+            return true;
+        }
+    }
+
+    /**
+     * The heaviest value that can be stored, which is one segment's share of the weight.
+     */
+    public long getMaxEntryWeight() {
+        return segmentWeight;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                size += segment.entries.size();
+            }
+        }
+        return size;
+    }
+
+    public long getWeight() {
+        long weight = 0;
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                weight += segment.weight;
+            }
+        }
+        return weight;
+    }
+
+    private Segment<K, V> segment(K key) {
+        int hash = key.hashCode();
+        return segments[(hash ^ (hash >>> 16)) & (segments.length - 1)];
+    }
+
+    private static final class Segment<K, V> {
+        private final LinkedHashMap<K, V> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private long weight;
+    }
+}
@@ -0,0 +1,139 @@
+package sh.hella.http.util;
+
+/**
+ * A hashed timing wheel for a single thread. Scheduling, rescheduling and cancelling are O(1), and advancing only
+ * visits the slots for the ticks that have passed. Pushing a deadline back just records it, and the timeout is moved
+ * when its old slot comes round, so touching a timeout on every read is little more than a field write.
+ */
+public class TimerWheel {
+    private final long tickMillis;
+    private final Timeout[] slots;
+    private final int mask;
+    private long tick;
+    private long now;
+    private int size;
+
+    public TimerWheel(long tickMillis, int slotCount, long now) {
+        if (Integer.bitCount(slotCount) != 1) {
+            throw new IllegalArgumentException("Slot count must be a power of two: " + slotCount);
+        }
+        this.tickMillis = tickMillis;
+        this.slots = new Timeout[slotCount];
+        this.mask = slotCount - 1;
+        this.now = now;
+        this.tick = now / tickMillis;
+    }
+
+    /**
+     * The time of the last advance, which is what delays are measured from.
+     */
+    public long now() {
+        return now;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void schedule(Timeout timeout, long delayMillis) {
+        long deadline = now + delayMillis;
+        if (timeout.scheduled) {
+            if (deadline >= timeout.deadline) {
+                timeout.deadline = deadline;
+                return;
+            }
+            unlink(timeout);
+        }
+        timeout.deadline = deadline;
+        link(timeout);
+    }
+
+    public void cancel(Timeout timeout) {
+        if (timeout.scheduled) {
+            unlink(timeout);
+        }
+    }
+
+    /**
+     * Moves the wheel forward to the given time, running every timeout that has come due.
+     */
+    public void advance(long now) {
+        this.now = now;
+        long target = now / tickMillis;
+        if (target <= tick) {
+            return;
+        }
+        long first = tick + 1, last = Math.min(target, tick + slots.length);
+        tick = target;
+
+        Timeout expired = null;
+        for (long t = first; t <= last; t++) {
+            Timeout timeout = slots[(int) (t & mask)];
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.deadline <= now) {
+                    unlink(timeout);
+                    timeout.nextExpired = expired;
+                    expired = timeout;
+                } else if (timeout.tick <= target) {
+                    // Pushed back since it was linked
+                    unlink(timeout);
+                    link(timeout);
+                }
+                timeout = next;
+            }
+        }
+
+        // Run them only once the wheel is consistent, as tasks are free to schedule and cancel
+        while (expired != null) {
+            Timeout timeout = expired;
+            expired = timeout.nextExpired;
+            timeout.nextExpired = null;
+            timeout.task.run();
+        }
+    }
+
+    private void link(Timeout timeout) {
+        long due = Math.max((timeout.deadline + tickMillis - 1) / tickMillis, tick + 1);
+        int slot = (int) (due & mask);
+        timeout.tick = due;
+        timeout.prev = null;
+        timeout.next = slots[slot];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        slots[slot] = timeout;
+        timeout.scheduled = true;
+        size++;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            slots[(int) (timeout.tick & mask)] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = timeout.next = null;
+        timeout.scheduled = false;
+        size--;
+    }
+
+    public static class Timeout {
+        private final Runnable task;
+        private long deadline;
+        private long tick;
+        private boolean scheduled;
+        private Timeout prev, next, nextExpired;
+
+        public Timeout(Runnable task) {
+            this.task = task;
+        }
+
+        public boolean isScheduled() {
+            return scheduled;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package sh.hella.http;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import sh.blake.niouring.util.ByteBufferUtil;
+import sh.hella.http.codec.RequestDecoder;
+import sh.hella.http.log.AccessLog;
+import sh.hella.http.log.AccessLogBuffer;
+import sh.hella.http.log.AccessLogReader;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+public class AccessLogTest {
+
+    @Test
+    public void shouldWriteRecordsAndReadThemBack(@TempDir Path directory) throws Exception {
+        Path file = directory.resolve("access.log");
+        Files.writeString(file, "left over from an earlier run");
+        var log = new AccessLog(file, 1024 * 1024, 2);
+        var buffer = new AccessLogBuffer(16);
+        log.register(buffer);
+        log.start();
+
+        long start = System.nanoTime() - 2_000_000;
+        Assertions.assertTrue(buffer.append(request("GET /users/42?x=1 HTTP/1.1"), 200, 512, start));
+        Assertions.assertTrue(buffer.append(request("POST /" + "a".repeat(150) + " HTTP/1.0"), 503, -1, start));
+        log.close();
+
+        List<AccessLogReader.Entry> entries = read(file);
+        Assertions.assertEquals(2, entries.size());
+        AccessLogReader.Entry get = entries.get(0);
+        Assertions.assertEquals("GET", get.getMethod());
+        Assertions.assertEquals("/users/42", get.getPath());
+        Assertions.assertEquals("HTTP/1.1", get.getProtocol());
+        Assertions.assertEquals(200, get.getStatus());
+        Assertions.assertEquals(512, get.getBytes());
+        Assertions.assertTrue(get.getLatencyNanos() >= 2_000_000);
+        Assertions.assertTrue(Math.abs(get.getTimestamp().toEpochMilli() - System.currentTimeMillis()) < 60_000);
+        Assertions.assertTrue(get.toString().contains(" GET /users/42 HTTP/1.1 200 512 "), get.toString());
+
+        AccessLogReader.Entry post = entries.get(1);
+        Assertions.assertTrue(post.isPathTruncated());
+        Assertions.assertEquals(96, post.getPath().length());
+        Assertions.assertTrue(post.toString().contains("... HTTP/1.0 503 - "), post.toString());
+
+        Assertions.assertEquals("left over from an earlier run", Files.readString(directory.resolve("access.log.1")));
+    }
+
+    @Test
+    public void shouldDropRecordsWhenFull() {
+        var buffer = new AccessLogBuffer(3);
+        Request request = request("GET / HTTP/1.1");
+        for (int i = 0; i < 4; i++) {
+            Assertions.assertTrue(buffer.append(request, 200, 0, System.nanoTime()));
+        }
+        Assertions.assertFalse(buffer.append(request, 200, 0, System.nanoTime()));
+    }
+
+    @Test
+    public void shouldRollOverFullFiles(@TempDir Path directory) throws Exception {
+        Path file = directory.resolve("access.log");
+        // Room for the header and two records
+        var log = new AccessLog(file, 3 * 128, 2);
+        var buffer = new AccessLogBuffer(16);
+        log.register(buffer);
+        log.start();
+        for (int i = 1; i <= 7; i++) {
+            buffer.append(request("GET /" + i + " HTTP/1.1"), 200, 0, System.nanoTime());
+        }
+        log.close();
+
+        Assertions.assertEquals(List.of("/7"), paths(file));
+        Assertions.assertEquals(List.of("/5", "/6"), paths(directory.resolve("access.log.1")));
+        Assertions.assertEquals(List.of("/3", "/4"), paths(directory.resolve("access.log.2")));
+        Assertions.assertFalse(Files.exists(directory.resolve("access.log.3")));
+    }
+
+    private static Request request(String requestLine) {
+        return new RequestDecoder().decode(ByteBufferUtil.wrapDirect(requestLine + "\r\nHost: localhost\r\n\r\n"));
+    }
+
+    private static List<AccessLogReader.Entry> read(Path file) throws Exception {
+        List<AccessLogReader.Entry> entries = new ArrayList<>();
+        AccessLogReader.read(file, entries::add);
+        return entries;
+    }
+
+    private static List<String> paths(Path file) throws Exception {
+        List<String> paths = new ArrayList<>();
+        AccessLogReader.read(file, entry -> paths.add(entry.getPath()));
+        return paths;
+    }
+}
@@ -0,0 +1,31 @@
+package sh.hella.http;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+import sh.hella.http.util.Affinity;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+public class AffinityTest {
+    @Test
+    public void shouldSplitCpuSets() {
+        Assertions.assertEquals(List.of("0", "1", "2", "3", "8"), Affinity.eachCpu("0-3,8"));
+        Assertions.assertEquals(List.of("5"), Affinity.eachCpu("5\n"));
+        Assertions.assertEquals(List.of(), Affinity.eachCpu(""));
+    }
+
+    @Test
+    public void shouldRejectInvalidCpuSet() {
+        Assumptions.assumeTrue(Arrays.stream(System.getenv().getOrDefault("PATH", "").split(File.pathSeparator))
+            .anyMatch(directory -> Files.isExecutable(Path.of(directory, "taskset"))), "taskset is not installed");
+        var ex = Assertions.assertThrows(IllegalStateException.class, () -> Affinity.pin("not-a-cpu"));
+        // Refused by taskset itself, rather than failing to run it
+        Assertions.assertNull(ex.getCause(), ex.getMessage());
+        Assertions.assertTrue(ex.getMessage().startsWith("Unable to pin thread to CPUs not-a-cpu: "), ex.getMessage());
+    }
+}
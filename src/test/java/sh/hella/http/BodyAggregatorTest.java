@@ -0,0 +1,63 @@
+package sh.hella.http;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+
+public class BodyAggregatorTest {
+
+    @Test
+    public void shouldKeepSmallBodiesOnHeap() throws Exception {
+        Request request = new Request();
+        var publisher = new SubmissionPublisher<ByteBuffer>();
+        request.setBodyPublisher(publisher);
+
+        var result = BodyAggregator.aggregate(request, 1024, Integer.MAX_VALUE);
+        publisher.submit(ByteBuffer.wrap("Hello, ".getBytes(StandardCharsets.UTF_8)));
+        publisher.submit(ByteBuffer.wrap("world!".getBytes(StandardCharsets.UTF_8)));
+        publisher.close();
+
+        ByteBuffer body = result.get(5, TimeUnit.SECONDS);
+        Assertions.assertFalse(body instanceof MappedByteBuffer);
+        Assertions.assertEquals("Hello, world!", StandardCharsets.UTF_8.decode(body).toString());
+    }
+
+    @Test
+    public void shouldSpillLargeBodiesToMappedFile() throws Exception {
+        Request request = new Request();
+        var publisher = new SubmissionPublisher<ByteBuffer>();
+        request.setBodyPublisher(publisher);
+
+        var result = BodyAggregator.aggregate(request, 100, Integer.MAX_VALUE);
+        for (int i = 0; i < 10; i++) {
+            publisher.submit(ByteBuffer.wrap(String.valueOf(i).repeat(30).getBytes(StandardCharsets.UTF_8)));
+        }
+        publisher.close();
+
+        ByteBuffer body = result.get(5, TimeUnit.SECONDS);
+        Assertions.assertTrue(body instanceof MappedByteBuffer);
+        Assertions.assertEquals(300, body.remaining());
+        for (int i = 0; i < 300; i++) {
+            Assertions.assertEquals('0' + i / 30, body.get(i));
+        }
+    }
+
+    @Test
+    public void shouldFailBodiesOverMaxSize() {
+        Request request = new Request();
+        var publisher = new SubmissionPublisher<ByteBuffer>();
+        request.setBodyPublisher(publisher);
+
+        var result = BodyAggregator.aggregate(request, 10, 20);
+        publisher.submit(ByteBuffer.wrap(new byte[15]));
+        publisher.submit(ByteBuffer.wrap(new byte[15]));
+        publisher.close();
+
+        Assertions.assertThrows(Exception.class, () -> result.get(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,89 @@
+package sh.hella.http;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import sh.hella.http.util.BufferArena;
+
+import java.nio.ByteBuffer;
+
+public class BufferArenaTest {
+
+    @Test
+    public void shouldCarveBuffersFromSlabs() {
+        BufferArena arena = new BufferArena(1000, 4000);
+        ByteBuffer[] buffers = new ByteBuffer[5];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = arena.take();
+            Assertions.assertTrue(buffers[i].isDirect());
+            Assertions.assertEquals(1000, buffers[i].capacity());
+        }
+        Assertions.assertEquals(2, arena.getSlabCount());
+        Assertions.assertEquals(3, arena.getFreeCount());
+
+        // Buffers must not overlap
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i].put(0, (byte) i).put(999, (byte) i);
+        }
+        for (int i = 0; i < buffers.length; i++) {
+            Assertions.assertEquals(i, buffers[i].get(0));
+            Assertions.assertEquals(i, buffers[i].get(999));
+        }
+    }
+
+    @Test
+    public void shouldReuseMostRecentlyFreed() {
+        BufferArena arena = new BufferArena(1024, 8192);
+        ByteBuffer first = arena.take(), second = arena.take();
+        arena.give(first.position(10));
+        arena.give(second);
+        Assertions.assertSame(second, arena.take());
+        ByteBuffer reused = arena.take();
+        Assertions.assertSame(first, reused);
+        Assertions.assertEquals(0, reused.position());
+        Assertions.assertEquals(1, arena.getSlabCount());
+    }
+
+    @Test
+    public void shouldReleaseEmptySlabsBeyondOneSpare() {
+        BufferArena arena = new BufferArena(1024, 4096);
+        ByteBuffer[] buffers = new ByteBuffer[12];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = arena.take();
+        }
+        Assertions.assertEquals(3, arena.getSlabCount());
+        for (ByteBuffer buffer : buffers) {
+            arena.give(buffer);
+        }
+        Assertions.assertEquals(1, arena.getSlabCount());
+        Assertions.assertEquals(4, arena.getFreeCount());
+    }
+
+    @Test
+    public void shouldPackSmallBuffersAndPageAlignLargeOnes() {
+        BufferArena.Budget small = new BufferArena.Budget(Long.MAX_VALUE);
+        new BufferArena(512, 64 * 1024, small).take();
+        // 128 buffers back to back, and a page of slack to align the slab
+        Assertions.assertEquals(128 * 512 + 4096, small.getUsed());
+
+        BufferArena.Budget large = new BufferArena.Budget(Long.MAX_VALUE);
+        BufferArena arena = new BufferArena(5000, 20000, large);
+        ByteBuffer first = arena.take(), second = arena.take();
+        Assertions.assertEquals(4 * 8192 + 4096, large.getUsed());
+        Assertions.assertEquals(0, first.alignmentOffset(0, 4096));
+        Assertions.assertEquals(0, second.alignmentOffset(0, 4096));
+    }
+
+    @Test
+    public void shouldStayWithinBudget() {
+        BufferArena.Budget budget = new BufferArena.Budget(3 * (4096 + 4096));
+        BufferArena arena = new BufferArena(4096, 4096, budget);
+        ByteBuffer a = arena.take(), b = arena.take(), c = arena.take();
+        Assertions.assertNotNull(c);
+        Assertions.assertNull(arena.take());
+        arena.give(a);
+        arena.give(b);
+        Assertions.assertEquals(2 * (4096 + 4096), budget.getUsed());
+        Assertions.assertNotNull(arena.take());
+        Assertions.assertNotNull(arena.take());
+    }
+}
@@ -0,0 +1,103 @@
+package sh.hella.http;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import sh.blake.niouring.util.ByteBufferUtil;
+import sh.hella.http.codec.RequestDecoder;
+import sh.hella.http.util.ByteScanner;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class ByteScannerTest {
+    private static final byte[] DELIMITERS = {'\r', '\n', ':', '?', '&', '=', ' ', 0, (byte) 0x80, (byte) 0xff};
+
+    @Test
+    public void shouldMatchScalarOnRandomBytes() {
+        Random random = new Random(42);
+        for (int round = 0; round < 2000; round++) {
+            byte[] bytes = new byte[random.nextInt(80)];
+            // Sparse delimiters among bytes from the whole range, so every lane and carry pattern comes up
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = random.nextInt(8) == 0
+                    ? DELIMITERS[random.nextInt(DELIMITERS.length)]
+                    : (byte) random.nextInt(256);
+            }
+            for (ByteBuffer buffer : buffers(bytes)) {
+                int from = bytes.length == 0 ? 0 : random.nextInt(bytes.length);
+                int to = from + random.nextInt(bytes.length - from + 1);
+                for (byte delimiter : DELIMITERS) {
+                    Assertions.assertEquals(
+                        ByteScanner.indexOfScalar(buffer, from, to, delimiter),
+                        ByteScanner.indexOfSwar(buffer, from, to, delimiter),
+                        () -> "delimiter " + delimiter + " in [" + from + ", " + to + ") of " + buffer);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void shouldFindEveryPositionInEveryLane() {
+        for (int length = 0; length <= 40; length++) {
+            for (int at = -1; at < length; at++) {
+                byte[] bytes = new byte[length];
+                Arrays.fill(bytes, (byte) 'a');
+                if (at >= 0) {
+                    bytes[at] = '\n';
+                    // A match further on must not shadow the first one
+                    if (at + 3 < length) {
+                        bytes[at + 3] = '\n';
+                    }
+                }
+                for (ByteBuffer buffer : buffers(bytes)) {
+                    Assertions.assertEquals(at, ByteScanner.indexOfSwar(buffer, 0, length, (byte) '\n'));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void shouldRespectRangeBounds() {
+        ByteBuffer buffer = ByteBufferUtil.wrapDirect("x=1&yy=22&zzz=333");
+        Assertions.assertEquals(-1, ByteScanner.indexOfSwar(buffer, 4, 6, (byte) '='));
+        Assertions.assertEquals(6, ByteScanner.indexOfSwar(buffer, 4, 7, (byte) '='));
+        Assertions.assertEquals(9, ByteScanner.indexOfSwar(buffer, 4, 17, (byte) '&'));
+        Assertions.assertEquals(-1, ByteScanner.indexOfSwar(buffer, 10, 17, (byte) '&'));
+    }
+
+    @Test
+    public void shouldDecodeHeaderHeavyRequest() {
+        StringBuilder head = new StringBuilder("GET /search?q=hella&lang=en&empty=&flag&&x=a=b HTTP/1.1\r\n");
+        for (int i = 0; i < 40; i++) {
+            head.append("X-Header-").append(i).append(":  value-").append("v".repeat(i)).append(" \r\n");
+        }
+        head.append("Cookie: a=1; b=2; session=0123456789abcdef0123456789abcdef\r\n\r\n");
+        Request request = new RequestDecoder().decode(ByteBufferUtil.wrapDirect(head.toString()));
+
+        Assertions.assertEquals("/search", request.getPath());
+        Assertions.assertEquals(41, request.getHeaderCount());
+        Assertions.assertEquals("value-" + "v".repeat(39), request.getHeader("x-header-39"));
+        Assertions.assertEquals("a=1; b=2; session=0123456789abcdef0123456789abcdef", request.getHeader("Cookie"));
+
+        Map<String, List<String>> parameters = request.getParameters();
+        Assertions.assertEquals(List.of("hella"), parameters.get("q"));
+        Assertions.assertEquals(List.of(""), parameters.get("empty"));
+        Assertions.assertEquals(List.of(""), parameters.get("flag"));
+        Assertions.assertEquals(List.of("a=b"), parameters.get("x"));
+        Assertions.assertEquals(5, parameters.size());
+        Assertions.assertEquals("en", request.getParameter("lang"));
+    }
+
+    private static ByteBuffer[] buffers(byte[] bytes) {
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length + 3).position(3).slice().put(bytes).flip();
+        ByteBuffer heap = ByteBuffer.wrap(bytes);
+        ByteBuffer littleEndian = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer directLittleEndian = ByteBuffer.allocateDirect(bytes.length).put(bytes).flip()
+            .order(ByteOrder.LITTLE_ENDIAN);
+        return new ByteBuffer[] {direct, heap, littleEndian, directLittleEndian};
+    }
+}
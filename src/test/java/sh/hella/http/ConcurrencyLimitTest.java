@@ -0,0 +1,91 @@
+package sh.hella.http;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import sh.hella.http.util.ConcurrencyLimit;
+
+public class ConcurrencyLimitTest {
+    private static final long TARGET = 100_000_000;
+
+    @Test
+    public void shouldShedAtLimit() {
+        ConcurrencyLimit limit = new ConcurrencyLimit(1, 2, TARGET, 0.5);
+        Assertions.assertTrue(limit.tryAcquire());
+        Assertions.assertTrue(limit.tryAcquire());
+        Assertions.assertFalse(limit.tryAcquire());
+        Assertions.assertEquals(2, limit.getInFlight());
+
+        limit.release(TARGET);
+        Assertions.assertTrue(limit.tryAcquire());
+    }
+
+    @Test
+    public void shouldBackOffOncePerBurstOfSlowReleases() {
+        ConcurrencyLimit limit = new ConcurrencyLimit(4, 100, TARGET, 0.9);
+        for (int i = 0; i < 100; i++) {
+            Assertions.assertTrue(limit.tryAcquire());
+        }
+        // One slow dependency stalls everything in flight, which is a single sign of overload
+        for (int i = 0; i < 100; i++) {
+            limit.release(TARGET + 1);
+        }
+        Assertions.assertEquals(90, limit.getLimit());
+
+        // Requests let in after the cut are judged under it, so their slowness cuts again
+        while (limit.tryAcquire()) {
+        }
+        limit.release(TARGET + 1);
+        Assertions.assertEquals(81, limit.getLimit());
+    }
+
+    @Test
+    public void shouldBackOffWhenSlowAndRecoverWhenFast() {
+        ConcurrencyLimit limit = new ConcurrencyLimit(4, 100, TARGET, 0.9);
+        for (int round = 0; round < 20; round++) {
+            while (limit.tryAcquire()) {
+            }
+            while (limit.getInFlight() > 0) {
+                limit.release(TARGET + 1);
+            }
+        }
+        Assertions.assertEquals((int) (100 * Math.pow(0.9, 20)), limit.getLimit());
+
+        for (int round = 0; round < 20; round++) {
+            while (limit.tryAcquire()) {
+            }
+            while (limit.getInFlight() > 0) {
+                limit.release(TARGET + 1);
+            }
+        }
+        Assertions.assertEquals(4, limit.getLimit());
+
+        // Fast requests one at a time don't show that more would work, so the limit stays put
+        for (int i = 0; i < 100; i++) {
+            limit.tryAcquire();
+            limit.release(1);
+        }
+        Assertions.assertEquals(4, limit.getLimit());
+
+        // Kept full, it grows by about one for each limit's worth of fast requests
+        while (limit.tryAcquire()) {
+        }
+        for (int i = 0; i < 100; i++) {
+            limit.release(1);
+            while (limit.tryAcquire()) {
+            }
+        }
+        Assertions.assertTrue(limit.getLimit() >= 12 && limit.getLimit() <= 16, "limit " + limit.getLimit());
+    }
+
+    @Test
+    public void shouldStayWithinBounds() {
+        ConcurrencyLimit limit = new ConcurrencyLimit(4, 8, TARGET, 0.5);
+        for (int i = 0; i < 10; i++) {
+            limit.tryAcquire();
+            limit.release(TARGET * 10);
+        }
+        Assertions.assertEquals(4, limit.getLimit());
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new ConcurrencyLimit(0, 8, TARGET, 0.5));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new ConcurrencyLimit(9, 8, TARGET, 0.5));
+    }
+}
@@ -0,0 +1,344 @@
+package sh.hella.http;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import sh.blake.niouring.AbstractIoUringChannel;
+import sh.blake.niouring.IoUring;
+import sh.blake.niouring.IoUringSocket;
+import sh.hella.http.handler.Router;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+public class ConnectionTest {
+    private static final Response HELLO = Response.builder()
+        .status(200)
+        .header("Date", "Tue, 01 Jan 2030 00:00:00 GMT")
+        .body("Hello, world!".getBytes(StandardCharsets.UTF_8))
+        .build();
+
+    @Test
+    public void shouldLeaveBodyOutOfHeadResponses() {
+        var client = new Client(Options.builder().compression(false).build(), request -> HELLO);
+        client.send("GET / HTTP/1.1\r\n\r\n");
+        String get = client.receive();
+        client.send("HEAD / HTTP/1.1\r\n\r\n");
+        String head = client.receive();
+
+        Assertions.assertTrue(get.endsWith("\r\n\r\nHello, world!"), get);
+        Assertions.assertTrue(head.contains("Content-Length: 13\r\n"), head);
+        Assertions.assertEquals(get.length() - "Hello, world!".length(), head.length());
+    }
+
+    @Test
+    public void shouldLeaveBodyOutOfHeadRoutedToGet() {
+        Router router = new Router().get("/users/{id}", request -> Response.builder()
+            .status(200)
+            .body(("user " + request.getPathParameter("id")).getBytes(StandardCharsets.UTF_8))
+            .build());
+        var client = new Client(Options.builder().compression(false).build(), router);
+        // Pipelined, so a body left on the HEAD response would be read as the start of the next one
+        client.send("HEAD /users/1 HTTP/1.1\r\n\r\nGET /users/2 HTTP/1.1\r\n\r\n");
+        String responses = client.receive();
+
+        Assertions.assertEquals(2, responses.split("HTTP/1.1 200 OK\r\n", -1).length - 1, responses);
+        String head = responses.substring(0, responses.indexOf("HTTP/1.1", 1));
+        Assertions.assertTrue(head.contains("Content-Length: 6\r\n") && head.endsWith("\r\n\r\n"), head);
+        Assertions.assertTrue(responses.endsWith("\r\n\r\nuser 2"), responses);
+    }
+
+    @Test
+    public void shouldAnswerHeadFromTheCachedGet() {
+        int[] calls = {0};
+        Response cacheable = Response.builder()
+            .status(200)
+            .header("Cache-Control", "max-age=60")
+            .body("Hello, world!".getBytes(StandardCharsets.UTF_8))
+            .build();
+        var server = new HttpServer(Options.builder().responseCacheBytes(1 << 20).build(), request -> {
+            calls[0]++;
+            return cacheable;
+        });
+        var client = new Client(server);
+        client.send("HEAD / HTTP/1.1\r\n\r\n");
+        String missed = client.receive();
+        Assertions.assertEquals(0, server.getResponseCache().size());
+
+        client.send("GET / HTTP/1.1\r\n\r\n");
+        Assertions.assertTrue(client.receive().endsWith("\r\n\r\nHello, world!"));
+        client.send("HEAD / HTTP/1.1\r\n\r\n");
+        String hit = client.receive();
+
+        Assertions.assertEquals(2, calls[0]);
+        Assertions.assertEquals(1, server.getResponseCache().size());
+        Assertions.assertTrue(hit.contains("Content-Length: 13\r\n") && hit.endsWith("\r\n\r\n"), hit);
+        Assertions.assertEquals(missed.length(), hit.length(), hit);
+    }
+
+    @Test
+    public void shouldStopReadingUntilQueuedWritesDrain() {
+        var client = new Client(Options.builder().compression(false).responseBufferSize(128).build(), request -> HELLO);
+        client.send("GET / HTTP/1.1\r\n\r\n".repeat(5));
+        Assertions.assertTrue(client.ring.reads.isEmpty());
+
+        String responses = client.receive();
+        Assertions.assertEquals(5, responses.split("Hello, world!", -1).length - 1, responses);
+        Assertions.assertEquals(1, client.ring.reads.size());
+    }
+
+    @Test
+    public void shouldAnswerAmbiguouslyFramedRequestsWithBadRequestAndClose() {
+        var client = new Client(Options.builder().build(), request -> HELLO);
+        client.send("GET /first HTTP/1.1\r\n\r\n"
+            + "POST / HTTP/1.1\r\nTransfer-Encoding: xchunked\r\n\r\n0\r\n\r\nGET /smuggled HTTP/1.1\r\n\r\n");
+        String responses = client.receive();
+        Assertions.assertTrue(responses.startsWith("HTTP/1.1 200 OK\r\n"), responses);
+        Assertions.assertTrue(responses.contains("HTTP/1.1 400 Bad Request\r\n"), responses);
+        Assertions.assertEquals(1, responses.split("Hello, world!", -1).length - 1, responses);
+        Assertions.assertTrue(client.socket.closed);
+        Assertions.assertTrue(client.ring.reads.isEmpty());
+    }
+
+    @Test
+    public void shouldCloseWhenThePeerFinishesPartWayThroughARequest() {
+        var client = new Client(Options.builder().build(), request -> HELLO);
+        client.send("GET / HTTP/1.1\r\nHost: loc");
+        Assertions.assertFalse(client.socket.closed);
+        client.send(new byte[0]);
+        Assertions.assertTrue(client.socket.closed);
+        Assertions.assertTrue(client.ring.reads.isEmpty());
+    }
+
+    @Test
+    public void shouldOnlyReadTheBodyWhileTheSubscriberAsksForIt() {
+        var body = new BodySubscriber();
+        var rejected = new BodySubscriber();
+        var response = new CompletableFuture<Response>();
+        var client = new Client(HttpServer.async(Options.builder().compression(false).build(), request -> {
+            request.getBodyPublisher().subscribe(body);
+            request.getBodyPublisher().subscribe(rejected);
+            return response;
+        }));
+        client.send("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n5\r\nHello\r\n");
+        client.worker.drainHandoffs();
+        Assertions.assertTrue(rejected.error instanceof IllegalStateException);
+        rejected.subscription.request(10);
+        client.worker.drainHandoffs();
+        Assertions.assertEquals("", body.received.toString());
+        Assertions.assertTrue(client.ring.reads.isEmpty());
+
+        body.subscription.request(1);
+        client.worker.drainHandoffs();
+        Assertions.assertEquals("Hello", body.received.toString());
+        Assertions.assertTrue(client.ring.reads.isEmpty());
+
+        body.subscription.request(Long.MAX_VALUE);
+        client.worker.drainHandoffs();
+        client.send("0\r\n\r\n");
+        Assertions.assertTrue(body.completed);
+        response.complete(HELLO);
+        client.worker.drainHandoffs();
+        Assertions.assertTrue(client.receive().endsWith("Hello, world!"));
+    }
+
+    @Test
+    public void shouldReadAPipelinedRequestAfterAnUnreadStreamedBody() {
+        var client = new Client(Options.builder().compression(false).build(), request -> Response.builder()
+            .status(200)
+            .body(request.getPath().getBytes(StandardCharsets.UTF_8))
+            .build());
+        client.send("POST /upload HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n5\r\nHello\r\n");
+        Assertions.assertTrue(client.receive().endsWith("\r\n\r\n/upload"));
+        client.send("5\r\nWorld\r\n0\r\n\r\nGET /next HTTP/1.1\r\n\r\n");
+        String next = client.receive();
+        Assertions.assertTrue(next.startsWith("HTTP/1.1 200 OK\r\n") && next.endsWith("\r\n\r\n/next"), next);
+        Assertions.assertFalse(client.socket.closed);
+    }
+
+    @Test
+    public void shouldDiscardTheRestOfAChunkedBodyOnceItsSubscriberCancels() {
+        var body = new BodySubscriber() {
+            @Override
+            public void onNext(ByteBuffer item) {
+                super.onNext(item);
+                subscription.cancel();
+            }
+        };
+        var response = new CompletableFuture<Response>();
+        var client = new Client(HttpServer.async(Options.builder().compression(false).build(), request -> {
+            if (request.getBodyPublisher() == null) {
+                return CompletableFuture.completedFuture(HELLO);
+            }
+            request.getBodyPublisher().subscribe(body);
+            return response;
+        }));
+        client.send("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n5\r\nHello\r\n");
+        client.worker.drainHandoffs();
+        body.subscription.request(Long.MAX_VALUE);
+        client.worker.drainHandoffs();
+        Assertions.assertEquals("Hello", body.received.toString());
+
+        client.send("5\r\nWorld\r\n0\r\n\r\nGET /next HTTP/1.1\r\n\r\n");
+        Assertions.assertEquals("Hello", body.received.toString());
+        Assertions.assertFalse(body.completed);
+        Assertions.assertNull(body.error);
+        response.complete(HELLO);
+        client.worker.drainHandoffs();
+        String responses = client.receive();
+        Assertions.assertEquals(2, responses.split("Hello, world!", -1).length - 1, responses);
+    }
+
+    @Test
+    public void shouldLeaveBodyOutOfNoContentAndNotModified() {
+        for (int status : new int[] {204, 304}) {
+            Response response = Response.builder().status(status).body(new byte[100]).build();
+            var client = new Client(Options.builder().compression(false).build(), request -> response);
+            client.send("GET / HTTP/1.1\r\n\r\n");
+            String head = client.receive();
+            Assertions.assertTrue(head.endsWith("\r\n\r\n"), head);
+            Assertions.assertFalse(head.contains("Content-Length"), head);
+        }
+    }
+
+    /**
+     * Drives a connection through a ring that only records what is queued on it, completing reads and writes by
+     * hand.
+     */
+    static class Client {
+        final RecordingRing ring = new RecordingRing();
+        final RecordingSocket socket = new RecordingSocket();
+        final Worker worker;
+
+        Client(Options options, Function<Request, Response> handler) {
+            this(new HttpServer(options, handler));
+        }
+
+        Client(HttpServer server) {
+            worker = new Worker(server.getOptions(), server.getCompressedVariants(), null, ring);
+            new Connection(server, worker, socket).open();
+        }
+
+        void send(String request) {
+            send(request.getBytes(StandardCharsets.US_ASCII));
+        }
+
+        void send(byte[] bytes) {
+            ByteBuffer buffer = ring.reads.poll();
+            Assertions.assertNotNull(buffer, "no read queued");
+            buffer.put(bytes);
+            socket.onRead.accept(buffer);
+        }
+
+        /**
+         * Completes every queued write in full and returns what was written.
+         */
+        String receive() {
+            return StandardCharsets.ISO_8859_1.decode(receiveBytes()).toString();
+        }
+
+        ByteBuffer receiveBytes() {
+            ByteBuffer out = ByteBuffer.allocate(1 << 20);
+            ByteBuffer buffer;
+            while ((buffer = ring.writes.poll()) != null) {
+                out.put(buffer.duplicate());
+                buffer.position(buffer.limit());
+                socket.onWrite.accept(buffer);
+            }
+            return out.flip();
+        }
+    }
+
+    static class BodySubscriber implements Flow.Subscriber<ByteBuffer> {
+        final StringBuilder received = new StringBuilder();
+        Flow.Subscription subscription;
+        boolean completed;
+        Throwable error;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(ByteBuffer item) {
+            received.append(StandardCharsets.US_ASCII.decode(item));
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+    }
+
+    static class RecordingRing extends IoUring {
+        final Queue<ByteBuffer> reads = new ArrayDeque<>();
+        final Queue<ByteBuffer> writes = new ArrayDeque<>();
+
+        @Override
+        public IoUring queueRead(AbstractIoUringChannel channel, ByteBuffer buffer) {
+            reads.add(buffer);
+            return this;
+        }
+
+        @Override
+        public IoUring queueWrite(AbstractIoUringChannel channel, ByteBuffer buffer) {
+            writes.add(buffer);
+            return this;
+        }
+    }
+
+    static class RecordingSocket extends IoUringSocket {
+        Consumer<ByteBuffer> onRead;
+        Consumer<ByteBuffer> onWrite;
+        Runnable onClose;
+        boolean closed;
+
+        RecordingSocket() {
+            super("127.0.0.1", 0);
+        }
+
+        @Override
+        public AbstractIoUringChannel onRead(Consumer<ByteBuffer> handler) {
+            onRead = handler;
+            return this;
+        }
+
+        @Override
+        public AbstractIoUringChannel onWrite(Consumer<ByteBuffer> handler) {
+            onWrite = handler;
+            return this;
+        }
+
+        @Override
+        public AbstractIoUringChannel onClose(Runnable handler) {
+            onClose = handler;
+            return this;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                if (onClose != null) {
+                    onClose.run();
+                }
+            }
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed;
+        }
+    }
+}
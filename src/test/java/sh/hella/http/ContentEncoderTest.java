@@ -0,0 +1,163 @@
+package sh.hella.http;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import sh.blake.niouring.util.ByteBufferUtil;
+import sh.hella.http.codec.ContentEncoder;
+import sh.hella.http.codec.ContentEncoder.Coding;
+import sh.hella.http.codec.RequestDecoder;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+public class ContentEncoderTest {
+    private static final byte[] JSON = ("[" + "{\"id\":1,\"name\":\"hella\"},".repeat(200) + "{}]")
+        .getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void shouldNegotiateCoding() {
+        Assertions.assertEquals(Coding.IDENTITY, ContentEncoder.negotiate((String) null));
+        Assertions.assertEquals(Coding.GZIP, ContentEncoder.negotiate("gzip, deflate, br"));
+        Assertions.assertEquals(Coding.DEFLATE, ContentEncoder.negotiate("gzip;q=0.5, deflate"));
+        Assertions.assertEquals(Coding.DEFLATE, ContentEncoder.negotiate("gzip;q=0, *"));
+        Assertions.assertEquals(Coding.GZIP, ContentEncoder.negotiate("*"));
+        Assertions.assertEquals(Coding.IDENTITY, ContentEncoder.negotiate("br, identity"));
+        Assertions.assertEquals(Coding.DEFLATE, ContentEncoder.negotiate("gzip ; q=0.4 ,deflate;level=1;q=0.500"));
+        Assertions.assertEquals(Coding.GZIP, ContentEncoder.negotiate("GZIP;q=0.001, deflate;q=0"));
+        Assertions.assertEquals(Coding.IDENTITY, ContentEncoder.negotiate("gzip;q=high"));
+    }
+
+    @Test
+    public void shouldNegotiateFromRequestOnlyForCompressibleResponses() {
+        ContentEncoder encoder = new ContentEncoder(6, 1024, new ContentEncoder.Cache(1024 * 1024));
+        Request request = new RequestDecoder().decode(
+            ByteBufferUtil.wrapDirect("GET / HTTP/1.1\r\nAccept-Encoding: br, deflate\r\n\r\n"));
+        Response small = json("{}".getBytes(StandardCharsets.UTF_8));
+
+        Assertions.assertSame(small, encoder.encode(small, request));
+        Assertions.assertEquals("deflate", encoder.encode(json(JSON), request).getHeaders().get("Content-Encoding"));
+    }
+
+    @Test
+    public void shouldCompressWithGzipAndDeflate() throws Exception {
+        ContentEncoder encoder = new ContentEncoder(6, 1024, new ContentEncoder.Cache(1024 * 1024));
+        Response response = json(JSON);
+
+        Response gzip = encoder.encode(response, Coding.GZIP);
+        Assertions.assertEquals("gzip", gzip.getHeaders().get("Content-Encoding"));
+        Assertions.assertEquals("Accept-Encoding", gzip.getHeaders().get("Vary"));
+        Assertions.assertTrue(gzip.getBody().length < JSON.length);
+        Assertions.assertArrayEquals(JSON, readAll(new GZIPInputStream(new ByteArrayInputStream(gzip.getBody()))));
+
+        Response deflate = encoder.encode(response, Coding.DEFLATE);
+        Assertions.assertEquals("deflate", deflate.getHeaders().get("Content-Encoding"));
+        Assertions.assertArrayEquals(JSON,
+            readAll(new InflaterInputStream(new ByteArrayInputStream(deflate.getBody()))));
+    }
+
+    @Test
+    public void shouldSkipSmallAndCompressedContent() {
+        ContentEncoder encoder = new ContentEncoder(6, 1024, new ContentEncoder.Cache(1024 * 1024));
+        Response small = json("{}".getBytes(StandardCharsets.UTF_8));
+        Response image = Response.builder().status(200).header("Content-Type", "image/png").body(JSON).build();
+        Response encoded = Response.builder()
+            .status(200)
+            .header("Content-Type", "application/json")
+            .header("Content-Encoding", "br")
+            .body(JSON)
+            .build();
+
+        Assertions.assertSame(small, encoder.encode(small, Coding.GZIP));
+        Assertions.assertSame(image, encoder.encode(image, Coding.GZIP));
+        Assertions.assertSame(encoded, encoder.encode(encoded, Coding.GZIP));
+        Assertions.assertSame(small, encoder.encode(small, Coding.IDENTITY));
+    }
+
+    @Test
+    public void shouldCacheVariantsOfPrebuiltResponses() throws Exception {
+        var cache = new ContentEncoder.Cache(1024 * 1024);
+        ContentEncoder first = new ContentEncoder(6, 1024, cache);
+        ContentEncoder second = new ContentEncoder(6, 1024, cache);
+        StaticResponse prebuilt = Response.prebuilt(Response.builder()
+            .status(200)
+            .header("Content-Type", "text/html")
+            .header("ETag", "\"abc\"")
+            .body(JSON)
+            .build());
+
+        Response compressed = first.encode(prebuilt, Coding.GZIP);
+        Assertions.assertTrue(compressed instanceof StaticResponse);
+        Assertions.assertSame(compressed, second.encode(prebuilt, Coding.GZIP));
+        Assertions.assertNotSame(compressed, second.encode(prebuilt, Coding.DEFLATE));
+        Assertions.assertEquals(2, cache.size());
+        Assertions.assertEquals("W/\"abc\"", compressed.getHeaders().get("ETag"));
+        Assertions.assertArrayEquals(JSON,
+            readAll(new GZIPInputStream(new ByteArrayInputStream(compressed.getBody()))));
+    }
+
+    @Test
+    public void shouldCacheVariantsOfSharedBodiesAcrossResponses() throws Exception {
+        var cache = new ContentEncoder.Cache(1024 * 1024);
+        ContentEncoder encoder = new ContentEncoder(6, 1024, cache);
+        ByteBuffer shared = ByteBuffer.allocateDirect(JSON.length).put(JSON).flip().asReadOnlyBuffer();
+
+        Response first = encoder.encode(shared(shared, "1"), Coding.GZIP);
+        Response second = encoder.encode(shared(shared, "2"), Coding.GZIP);
+        Assertions.assertEquals(1, cache.size());
+        Assertions.assertSame(first.getBodyBuffer(), second.getBodyBuffer());
+        Assertions.assertEquals("2", second.getHeaders().get("X-Request"));
+        Assertions.assertEquals("gzip", second.getHeaders().get("Content-Encoding"));
+        byte[] compressed = new byte[second.getBodyBuffer().remaining()];
+        second.getBodyBuffer().duplicate().get(compressed);
+        Assertions.assertArrayEquals(JSON, readAll(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedVariants() {
+        // Random letters compress to a little over half, so there is room for one variant but not two
+        byte[] text = new byte[4096];
+        Random random = new Random(42);
+        for (int i = 0; i < text.length; i++) {
+            text[i] = (byte) ('a' + random.nextInt(26));
+        }
+        var cache = new ContentEncoder.Cache(text.length);
+        ContentEncoder encoder = new ContentEncoder(6, 1024, cache);
+        StaticResponse one = Response.prebuilt(plain(text));
+        StaticResponse two = Response.prebuilt(plain(text));
+
+        Response compressed = encoder.encode(one, Coding.GZIP);
+        Assertions.assertEquals(1, cache.size());
+        encoder.encode(two, Coding.GZIP);
+        Assertions.assertEquals(1, cache.size());
+        Assertions.assertTrue(cache.getBytes() <= text.length);
+        Assertions.assertNotSame(compressed, encoder.encode(one, Coding.GZIP));
+    }
+
+    private static Response json(byte[] body) {
+        return Response.builder().status(200).header("Content-Type", "application/json").body(body).build();
+    }
+
+    private static Response shared(ByteBuffer body, String request) {
+        return Response.builder()
+            .status(200)
+            .header("Content-Type", "application/json")
+            .header("X-Request", request)
+            .bodyBuffer(body)
+            .build();
+    }
+
+    private static Response plain(byte[] body) {
+        return Response.builder().status(200).header("Content-Type", "text/plain").body(body).build();
+    }
+
+    private static byte[] readAll(InputStream in) throws Exception {
+        try (in) {
+            return in.readAllBytes();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package sh.hella.http;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import sh.blake.niouring.util.ByteBufferUtil;
+import sh.hella.http.codec.RequestDecoder;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+
+public class FormParserTest {
+    private static final String BODY = "name=Hella+HTTP&city=S%C3%A3o%20Paulo&tag=a&tag=b%26c&flag&&empty=";
+
+    @Test
+    public void shouldAddDecodedFieldsToParameters() throws Exception {
+        Request request = request(BODY);
+        Assertions.assertSame(request, FormParser.parse(request).get(5, TimeUnit.SECONDS));
+
+        Assertions.assertEquals("Hella HTTP", request.getParameter("name"));
+        Assertions.assertEquals("S\u00e3o Paulo", request.getParameter("city"));
+        Assertions.assertEquals(List.of("a", "b&c"), request.getParameters().get("tag"));
+        Assertions.assertEquals("", request.getParameter("flag"));
+        Assertions.assertEquals("", request.getParameter("empty"));
+        Assertions.assertEquals("1", request.getParameter("page"));
+        Assertions.assertEquals(6, request.getParameters().size());
+    }
+
+    @Test
+    public void shouldDecodeAcrossEverySplit() throws Exception {
+        for (int size = 1; size < BODY.length(); size++) {
+            Request request = request(null);
+            var publisher = new SubmissionPublisher<ByteBuffer>();
+            request.setBodyPublisher(publisher);
+
+            var result = FormParser.parse(request);
+            for (int i = 0; i < BODY.length(); i += size) {
+                publisher.submit(ByteBufferUtil.wrapDirect(BODY.substring(i, Math.min(BODY.length(), i + size))));
+            }
+            publisher.close();
+
+            result.get(5, TimeUnit.SECONDS);
+            Assertions.assertEquals("S\u00e3o Paulo", request.getParameter("city"));
+            Assertions.assertEquals(List.of("a", "b&c"), request.getParameters().get("tag"));
+        }
+    }
+
+    @Test
+    public void shouldFailMalformedAndOversizedBodies() {
+        Assertions.assertThrows(Exception.class, () -> FormParser.parse(request("a=%2")).get(5, TimeUnit.SECONDS));
+        Assertions.assertThrows(Exception.class, () -> FormParser.parse(request("a=%zz")).get(5, TimeUnit.SECONDS));
+        Assertions.assertThrows(Exception.class, () -> FormParser.parse(request(BODY), 10).get(5, TimeUnit.SECONDS));
+    }
+
+    private static Request request(String body) {
+        String head = "POST /form?page=1 HTTP/1.1\r\nContent-Type: application/x-www-form-urlencoded\r\n";
+        if (body == null) {
+            return new RequestDecoder().decode(ByteBufferUtil.wrapDirect(head + "\r\n"));
+        }
+        return new RequestDecoder().decode(ByteBufferUtil.wrapDirect(
+            head + "Content-Length: " + body.getBytes().length + "\r\n\r\n" + body));
+    }
+}
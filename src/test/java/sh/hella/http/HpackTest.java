@@ -0,0 +1,96 @@
+package sh.hella.http;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import sh.hella.http.codec.HpackDecoder;
+import sh.hella.http.codec.HpackEncoder;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+
+public class HpackTest {
+    @Test
+    public void shouldDecodeHuffmanCodedRequest() {
+        // RFC 7541 C.4.1
+        ByteBuffer block = ByteBuffer.wrap(HexFormat.of().parseHex("828684418cf1e3c2e5f23a6ba0ab90f4ff"));
+        HpackDecoder decoder = new HpackDecoder(4096);
+
+        List<String> fields = decode(decoder, block);
+        Assertions.assertEquals(
+            List.of(":method: GET", ":scheme: http", ":path: /", ":authority: www.example.com"), fields);
+        Assertions.assertEquals(57, decoder.getTableSize());
+    }
+
+    @Test
+    public void shouldRoundTripThroughDynamicTable() {
+        HpackEncoder encoder = new HpackEncoder(4096);
+        HpackDecoder decoder = new HpackDecoder(4096);
+
+        ByteBuffer first = encode(encoder, ":status", "200", "content-type", "application/json",
+            "x-request-id", "abc123", "content-length", "42");
+        Assertions.assertEquals(
+            List.of(":status: 200", "content-type: application/json", "x-request-id: abc123", "content-length: 42"),
+            decode(decoder, first));
+
+        // Fields added to the table the first time are sent as single byte indexes the second
+        ByteBuffer second = encode(encoder, "content-type", "application/json", "x-request-id", "abc123");
+        Assertions.assertEquals(2, second.remaining());
+        Assertions.assertEquals(List.of("content-type: application/json", "x-request-id: abc123"),
+            decode(decoder, second));
+    }
+
+    @Test
+    public void shouldLowerCaseNamesAndIndexStaticOnes() {
+        HpackEncoder encoder = new HpackEncoder(4096);
+        HpackDecoder decoder = new HpackDecoder(4096);
+
+        ByteBuffer block = encode(encoder, "Cache-Control", "no-cache", "X-Request-Id", "abc123");
+        Assertions.assertEquals(0x40 | 24, block.get(0)); // literal with the static name of cache-control
+        Assertions.assertEquals(List.of("cache-control: no-cache", "x-request-id: abc123"), decode(decoder, block));
+        // The first of the static table's accept-encoding entries is a name alone, the second a full match
+        Assertions.assertEquals(1, encode(encoder, "Accept-Encoding", "gzip, deflate").remaining());
+    }
+
+    @Test
+    public void shouldApplyTableSizeUpdate() {
+        HpackEncoder encoder = new HpackEncoder(4096);
+        HpackDecoder decoder = new HpackDecoder(4096);
+        decode(decoder, encode(encoder, "x-trace", "one"));
+
+        encoder.setMaxTableSize(0);
+        ByteBuffer block = encode(encoder, "x-trace", "one");
+        Assertions.assertEquals(List.of("x-trace: one"), decode(decoder, block));
+        Assertions.assertEquals(0, decoder.getTableSize());
+    }
+
+    @Test
+    public void shouldRejectInvalidIndex() {
+        HpackDecoder decoder = new HpackDecoder(4096);
+        Assertions.assertThrows(IllegalStateException.class,
+            () -> decode(decoder, ByteBuffer.wrap(new byte[] {(byte) 0xbe})));
+    }
+
+    private static ByteBuffer encode(HpackEncoder encoder, String... fields) {
+        ByteBuffer out = ByteBuffer.allocate(1024);
+        for (int i = 0; i < fields.length; i += 2) {
+            encoder.header(out, fields[i], fields[i + 1]);
+        }
+        return out.flip();
+    }
+
+    private static List<String> decode(HpackDecoder decoder, ByteBuffer block) {
+        List<String> fields = new ArrayList<>();
+        decoder.decode(block, ByteBuffer.allocate(1024), (buffer, nameStart, nameEnd, valueStart, valueEnd) ->
+            fields.add(string(buffer, nameStart, nameEnd) + ": " + string(buffer, valueStart, valueEnd)));
+        return fields;
+    }
+
+    private static String string(ByteBuffer buffer, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        buffer.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,167 @@
+package sh.hella.http;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+public class Http2ConnectionTest {
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    // :method GET, :path / and :scheme http from the static table
+    private static final byte[] GET_ROOT = {(byte) 0x82, (byte) 0x84, (byte) 0x86};
+    // :method GET, :scheme http and a literal :path /fast
+    private static final byte[] GET_FAST = {(byte) 0x82, (byte) 0x86, 0x04, 0x05, '/', 'f', 'a', 's', 't'};
+
+    private static final int HEADERS = 1;
+    private static final int PRIORITY = 2;
+    private static final int RST_STREAM = 3;
+    private static final int SETTINGS = 4;
+    private static final int PING = 6;
+    private static final int GOAWAY = 7;
+
+    @Test
+    public void shouldCountResetStreamsUntilTheirHandlersFinish() {
+        var client = new ConnectionTest.Client(HttpServer.async(Options.builder().compression(false).build(),
+            request -> "/fast".equals(request.getPath())
+                ? CompletableFuture.completedFuture(Response.builder().status(204).build())
+                : new CompletableFuture<>()));
+        var frames = new ByteArrayOutputStream();
+        frames.writeBytes(PREFACE);
+        frame(frames, SETTINGS, 0, 0, new byte[0]);
+        int streamId = 1;
+        for (int i = 0; i < 300; i++, streamId += 2) {
+            frame(frames, HEADERS, 0x5, streamId, GET_FAST);
+        }
+        send(client, frames.toByteArray());
+        client.worker.drainHandoffs();
+        client.receive();
+
+        // Each of these is reset while its handler still runs
+        frames.reset();
+        for (int i = 0; i < 256; i++, streamId += 2) {
+            frame(frames, HEADERS, 0x5, streamId, GET_ROOT);
+            frame(frames, RST_STREAM, 0, streamId, new byte[] {0, 0, 0, 8});
+        }
+        frame(frames, HEADERS, 0x5, streamId, GET_ROOT);
+        send(client, frames.toByteArray());
+        List<int[]> received = frames(client.receiveBytes());
+
+        Assertions.assertEquals(1, received.size());
+        Assertions.assertArrayEquals(new int[] {RST_STREAM, streamId, 7}, received.get(0));
+    }
+
+    @Test
+    public void shouldSendAwayClientsThatResetTooManyStreams() {
+        var client = new ConnectionTest.Client(HttpServer.async(Options.builder().build(),
+            request -> new CompletableFuture<>()));
+        var frames = new ByteArrayOutputStream();
+        frames.writeBytes(PREFACE);
+        frame(frames, SETTINGS, 0, 0, new byte[0]);
+        for (int i = 0, streamId = 1; i < 101; i++, streamId += 2) {
+            frame(frames, HEADERS, 0x5, streamId, GET_ROOT);
+            frame(frames, RST_STREAM, 0, streamId, new byte[] {0, 0, 0, 8});
+        }
+        send(client, frames.toByteArray());
+        List<int[]> received = frames(client.receiveBytes());
+
+        int[] last = received.get(received.size() - 1);
+        Assertions.assertEquals(GOAWAY, last[0]);
+        Assertions.assertEquals(11, last[2]); // ENHANCE_YOUR_CALM
+    }
+
+    @Test
+    public void shouldStopReadingUntilQueuedWritesDrain() {
+        var client = new ConnectionTest.Client(Options.builder().responseBufferSize(512).build(), request -> null);
+        var frames = new ByteArrayOutputStream();
+        frames.writeBytes(PREFACE);
+        for (int i = 0; i < 40; i++) {
+            frame(frames, PING, 0, 0, new byte[8]);
+        }
+        send(client, frames.toByteArray());
+        Assertions.assertTrue(client.ring.reads.isEmpty());
+
+        List<int[]> received = frames(client.receiveBytes());
+        Assertions.assertEquals(40, received.stream().filter(frame -> frame[0] == PING).count());
+        Assertions.assertEquals(1, client.ring.reads.size());
+    }
+
+    @Test
+    public void shouldSendAwayClientsThatLeaveTooManyAcksQueued() {
+        var client = new ConnectionTest.Client(Options.builder().build(), request -> null);
+        var frames = new ByteArrayOutputStream();
+        frames.writeBytes(PREFACE);
+        frame(frames, SETTINGS, 0, 0, new byte[0]);
+        for (int i = 0; i < 100; i++) {
+            frame(frames, PING, 0, 0, new byte[8]);
+        }
+        send(client, frames.toByteArray());
+        List<int[]> received = frames(client.receiveBytes());
+
+        int[] last = received.get(received.size() - 1);
+        Assertions.assertEquals(GOAWAY, last[0]);
+        Assertions.assertEquals(11, last[2]); // ENHANCE_YOUR_CALM
+    }
+
+    /**
+     * Sends the bytes a piece at a time, as they would fit into the receive buffer, until the server stops reading.
+     */
+    @Test
+    public void shouldSendAwayClientsThatSendMalformedPriority() {
+        int[][] cases = {{0, 5, 1}, {1, 4, 6}}; // stream, length, expected error: PROTOCOL_ERROR, FRAME_SIZE_ERROR
+        for (int[] priority : cases) {
+            var client = new ConnectionTest.Client(Options.builder().build(), request -> Response.builder().build());
+            var frames = new ByteArrayOutputStream();
+            frames.writeBytes(PREFACE);
+            frame(frames, SETTINGS, 0, 0, new byte[0]);
+            frame(frames, PRIORITY, 0, priority[0], new byte[priority[1]]);
+            send(client, frames.toByteArray());
+            List<int[]> received = frames(client.receiveBytes());
+
+            int[] last = received.get(received.size() - 1);
+            Assertions.assertEquals(GOAWAY, last[0]);
+            Assertions.assertEquals(priority[2], last[2]);
+        }
+    }
+
+    private static void send(ConnectionTest.Client client, byte[] bytes) {
+        for (int at = 0; at < bytes.length && !client.ring.reads.isEmpty(); at += 1024) {
+            client.send(Arrays.copyOfRange(bytes, at, Math.min(at + 1024, bytes.length)));
+        }
+    }
+
+    private static void frame(ByteArrayOutputStream out, int type, int flags, int streamId, byte[] payload) {
+        ByteBuffer header = ByteBuffer.allocate(9);
+        header.put((byte) (payload.length >>> 16)).putShort((short) payload.length).put((byte) type)
+            .put((byte) flags).putInt(streamId);
+        out.writeBytes(header.array());
+        out.writeBytes(payload);
+    }
+
+    /**
+     * Reads the frames the server sent, other than the SETTINGS frames of its preface and acks, as the type, the
+     * stream and the first word of the payload.
+     */
+    private static List<int[]> frames(ByteBuffer buffer) {
+        List<int[]> frames = new ArrayList<>();
+        while (buffer.remaining() >= 9) {
+            int length = (buffer.getShort() & 0xffff) << 8 | buffer.get() & 0xff;
+            int type = buffer.get();
+            buffer.get();
+            int streamId = buffer.getInt();
+            int start = buffer.position();
+            if (type == GOAWAY) {
+                frames.add(new int[] {type, buffer.getInt(start), buffer.getInt(start + 4)});
+            } else if (type != SETTINGS) {
+                frames.add(new int[] {type, streamId, length >= 4 ? buffer.getInt(start) : 0});
+            }
+            buffer.position(start + length);
+        }
+        return frames;
+    }
+}
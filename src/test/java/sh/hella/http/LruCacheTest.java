@@ -0,0 +1,59 @@
+package sh.hella.http;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import sh.hella.http.util.LruCache;
+
+public class LruCacheTest {
+    @Test
+    public void shouldEvictLeastRecentlyUsedFirst() {
+        LruCache<String, String> cache = new LruCache<>(9, String::length);
+        cache.put("a", "aaa");
+        cache.put("b", "bbb");
+        cache.put("c", "ccc");
+        Assertions.assertEquals("aaa", cache.get("a"));
+        cache.put("d", "ddd");
+        Assertions.assertEquals("aaa", cache.get("a"));
+        Assertions.assertNull(cache.get("b"));
+        Assertions.assertEquals(3, cache.size());
+        Assertions.assertEquals(9, cache.getWeight());
+
+        cache.put("e", "eeeeee");
+        Assertions.assertNull(cache.get("c"));
+        Assertions.assertNull(cache.get("d"));
+        Assertions.assertEquals("aaa", cache.get("a"));
+        Assertions.assertEquals(9, cache.getWeight());
+    }
+
+    @Test
+    public void shouldReplaceAndRemove() {
+        LruCache<String, String> cache = new LruCache<>(9, String::length);
+        cache.put("a", "aaa");
+        cache.put("a", "aaaaaa");
+        Assertions.assertEquals(6, cache.getWeight());
+        Assertions.assertFalse(cache.remove("a", "aaa"));
+        Assertions.assertTrue(cache.remove("a", "aaaaaa"));
+        Assertions.assertEquals(0, cache.getWeight());
+
+        cache.put("b", "bbb");
+        cache.put("b", "bbbbbbbbbb");
+        Assertions.assertNull(cache.get("b"));
+        Assertions.assertEquals(0, cache.size());
+        Assertions.assertEquals(0, cache.getWeight());
+    }
+
+    @Test
+    public void shouldSplitLargeCachesIntoSegments() {
+        Assertions.assertEquals(1000, new LruCache<String, String>(1000, String::length).getMaxEntryWeight());
+        long large = 64 * LruCache.MIN_SEGMENT_WEIGHT;
+        LruCache<Integer, byte[]> cache = new LruCache<>(large, value -> value.length);
+        Assertions.assertEquals(large / 16, cache.getMaxEntryWeight());
+
+        byte[] value = new byte[(int) LruCache.MIN_SEGMENT_WEIGHT];
+        for (int i = 0; i < 1024; i++) {
+            cache.put(i, value);
+        }
+        Assertions.assertTrue(cache.getWeight() <= large);
+        Assertions.assertEquals(cache.size() * value.length, cache.getWeight());
+    }
+}
@@ -0,0 +1,71 @@
+package sh.hella.http;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import sh.hella.http.metrics.Histogram;
+import sh.hella.http.metrics.Metrics;
+import sh.hella.http.metrics.RingMetrics;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+public class MetricsTest {
+
+    @Test
+    public void shouldRecordPercentilesWithinRelativeError() {
+        Histogram histogram = new Histogram();
+        for (long i = 1; i <= 100_000; i++) {
+            histogram.record(i * 1000);
+        }
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        Assertions.assertEquals(100_000, snapshot.getCount());
+        Assertions.assertEquals(100_000_000, snapshot.getMax());
+        assertWithin(50_000_000, snapshot.getValueAtPercentile(50));
+        assertWithin(99_000_000, snapshot.getValueAtPercentile(99));
+        Assertions.assertEquals(100_000_000, snapshot.getValueAtPercentile(100));
+        Assertions.assertEquals(50_000_500, snapshot.getMean(), 1);
+    }
+
+    @Test
+    public void shouldRecordSmallAndHugeValues() {
+        Histogram histogram = new Histogram();
+        histogram.record(0);
+        histogram.record(7);
+        histogram.record(Long.MAX_VALUE);
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        Assertions.assertEquals(0, snapshot.getValueAtPercentile(10));
+        Assertions.assertEquals(7, snapshot.getValueAtPercentile(50));
+        Assertions.assertEquals(Long.MAX_VALUE, snapshot.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void shouldMergeRings() {
+        RingMetrics a = new RingMetrics(), b = new RingMetrics();
+        a.accepted();
+        a.accepted();
+        b.accepted();
+        a.closed();
+        a.read(100);
+        b.read(50);
+        a.getHandlerTime().record(1000);
+        b.getHandlerTime().record(3000);
+
+        Metrics metrics = new Metrics(List.of(a, b));
+        Assertions.assertEquals(3, metrics.getAccepts());
+        Assertions.assertEquals(2, metrics.getActiveConnections());
+        Assertions.assertEquals(2, metrics.getReads());
+        Assertions.assertEquals(150, metrics.getBytesRead());
+        Assertions.assertEquals(2, metrics.getHandlerTime().getCount());
+        Assertions.assertEquals(3000, metrics.getHandlerTime().getMax());
+
+        String text = new String(metrics.toPrometheus(), StandardCharsets.UTF_8);
+        Assertions.assertTrue(text.contains("# TYPE hella_http_accepts_total counter\nhella_http_accepts_total 3\n"));
+        Assertions.assertTrue(text.contains("hella_http_active_connections 2\n"));
+        Assertions.assertTrue(text.contains("hella_http_handler_seconds_count 2\n"));
+        Assertions.assertTrue(text.contains("hella_http_handler_seconds_sum 0.000004000\n"));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        Assertions.assertTrue(Math.abs(actual - expected) <= expected * 0.04, expected + " vs " + actual);
+    }
+}
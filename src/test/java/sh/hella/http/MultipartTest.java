@@ -0,0 +1,168 @@
+package sh.hella.http;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import sh.blake.niouring.util.ByteBufferUtil;
+import sh.hella.http.codec.MultipartDecoder;
+import sh.hella.http.codec.RequestDecoder;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+
+public class MultipartTest {
+    private static final String BOUNDARY = "----hellaFormBoundary7MA4YWxk";
+    private static final String BODY = "preamble to ignore\r\n"
+        + "--" + BOUNDARY + "\r\n"
+        + "Content-Disposition: form-data; name=\"title\"\r\n"
+        + "\r\n"
+        + "Hello, world!\r\n"
+        + "--" + BOUNDARY + "\r\n"
+        + "Content-Disposition: form-data; name=\"upload\"; filename=\"notes \\\"v2\\\".txt\"\r\n"
+        + "Content-Type: text/plain\r\n"
+        + "\r\n"
+        + "line one\r\n--" + BOUNDARY.substring(0, 10) + "\r\n--\r\nline three\r\n"
+        + "--" + BOUNDARY + "  \r\n"
+        + "\r\n"
+        + "\r\n"
+        + "--" + BOUNDARY + "--\r\n"
+        + "epilogue to ignore";
+
+    @Test
+    public void shouldDecodeParts() {
+        List<String> parts = decode(List.of(BODY));
+        Assertions.assertEquals(List.of(
+            "title|null|null|Hello, world!",
+            "upload|notes \"v2\".txt|text/plain|line one\r\n--" + BOUNDARY.substring(0, 10) + "\r\n--\r\nline three",
+            "null|null|null|"), parts);
+    }
+
+    @Test
+    public void shouldDecodeAcrossEverySplit() {
+        List<String> expected = decode(List.of(BODY));
+        for (int size = 1; size < 80; size++) {
+            List<String> pieces = new ArrayList<>();
+            for (int i = 0; i < BODY.length(); i += size) {
+                pieces.add(BODY.substring(i, Math.min(BODY.length(), i + size)));
+            }
+            Assertions.assertEquals(expected, decode(pieces), "pieces of " + size);
+        }
+    }
+
+    @Test
+    public void shouldFailWithoutClosingDelimiter() {
+        var decoder = new MultipartDecoder(BOUNDARY, (part, data) -> {
+        });
+        decoder.decode(ByteBufferUtil.wrapDirect("--" + BOUNDARY + "\r\n\r\nunfinished"));
+        Assertions.assertThrows(IllegalStateException.class, decoder::finish);
+    }
+
+    @Test
+    public void shouldReadBoundaryFromContentType() {
+        Assertions.assertEquals("abc", MultipartDecoder.boundary("multipart/form-data; boundary=abc"));
+        Assertions.assertEquals("a b;c", MultipartDecoder.boundary("Multipart/Form-Data; charset=utf-8; boundary=\"a b;c\""));
+        Assertions.assertNull(MultipartDecoder.boundary("application/x-www-form-urlencoded"));
+        Assertions.assertNull(MultipartDecoder.boundary("multipart/form-data"));
+    }
+
+    @Test
+    public void shouldCollectFieldsAndMapUploads(@TempDir Path directory) throws Exception {
+        Request request = request();
+        var publisher = new SubmissionPublisher<ByteBuffer>();
+        request.setBodyPublisher(publisher);
+
+        var result = MultipartParser.parse(request, MultipartOptions.builder().directory(directory).build());
+        for (int i = 0; i < BODY.length(); i += 7) {
+            publisher.submit(ByteBufferUtil.wrapDirect(BODY.substring(i, Math.min(BODY.length(), i + 7))));
+        }
+        publisher.close();
+
+        List<Part> parts = result.get(5, TimeUnit.SECONDS);
+        Assertions.assertEquals(3, parts.size());
+        Assertions.assertEquals("Hello, world!", parts.get(0).getValue());
+        Assertions.assertFalse(parts.get(0).isFile());
+
+        Part upload = parts.get(1);
+        Assertions.assertTrue(upload.isFile());
+        Assertions.assertTrue(upload.getBody() instanceof MappedByteBuffer);
+        Assertions.assertEquals(upload.getBody().remaining(), Files.size(upload.getFile()));
+        Assertions.assertTrue(Files.readString(upload.getFile()).endsWith("\r\nline three"));
+        Assertions.assertEquals("text/plain", upload.getHeader("content-type"));
+
+        upload.close();
+        try (var files = Files.list(directory)) {
+            Assertions.assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    public void shouldDeleteUploadsWhenFieldTooLarge(@TempDir Path directory) throws Exception {
+        Request request = request();
+        request.setBody(ByteBufferUtil.wrapDirect(BODY.replace("Hello, world!", "x".repeat(100))));
+
+        var result = MultipartParser.parse(request, MultipartOptions.builder().directory(directory).maxFieldSize(50)
+            .build());
+        Assertions.assertThrows(Exception.class, () -> result.get(5, TimeUnit.SECONDS));
+        try (var files = Files.list(directory)) {
+            Assertions.assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    public void shouldLimitTotalSizeAndPartCount(@TempDir Path directory) {
+        Request request = request();
+        request.setBody(ByteBufferUtil.wrapDirect(BODY));
+        var options = MultipartOptions.builder().directory(directory);
+
+        Assertions.assertDoesNotThrow(() -> MultipartParser.parse(request, options.build()).get(5, TimeUnit.SECONDS));
+        var tooLarge = MultipartParser.parse(request, options.maxTotalSize(40).build());
+        var tooMany = MultipartParser.parse(request, options.maxTotalSize(1024).maxParts(2).build());
+
+        var exception = Assertions.assertThrows(Exception.class, () -> tooLarge.get(5, TimeUnit.SECONDS));
+        Assertions.assertTrue(exception.getCause().getMessage().contains("in all"), exception.getMessage());
+        exception = Assertions.assertThrows(Exception.class, () -> tooMany.get(5, TimeUnit.SECONDS));
+        Assertions.assertTrue(exception.getCause().getMessage().contains("parts"), exception.getMessage());
+    }
+
+    private static Request request() {
+        return new RequestDecoder().decode(ByteBufferUtil.wrapDirect("POST /upload HTTP/1.1\r\n"
+            + "Content-Type: multipart/form-data; boundary=" + BOUNDARY + "\r\n\r\n"));
+    }
+
+    private static List<String> decode(List<String> pieces) {
+        List<String> parts = new ArrayList<>();
+        var body = new ByteArrayOutputStream();
+        var decoder = new MultipartDecoder(BOUNDARY, new MultipartDecoder.Listener() {
+            @Override
+            public void onPart(Part part) {
+                body.reset();
+            }
+
+            @Override
+            public void onData(Part part, ByteBuffer data) {
+                byte[] bytes = new byte[data.remaining()];
+                data.get(bytes);
+                body.writeBytes(bytes);
+            }
+
+            @Override
+            public void onPartEnd(Part part) {
+                parts.add(part.getName() + "|" + part.getFilename() + "|" + part.getContentType() + "|"
+                    + body.toString(StandardCharsets.UTF_8));
+            }
+        });
+        for (String piece : pieces) {
+            decoder.decode(ByteBufferUtil.wrapDirect(piece));
+        }
+        decoder.finish();
+        return parts;
+    }
+}
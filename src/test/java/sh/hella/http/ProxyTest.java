@@ -0,0 +1,137 @@
+package sh.hella.http;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import sh.blake.niouring.util.ByteBufferUtil;
+import sh.hella.http.codec.RequestDecoder;
+import sh.hella.http.codec.RequestEncoder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class ProxyTest {
+
+    @Test
+    public void shouldForwardEndToEndHeadersOnly() {
+        Request request = new RequestDecoder().decode(ByteBufferUtil.wrapDirect(
+            "POST /items?id=7 HTTP/1.1\r\nHost: edge\r\nConnection: keep-alive, X-Hop\r\nX-Hop: 1\r\n"
+                + "Keep-Alive: timeout=5\r\nContent-Length: 2\r\nAccept: */*\r\n\r\nhi"));
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        RequestEncoder.encodeHead(request, buffer, false);
+        String head = string(buffer.flip());
+        Assertions.assertTrue(head.startsWith("POST /items?id=7 HTTP/1.1\r\n"));
+        Assertions.assertTrue(head.contains("Host: edge\r\n"));
+        Assertions.assertTrue(head.contains("Content-Length: 2\r\n"));
+        Assertions.assertTrue(head.contains("Accept: */*\r\n"));
+        Assertions.assertFalse(head.contains("X-Hop"));
+        Assertions.assertFalse(head.contains("Keep-Alive"));
+        Assertions.assertFalse(head.contains("Connection"));
+        Assertions.assertTrue(head.endsWith("\r\n\r\n"));
+    }
+
+    @Test
+    public void shouldForwardRepeatedHeadersAsTheyArrived() {
+        Request request = new RequestDecoder().decode(ByteBufferUtil.wrapDirect(
+            "GET / HTTP/1.1\r\nAccept: text/html\r\nConnection: X-Hop\r\nAccept: */*\r\nConnection: X-Other\r\n"
+                + "X-Other: 1\r\nX-Hop: 1\r\n\r\n"));
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        RequestEncoder.encodeHead(request, buffer, false);
+        Assertions.assertEquals("GET / HTTP/1.1\r\nAccept: text/html\r\nAccept: */*\r\n\r\n", string(buffer.flip()));
+    }
+
+    @Test
+    public void shouldRechunkBodiesWithoutLength() {
+        Request request = new RequestDecoder().decode(ByteBufferUtil.wrapDirect(
+            "POST /upload HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"));
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        RequestEncoder.encodeHead(request, buffer, true);
+        String head = string(buffer.flip());
+        Assertions.assertEquals("POST /upload HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n", head);
+    }
+
+    @Test
+    public void shouldPickLeastOutstandingHealthyUpstream() {
+        UpstreamPool a = pool("a:1"), b = pool("b:1"), c = pool("c:1");
+        UpstreamPool[] pools = {a, b, c};
+        Assertions.assertEquals(1, ProxyHandler.pick(pools, 1));
+        Assertions.assertEquals(2, ProxyHandler.pick(pools, 2));
+
+        a.begin();
+        b.begin();
+        Assertions.assertEquals(2, ProxyHandler.pick(pools, 0));
+        c.begin();
+        c.begin();
+        Assertions.assertEquals(0, ProxyHandler.pick(pools, 0));
+
+        // Ejected after enough failures in a row, however idle it is
+        a.getUpstream().failed();
+        a.getUpstream().failed();
+        Assertions.assertEquals(1, ProxyHandler.pick(pools, 0));
+
+        // With nothing healthy, every upstream is still tried
+        b.getUpstream().failed();
+        b.getUpstream().failed();
+        c.getUpstream().failed();
+        c.getUpstream().failed();
+        Assertions.assertEquals(0, ProxyHandler.pick(pools, 0));
+    }
+
+    @Test
+    public void shouldProbeStandInBackend() throws Exception {
+        try (ServerSocket backend = new ServerSocket(0, 8, InetAddress.getLoopbackAddress())) {
+            Thread thread = new Thread(() -> serve(backend, "HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n",
+                "HTTP/1.1 503 Service Unavailable\r\nContent-Length: 0\r\n\r\n"));
+            thread.setDaemon(true);
+            thread.start();
+
+            Upstream upstream = new Upstream("127.0.0.1:" + backend.getLocalPort(), 2, 60000);
+            upstream.probe("/health", 1000);
+            Assertions.assertTrue(upstream.isHealthy());
+            upstream.probe("/health", 1000);
+            Assertions.assertFalse(upstream.isHealthy());
+        }
+
+        int closedPort;
+        try (ServerSocket closed = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            closedPort = closed.getLocalPort();
+        }
+        Upstream down = new Upstream("127.0.0.1:" + closedPort, 2, 60000);
+        down.probe("/health", 1000);
+        Assertions.assertFalse(down.isHealthy());
+    }
+
+    private static void serve(ServerSocket backend, String... responses) {
+        for (String response : responses) {
+            try (Socket socket = backend.accept()) {
+                InputStream in = socket.getInputStream();
+                byte[] request = new byte[1024];
+                int read = in.read(request);
+                String line = new String(request, 0, Math.max(read, 0), StandardCharsets.US_ASCII);
+                if (!line.startsWith("GET /health HTTP/1.1\r\n")) {
+                    return;
+                }
+                OutputStream out = socket.getOutputStream();
+                out.write(response.getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+            } catch (IOException ex) {
+                return;
+            }
+        }
+    }
+
+    private static UpstreamPool pool(String address) {
+        return new UpstreamPool(null, new Upstream(address, 2, 60000), ProxyOptions.builder().upstream(address).build());
+    }
+
+    private static String string(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,69 @@
+package sh.hella.http;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import sh.blake.niouring.util.ByteBufferUtil;
+import sh.hella.http.codec.ContentEncoder;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Flow;
+
+public class PublisherBodyStreamTest {
+
+    @Test
+    public void shouldSkipEmptyItemsWhenChunked() {
+        Assertions.assertEquals("5\r\nhello\r\n6\r\n world\r\n0\r\n\r\n", fill(true, -1));
+    }
+
+    @Test
+    public void shouldSkipEmptyItemsWhenNotChunked() {
+        Assertions.assertEquals("hello world", fill(false, 11));
+    }
+
+    @Test
+    public void shouldFailWhenPublisherProducesMoreThanContentLength() {
+        var exception = Assertions.assertThrows(IllegalStateException.class, () -> fill(false, 5));
+        Assertions.assertTrue(exception.getMessage().contains("more than"), exception.getMessage());
+    }
+
+    @Test
+    public void shouldFailWhenPublisherEndsShortOfContentLength() {
+        var exception = Assertions.assertThrows(IllegalStateException.class, () -> fill(false, 12));
+        Assertions.assertTrue(exception.getMessage().contains("short"), exception.getMessage());
+    }
+
+    private static String fill(boolean chunked, long contentLength) {
+        Worker worker = new Worker(Options.builder().threads(1).build(), new ContentEncoder.Cache(0), null);
+        var stream = new PublisherBodyStream(worker, chunked, contentLength, () -> {
+        });
+        long[] requested = {0};
+        stream.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+                requested[0] += n;
+            }
+
+            @Override
+            public void cancel() {
+            }
+        });
+        worker.drainHandoffs();
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        ByteBuffer[] items = {
+            ByteBufferUtil.wrapDirect("hello"), ByteBuffer.allocate(0), ByteBuffer.allocate(0),
+            ByteBufferUtil.wrapDirect(" world")
+        };
+        for (int i = 0; i < items.length; i++) {
+            // One item at a time, the next only asked for once the last has been used up
+            Assertions.assertEquals(i + 1, requested[0]);
+            stream.onNext(items[i]);
+            worker.drainHandoffs();
+            Assertions.assertFalse(stream.fill(buffer));
+        }
+        stream.onComplete();
+        worker.drainHandoffs();
+        Assertions.assertTrue(stream.fill(buffer));
+        return StandardCharsets.US_ASCII.decode(buffer.flip()).toString();
+    }
+}
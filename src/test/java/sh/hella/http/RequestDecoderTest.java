@@ -21,6 +21,16 @@ public class RequestDecoderTest {
         Assertions.assertEquals("/test", request.getPath());
     }
 
+    @Test
+    public void shouldParseHttp2Preface() {
+        ByteBuffer buffer = ByteBufferUtil.wrapDirect("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n");
+        RequestDecoder decoder = new RequestDecoder();
+        Request request = decoder.decode(buffer);
+        Assertions.assertEquals("PRI", request.getMethod());
+        Assertions.assertEquals("HTTP/2.0", request.getProtocol());
+        Assertions.assertEquals(6, buffer.remaining());
+    }
+
     @Test
     public void shouldParseHeaders() {
         ByteBuffer buffer = ByteBufferUtil.wrapDirect("GET /test HTTP/1.1\r\nAccept: text/plain\r\n\r\n");
@@ -249,4 +259,226 @@ public class RequestDecoderTest {
 
         Assertions.assertEquals(2, chunkCount.get());
     }
+
+    @Test
+    public void shouldParsePipelinedRequests() {
+        RequestDecoder decoder = new RequestDecoder();
+        ByteBuffer buffer = ByteBufferUtil.wrapDirect(
+            "GET /one HTTP/1.1\r\n\r\n" +
+            "POST /two HTTP/1.1\r\nContent-Length: 13\r\n\r\nHello, world!" +
+            "GET /three HTTP/1.1\r\nAccept: text/plain\r\n\r\n");
+
+        Request request = decoder.decode(buffer);
+        Assertions.assertEquals("/one", request.getPath());
+
+        request = decoder.decode(buffer);
+        Assertions.assertEquals("/two", request.getPath());
+        Assertions.assertEquals("Hello, world!", StandardCharsets.UTF_8.decode(request.getBody()).toString());
+
+        request = decoder.decode(buffer);
+        Assertions.assertEquals("/three", request.getPath());
+        Assertions.assertEquals("text/plain", request.getHeaders().get("Accept"));
+
+        Assertions.assertNull(decoder.decode(buffer));
+        Assertions.assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void shouldParseEmptyBodyAtEndOfBuffer() {
+        ByteBuffer buffer = ByteBufferUtil.wrapDirect("POST /test HTTP/1.1\r\nContent-Length: 0\r\n\r\n");
+        RequestDecoder decoder = new RequestDecoder();
+        Request request = decoder.decode(buffer);
+        Assertions.assertNotNull(request);
+        Assertions.assertEquals(0, request.getBody().remaining());
+    }
+
+    @Test
+    public void shouldParseRequestAfterChunkedBody() {
+        RequestDecoder decoder = new RequestDecoder();
+        ByteBuffer buffer = ByteBufferUtil.wrapDirect(
+            "POST /chunked HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n" +
+            "5\r\nHello\r\n0\r\n\r\n" +
+            "GET /next HTTP/1.1\r\n\r\n");
+
+        Request request = decoder.decode(buffer);
+        Assertions.assertEquals("/chunked", request.getPath());
+
+        AtomicInteger chunkCount = new AtomicInteger(0);
+        request.setChunkHandler(chunk -> chunkCount.incrementAndGet());
+
+        request = decoder.decode(buffer);
+        Assertions.assertEquals(1, chunkCount.get());
+        Assertions.assertEquals("/next", request.getPath());
+        Assertions.assertNull(decoder.decode(buffer));
+    }
+
+    @Test
+    public void shouldLookUpHeadersAndParametersWithoutMaterializing() {
+        ByteBuffer buffer = ByteBufferUtil.wrapDirect(
+            "GET /test?foo=bar&flag&foo=baz HTTP/1.1\r\ncontent-type: text/plain\r\nX-Empty:\r\n\r\n");
+        RequestDecoder decoder = new RequestDecoder();
+        Request request = decoder.decode(buffer);
+        Assertions.assertTrue(request.pathEquals("/test"));
+        Assertions.assertEquals(5, request.getPathLength());
+        Assertions.assertEquals("text/plain", request.getHeader("Content-Type"));
+        Assertions.assertEquals("", request.getHeader("x-empty"));
+        Assertions.assertNull(request.getHeader("Accept"));
+        Assertions.assertEquals("bar", request.getParameter("foo"));
+        Assertions.assertEquals("", request.getParameter("flag"));
+        Assertions.assertEquals(2, request.getParameters().get("foo").size());
+        Assertions.assertEquals("text/plain", request.getHeaders().get("Content-Type"));
+    }
+
+    @Test
+    public void shouldReuseRequestAcrossFragmentedReads() {
+        RequestDecoder decoder = new RequestDecoder();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+
+        buffer.put("GET /first HTTP/1.1\r\n\r\nGET /second?a=1 HTTP/1.1\r\nHost: loc".getBytes(StandardCharsets.UTF_8));
+        buffer.flip();
+        Request first = decoder.decode(buffer);
+        Assertions.assertEquals("/first", first.getPath());
+        Assertions.assertNull(decoder.decode(buffer));
+        buffer.compact();
+        buffer.put("alhost\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+        buffer.flip();
+        Request second = decoder.decode(buffer);
+
+        Assertions.assertSame(first, second);
+        Assertions.assertEquals("/second", second.getPath());
+        Assertions.assertEquals("1", second.getParameter("a"));
+        Assertions.assertEquals("localhost", second.getHeader("Host"));
+        Assertions.assertNull(second.getBody());
+    }
+
+    @Test
+    public void shouldContinueInLargerBuffer() {
+        RequestDecoder decoder = new RequestDecoder();
+        ByteBuffer small = ByteBuffer.allocateDirect(64);
+
+        small.put("POST /test HTTP/1.1\r\nHost: localhost\r\nContent-Le".getBytes(StandardCharsets.UTF_8));
+        small.flip();
+        Assertions.assertNull(decoder.decode(small));
+        small.compact();
+
+        ByteBuffer large = ByteBuffer.allocateDirect(1024);
+        large.put(small.flip());
+        large.put("ngth: 13\r\n\r\nHello, world!".getBytes(StandardCharsets.UTF_8));
+        large.flip();
+        small.clear().put(new byte[64]);
+
+        Request request = decoder.decode(large);
+        Assertions.assertNotNull(request);
+        Assertions.assertEquals("/test", request.getPath());
+        Assertions.assertEquals("localhost", request.getHeader("Host"));
+        Assertions.assertEquals("13", request.getHeader("Content-Length"));
+        Assertions.assertEquals("Hello, world!", StandardCharsets.UTF_8.decode(request.getBody()).toString());
+    }
+
+    @Test
+    public void shouldParseHexChunkSizesAndExtensions() {
+        RequestDecoder decoder = new RequestDecoder();
+        ByteBuffer buffer = ByteBufferUtil.wrapDirect(
+            "POST /chunked HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n" +
+            "1A;name=value\r\nabcdefghijklmnopqrstuvwxyz\r\n0\r\nX-Trailer: 1\r\n\r\n");
+
+        Request request = decoder.decode(buffer);
+        Assertions.assertTrue(decoder.isStreamingBody());
+        ByteBuffer part = decoder.decodeBodyPart(buffer);
+        Assertions.assertEquals("abcdefghijklmnopqrstuvwxyz", StandardCharsets.UTF_8.decode(part).toString());
+        Assertions.assertNull(decoder.decodeBodyPart(buffer));
+        Assertions.assertFalse(decoder.isStreamingBody());
+        Assertions.assertEquals("/chunked", request.getPath());
+        Assertions.assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void shouldStreamChunksLargerThanBuffer() {
+        RequestDecoder decoder = new RequestDecoder();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(128);
+        buffer.put("POST /upload HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n400\r\n".getBytes(StandardCharsets.UTF_8));
+        buffer.flip();
+        Assertions.assertNotNull(decoder.decode(buffer));
+
+        int received = 0;
+        int sent = 0;
+        while (decoder.isStreamingBody()) {
+            ByteBuffer part;
+            while ((part = decoder.decodeBodyPart(buffer)) != null) {
+                while (part.hasRemaining()) {
+                    Assertions.assertEquals('a' + received++ % 26, part.get());
+                }
+            }
+            buffer.compact();
+            while (buffer.hasRemaining() && sent < 1024) {
+                buffer.put((byte) ('a' + sent++ % 26));
+            }
+            if (sent == 1024 && buffer.remaining() >= 7) {
+                buffer.put("\r\n0\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+                sent++;
+            }
+            buffer.flip();
+        }
+        Assertions.assertEquals(1024, received);
+    }
+
+    @Test
+    public void shouldStreamBodyLargerThanMaxRequestSize() {
+        RequestDecoder decoder = new RequestDecoder(64);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+        buffer.put(("POST /upload HTTP/1.1\r\nContent-Length: 100\r\n\r\n" + "x".repeat(60)).getBytes(StandardCharsets.UTF_8));
+        buffer.flip();
+
+        Request request = decoder.decode(buffer);
+        Assertions.assertNotNull(request);
+        Assertions.assertNull(request.getBody());
+        Assertions.assertTrue(decoder.isStreamingBody());
+
+        AtomicInteger received = new AtomicInteger();
+        request.setChunkHandler(chunk -> received.addAndGet(chunk.remaining()));
+        Assertions.assertNull(decoder.decode(buffer));
+        Assertions.assertEquals(60, received.get());
+
+        buffer.compact();
+        buffer.put(("x".repeat(40) + "GET /next HTTP/1.1\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        buffer.flip();
+        request = decoder.decode(buffer);
+        Assertions.assertEquals(100, received.get());
+        Assertions.assertEquals("/next", request.getPath());
+    }
+
+    @Test
+    public void shouldRejectInvalidChunkSize() {
+        RequestDecoder decoder = new RequestDecoder();
+        ByteBuffer buffer = ByteBufferUtil.wrapDirect(
+            "POST /chunked HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\nzz\r\n");
+        decoder.decode(buffer);
+        Assertions.assertThrows(NumberFormatException.class, () -> decoder.decodeBodyPart(buffer));
+    }
+
+    @Test
+    public void shouldRejectAmbiguousFraming() {
+        for (String headers : new String[] {
+            "Content-Length: 5\r\nContent-Length: 6\r\n",
+            "Transfer-Encoding: xchunked\r\n",
+            "Transfer-Encoding: chunked, gzip\r\n",
+            "Transfer-Encoding: chunked\r\nTransfer-Encoding: gzip\r\n",
+            "Transfer-Encoding: gzip\r\n",
+        }) {
+            ByteBuffer buffer = ByteBufferUtil.wrapDirect("POST /test HTTP/1.1\r\n" + headers + "\r\nHello!");
+            Assertions.assertThrows(RuntimeException.class, () -> new RequestDecoder().decode(buffer), headers);
+        }
+    }
+
+    @Test
+    public void shouldAcceptChunkedAsTheFinalCoding() {
+        for (String headers : new String[] {
+            "Content-Length: 6\r\nContent-Length: 6\r\n",
+            "Transfer-Encoding: gzip, Chunked\r\n",
+            "Transfer-Encoding: gzip\r\nTransfer-Encoding: chunked\r\n",
+        }) {
+            ByteBuffer buffer = ByteBufferUtil.wrapDirect("POST /test HTTP/1.1\r\n" + headers + "\r\n6\r\nHello!");
+            Assertions.assertNotNull(new RequestDecoder().decode(buffer), headers);
+        }
+    }
 }
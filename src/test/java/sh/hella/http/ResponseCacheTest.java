@@ -0,0 +1,92 @@
+package sh.hella.http;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import sh.hella.http.codec.RequestDecoder;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+public class ResponseCacheTest {
+    @Test
+    public void shouldKeyOnMethodPathQueryAndVaryHeaders() {
+        ResponseCache cache = new ResponseCache(1024 * 1024, 0, List.of("Accept-Language"));
+        Assertions.assertEquals("GET /items?page=2\nen", cache.key(
+            decode("GET /items?page=2 HTTP/1.1\r\nAccept-Language: en\r\n\r\n")));
+        Assertions.assertEquals("GET /items\n", cache.key(decode("HEAD /items HTTP/1.1\r\n\r\n")));
+        Assertions.assertNull(cache.key(decode("POST /items HTTP/1.1\r\nContent-Length: 0\r\n\r\n")));
+        Assertions.assertNull(cache.key(decode("GET /items HTTP/1.1\r\nAuthorization: Basic eDp5\r\n\r\n")));
+        Assertions.assertNull(cache.key(decode("GET /items HTTP/1.1\r\nCache-Control: no-cache\r\n\r\n")));
+    }
+
+    @Test
+    public void shouldHonourCacheControl() {
+        ResponseCache cache = new ResponseCache(1024 * 1024, 0, List.of());
+
+        Response stored = cache.complete("a", response(200, "Cache-Control", "public, max-age=60"));
+        Assertions.assertTrue(stored instanceof StaticResponse);
+        Assertions.assertSame(stored, cache.get("a"));
+
+        cache.complete("b", response(200, "Cache-Control", "no-store"));
+        cache.complete("c", response(200, "Cache-Control", "private, max-age=60"));
+        cache.complete("d", response(200, "Set-Cookie", "id=1"));
+        cache.complete("e", response(500, "Cache-Control", "max-age=60"));
+        cache.complete("f", response(200, "Vary", "Accept-Language"));
+        cache.complete("g", response(200, "Content-Type", "text/plain"));
+        Assertions.assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void shouldExpireAndEvict() throws Exception {
+        ResponseCache cache = new ResponseCache(1024 * 1024, 1, List.of());
+        cache.complete("a", response(200, "Content-Type", "text/plain"));
+        Thread.sleep(5);
+        Assertions.assertNull(cache.get("a"));
+        Assertions.assertEquals(0, cache.getBytes());
+
+        Response first = cache.complete("b", response(200, "Cache-Control", "max-age=60"));
+        long size = cache.getBytes();
+        ResponseCache small = new ResponseCache(size * 2, 0, List.of());
+        small.complete("b", first);
+        small.complete("c", response(200, "Cache-Control", "max-age=60"));
+        small.get("b");
+        small.complete("d", response(200, "Cache-Control", "max-age=60"));
+        Assertions.assertNotNull(small.get("b"));
+        Assertions.assertNull(small.get("c"));
+        Assertions.assertNotNull(small.get("d"));
+    }
+
+    @Test
+    public void shouldLetOneMissThrough() {
+        ResponseCache cache = new ResponseCache(1024 * 1024, 0, List.of());
+        Assertions.assertNull(cache.claim("a"));
+        CompletableFuture<Response> waiting = cache.claim("a");
+        Assertions.assertFalse(waiting.isDone());
+
+        Response stored = cache.complete("a", response(200, "Cache-Control", "max-age=60"));
+        Assertions.assertSame(stored, waiting.join());
+        Assertions.assertSame(stored, cache.claim("a").join());
+
+        // A response that can't be shared leaves waiting requests to fetch their own
+        Assertions.assertNull(cache.claim("b"));
+        CompletableFuture<Response> uncacheable = cache.claim("b");
+        cache.complete("b", response(200, "Cache-Control", "private"));
+        Assertions.assertNull(uncacheable.join());
+        Assertions.assertNull(cache.claim("b"));
+    }
+
+    private static Response response(int status, String header, String value) {
+        return Response.builder()
+            .status(status)
+            .header(header, value)
+            .body("cached".getBytes(StandardCharsets.UTF_8))
+            .build();
+    }
+
+    private static Request decode(String request) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024).put(request.getBytes(StandardCharsets.US_ASCII)).flip();
+        return new RequestDecoder().decode(buffer);
+    }
+}
@@ -0,0 +1,135 @@
+package sh.hella.http;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import sh.blake.niouring.util.ByteBufferUtil;
+import sh.hella.http.codec.ResponseDecoder;
+import sh.hella.http.codec.ResponseEncoder;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+public class ResponseDecoderTest {
+
+    @Test
+    public void shouldDecodeContentLengthResponse() {
+        ByteBuffer buffer = ByteBufferUtil.wrapDirect(
+            "HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: 5\r\n\r\nhelloHTTP/1.1");
+        ResponseDecoder decoder = new ResponseDecoder();
+        Assertions.assertTrue(decoder.decodeHead(buffer, false));
+        Assertions.assertEquals(200, decoder.getStatus());
+        Assertions.assertEquals("text/plain", decoder.getHeaders().get("Content-Type"));
+        Assertions.assertEquals(5, decoder.getContentLength());
+        Assertions.assertTrue(decoder.isKeepAlive());
+        Assertions.assertEquals("hello", string(decoder.decodeBodyPart(buffer)));
+        Assertions.assertTrue(decoder.isDone());
+        Assertions.assertNull(decoder.decodeBodyPart(buffer));
+        Assertions.assertEquals("HTTP/1.1", string(buffer));
+    }
+
+    @Test
+    public void shouldKeepEverySetCookie() {
+        ByteBuffer buffer = ByteBufferUtil.wrapDirect("HTTP/1.1 204 No Content\r\nSet-Cookie: a=1\r\nVary: Accept\r\n"
+            + "set-cookie: b=2\r\nVary: Origin\r\n\r\n");
+        ResponseDecoder decoder = new ResponseDecoder();
+        Assertions.assertTrue(decoder.decodeHead(buffer, false));
+        Assertions.assertEquals(List.of("a=1", "b=2"), decoder.getCookies());
+        Assertions.assertEquals("Accept, Origin", decoder.getHeaders().get("Vary"));
+        Assertions.assertFalse(decoder.getHeaders().containsKey("Set-Cookie"));
+
+        ByteBuffer encoded = ByteBuffer.allocate(256);
+        ResponseEncoder.encode(Response.builder().status(204).cookies(decoder.getCookies()).build(), encoded, false);
+        Assertions.assertTrue(string(encoded.flip()).contains("Set-Cookie: a=1\r\nSet-Cookie: b=2\r\n"));
+    }
+
+    @Test
+    public void shouldWaitForWholeHead() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(256).put(bytes("HTTP/1.1 204 No Content\r\nServer: x\r\n")).flip();
+        ResponseDecoder decoder = new ResponseDecoder();
+        Assertions.assertFalse(decoder.decodeHead(buffer, false));
+        Assertions.assertEquals(0, buffer.position());
+
+        buffer.compact().put(bytes("\r\n")).flip();
+        Assertions.assertTrue(decoder.decodeHead(buffer, false));
+        Assertions.assertEquals(204, decoder.getStatus());
+        Assertions.assertTrue(decoder.isDone());
+    }
+
+    @Test
+    public void shouldSkipInterimResponses() {
+        ByteBuffer buffer = ByteBufferUtil.wrapDirect(
+            "HTTP/1.1 100 Continue\r\n\r\nHTTP/1.1 201 Created\r\nContent-Length: 0\r\n\r\n");
+        ResponseDecoder decoder = new ResponseDecoder();
+        Assertions.assertTrue(decoder.decodeHead(buffer, false));
+        Assertions.assertEquals(201, decoder.getStatus());
+        Assertions.assertTrue(decoder.isDone());
+        Assertions.assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void shouldDecodeChunkedBodyAcrossReads() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(256)
+            .put(bytes("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n5\r\nhel"))
+            .flip();
+        ResponseDecoder decoder = new ResponseDecoder();
+        Assertions.assertTrue(decoder.decodeHead(buffer, false));
+        Assertions.assertEquals(-1, decoder.getContentLength());
+        Assertions.assertEquals("hel", string(decoder.decodeBodyPart(buffer)));
+        Assertions.assertNull(decoder.decodeBodyPart(buffer));
+
+        buffer.compact().put(bytes("lo\r\n6\r\n world\r\n0\r\nX-Trailer: 1\r\n\r\n")).flip();
+        StringBuilder body = new StringBuilder();
+        ByteBuffer part;
+        while ((part = decoder.decodeBodyPart(buffer)) != null) {
+            body.append(string(part));
+        }
+        Assertions.assertEquals("lo world", body.toString());
+        Assertions.assertTrue(decoder.isDone());
+        Assertions.assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void shouldReadUntilCloseWithoutLength() {
+        ByteBuffer buffer = ByteBufferUtil.wrapDirect("HTTP/1.0 200 OK\r\n\r\nabc");
+        ResponseDecoder decoder = new ResponseDecoder();
+        Assertions.assertTrue(decoder.decodeHead(buffer, false));
+        Assertions.assertFalse(decoder.isKeepAlive());
+        Assertions.assertEquals("abc", string(decoder.decodeBodyPart(buffer)));
+        Assertions.assertFalse(decoder.isDone());
+        Assertions.assertTrue(decoder.endOfInput());
+        Assertions.assertTrue(decoder.isDone());
+    }
+
+    @Test
+    public void shouldNotExpectBodyForHead() {
+        ByteBuffer buffer = ByteBufferUtil.wrapDirect(
+            "HTTP/1.1 200 OK\r\nContent-Length: 42\r\nConnection: close\r\n\r\n");
+        ResponseDecoder decoder = new ResponseDecoder();
+        Assertions.assertTrue(decoder.decodeHead(buffer, true));
+        Assertions.assertEquals("42", decoder.getHeaders().get("Content-Length"));
+        Assertions.assertFalse(decoder.isKeepAlive());
+        Assertions.assertTrue(decoder.isDone());
+    }
+
+    @Test
+    public void shouldRejectTruncatedBody() {
+        ByteBuffer buffer = ByteBufferUtil.wrapDirect("HTTP/1.1 200 OK\r\nContent-Length: 10\r\n\r\nabc");
+        ResponseDecoder decoder = new ResponseDecoder();
+        Assertions.assertTrue(decoder.decodeHead(buffer, false));
+        decoder.decodeBodyPart(buffer);
+        Assertions.assertFalse(decoder.endOfInput());
+        Assertions.assertThrows(IllegalStateException.class,
+            () -> new ResponseDecoder().decodeHead(ByteBufferUtil.wrapDirect("SPDY/3 200\r\n\r\n"), false));
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static String string(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+}
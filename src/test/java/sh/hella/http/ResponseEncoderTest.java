@@ -0,0 +1,145 @@
+package sh.hella.http;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import sh.hella.http.codec.ResponseEncoder;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.SubmissionPublisher;
+
+public class ResponseEncoderTest {
+
+    @Test
+    public void shouldEncodePrebuiltResponseLikeDynamicOne() {
+        Response response = Response.builder()
+            .status(200)
+            .header("Content-Type", "text/plain")
+            .body("Hello, world!".getBytes(StandardCharsets.UTF_8))
+            .build();
+        StaticResponse prebuilt = Response.prebuilt(response);
+
+        Assertions.assertTrue(prebuilt.getEncoded().isDirect());
+        Assertions.assertTrue(prebuilt.getEncoded().isReadOnly());
+        Assertions.assertEquals(encode(response), encode(prebuilt));
+        Assertions.assertEquals(encode(prebuilt), encode(prebuilt));
+    }
+
+    @Test
+    public void shouldKeepTheBodyOfPrebuiltBufferResponses() {
+        Response response = Response.builder()
+            .status(200)
+            .header("Content-Type", "text/plain")
+            .bodyBuffer(ByteBuffer.wrap("Hello, world!".getBytes(StandardCharsets.UTF_8)))
+            .build();
+        StaticResponse prebuilt = Response.prebuilt(response);
+
+        Assertions.assertEquals(13, ResponseEncoder.bodyLength(prebuilt));
+        Assertions.assertTrue(prebuilt.getBodyBuffer().isReadOnly());
+        Assertions.assertEquals(encode(response), encode(prebuilt));
+    }
+
+    @Test
+    public void shouldNotPartiallyWritePrebuiltResponse() {
+        StaticResponse prebuilt = Response.prebuilt(Response.builder()
+            .status(200)
+            .body(new byte[64])
+            .build());
+        ByteBuffer buffer = ByteBuffer.allocateDirect(32);
+        Assertions.assertThrows(BufferOverflowException.class, () -> ResponseEncoder.encode(prebuilt, buffer));
+        Assertions.assertEquals(0, buffer.position());
+    }
+
+    @Test
+    public void shouldFrameResponse() {
+        String encoded = encode(Response.builder()
+            .status(200)
+            .header("Content-Type", "text/plain")
+            .body("Hello, world!".getBytes(StandardCharsets.UTF_8))
+            .build());
+        Assertions.assertTrue(encoded.startsWith("HTTP/1.1 200 OK\r\nServer: hella-http\r\n"));
+        Assertions.assertTrue(encoded.contains("\r\nContent-Type: text/plain\r\n"));
+        Assertions.assertTrue(encoded.contains("\r\nContent-Length: 13\r\n"));
+        Assertions.assertTrue(encoded.matches("(?s).*\r\nDate: \\w{3}, \\d{2} \\w{3} \\d{4} \\d{2}:\\d{2}:\\d{2} GMT\r\n.*"));
+        Assertions.assertTrue(encoded.endsWith("\r\n\r\nHello, world!"));
+    }
+
+    @Test
+    public void shouldEncodeContentLengthDigits() {
+        for (int length : new int[] {0, 7, 10, 99, 100, 12345, 1000000}) {
+            String encoded = encode(Response.builder().status(200).body(new byte[0]).build(), length);
+            Assertions.assertTrue(encoded.contains("\r\nContent-Length: " + length + "\r\n"), encoded);
+        }
+    }
+
+    @Test
+    public void shouldNotOverrideHandlerHeaders() {
+        String encoded = encode(Response.builder()
+            .status(200)
+            .header("content-length", "5")
+            .header("Date", "Thu, 01 Jan 1970 00:00:00 GMT")
+            .body("Hello".getBytes(StandardCharsets.UTF_8))
+            .build());
+        Assertions.assertEquals(1, encoded.split("(?i)content-length").length - 1);
+        Assertions.assertEquals(1, encoded.split("Date: ").length - 1);
+    }
+
+    @Test
+    public void shouldOmitContentLengthForNoContent() {
+        String encoded = encode(Response.builder().status(204).build());
+        Assertions.assertTrue(encoded.startsWith("HTTP/1.1 204 No Content\r\n"));
+        Assertions.assertFalse(encoded.contains("Content-Length"));
+        Assertions.assertTrue(encoded.endsWith("GMT\r\n\r\n"));
+    }
+
+    @Test
+    public void shouldSpliceDateIntoPrebuiltHead() {
+        StaticResponse prebuilt = Response.prebuilt(Response.builder()
+            .status(200)
+            .body("Hello, world!".getBytes(StandardCharsets.UTF_8))
+            .build());
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+        ResponseEncoder.encodeHead(prebuilt, buffer);
+        String head = StandardCharsets.UTF_8.decode(buffer.flip()).toString();
+        Assertions.assertTrue(head.contains("\r\nDate: "));
+        Assertions.assertTrue(head.endsWith("GMT\r\n\r\n"));
+        Assertions.assertEquals(13, prebuilt.getEncodedBody().remaining());
+    }
+
+    @Test
+    public void shouldFrameStreamedResponseAsChunked() {
+        Response response = Response.builder()
+            .status(200)
+            .bodyPublisher(new SubmissionPublisher<>())
+            .build();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+        ResponseEncoder.encodeHead(response, buffer);
+        String head = StandardCharsets.UTF_8.decode(buffer.flip()).toString();
+
+        Assertions.assertTrue(ResponseEncoder.isChunked(response));
+        Assertions.assertTrue(head.contains("\r\nTransfer-Encoding: chunked\r\n"));
+        Assertions.assertFalse(head.contains("Content-Length"));
+        Assertions.assertTrue(head.endsWith("\r\n\r\n"));
+    }
+
+    @Test
+    public void shouldStreamWithHandlerContentLength() {
+        Response response = Response.builder()
+            .status(200)
+            .header("Content-Length", "1048576")
+            .bodyPublisher(new SubmissionPublisher<>())
+            .build();
+        Assertions.assertFalse(ResponseEncoder.isChunked(response));
+    }
+
+    private static String encode(Response response, int bodyLength) {
+        return encode(Response.builder().status(response.getStatus()).body(new byte[bodyLength]).build());
+    }
+
+    private static String encode(Response response) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(2 * 1024 * 1024);
+        ResponseEncoder.encode(response, buffer);
+        return StandardCharsets.UTF_8.decode(buffer.flip()).toString();
+    }
+}
@@ -0,0 +1,97 @@
+package sh.hella.http;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import sh.blake.niouring.util.ByteBufferUtil;
+import sh.hella.http.codec.RequestDecoder;
+import sh.hella.http.handler.Router;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+public class RouterTest {
+    private Router router;
+
+    @BeforeEach
+    public void setUp() {
+        router = new Router()
+            .get("/", r -> text("root"))
+            .get("/users", r -> text("users"))
+            .get("/users/me", r -> text("me"))
+            .get("/users/{id}", r -> text("user " + r.getPathParameter("id")))
+            .put("/users/{id}", r -> text("put " + r.getPathParameter("id")))
+            .get("/users/{id}/orders/{order}", r -> text(r.getPathParameter("id") + ":" + r.getPathParameter("order")))
+            .get("/useful", r -> text("useful"))
+            .get("/files/{path*}", r -> text("file " + r.getPathParameter("path")));
+    }
+
+    @Test
+    public void shouldMatchStaticRoutes() {
+        Assertions.assertEquals("root", body(get("GET / HTTP/1.1\r\n\r\n")));
+        Assertions.assertEquals("users", body(get("GET /users HTTP/1.1\r\n\r\n")));
+        Assertions.assertEquals("useful", body(get("GET /useful HTTP/1.1\r\n\r\n")));
+    }
+
+    @Test
+    public void shouldRouteBuiltRequests() {
+        Request request = Request.builder()
+            .method("GET")
+            .path("/users/42")
+            .protocol("HTTP/1.1")
+            .headers(Map.of("Accept", "text/plain"))
+            .parameters(Map.of("page", List.of("2")))
+            .build();
+        Assertions.assertEquals("user 42", body(router.apply(request)));
+        Assertions.assertEquals("text/plain", request.getHeader("accept"));
+        Assertions.assertEquals("2", request.getParameter("page"));
+    }
+
+    @Test
+    public void shouldPreferStaticOverParameter() {
+        Assertions.assertEquals("me", body(get("GET /users/me HTTP/1.1\r\n\r\n")));
+        Assertions.assertEquals("user 42", body(get("GET /users/42 HTTP/1.1\r\n\r\n")));
+    }
+
+    @Test
+    public void shouldCaptureParameters() {
+        Assertions.assertEquals("7:99", body(get("GET /users/7/orders/99?x=1 HTTP/1.1\r\n\r\n")));
+        Assertions.assertEquals("me:1", body(get("GET /users/me/orders/1 HTTP/1.1\r\n\r\n")));
+        Assertions.assertEquals("file css/site.css", body(get("GET /files/css/site.css HTTP/1.1\r\n\r\n")));
+    }
+
+    @Test
+    public void shouldFallBackToGetForHead() {
+        Assertions.assertEquals("user 1", body(get("HEAD /users/1 HTTP/1.1\r\n\r\n")));
+    }
+
+    @Test
+    public void shouldRejectUnknownPathsAndMethods() {
+        Assertions.assertEquals(404, get("GET /users/ HTTP/1.1\r\n\r\n").getStatus());
+        Assertions.assertEquals(404, get("GET /nope HTTP/1.1\r\n\r\n").getStatus());
+        Assertions.assertEquals(404, get("GET /files/ HTTP/1.1\r\n\r\n").getStatus());
+        Response response = get("DELETE /users/1 HTTP/1.1\r\n\r\n");
+        Assertions.assertEquals(405, response.getStatus());
+        Assertions.assertEquals("GET, HEAD, PUT", response.getHeaders().get("Allow"));
+    }
+
+    @Test
+    public void shouldRejectInvalidTemplates() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> router.get("/users/{id}", r -> null));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> router.get("/a/{b*}/c", r -> null));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> router.get("/a/{b", r -> null));
+    }
+
+    private Response get(String request) {
+        return router.apply(new RequestDecoder().decode(ByteBufferUtil.wrapDirect(request)));
+    }
+
+    private static Response text(String body) {
+        return Response.builder().status(200).body(body.getBytes(StandardCharsets.UTF_8)).build();
+    }
+
+    private static String body(Response response) {
+        return new String(response.getBody(), StandardCharsets.UTF_8);
+    }
+}
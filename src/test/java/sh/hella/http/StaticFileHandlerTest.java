@@ -0,0 +1,114 @@
+package sh.hella.http;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import sh.blake.niouring.util.ByteBufferUtil;
+import sh.hella.http.codec.RequestDecoder;
+import sh.hella.http.codec.ResponseEncoder;
+import sh.hella.http.handler.StaticFileHandler;
+import sh.hella.http.handler.StaticFileOptions;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class StaticFileHandlerTest {
+    private static final Response FALLBACK = Response.builder().status(418).build();
+
+    @TempDir
+    Path root;
+
+    private StaticFileHandler handler;
+    private byte[] large;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        Files.writeString(root.resolve("hello.txt"), "Hello, world!");
+        Files.createDirectories(root.resolve("docs"));
+        Files.writeString(root.resolve("docs/index.html"), "<h1>Docs</h1>");
+        large = new byte[100_000];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) ('a' + i % 26);
+        }
+        Files.write(root.resolve("large.bin"), large);
+        Files.writeString(root.getParent().resolve("secret.txt"), "secret");
+        handler = new StaticFileHandler(root, StaticFileOptions.builder().prefix("/static/").build(), r -> FALLBACK);
+    }
+
+    @Test
+    public void shouldServeSmallFileAsPrebuiltResponse() {
+        Response response = get("GET /static/hello.txt HTTP/1.1\r\n\r\n");
+        Assertions.assertTrue(response instanceof StaticResponse);
+        String encoded = encode(response);
+        Assertions.assertTrue(encoded.startsWith("HTTP/1.1 200 OK\r\n"));
+        Assertions.assertTrue(encoded.contains("Content-Type: text/plain; charset=utf-8\r\n"));
+        Assertions.assertTrue(encoded.endsWith("\r\n\r\nHello, world!"));
+        Assertions.assertSame(response, get("GET /static/hello.txt HTTP/1.1\r\n\r\n"));
+    }
+
+    @Test
+    public void shouldServeLargeFileFromMapping() {
+        Response response = get("GET /static/large.bin HTTP/1.1\r\n\r\n");
+        Assertions.assertEquals(200, response.getStatus());
+        Assertions.assertTrue(response.getBodyBuffer().isDirect());
+        Assertions.assertEquals(large.length, response.getBodyBuffer().remaining());
+    }
+
+    @Test
+    public void shouldOnlyMatchThePrefixAsWholeSegments() throws Exception {
+        Files.writeString(root.resolve("ky.txt"), "not under the prefix");
+        handler = new StaticFileHandler(root, StaticFileOptions.builder().prefix("/static").build(), r -> FALLBACK);
+        Assertions.assertTrue(encode(get("GET /static/hello.txt HTTP/1.1\r\n\r\n")).endsWith("Hello, world!"));
+        Assertions.assertSame(FALLBACK, get("GET /staticky.txt HTTP/1.1\r\n\r\n"));
+    }
+
+    @Test
+    public void shouldServeIndexFile() {
+        Assertions.assertTrue(encode(get("GET /static/docs/ HTTP/1.1\r\n\r\n")).endsWith("<h1>Docs</h1>"));
+    }
+
+    @Test
+    public void shouldAnswerConditionalRequests() {
+        String etag = get("GET /static/hello.txt HTTP/1.1\r\n\r\n").getHeaders().get("ETag");
+        Response response = get("GET /static/hello.txt HTTP/1.1\r\nIf-None-Match: " + etag + "\r\n\r\n");
+        Assertions.assertEquals(304, response.getStatus());
+        Assertions.assertEquals(200, get("GET /static/hello.txt HTTP/1.1\r\nIf-None-Match: \"other\"\r\n\r\n").getStatus());
+    }
+
+    @Test
+    public void shouldServeRanges() {
+        Response response = get("GET /static/large.bin HTTP/1.1\r\nRange: bytes=26-51\r\n\r\n");
+        Assertions.assertEquals(206, response.getStatus());
+        Assertions.assertEquals("bytes 26-51/100000", response.getHeaders().get("Content-Range"));
+        Assertions.assertEquals("abcdefghijklmnopqrstuvwxyz",
+            StandardCharsets.US_ASCII.decode(response.getBodyBuffer()).toString());
+
+        response = get("GET /static/hello.txt HTTP/1.1\r\nRange: bytes=-6\r\n\r\n");
+        Assertions.assertEquals("world!", StandardCharsets.US_ASCII.decode(response.getBodyBuffer()).toString());
+
+        Assertions.assertEquals(416, get("GET /static/hello.txt HTTP/1.1\r\nRange: bytes=50-\r\n\r\n").getStatus());
+    }
+
+    @Test
+    public void shouldFallBackOutsideRoot() {
+        Assertions.assertSame(FALLBACK, get("GET /static/../secret.txt HTTP/1.1\r\n\r\n"));
+        Assertions.assertSame(FALLBACK, get("GET /static/%2e%2e/secret.txt HTTP/1.1\r\n\r\n"));
+        Assertions.assertSame(FALLBACK, get("GET /static/missing.txt HTTP/1.1\r\n\r\n"));
+        Assertions.assertSame(FALLBACK, get("GET /other/hello.txt HTTP/1.1\r\n\r\n"));
+        Assertions.assertSame(FALLBACK, get("POST /static/hello.txt HTTP/1.1\r\nContent-Length: 0\r\n\r\n"));
+    }
+
+    private Response get(String request) {
+        return handler.apply(new RequestDecoder().decode(ByteBufferUtil.wrapDirect(request)));
+    }
+
+    private static String encode(Response response) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+        ResponseEncoder.encode(response, buffer);
+        return StandardCharsets.UTF_8.decode(buffer.flip()).toString();
+    }
+}
@@ -0,0 +1,89 @@
+package sh.hella.http;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import sh.hella.http.util.TimerWheel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TimerWheelTest {
+    private final List<String> fired = new ArrayList<>();
+    private final TimerWheel wheel = new TimerWheel(10, 8, 1000);
+
+    @Test
+    public void shouldFireWhenDue() {
+        TimerWheel.Timeout a = timeout("a"), b = timeout("b");
+        wheel.schedule(a, 25);
+        wheel.schedule(b, 50);
+        wheel.advance(1020);
+        Assertions.assertEquals(List.of(), fired);
+        wheel.advance(1030);
+        Assertions.assertEquals(List.of("a"), fired);
+        Assertions.assertFalse(a.isScheduled());
+        wheel.advance(1050);
+        Assertions.assertEquals(List.of("a", "b"), fired);
+        Assertions.assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void shouldFireAfterMoreThanOneRevolution() {
+        wheel.schedule(timeout("a"), 500);
+        wheel.advance(1490);
+        Assertions.assertEquals(List.of(), fired);
+        wheel.advance(1500);
+        Assertions.assertEquals(List.of("a"), fired);
+    }
+
+    @Test
+    public void shouldPushBackAndBringForward() {
+        TimerWheel.Timeout a = timeout("a");
+        wheel.schedule(a, 20);
+        wheel.advance(1010);
+        wheel.schedule(a, 40);
+        wheel.advance(1040);
+        Assertions.assertEquals(List.of(), fired);
+        wheel.schedule(a, 5);
+        wheel.advance(1050);
+        Assertions.assertEquals(List.of("a"), fired);
+    }
+
+    @Test
+    public void shouldNotFireCancelled() {
+        TimerWheel.Timeout a = timeout("a"), b = timeout("b");
+        wheel.schedule(a, 10);
+        wheel.schedule(b, 10);
+        wheel.cancel(a);
+        wheel.advance(1100);
+        Assertions.assertEquals(List.of("b"), fired);
+    }
+
+    @Test
+    public void shouldCatchUpAfterStall() {
+        wheel.schedule(timeout("a"), 30);
+        wheel.schedule(timeout("b"), 70);
+        wheel.schedule(timeout("c"), 300);
+        wheel.advance(2000);
+        Assertions.assertEquals(3, fired.size());
+    }
+
+    @Test
+    public void shouldAllowReschedulingFromTask() {
+        TimerWheel.Timeout[] a = new TimerWheel.Timeout[1];
+        a[0] = new TimerWheel.Timeout(() -> {
+            fired.add("a");
+            if (fired.size() < 3) {
+                wheel.schedule(a[0], 10);
+            }
+        });
+        wheel.schedule(a[0], 10);
+        for (long now = 1000; now <= 1100; now += 10) {
+            wheel.advance(now);
+        }
+        Assertions.assertEquals(List.of("a", "a", "a"), fired);
+    }
+
+    private TimerWheel.Timeout timeout(String name) {
+        return new TimerWheel.Timeout(() -> fired.add(name));
+    }
+}
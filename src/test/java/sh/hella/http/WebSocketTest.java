@@ -0,0 +1,182 @@
+package sh.hella.http;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import sh.hella.http.codec.RequestDecoder;
+import sh.hella.http.codec.WebSocketDecoder;
+import sh.hella.http.codec.WebSocketEncoder;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+public class WebSocketTest {
+    private static final WebSocket.Listener IGNORE = (socket, message, text) -> { };
+
+    @Test
+    public void shouldAcceptHandshake() {
+        // RFC 6455 section 1.3
+        Request request = decode("GET /chat HTTP/1.1\r\nHost: server.example.com\r\nUpgrade: websocket\r\n"
+            + "Connection: Upgrade\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\nSec-WebSocket-Version: 13\r\n\r\n");
+        Response response = WebSocket.upgrade(request, IGNORE);
+        Assertions.assertEquals(101, response.getStatus());
+        Assertions.assertEquals("s3pPLMBiTxaQ9kYGzzhZRbK+xOo=", response.getHeaders().get("Sec-WebSocket-Accept"));
+    }
+
+    @Test
+    public void shouldRejectInvalidHandshake() {
+        Request noKey = decode("GET /chat HTTP/1.1\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n\r\n");
+        Assertions.assertEquals(400, WebSocket.upgrade(noKey, IGNORE).getStatus());
+
+        Request oldVersion = decode("GET /chat HTTP/1.1\r\nUpgrade: websocket\r\nConnection: keep-alive, Upgrade\r\n"
+            + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\nSec-WebSocket-Version: 8\r\n\r\n");
+        Assertions.assertEquals(426, WebSocket.upgrade(oldVersion, IGNORE).getStatus());
+    }
+
+    @Test
+    public void shouldUnmaskFrameInPlace() {
+        // RFC 6455 section 5.7, a masked "Hello" followed by the start of another frame
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64)
+            .put(new byte[] {(byte) 0x81, (byte) 0x85, 0x37, (byte) 0xfa, 0x21, 0x3d, 0x7f, (byte) 0x9f, 0x4d, 0x51, 0x58})
+            .put(new byte[] {(byte) 0x82, (byte) 0x85})
+            .flip();
+        WebSocketDecoder decoder = new WebSocketDecoder();
+
+        Assertions.assertTrue(decoder.decode(buffer));
+        Assertions.assertTrue(decoder.isFin());
+        Assertions.assertEquals(WebSocketDecoder.TEXT, decoder.getOpcode());
+        Assertions.assertEquals("Hello", string(decoder.getPayload()));
+        Assertions.assertFalse(decoder.decode(buffer));
+        Assertions.assertEquals(11, buffer.position());
+    }
+
+    @Test
+    public void shouldUnmaskLongPayloads() {
+        byte[] payload = new byte[1000];
+        new Random(7).nextBytes(payload);
+        byte[] mask = {0x12, 0x34, 0x56, 0x78};
+        ByteBuffer buffer = ByteBuffer.allocate(2048).put((byte) 0x82).put((byte) (0x80 | 126)).putShort((short) 1000)
+            .put(mask);
+        for (int i = 0; i < payload.length; i++) {
+            buffer.put((byte) (payload[i] ^ mask[i % 4]));
+        }
+        WebSocketDecoder decoder = new WebSocketDecoder();
+
+        Assertions.assertTrue(decoder.decode(buffer.flip()));
+        byte[] unmasked = new byte[decoder.getPayload().remaining()];
+        decoder.getPayload().get(unmasked);
+        Assertions.assertArrayEquals(payload, unmasked);
+    }
+
+    @Test
+    public void shouldHandOutFramesLargerThanTheBufferInPieces() {
+        byte[] payload = new byte[1000];
+        new Random(7).nextBytes(payload);
+        byte[] mask = {0x12, 0x34, 0x56, 0x78};
+        byte[] frame = new byte[8 + payload.length];
+        ByteBuffer.wrap(frame).put((byte) 0x82).put((byte) (0x80 | 126)).putShort((short) 1000).put(mask);
+        for (int i = 0; i < payload.length; i++) {
+            frame[8 + i] = (byte) (payload[i] ^ mask[i % 4]);
+        }
+        WebSocketDecoder decoder = new WebSocketDecoder(1000);
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        ByteBuffer unmasked = ByteBuffer.allocate(payload.length);
+        int pieces = 0;
+        // Arriving in reads of odd sizes, so the pieces start part way through the key
+        for (int at = 0; at < frame.length; ) {
+            int read = Math.min(Math.min(buffer.remaining(), 99), frame.length - at);
+            buffer.put(frame, at, read).flip();
+            at += read;
+            while (decoder.decode(buffer)) {
+                Assertions.assertEquals(unmasked.position() == 0 ? WebSocketDecoder.BINARY
+                    : WebSocketDecoder.CONTINUATION, decoder.getOpcode());
+                Assertions.assertEquals(unmasked.position() + decoder.getPayload().remaining() == payload.length,
+                    decoder.isFin());
+                unmasked.put(decoder.getPayload());
+                pieces++;
+            }
+            buffer.compact();
+        }
+        Assertions.assertTrue(pieces > 4);
+        Assertions.assertArrayEquals(payload, unmasked.array());
+    }
+
+    @Test
+    public void shouldReadLargeMessagesOnTheSmallBufferAndGiveTheLargeOneBack() {
+        int small = Options.builder().build().getInitialRequestBufferSize();
+        byte[] payload = new byte[20_000];
+        new Random(7).nextBytes(payload);
+        byte[][] received = new byte[1][];
+        var client = new ConnectionTest.Client(Options.builder().build(), request ->
+            WebSocket.upgrade(request, (socket, message, text) -> {
+                received[0] = new byte[message.remaining()];
+                message.get(received[0]);
+            }));
+        client.send("GET /chat HTTP/1.1\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+            + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\nSec-WebSocket-Version: 13\r\n\r\n");
+        Assertions.assertTrue(client.receive().startsWith("HTTP/1.1 101"));
+        Assertions.assertEquals(small, client.ring.reads.peek().capacity());
+
+        byte[] mask = {0x12, 0x34, 0x56, 0x78};
+        ByteBuffer frame = ByteBuffer.allocate(14 + payload.length).put((byte) 0x82).put((byte) (0x80 | 127))
+            .putLong(payload.length).put(mask);
+        for (int i = 0; i < payload.length; i++) {
+            frame.put((byte) (payload[i] ^ mask[i % 4]));
+        }
+        frame.flip();
+        while (frame.hasRemaining()) {
+            byte[] read = new byte[Math.min(frame.remaining(), client.ring.reads.peek().remaining())];
+            frame.get(read);
+            client.send(read);
+        }
+
+        Assertions.assertArrayEquals(payload, received[0]);
+        Assertions.assertEquals(small, client.ring.reads.peek().capacity());
+    }
+
+    @Test
+    public void shouldRejectInvalidFrames() {
+        WebSocketDecoder decoder = new WebSocketDecoder(1 << 16);
+        var unmasked = Assertions.assertThrows(WebSocketDecoder.ProtocolException.class,
+            () -> decoder.decode(ByteBuffer.wrap(new byte[] {(byte) 0x81, 0x05})));
+        Assertions.assertEquals(WebSocketDecoder.PROTOCOL_ERROR, unmasked.getStatus());
+
+        var fragmentedPing = Assertions.assertThrows(WebSocketDecoder.ProtocolException.class,
+            () -> decoder.decode(ByteBuffer.wrap(new byte[] {0x09, (byte) 0x80, 0, 0, 0, 0})));
+        Assertions.assertEquals(WebSocketDecoder.PROTOCOL_ERROR, fragmentedPing.getStatus());
+
+        ByteBuffer tooLarge = ByteBuffer.allocate(16).put((byte) 0x82).put((byte) 0xff).putLong(1 << 20).flip();
+        var exception = Assertions.assertThrows(WebSocketDecoder.ProtocolException.class,
+            () -> decoder.decode(tooLarge));
+        Assertions.assertEquals(WebSocketDecoder.MESSAGE_TOO_BIG, exception.getStatus());
+    }
+
+    @Test
+    public void shouldEncodeUnmaskedFrames() {
+        ByteBuffer small = WebSocketEncoder.encode(WebSocketDecoder.TEXT, ByteBuffer.wrap("Hi".getBytes()));
+        Assertions.assertTrue(small.isReadOnly());
+        Assertions.assertEquals(4, small.remaining());
+        Assertions.assertEquals((byte) 0x81, small.get(0));
+        Assertions.assertEquals(2, small.get(1));
+
+        ByteBuffer medium = WebSocketEncoder.encode(WebSocketDecoder.BINARY, ByteBuffer.allocate(300));
+        Assertions.assertEquals(126, medium.get(1));
+        Assertions.assertEquals(300, medium.getShort(2));
+        Assertions.assertEquals(304, medium.remaining());
+
+        ByteBuffer large = WebSocketEncoder.encode(WebSocketDecoder.BINARY, ByteBuffer.allocate(70000));
+        Assertions.assertEquals(127, large.get(1));
+        Assertions.assertEquals(70000, large.getLong(2));
+    }
+
+    private static Request decode(String request) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024).put(request.getBytes(StandardCharsets.US_ASCII)).flip();
+        return new RequestDecoder().decode(buffer);
+    }
+
+    private static String string(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}